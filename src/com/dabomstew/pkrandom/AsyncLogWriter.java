@@ -0,0 +1,257 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  AsyncLogWriter.java - streams the verbose log to a file on a          --*/
+/*--                        background thread.                              --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An OutputStream for the verbose log (wrap it in a UTF-8 PrintStream) that
+ * hands the log over to a background thread one line at a time through a
+ * bounded queue. The randomizer never waits on disk unless it gets more than
+ * QUEUE_CAPACITY records ahead of the writer, and the log is never held in
+ * memory as a whole.
+ *
+ * In TEXT format the output is exactly what the old in-memory log produced,
+ * including the UTF-8 byte order mark. In JSON_LINES format each log line
+ * becomes one JSON object tagged with the section ("--Wild Pokemon--" etc.)
+ * it appeared under.
+ */
+public class AsyncLogWriter extends OutputStream {
+
+    public enum Format {
+        TEXT, JSON_LINES
+    }
+
+    private static final int QUEUE_CAPACITY = 1024;
+    // TEXT records are batched up to this size; JSON_LINES records are single lines.
+    private static final int TEXT_RECORD_SIZE = 8192;
+    private static final byte[] END_OF_LOG = new byte[0];
+
+    private final OutputStream out;
+    private final Format format;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private volatile IOException failure;
+    private boolean closed;
+
+    // Only touched by the writer thread.
+    private int lineNumber;
+    private String section = "";
+
+    public AsyncLogWriter(OutputStream out, Format format) {
+        this.out = new BufferedOutputStream(out);
+        this.format = format;
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "Verbose log writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        pending.write(b);
+        if (b == '\n') {
+            lineEnded();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                pending.write(b, start, i + 1 - start);
+                lineEnded();
+                start = i + 1;
+            }
+        }
+        pending.write(b, start, end - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (pending.size() > 0) {
+            enqueue(pending.toByteArray());
+            pending.reset();
+        }
+        enqueue(END_OF_LOG);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Log writer is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void lineEnded() throws IOException {
+        if (format == Format.JSON_LINES || pending.size() >= TEXT_RECORD_SIZE) {
+            enqueue(pending.toByteArray());
+            pending.reset();
+        }
+    }
+
+    private void enqueue(byte[] record) throws IOException {
+        try {
+            // blocks while the writer is QUEUE_CAPACITY records behind
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            if (format == Format.TEXT) {
+                out.write(0xEF);
+                out.write(0xBB);
+                out.write(0xBF);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        while (true) {
+            byte[] record;
+            try {
+                record = queue.take();
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException();
+                return;
+            }
+            if (record == END_OF_LOG) {
+                break;
+            }
+            if (failure != null) {
+                // keep draining so the randomizer never blocks on a dead writer
+                continue;
+            }
+            try {
+                if (format == Format.TEXT) {
+                    out.write(record);
+                } else {
+                    writeJsonLine(record);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    private void writeJsonLine(byte[] record) throws IOException {
+        String text = new String(record, StandardCharsets.UTF_8);
+        int end = text.length();
+        while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        text = text.substring(0, end);
+        lineNumber++;
+        if (text.length() > 4 && text.startsWith("--") && text.endsWith("--")) {
+            section = text.substring(2, text.length() - 2);
+        }
+        StringBuilder sb = new StringBuilder(text.length() + section.length() + 40);
+        sb.append("{\"line\":").append(lineNumber).append(",\"section\":");
+        appendJsonString(sb, section);
+        sb.append(",\"text\":");
+        appendJsonString(sb, text);
+        sb.append("}\n");
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,81 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  ContentHash.java - the identity of a ROM image or member file, as     --*/
+/*--                     worked out by HashService.                         --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+/**
+ * Length, plain CRC32 (the same value java.util.zip.CRC32 gives for the
+ * whole content) and a 64-bit hash built from per-chunk hashes. Two
+ * ContentHashes are equal when all three are.
+ */
+public class ContentHash {
+
+    private final long length;
+    private final int crc32;
+    private final long hash64;
+
+    public ContentHash(long length, int crc32, long hash64) {
+        this.length = length;
+        this.crc32 = crc32;
+        this.hash64 = hash64;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getCRC32() {
+        return crc32;
+    }
+
+    /** The CRC32 as the unsigned value CRC32.getValue() returns. */
+    public long getCRC32Value() {
+        return crc32 & 0xFFFFFFFFL;
+    }
+
+    public long getHash64() {
+        return hash64;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ContentHash)) {
+            return false;
+        }
+        ContentHash other = (ContentHash) obj;
+        return length == other.length && crc32 == other.crc32 && hash64 == other.hash64;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash64 ^ (hash64 >>> 32));
+    }
+
+    // stable text form, e.g. for baseline files
+    @Override
+    public String toString() {
+        return String.format("%08x-%016x-%d", crc32, hash64, length);
+    }
+
+}
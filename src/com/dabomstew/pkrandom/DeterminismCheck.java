@@ -0,0 +1,384 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  DeterminismCheck.java - records what fixed seeds produce for a set of --*/
+/*--                          ROMs and presets, and checks later builds     --*/
+/*--                          against that.                                 --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dabomstew.pkrandom.exceptions.RandomizationException;
+import com.dabomstew.pkrandom.romhandlers.AbstractDSRomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen1RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen2RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen3RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen4RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen5RomHandler;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+/**
+ * Randomizes every fixture ROM with every preset and seed, and records the
+ * hash (see ContentHash) of each saved ROM, the Randomizer check value and how long each
+ * phase took. "record" writes that to a baseline file; "verify" runs the
+ * baseline's cases again and fails on any hash or check value change, or on
+ * a phase getting slower than the baseline by more than the threshold. A
+ * case whose repeats give different output fails both: it is never
+ * recorded, and never counts as matching.
+ *
+ * Each case runs a few times and keeps the fastest time per phase, which
+ * also checks that one build gives the same ROM every time. The bundled
+ * custom names are always used, so a user's own names file can't change the
+ * results. Everything is local: fixtures and presets are plain directories.
+ *
+ * Usage:
+ * <pre>
+ * DeterminismCheck record baseline.txt roms/ settings/ [seed,seed,...]
+ * DeterminismCheck verify baseline.txt roms/ settings/ [threshold]
+ * </pre>
+ */
+public class DeterminismCheck {
+
+    private static final long[] DEFAULT_SEEDS = { 1L, 42L, 123456789L, -5555555555L };
+    private static final int REPEATS = 3;
+    // timing regressions smaller than this are noise, whatever the ratio
+    private static final long SLACK_MILLIS = 50;
+    // the hash of a case whose repeats didn't all give the same output
+    private static final String UNSTABLE = "UNSTABLE";
+
+    private static final RomHandler.Factory[] FACTORIES = new RomHandler.Factory[] { new Gen1RomHandler.Factory(),
+            new Gen2RomHandler.Factory(), new Gen3RomHandler.Factory(), new Gen4RomHandler.Factory(),
+            new Gen5RomHandler.Factory() };
+
+    private final File fixtureDir, presetDir;
+    private final CustomNamesSet names;
+    private final PrintStream log;
+
+    public DeterminismCheck(File fixtureDir, File presetDir, PrintStream log) throws IOException {
+        this.fixtureDir = fixtureDir;
+        this.presetDir = presetDir;
+        this.log = log;
+        InputStream is = FileFunctions.class.getResourceAsStream("/com/dabomstew/pkrandom/config/"
+                + SysConstants.customNamesFile);
+        try {
+            this.names = new CustomNamesSet(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /** One ROM + preset + seed and what it produced. */
+    public static class Result {
+        public final String rom, preset;
+        public final long seed;
+        public String hash;
+        public int checkValue;
+        // phase name -> fastest time over the repeats; "load" first
+        public final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+
+        public Result(String rom, String preset, long seed) {
+            this.rom = rom;
+            this.preset = preset;
+            this.seed = seed;
+        }
+
+        public String key() {
+            return rom + " | " + preset + " | " + seed;
+        }
+
+        public long totalMillis() {
+            long total = 0;
+            for (long ms : phaseMillis.values()) {
+                total += ms;
+            }
+            return total;
+        }
+
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(rom).append('\t').append(preset).append('\t').append(seed).append('\t').append(hash)
+                    .append('\t').append(checkValue);
+            for (Map.Entry<String, Long> phase : phaseMillis.entrySet()) {
+                sb.append('\t').append(phase.getKey()).append('=').append(phase.getValue());
+            }
+            return sb.toString();
+        }
+
+        static Result fromLine(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length < 5) {
+                throw new IllegalArgumentException("Bad baseline line: " + line);
+            }
+            Result result = new Result(fields[0], fields[1], Long.parseLong(fields[2]));
+            result.hash = fields[3];
+            result.checkValue = Integer.parseInt(fields[4]);
+            for (int i = 5; i < fields.length; i++) {
+                int eq = fields[i].indexOf('=');
+                result.phaseMillis.put(fields[i].substring(0, eq), Long.parseLong(fields[i].substring(eq + 1)));
+            }
+            return result;
+        }
+    }
+
+    public List<Result> record(long[] seeds) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        File[] roms = fixtureDir.listFiles();
+        File[] presets = presetDir.listFiles();
+        if (roms == null || presets == null) {
+            throw new IOException("Missing fixture or preset directory");
+        }
+        Arrays.sort(roms);
+        Arrays.sort(presets);
+        for (File rom : roms) {
+            if (!rom.isFile() || factoryFor(rom) == null) {
+                continue;
+            }
+            for (File preset : presets) {
+                if (!preset.getName().toLowerCase().endsWith(".rnqs")) {
+                    continue;
+                }
+                for (long seed : seeds) {
+                    results.add(run(rom.getName(), preset.getName(), seed));
+                }
+            }
+        }
+        // a baseline must never hold a nondeterministic case
+        List<String> unstable = new ArrayList<String>();
+        for (Result result : results) {
+            if (UNSTABLE.equals(result.hash)) {
+                unstable.add(result.key());
+            }
+        }
+        if (!unstable.isEmpty()) {
+            throw new IOException("Output differs between repeats, not recording a baseline: " + unstable);
+        }
+        return results;
+    }
+
+    /**
+     * Runs each baseline case again and returns one message per problem;
+     * empty means everything matched.
+     */
+    public List<String> verify(List<Result> baseline, double threshold) throws IOException {
+        List<String> problems = new ArrayList<String>();
+        for (Result expected : baseline) {
+            if (UNSTABLE.equals(expected.hash)) {
+                problems.add(expected.key() + ": baseline was recorded from a nondeterministic run");
+                continue;
+            }
+            Result actual = run(expected.rom, expected.preset, expected.seed);
+            if (UNSTABLE.equals(actual.hash)) {
+                problems.add(expected.key() + ": output differs between repeats");
+            } else if (!actual.hash.equals(expected.hash) || actual.checkValue != expected.checkValue) {
+                problems.add(String.format("%s: output changed (hash %s -> %s, check value %08X -> %08X)",
+                        expected.key(), expected.hash, actual.hash, expected.checkValue, actual.checkValue));
+            }
+            for (Map.Entry<String, Long> phase : actual.phaseMillis.entrySet()) {
+                Long before = expected.phaseMillis.get(phase.getKey());
+                if (before != null && slower(before, phase.getValue(), threshold)) {
+                    problems.add(String.format("%s: %s took %dms, baseline %dms", expected.key(), phase.getKey(),
+                            phase.getValue(), before));
+                }
+            }
+            if (slower(expected.totalMillis(), actual.totalMillis(), threshold)) {
+                problems.add(String.format("%s: total %dms, baseline %dms", expected.key(), actual.totalMillis(),
+                        expected.totalMillis()));
+            }
+        }
+        return problems;
+    }
+
+    private static boolean slower(long before, long after, double threshold) {
+        return after - before > SLACK_MILLIS && after > before * (1 + threshold);
+    }
+
+    private Result run(String romName, String presetName, long seed) throws IOException {
+        File rom = new File(fixtureDir, romName);
+        RomHandler.Factory factory = factoryFor(rom);
+        if (factory == null) {
+            throw new IOException("Not a loadable ROM: " + rom);
+        }
+        Result result = new Result(romName, presetName, seed);
+        File output = File.createTempFile("determinism", "." + romName.substring(romName.lastIndexOf('.') + 1));
+        try {
+            for (int repeat = 0; repeat < REPEATS; repeat++) {
+                final Map<String, Long> times = new LinkedHashMap<String, Long>();
+                long loadStart = System.nanoTime();
+                RomHandler romHandler = factory.create(RandomSource.instance());
+                if (!romHandler.loadRom(rom.getAbsolutePath())) {
+                    // nothing was opened, so there's nothing to close
+                    throw new IOException("Could not load " + rom);
+                }
+                times.put("load", System.nanoTime() - loadStart);
+
+                Settings settings = readPreset(new File(presetDir, presetName));
+                settings.tweakForRom(romHandler);
+                Randomizer randomizer = new Randomizer(settings, romHandler);
+                final long[] phaseStart = new long[1];
+                final String[] phase = new String[1];
+                randomizer.setJobMonitor(new JobMonitor(new JobMonitor.Listener() {
+                    @Override
+                    public void phaseStarted(String name, int phaseIndex, int phaseCount) {
+                        long now = System.nanoTime();
+                        if (phase[0] != null) {
+                            times.put(phase[0], now - phaseStart[0]);
+                        }
+                        phase[0] = name;
+                        phaseStart[0] = now;
+                    }
+                }));
+                String hash;
+                int checkValue = 0;
+                try {
+                    checkValue = randomizer.randomize(output.getAbsolutePath(), seed);
+                    times.put(phase[0], System.nanoTime() - phaseStart[0]);
+                    hash = HashService.hash(Files.readAllBytes(output.toPath())).toString();
+                } catch (RandomizationException ex) {
+                    // settings that can't be applied fail the same way every time
+                    hash = "FAILED";
+                    times.clear();
+                } finally {
+                    close(romHandler);
+                }
+
+                if (repeat == 0) {
+                    result.hash = hash;
+                    result.checkValue = checkValue;
+                } else if (!hash.equals(result.hash) || checkValue != result.checkValue) {
+                    result.hash = UNSTABLE;
+                }
+                for (Map.Entry<String, Long> time : times.entrySet()) {
+                    long ms = time.getValue() / 1000000;
+                    Long best = result.phaseMillis.get(time.getKey());
+                    result.phaseMillis.put(time.getKey(), best == null ? ms : Math.min(best, ms));
+                }
+            }
+        } finally {
+            output.delete();
+        }
+        if (log != null) {
+            log.println(result.key() + ": " + result.hash + " in " + result.totalMillis() + "ms");
+        }
+        return result;
+    }
+
+    private static void close(RomHandler romHandler) throws IOException {
+        if (romHandler instanceof AbstractDSRomHandler) {
+            ((AbstractDSRomHandler) romHandler).closeInnerRom();
+        }
+    }
+
+    private Settings readPreset(File preset) throws IOException {
+        FileInputStream fis = new FileInputStream(preset);
+        try {
+            Settings settings = Settings.read(fis);
+            settings.setCustomNames(names);
+            return settings;
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static RomHandler.Factory factoryFor(File rom) {
+        for (RomHandler.Factory rhf : FACTORIES) {
+            if (rhf.isLoadable(rom.getAbsolutePath())) {
+                return rhf;
+            }
+        }
+        return null;
+    }
+
+    public static void writeBaseline(List<Result> results, File file) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try {
+            out.println("# rom\tpreset\tseed\thash\tcheck value\tphase=ms...");
+            for (Result result : results) {
+                out.println(result.toLine());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static List<Result> readBaseline(File file) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    results.add(Result.fromLine(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4 || !(args[0].equals("record") || args[0].equals("verify"))) {
+            System.err.println("Usage: DeterminismCheck record <baseline> <rom dir> <preset dir> [seed,seed,...]");
+            System.err.println("       DeterminismCheck verify <baseline> <rom dir> <preset dir> [threshold]");
+            System.exit(2);
+        }
+        File baselineFile = new File(args[1]);
+        DeterminismCheck check = new DeterminismCheck(new File(args[2]), new File(args[3]), System.out);
+        if (args[0].equals("record")) {
+            long[] seeds = DEFAULT_SEEDS;
+            if (args.length > 4) {
+                String[] parts = args[4].split(",");
+                seeds = new long[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    seeds[i] = Long.parseLong(parts[i].trim());
+                }
+            }
+            List<Result> results = check.record(seeds);
+            writeBaseline(results, baselineFile);
+            System.out.println("Recorded " + results.size() + " cases to " + baselineFile);
+        } else {
+            double threshold = args.length > 4 ? Double.parseDouble(args[4]) : 0.25;
+            List<String> problems = check.verify(readBaseline(baselineFile), threshold);
+            for (String problem : problems) {
+                System.out.println("FAIL " + problem);
+            }
+            if (!problems.isEmpty()) {
+                System.exit(1);
+            }
+            System.out.println("All cases match the baseline.");
+        }
+    }
+
+}
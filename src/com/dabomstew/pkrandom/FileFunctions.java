@@ -206,9 +206,21 @@ public class FileFunctions {
 
     public static byte[] getCodeTweakFile(String filename) throws IOException {
         InputStream is = FileFunctions.class.getResourceAsStream("/com/dabomstew/pkrandom/patches/" + filename);
-        byte[] buf = readFullyIntoBuffer(is, is.available());
-        is.close();
-        return buf;
+        if (is == null) {
+            throw new FileNotFoundException(filename);
+        }
+        // available() is only a lower bound for resources inside a jar
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int count;
+        try {
+            while ((count = is.read(buf)) != -1) {
+                out.write(buf, 0, count);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
     }
 
     public static byte[] downloadFile(String url) throws IOException {
@@ -224,74 +236,6 @@ public class FileFunctions {
         return output;
     }
 
-    public static void applyPatch(byte[] rom, String patchName) throws IOException {
-        byte[] patch = getCodeTweakFile(patchName + ".ips");
-
-        // check sig
-        int patchlen = patch.length;
-        if (patchlen < 8 || patch[0] != 'P' || patch[1] != 'A' || patch[2] != 'T' || patch[3] != 'C' || patch[4] != 'H') {
-            throw new IOException("not a valid IPS file");
-        }
-
-        // records
-        int offset = 5;
-        while (offset + 2 < patchlen) {
-            int writeOffset = readIPSOffset(patch, offset);
-            if (writeOffset == 0x454f46) {
-                // eof, done
-                return;
-            }
-            offset += 3;
-            if (offset + 1 >= patchlen) {
-                // error
-                throw new IOException("abrupt ending to IPS file, entry cut off before size");
-            }
-            int size = readIPSSize(patch, offset);
-            offset += 2;
-            if (size == 0) {
-                // RLE
-                if (offset + 1 >= patchlen) {
-                    // error
-                    throw new IOException("abrupt ending to IPS file, entry cut off before RLE size");
-                }
-                int rleSize = readIPSSize(patch, offset);
-                if (writeOffset + rleSize > rom.length) {
-                    // error
-                    throw new IOException("trying to patch data past the end of the ROM file");
-                }
-                offset += 2;
-                if (offset >= patchlen) {
-                    // error
-                    throw new IOException("abrupt ending to IPS file, entry cut off before RLE byte");
-                }
-                byte rleByte = patch[offset++];
-                for (int i = writeOffset; i < writeOffset + rleSize; i++) {
-                    rom[i] = rleByte;
-                }
-            } else {
-                if (offset + size > patchlen) {
-                    // error
-                    throw new IOException("abrupt ending to IPS file, entry cut off before end of data block");
-                }
-                if (writeOffset + size > rom.length) {
-                    // error
-                    throw new IOException("trying to patch data past the end of the ROM file");
-                }
-                System.arraycopy(patch, offset, rom, writeOffset, size);
-                offset += size;
-            }
-        }
-        throw new IOException("improperly terminated IPS file");
-    }
-
-    private static int readIPSOffset(byte[] data, int offset) {
-        return ((data[offset] & 0xFF) << 16) | ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
-    }
-
-    private static int readIPSSize(byte[] data, int offset) {
-        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
-    }
-
     public static byte[] convIntArrToByteArr(int[] arg) {
         byte[] out = new byte[arg.length];
         for (int i = 0; i < arg.length; i++) {
@@ -25,8 +25,7 @@ package com.dabomstew.pkrandom;
 /*----------------------------------------------------------------------------*/
 
 import java.awt.image.BufferedImage;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.awt.image.DataBufferInt;
 
 public class GFXFunctions {
 
@@ -53,17 +52,21 @@ public class GFXFunctions {
         int widthInTiles = width / tileWidth;
 
         BufferedImage bim = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = getPixels(bim);
+        int valueMask = (1 << bpp) - 1;
 
         for (int tile = 0; tile < numTiles; tile++) {
             int tileX = tile % widthInTiles;
             int tileY = tile / widthInTiles;
             for (int yT = 0; yT < tileHeight; yT++) {
+                int rowStart = tile * bytesPerTile + yT * tileWidth / pixelsPerByte + offset;
+                int pixel = (tileY * tileHeight + yT) * width + tileX * tileWidth;
                 for (int xT = 0; xT < tileWidth; xT++) {
-                    int value = data[tile * bytesPerTile + yT * tileWidth / pixelsPerByte + xT / pixelsPerByte + offset] & 0xFF;
+                    int value = data[rowStart + xT / pixelsPerByte] & 0xFF;
                     if (pixelsPerByte != 1) {
-                        value = (value >>> (xT % pixelsPerByte) * bpp) & ((1 << bpp) - 1);
+                        value = (value >>> (xT % pixelsPerByte) * bpp) & valueMask;
                     }
-                    bim.setRGB(tileX * tileWidth + xT, tileY * tileHeight + yT, palette[value]);
+                    pixels[pixel + xT] = palette[value];
                 }
             }
         }
@@ -71,6 +74,28 @@ public class GFXFunctions {
         return bim;
     }
 
+    /**
+     * The live pixel array behind a TYPE_INT_ARGB image, one int per pixel,
+     * row by row. Writing to it is much faster than setRGB.
+     */
+    public static int[] getPixels(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Copies a width x height block between two TYPE_INT_ARGB images.
+     */
+    public static void copyRegion(BufferedImage from, int fromX, int fromY, BufferedImage to, int toX, int toY,
+            int width, int height) {
+        int[] src = getPixels(from);
+        int[] dst = getPixels(to);
+        int srcWidth = from.getWidth();
+        int dstWidth = to.getWidth();
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(src, (fromY + y) * srcWidth + fromX, dst, (toY + y) * dstWidth + toX, width);
+        }
+    }
+
     public static int conv16BitColorToARGB(int palValue) {
         int red = (int) ((palValue & 0x1F) * 8.25);
         int green = (int) (((palValue & 0x3E0) >> 5) * 8.25);
@@ -78,41 +103,47 @@ public class GFXFunctions {
         return 0xFF000000 | (red << 16) | (green << 8) | blue;
     }
 
+    // Flood-fills transColor inwards from the edges with transparency.
+    // img must be TYPE_INT_ARGB.
     public static void pseudoTransparency(BufferedImage img, int transColor) {
         int width = img.getWidth();
         int height = img.getHeight();
-        Queue<Integer> visitPixels = new LinkedList<Integer>();
-        boolean[][] queued = new boolean[width][height];
+        int[] pixels = getPixels(img);
+        // every pixel is queued at most once, so this never overflows
+        int[] visitPixels = new int[width * height];
+        boolean[] queued = new boolean[width * height];
+        int queueEnd = 0;
 
         for (int x = 0; x < width; x++) {
-            queuePixel(x, 0, width, height, visitPixels, queued);
-            queuePixel(x, height - 1, width, height, visitPixels, queued);
+            queueEnd = queuePixel(x, 0, width, height, visitPixels, queueEnd, queued);
+            queueEnd = queuePixel(x, height - 1, width, height, visitPixels, queueEnd, queued);
         }
 
         for (int y = 0; y < height; y++) {
-            queuePixel(0, y, width, height, visitPixels, queued);
-            queuePixel(width - 1, y, width, height, visitPixels, queued);
+            queueEnd = queuePixel(0, y, width, height, visitPixels, queueEnd, queued);
+            queueEnd = queuePixel(width - 1, y, width, height, visitPixels, queueEnd, queued);
         }
 
-        while (!visitPixels.isEmpty()) {
-            int nextPixel = visitPixels.poll();
+        for (int queueStart = 0; queueStart < queueEnd; queueStart++) {
+            int nextPixel = visitPixels[queueStart];
             int x = nextPixel % width;
             int y = nextPixel / width;
-            if (img.getRGB(x, y) == transColor) {
-                img.setRGB(x, y, 0);
-                queuePixel(x - 1, y, width, height, visitPixels, queued);
-                queuePixel(x + 1, y, width, height, visitPixels, queued);
-                queuePixel(x, y - 1, width, height, visitPixels, queued);
-                queuePixel(x, y + 1, width, height, visitPixels, queued);
+            if (pixels[nextPixel] == transColor) {
+                pixels[nextPixel] = 0;
+                queueEnd = queuePixel(x - 1, y, width, height, visitPixels, queueEnd, queued);
+                queueEnd = queuePixel(x + 1, y, width, height, visitPixels, queueEnd, queued);
+                queueEnd = queuePixel(x, y - 1, width, height, visitPixels, queueEnd, queued);
+                queueEnd = queuePixel(x, y + 1, width, height, visitPixels, queueEnd, queued);
             }
         }
     }
 
-    private static void queuePixel(int x, int y, int width, int height, Queue<Integer> queue, boolean[][] queued) {
-        if (x >= 0 && x < width && y >= 0 && y < height && !queued[x][y]) {
-            queue.add((y) * width + (x));
-            queued[x][y] = true;
+    private static int queuePixel(int x, int y, int width, int height, int[] queue, int queueEnd, boolean[] queued) {
+        if (x >= 0 && x < width && y >= 0 && y < height && !queued[y * width + x]) {
+            queue[queueEnd++] = y * width + x;
+            queued[y * width + x] = true;
         }
+        return queueEnd;
     }
 
 }
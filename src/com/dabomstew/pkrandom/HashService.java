@@ -0,0 +1,333 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  HashService.java - chunked, parallel hashing of ROM images and files, --*/
+/*--                     remembered per file so nothing is hashed twice.    --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes content in CHUNK_SIZE chunks, in parallel when there are several.
+ * Each chunk gets a CRC32 and a 64-bit hash; the chunk CRCs are combined
+ * into the CRC32 of the whole content, and the chunk hashes are hashed
+ * again into the 64-bit hash of the whole. See ContentHash.
+ *
+ * Files are remembered by path, size and modification time, so asking again
+ * for an unchanged file costs nothing. So is what was loaded from a file,
+ * separately, since for an archive that isn't what the file holds. A Chunks
+ * object keeps the per-chunk values of a byte array, so after changing part
+ * of it only the chunks marked dirty are hashed again.
+ */
+public class HashService {
+
+    public static final int CHUNK_SIZE = 1 << 20;
+    // below this many chunks, threads cost more than they save
+    private static final int PARALLEL_CHUNKS = 4;
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    // how a CRC32 changes when CHUNK_SIZE zero bytes follow it, as a matrix
+    private static final long[] CHUNK_SHIFT = shiftOperator(CHUNK_SIZE);
+
+    // What files hold, by fileKey.
+    private static final Map<String, ContentHash> fileHashes = new ConcurrentHashMap<String, ContentHash>();
+    // What was loaded from files, by fileKey. For an archive that's the ROM
+    // inside, not the file itself, so these are kept apart from fileHashes.
+    private static final Map<String, ContentHash> loadedHashes = new ConcurrentHashMap<String, ContentHash>();
+
+    public static ContentHash hash(byte[] data) {
+        return new Chunks(data).current();
+    }
+
+    /** The hash of length bytes at offset, e.g. one member file inside an NDS image. */
+    public static ContentHash hash(byte[] data, int offset, int length) {
+        Chunks chunks = new Chunks(ByteBuffer.wrap(data, offset, length).slice(), length);
+        return chunks.current();
+    }
+
+    /**
+     * The hash of a file, read a chunk at a time (no mapping, so nothing
+     * keeps the file locked afterwards); remembered.
+     */
+    public static ContentHash hashFile(File file) throws IOException {
+        String key = fileKey(file);
+        ContentHash known = fileHashes.get(key);
+        if (known != null) {
+            return known;
+        }
+        final long length = file.length();
+        int chunkCount = chunkCount(length);
+        final long[] crcs = new long[chunkCount];
+        final long[] hashes = new long[chunkCount];
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            IntStream chunks = IntStream.range(0, chunkCount);
+            if (chunkCount >= PARALLEL_CHUNKS) {
+                chunks = chunks.parallel();
+            }
+            chunks.forEach(c -> {
+                long start = (long) c * CHUNK_SIZE;
+                int size = (int) Math.min(CHUNK_SIZE, length - start);
+                try {
+                    ByteBuffer chunk = ByteBuffer.allocate(size);
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, start + chunk.position()) < 0) {
+                            throw new EOFException(file + " got shorter while being hashed");
+                        }
+                    }
+                    chunk.flip();
+                    crcs[c] = chunkCRC(chunk);
+                    hashes[c] = chunkHash(chunk);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+        } catch (RuntimeException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            channel.close();
+        }
+        ContentHash result = combine(length, crcs, hashes);
+        fileHashes.put(key, result);
+        return result;
+    }
+
+    /**
+     * The hash of contents, which must be what was just loaded from file:
+     * the file itself, or the ROM inside it if it's an archive. Remembered
+     * while the file is unchanged, so loading it again doesn't hash it
+     * again. Never mixed up with hashFile's hash of the file itself.
+     */
+    public static ContentHash hashLoaded(File file, byte[] contents) {
+        String key = fileKey(file);
+        ContentHash known = loadedHashes.get(key);
+        if (known != null && known.getLength() == contents.length) {
+            return known;
+        }
+        ContentHash result = hash(contents);
+        loadedHashes.put(key, result);
+        return result;
+    }
+
+    private static String fileKey(File file) {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private static int chunkCount(long length) {
+        return (int) Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Per-chunk hashes of a byte array. Mark what changed with markDirty;
+     * current() hashes the dirty chunks again and combines everything.
+     */
+    public static class Chunks {
+
+        private final ByteBuffer data;
+        private final long length;
+        private final long[] crcs, hashes;
+        private final boolean[] dirty;
+        private boolean anyDirty = true;
+
+        public Chunks(byte[] data) {
+            this(ByteBuffer.wrap(data), data.length);
+        }
+
+        private Chunks(ByteBuffer data, long length) {
+            this.data = data;
+            this.length = length;
+            int chunkCount = chunkCount(length);
+            this.crcs = new long[chunkCount];
+            this.hashes = new long[chunkCount];
+            this.dirty = new boolean[chunkCount];
+            Arrays.fill(dirty, true);
+        }
+
+        public void markDirty(int offset, int count) {
+            if (count <= 0) {
+                return;
+            }
+            for (int c = offset / CHUNK_SIZE; c <= (offset + count - 1) / CHUNK_SIZE && c < dirty.length; c++) {
+                dirty[c] = true;
+                anyDirty = true;
+            }
+        }
+
+        public ContentHash current() {
+            if (anyDirty) {
+                int[] todo = IntStream.range(0, dirty.length).filter(c -> dirty[c]).toArray();
+                IntStream chunks = IntStream.of(todo);
+                if (todo.length >= PARALLEL_CHUNKS) {
+                    chunks = chunks.parallel();
+                }
+                chunks.forEach(c -> {
+                    ByteBuffer chunk = data.duplicate();
+                    int start = c * CHUNK_SIZE;
+                    chunk.position(start);
+                    chunk.limit((int) Math.min(length, (long) start + CHUNK_SIZE));
+                    chunk = chunk.slice();
+                    crcs[c] = chunkCRC(chunk);
+                    hashes[c] = chunkHash(chunk);
+                });
+                Arrays.fill(dirty, false);
+                anyDirty = false;
+            }
+            return combine(length, crcs, hashes);
+        }
+
+    }
+
+    private static long chunkCRC(ByteBuffer chunk) {
+        CRC32 crc = new CRC32();
+        crc.update(chunk.duplicate());
+        return crc.getValue();
+    }
+
+    // 64-bit multiply-rotate hash of one chunk, eight bytes at a time
+    private static long chunkHash(ByteBuffer chunk) {
+        ByteBuffer in = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int size = in.remaining();
+        long h = P5 + size;
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            h ^= round(in.getLong(i));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        for (; i < size; i++) {
+            h ^= (in.get(i) & 0xFF) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+        return avalanche(h);
+    }
+
+    private static long round(long k) {
+        return Long.rotateLeft(k * P2, 31) * P1;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static ContentHash combine(long length, long[] crcs, long[] hashes) {
+        long crc = crcs[0];
+        long h = P5 + length;
+        h ^= round(hashes[0]);
+        h = Long.rotateLeft(h, 27) * P1 + P4;
+        for (int c = 1; c < crcs.length; c++) {
+            long size = Math.min(CHUNK_SIZE, length - (long) c * CHUNK_SIZE);
+            long[] shift = size == CHUNK_SIZE ? CHUNK_SHIFT : shiftOperator(size);
+            crc = gf2Times(shift, crc) ^ crcs[c];
+            h ^= round(hashes[c]);
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        return new ContentHash(length, (int) crc, avalanche(h));
+    }
+
+    // CRC32 combination, as zlib's crc32_combine: appending len bytes to
+    // content with CRC a gives CRC shift(len) * a ^ CRC of the new bytes.
+
+    private static long[] shiftOperator(long len) {
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // operator for one zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2Square(even, odd); // two zero bits
+        gf2Square(odd, even); // four zero bits
+
+        // start from the identity, then apply len zero bytes
+        long[] result = new long[32];
+        for (int n = 0; n < 32; n++) {
+            result[n] = 1L << n;
+        }
+        do {
+            gf2Square(even, odd);
+            if ((len & 1) != 0) {
+                result = gf2Multiply(even, result);
+            }
+            len >>= 1;
+            if (len == 0) {
+                break;
+            }
+            gf2Square(odd, even);
+            if ((len & 1) != 0) {
+                result = gf2Multiply(odd, result);
+            }
+            len >>= 1;
+        } while (len != 0);
+        return result;
+    }
+
+    private static long gf2Times(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2Square(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2Times(mat, mat[n]);
+        }
+    }
+
+    // a applied after b
+    private static long[] gf2Multiply(long[] a, long[] b) {
+        long[] result = new long[32];
+        for (int n = 0; n < 32; n++) {
+            result[n] = gf2Times(a, b[n]);
+        }
+        return result;
+    }
+
+}
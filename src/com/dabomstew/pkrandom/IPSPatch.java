@@ -0,0 +1,308 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  IPSPatch.java - a code tweak patch, parsed once into its records, and  --*/
+/*--                  plans applying several of them in one pass.           --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An IPS patch from the bundled patches folder, parsed into its records.
+ * Patches are immutable and parsed once per run, so applying a tweak to
+ * many ROMs (or the same ROM many times) never reads the resource again.
+ *
+ * A Plan collects the patches for one target (a GB image, an ARM9 or an
+ * overlay), refusing records from different patches that write the same
+ * bytes differently, and applies them in one pass in offset order.
+ */
+public class IPSPatch {
+
+    private static final int EOF_MARKER = 0x454f46;
+
+    private static final Map<String, IPSPatch> parsed = new ConcurrentHashMap<String, IPSPatch>();
+
+    private final String name;
+    private final List<Record> records;
+    private final int end;
+
+    private IPSPatch(String name, List<Record> records) {
+        this.name = name;
+        this.records = Collections.unmodifiableList(withoutOverlaps(records));
+        int end = 0;
+        for (Record record : records) {
+            end = Math.max(end, record.end());
+        }
+        this.end = end;
+    }
+
+    /** The patch patchName + ".ips", parsed on first use. */
+    public static IPSPatch get(String patchName) throws IOException {
+        IPSPatch patch = parsed.get(patchName);
+        if (patch == null) {
+            patch = parse(patchName, FileFunctions.getCodeTweakFile(patchName + ".ips"));
+            parsed.put(patchName, patch);
+        }
+        return patch;
+    }
+
+    public static IPSPatch parse(String name, byte[] patch) throws IOException {
+        // check sig
+        int patchlen = patch.length;
+        if (patchlen < 8 || patch[0] != 'P' || patch[1] != 'A' || patch[2] != 'T' || patch[3] != 'C' || patch[4] != 'H') {
+            throw new IOException("not a valid IPS file");
+        }
+
+        // records
+        List<Record> records = new ArrayList<Record>();
+        int offset = 5;
+        while (offset + 2 < patchlen) {
+            int writeOffset = readIPSOffset(patch, offset);
+            if (writeOffset == EOF_MARKER) {
+                // eof, done
+                return new IPSPatch(name, records);
+            }
+            offset += 3;
+            if (offset + 1 >= patchlen) {
+                // error
+                throw new IOException("abrupt ending to IPS file, entry cut off before size");
+            }
+            int size = readIPSSize(patch, offset);
+            offset += 2;
+            if (size == 0) {
+                // RLE
+                if (offset + 1 >= patchlen) {
+                    // error
+                    throw new IOException("abrupt ending to IPS file, entry cut off before RLE size");
+                }
+                int rleSize = readIPSSize(patch, offset);
+                offset += 2;
+                if (offset >= patchlen) {
+                    // error
+                    throw new IOException("abrupt ending to IPS file, entry cut off before RLE byte");
+                }
+                records.add(new Record(writeOffset, rleSize, null, patch[offset++]));
+            } else {
+                if (offset + size > patchlen) {
+                    // error
+                    throw new IOException("abrupt ending to IPS file, entry cut off before end of data block");
+                }
+                byte[] data = new byte[size];
+                System.arraycopy(patch, offset, data, 0, size);
+                records.add(new Record(writeOffset, size, data, (byte) 0));
+                offset += size;
+            }
+        }
+        throw new IOException("improperly terminated IPS file");
+    }
+
+    private static int readIPSOffset(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 16) | ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+    }
+
+    private static int readIPSSize(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * IPS lets a later record overwrite an earlier one. Such records are
+     * replaced by what writing them in file order leaves behind, so each
+     * byte is written by at most one record and order stops mattering.
+     */
+    private static List<Record> withoutOverlaps(List<Record> records) {
+        List<Record> sorted = new ArrayList<Record>(records);
+        Collections.sort(sorted, (a, b) -> Integer.compare(a.offset, b.offset));
+        boolean overlapping = false;
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).offset < sorted.get(i - 1).end()) {
+                overlapping = true;
+                break;
+            }
+        }
+        if (!overlapping) {
+            return records;
+        }
+        int start = sorted.get(0).offset;
+        int end = 0;
+        for (Record record : records) {
+            end = Math.max(end, record.end());
+        }
+        byte[] written = new byte[end - start];
+        BitSet touched = new BitSet(end - start);
+        for (Record record : records) {
+            for (int i = record.offset; i < record.end(); i++) {
+                written[i - start] = record.byteAt(i);
+            }
+            touched.set(record.offset - start, record.end() - start);
+        }
+        List<Record> flattened = new ArrayList<Record>();
+        for (int from = touched.nextSetBit(0); from >= 0; from = touched.nextSetBit(touched.nextClearBit(from))) {
+            int to = touched.nextClearBit(from);
+            flattened.add(new Record(start + from, to - from, Arrays.copyOfRange(written, from, to), (byte) 0));
+        }
+        return flattened;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Record> getRecords() {
+        return records;
+    }
+
+    /** Applies just this patch. */
+    public void applyTo(byte[] target) throws IOException {
+        if (end > target.length) {
+            throw new IOException("trying to patch data past the end of the ROM file");
+        }
+        for (Record record : records) {
+            record.writeTo(target);
+        }
+    }
+
+    /** One run of bytes written by a patch: a copy of data, or length repeats of fill. */
+    public static class Record {
+
+        public final int offset;
+        public final int length;
+        private final byte[] data;
+        private final byte fill;
+
+        private Record(int offset, int length, byte[] data, byte fill) {
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+            this.fill = fill;
+        }
+
+        public int end() {
+            return offset + length;
+        }
+
+        public byte byteAt(int position) {
+            return data == null ? fill : data[position - offset];
+        }
+
+        private void writeTo(byte[] target) {
+            if (data == null) {
+                for (int i = offset; i < offset + length; i++) {
+                    target[i] = fill;
+                }
+            } else {
+                System.arraycopy(data, 0, target, offset, length);
+            }
+        }
+
+    }
+
+    /**
+     * The patches for one target, applied together. Adding a patch with a
+     * record that overlaps one from an earlier patch fails, unless both
+     * write the same bytes there.
+     */
+    public static class Plan {
+
+        private final List<IPSPatch> patches = new ArrayList<IPSPatch>();
+        private final List<Record> records = new ArrayList<Record>();
+        private final List<IPSPatch> owners = new ArrayList<IPSPatch>();
+        private int end;
+
+        public Plan add(IPSPatch patch) throws IOException {
+            for (Record record : patch.records) {
+                for (int i = 0; i < records.size(); i++) {
+                    Record other = records.get(i);
+                    if (overlaps(record, other) && !sameBytes(record, other)) {
+                        throw new IOException(String.format("%s and %s both patch 0x%X-0x%X", owners.get(i).name,
+                                patch.name, Math.max(record.offset, other.offset),
+                                Math.min(record.end(), other.end()) - 1));
+                    }
+                }
+            }
+            for (Record record : patch.records) {
+                records.add(record);
+                owners.add(patch);
+            }
+            patches.add(patch);
+            end = Math.max(end, patch.end);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return patches.isEmpty();
+        }
+
+        public List<IPSPatch> getPatches() {
+            return Collections.unmodifiableList(patches);
+        }
+
+        /**
+         * Writes every record to target in one pass in offset order, having
+         * checked the whole plan fits. Returns the ranges written, each as
+         * {start, end}, sorted and merged.
+         */
+        public List<int[]> apply(byte[] target) throws IOException {
+            if (end > target.length) {
+                throw new IOException("trying to patch data past the end of the ROM file");
+            }
+            List<Record> sorted = new ArrayList<Record>(records);
+            Collections.sort(sorted, (a, b) -> Integer.compare(a.offset, b.offset));
+            List<int[]> touched = new ArrayList<int[]>();
+            int[] last = null;
+            for (Record record : sorted) {
+                record.writeTo(target);
+                if (record.length == 0) {
+                    continue;
+                }
+                if (last != null && record.offset <= last[1]) {
+                    last[1] = Math.max(last[1], record.end());
+                } else {
+                    last = new int[] { record.offset, record.end() };
+                    touched.add(last);
+                }
+            }
+            return touched;
+        }
+
+        private static boolean overlaps(Record a, Record b) {
+            return a.offset < b.end() && b.offset < a.end();
+        }
+
+        private static boolean sameBytes(Record a, Record b) {
+            for (int i = Math.max(a.offset, b.offset); i < Math.min(a.end(), b.end()); i++) {
+                if (a.byteAt(i) != b.byteAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
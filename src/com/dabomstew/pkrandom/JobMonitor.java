@@ -0,0 +1,80 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  JobMonitor.java - progress reporting and cooperative cancellation     --*/
+/*--                    for long-running loads and randomizations.          --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.exceptions.RandomizationCancelledException;
+
+/**
+ * Shared between a job's worker thread and whoever started it. The worker
+ * calls beginPhase as it moves through its phases and checkpoint inside long
+ * loops; any other thread may call cancel, after which the next checkpoint
+ * throws RandomizationCancelledException and unwinds the job.
+ *
+ * Listener callbacks run on the worker thread.
+ */
+public class JobMonitor {
+
+    public interface Listener {
+        public void phaseStarted(String phase, int phaseIndex, int phaseCount);
+    }
+
+    private final Listener listener;
+    private volatile boolean cancelled;
+    private int phaseCount;
+    private int phaseIndex;
+
+    public JobMonitor(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkpoint() {
+        if (cancelled) {
+            throw new RandomizationCancelledException();
+        }
+    }
+
+    /** Resets progress for a job that will go through phaseCount phases. */
+    public void setPhaseCount(int phaseCount) {
+        this.phaseCount = phaseCount;
+        this.phaseIndex = 0;
+    }
+
+    public void beginPhase(String phase) {
+        checkpoint();
+        if (listener != null) {
+            listener.phaseStarted(phase, phaseIndex, phaseCount);
+        }
+        phaseIndex++;
+    }
+
+}
@@ -28,65 +28,88 @@ package com.dabomstew.pkrandom;
 import java.security.SecureRandom;
 import java.util.Random;
 
+// One seeded stream per thread, so randomizations running on different
+// threads (see SeedAnalyzer) don't draw from each other's seeds. A thread
+// that never seeds gets an unseeded stream of its own.
 public class RandomSource {
 
-    private static Random source = new Random();
-    private static int calls = 0;
+    private static final ThreadLocal<Stream> streams = new ThreadLocal<Stream>() {
+        @Override
+        protected Stream initialValue() {
+            return new Stream();
+        }
+    };
     private static Random instance = new RandomSourceInstance();
 
+    private static class Stream {
+        Random source = new Random();
+        int calls = 0;
+    }
+
     public static void reset() {
-        source = new Random();
-        calls = 0;
+        Stream stream = streams.get();
+        stream.source = new Random();
+        stream.calls = 0;
     }
 
     public static void seed(long seed) {
-        source.setSeed(seed);
-        calls = 0;
+        Stream stream = streams.get();
+        stream.source.setSeed(seed);
+        stream.calls = 0;
     }
 
     public static double random() {
-        calls++;
-        return source.nextDouble();
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextDouble();
     }
 
     public static int nextInt(int size) {
-        calls++;
-        return source.nextInt(size);
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextInt(size);
     }
 
     public static void nextBytes(byte[] bytes) {
-        calls++;
-        source.nextBytes(bytes);
+        Stream stream = streams.get();
+        stream.calls++;
+        stream.source.nextBytes(bytes);
     }
 
     public static int nextInt() {
-        calls++;
-        return source.nextInt();
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextInt();
     }
 
     public static long nextLong() {
-        calls++;
-        return source.nextLong();
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextLong();
     }
 
     public static boolean nextBoolean() {
-        calls++;
-        return source.nextBoolean();
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextBoolean();
     }
 
     public static float nextFloat() {
-        calls++;
-        return source.nextFloat();
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextFloat();
     }
 
     public static double nextDouble() {
-        calls++;
-        return source.nextDouble();
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextDouble();
     }
 
-    public static synchronized double nextGaussian() {
-        calls++;
-        return source.nextGaussian();
+    public static double nextGaussian() {
+        Stream stream = streams.get();
+        stream.calls++;
+        return stream.source.nextGaussian();
     }
 
     public static long pickSeed() {
@@ -103,7 +126,7 @@ public class RandomSource {
     }
 
     public static int callsSinceSeed() {
-        return calls;
+        return streams.get().calls;
     }
 
     private static class RandomSourceInstance extends Random {
@@ -114,7 +137,7 @@ public class RandomSource {
         private static final long serialVersionUID = -4876737183441746322L;
 
         @Override
-        public synchronized void setSeed(long seed) {
+        public void setSeed(long seed) {
             RandomSource.seed(seed);
         }
 
@@ -154,7 +177,7 @@ public class RandomSource {
         }
 
         @Override
-        public synchronized double nextGaussian() {
+        public double nextGaussian() {
             return RandomSource.nextGaussian();
         }
 
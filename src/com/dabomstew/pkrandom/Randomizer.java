@@ -27,13 +27,13 @@ package com.dabomstew.pkrandom;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import com.dabomstew.pkrandom.pokemon.*;
 import com.dabomstew.pkrandom.romhandlers.Gen1RomHandler;
 import com.dabomstew.pkrandom.romhandlers.Gen4RomHandler;
 import com.dabomstew.pkrandom.romhandlers.Gen5RomHandler;
 import com.dabomstew.pkrandom.romhandlers.RomHandler;
+import com.dabomstew.pkrandom.romhandlers.RomSnapshot;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.usermodel.XSSFColor;
@@ -44,30 +44,78 @@ public class Randomizer {
 
     private static final String NEWLINE = System.getProperty("line.separator");
 
+    // Progress phases reported to the job monitor, one per section below.
+    private static final int PHASE_COUNT = 13;
+
     private final Settings settings;
     private final RomHandler romHandler;
+    private JobMonitor monitor;
 
     public Randomizer(Settings settings, RomHandler romHandler) {
         this.settings = settings;
         this.romHandler = romHandler;
     }
 
+    // Optional; gets a phase per section and lets the caller cancel between
+    // them. Give the ROM handler the same monitor to cancel inside sections.
+    public void setJobMonitor(JobMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    // Randomize without producing a spoiler log or workbook at all.
+    // The resulting ROM and check value are the same as with logging.
+    public int randomize(final String filename, long seed) {
+        return randomize(filename, null, null, seed);
+    }
+
+    // Either log or workbookHandler may be null, in which case nothing is
+    // formatted or built for it.
     public int randomize(final String filename, final PrintStream log, final WorkbookHandler workbookHandler, long seed) {
         final long startTime = System.currentTimeMillis();
+        int checkValue = randomizeLoadedGame(log, workbookHandler, seed, PHASE_COUNT);
+
+        beginPhase("saving");
+        // Save
+        romHandler.saveRom(filename);
+
+        // Log tail
+        if (log != null) {
+            log.println("------------------------------------------------------------------");
+            log.println("Randomization of " + romHandler.getROMName() + " completed.");
+            log.println("Time elapsed: " + (System.currentTimeMillis() - startTime) + "ms");
+            log.println("RNG Calls: " + RandomSource.callsSinceSeed());
+            log.println("Seed: " + seed);
+            log.println("Config string: " + Settings.VERSION + "" + settings.toString());
+            log.println("------------------------------------------------------------------");
+        }
+
+        return checkValue;
+    }
+
+    // Runs every randomization phase on the loaded game and stops there: no
+    // log, no workbook and nothing saved. For callers that only want to look
+    // at the resulting data (see SeedAnalyzer). The game stays changed, so
+    // load the ROM again before randomizing it with another seed.
+    public int randomizeInMemory(long seed) {
+        return randomizeLoadedGame(null, null, seed, PHASE_COUNT - 1);
+    }
+
+    private int randomizeLoadedGame(final PrintStream log, final WorkbookHandler workbookHandler, long seed,
+            int phaseCount) {
         RandomSource.seed(seed);
         final boolean raceMode = settings.isRaceMode();
+        final boolean logging = log != null;
+        final boolean workbook = workbookHandler != null;
 
         int checkValue = 0;
+        if (monitor != null) {
+            monitor.setPhaseCount(phaseCount);
+        }
 
-        // Deep copy the evolutions
+        // Keep the original evolutions for the workbook
         Map<Pokemon, List<Evolution>> originalEvos = new HashMap<>();
-        for (Pokemon pk : romHandler.getPokemon()) {
-            if(pk != null) {
-                List<Evolution> t = pk.evolutionsFrom.stream()
-                        .map(Evolution::new)
-                        .collect(Collectors.toList());
-                originalEvos.put(pk, t);
-            }
+        if (workbook) {
+            originalEvos = romHandler.takeSnapshot(EnumSet.of(RomSnapshot.Part.EVOLUTIONS)).getEvolutionsFrom();
         }
 
         // limit pokemon?
@@ -78,6 +126,7 @@ public class Randomizer {
             romHandler.setPokemonPool(null);
         }
 
+        beginPhase("moves");
         List<Move> oldMoves = romHandler.getMoves();
 
         // Move updates & data changes
@@ -114,6 +163,7 @@ public class Randomizer {
 
         List<Move> moves = romHandler.getMoves();
 
+        beginPhase("pokemonData");
         // Misc Tweaks?
         int currentMiscTweaks = settings.getCurrentMiscTweaks();
         if (romHandler.miscTweaksAvailable() != 0) {
@@ -130,9 +180,7 @@ public class Randomizer {
             Collections.sort(tweaksToApply);
 
             // Now apply in order.
-            for (MiscTweak mt : tweaksToApply) {
-                romHandler.applyMiscTweak(mt);
-            }
+            romHandler.applyMiscTweaks(tweaksToApply);
         }
 
         if (settings.isUpdateBaseStats()) {
@@ -181,11 +229,13 @@ public class Randomizer {
             romHandler.randomizeWildHeldItems(settings.isBanBadRandomWildPokemonHeldItems(), settings.getForceHeldItemMode() );
         }
 
-        maybeLogBaseStatAndTypeChanges(log, romHandler);
-        if (settings.getBaseStatisticsMod() != Settings.BaseStatisticsMod.UNCHANGED
+        if (logging) {
+            maybeLogBaseStatAndTypeChanges(log, romHandler);
+        }
+        if (workbook && (settings.getBaseStatisticsMod() != Settings.BaseStatisticsMod.UNCHANGED
                 || settings.getTypesMod() != Settings.TypesMod.UNCHANGED
                 || settings.getAbilitiesMod() != Settings.AbilitiesMod.UNCHANGED
-                || settings.isRandomizeWildPokemonHeldItems()) {
+                || settings.isRandomizeWildPokemonHeldItems())) {
             workbookHandler.logToWorkbookBaseStatAndTypeChanges(romHandler);
         }
 
@@ -196,14 +246,17 @@ public class Randomizer {
             }
         }
 
+        beginPhase("evolutions");
         // Random Evos
         // Applied after type to pick new evos based on new types.
         if (settings.getEvolutionsMod() == Settings.EvolutionsMod.RANDOM) {
             romHandler.randomizeEvolutions(settings.isEvosSimilarStrength(), settings.isEvosSameTyping(),
                     settings.isEvosMaxThreeStages(), settings.isEvosForceChange());
 
-            logRandomizedEvolutions(log, romHandler);
-            if (!settings.isChangeImpossibleEvolutions() && !settings.isMakeEvolutionsEasier()) {
+            if (logging) {
+                logRandomizedEvolutions(log, romHandler);
+            }
+            if (workbook && !settings.isChangeImpossibleEvolutions() && !settings.isMakeEvolutionsEasier()) {
                 // Only output evolutions to workbook once. So if we're not done making changes, don't log it.
                 workbookHandler.logToWorkbookRandomizedEvolutions(romHandler, originalEvos);
             }
@@ -213,7 +266,7 @@ public class Randomizer {
         if (settings.isChangeImpossibleEvolutions()) {
             romHandler.removeTradeEvolutions(!(settings.getMovesetsMod() == Settings.MovesetsMod.UNCHANGED));
             // Again, if we're not done making changes to evolutions yet, keep going and don't log it to the workbook
-            if(!settings.isMakeEvolutionsEasier()) {
+            if(workbook && !settings.isMakeEvolutionsEasier()) {
                 workbookHandler.logToWorkbookRandomizedEvolutions(romHandler, originalEvos);
             }
         }
@@ -221,26 +274,32 @@ public class Randomizer {
         // Easier evolutions
         if (settings.isMakeEvolutionsEasier()) {
             romHandler.condenseLevelEvolutions(40, 30);
-            workbookHandler.logToWorkbookRandomizedEvolutions(romHandler, originalEvos);
+            if (workbook) {
+                workbookHandler.logToWorkbookRandomizedEvolutions(romHandler, originalEvos);
+            }
         }
 
+        beginPhase("starters");
         // Starter Pokemon
         // Applied after type to update the strings correctly based on new types
         List<Pokemon> oldStarters = romHandler.getStarters();
         maybeChangeAndLogStarters(log, romHandler);
         // If starters changed, log it to the workbook
-        if(!oldStarters.containsAll(romHandler.getStarters())) {
+        if(workbook && !oldStarters.containsAll(romHandler.getStarters())) {
             workbookHandler.logToWorkbookStarters(romHandler, oldStarters);
         }
 
         // Move Data Log
         // Placed here so it matches its position in the randomizer interface
-        maybeLogMoveChanges(log, romHandler);
-        if (settings.isRandomizeMoveAccuracies() || settings.isRandomizeMovePowers() || settings.isRandomizeMovePPs()
-                || settings.isRandomizeMoveCategory() || settings.isRandomizeMoveTypes() || settings.isUpdateMoves()) {
+        if (logging) {
+            maybeLogMoveChanges(log, romHandler);
+        }
+        if (workbook && (settings.isRandomizeMoveAccuracies() || settings.isRandomizeMovePowers() || settings.isRandomizeMovePPs()
+                || settings.isRandomizeMoveCategory() || settings.isRandomizeMoveTypes() || settings.isUpdateMoves())) {
             workbookHandler.logToWorkbookMoveChanges(romHandler);
         }
 
+        beginPhase("movesets");
         // Movesets
         boolean noBrokenMoves = settings.doBlockBrokenMoves();
         boolean forceFourLv1s = romHandler.supportsFourStartingMoves() && settings.isStartWithFourMoves();
@@ -268,6 +327,7 @@ public class Randomizer {
             romHandler.orderDamagingMovesByDamage();
         }
 
+        beginPhase("trainers");
         // Trainer Pokemon
         if (settings.getTrainersMod() == Settings.TrainersMod.UNCHANGED && settings.isTrainersLevelModified() ){
             romHandler.levelUpTrainerPokes(settings.getTrainersLevelModifier(),
@@ -320,24 +380,31 @@ public class Randomizer {
         }
 
 
-        maybeLogMovesetChanges(log, romHandler, forceFourLv1s);
-        if (settings.getMovesetsMod() != Settings.MovesetsMod.UNCHANGED || settings.doBlockBrokenMoves() || forceFourLv1s) {
+        if (logging) {
+            maybeLogMovesetChanges(log, romHandler, forceFourLv1s);
+        }
+        if (workbook && (settings.getMovesetsMod() != Settings.MovesetsMod.UNCHANGED || settings.doBlockBrokenMoves()
+                || forceFourLv1s)) {
             workbookHandler.logToWorkbookMovesetChanges(romHandler);
         }
-        maybeLogTrainerChanges(log, romHandler);
-        if(settings.getTrainersMod() != Settings.TrainersMod.UNCHANGED
+        if (logging) {
+            maybeLogTrainerChanges(log, romHandler);
+        }
+        if(workbook && (settings.getTrainersMod() != Settings.TrainersMod.UNCHANGED
                 || settings.isRivalCarriesStarterThroughout()
-                || settings.isTrainersLevelModified()) {
+                || settings.isTrainersLevelModified())) {
             workbookHandler.logToWorkbookTrainerChanges(romHandler);
         }
 
+        beginPhase("statics");
         // Static Pokemon
         List<Pokemon> oldStatics = romHandler.getStaticPokemon();
         checkValue = maybeChangeAndLogStaticPokemon(log, romHandler, raceMode, checkValue);
-        if(!oldStatics.containsAll(romHandler.getStaticPokemon())) {
+        if(workbook && !oldStatics.containsAll(romHandler.getStaticPokemon())) {
             workbookHandler.logToWorkbookStaticPokemon(romHandler, oldStatics);
         }
 
+        beginPhase("wildPokemon");
         // Wild Pokemon
         if (settings.isUseMinimumCatchRate()) {
             boolean gen5 = romHandler instanceof Gen5RomHandler;
@@ -406,8 +473,11 @@ public class Randomizer {
             break;
         }
 
-        maybeLogWildPokemonChanges(log, romHandler);
-        if(settings.getWildPokemonMod() != Settings.WildPokemonMod.UNCHANGED || settings.isWildLevelModifiedHigh()) {
+        if (logging) {
+            maybeLogWildPokemonChanges(log, romHandler);
+        }
+        if(workbook && (settings.getWildPokemonMod() != Settings.WildPokemonMod.UNCHANGED
+                || settings.isWildLevelModifiedHigh())) {
             workbookHandler.logToWorkbookWildPokemonChanges(romHandler, settings.isUseTimeBasedEncounters());
         }
 
@@ -418,6 +488,7 @@ public class Randomizer {
             }
         }
 
+        beginPhase("tms");
         // TMs
         List<Integer> oldTms = romHandler.getTMMoves();
         if (!(settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY)
@@ -425,20 +496,26 @@ public class Randomizer {
             double goodDamagingProb = settings.isTmsForceGoodDamaging() ? settings.getTmsGoodDamagingPercent() / 100.0
                     : 0;
             romHandler.randomizeTMMoves(noBrokenMoves, settings.isKeepFieldMoveTMs(), goodDamagingProb);
-            log.println("--TM Moves--");
             List<Integer> tmMoves = romHandler.getTMMoves();
+            if (logging) {
+                log.println("--TM Moves--");
+            }
             for (int i = 0; i < tmMoves.size(); i++) {
-                log.printf("TM%02d %s" + NEWLINE, i + 1, moves.get(tmMoves.get(i)).name);
+                if (logging) {
+                    log.printf("TM%02d %s" + NEWLINE, i + 1, moves.get(tmMoves.get(i)).name);
+                }
                 checkValue = addToCV(checkValue, tmMoves.get(i));
             }
-            log.println();
-        } else if (settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
+            if (logging) {
+                log.println();
+            }
+        } else if (logging && settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
             log.println("TM Moves: Metronome Only." + NEWLINE);
-        } else {
+        } else if (logging) {
             log.println("TM Moves: Unchanged." + NEWLINE);
         }
 
-        if(!oldTms.containsAll(romHandler.getTMMoves())) {
+        if(workbook && !oldTms.containsAll(romHandler.getTMMoves())) {
             workbookHandler.logToWorkbookRandomizedTmMoves(romHandler, oldTms);
         }
 
@@ -464,25 +541,29 @@ public class Randomizer {
             romHandler.fullHMCompatibility();
         }
 
-        if(settings.getTmsHmsCompatibilityMod() != Settings.TMsHMsCompatibilityMod.FULL &&
+        if(logging && settings.getTmsHmsCompatibilityMod() != Settings.TMsHMsCompatibilityMod.FULL &&
                 settings.getTmsHmsCompatibilityMod() != Settings.TMsHMsCompatibilityMod.UNCHANGED) {
-            Map<Pokemon, boolean[]> compatMap = romHandler.getTMHMCompatibility();
+            CompatibilityMatrix compat = romHandler.getTMHMCompatibilityMatrix();
+            List<Integer> tmMoves = romHandler.getTMMoves();
+            List<Integer> hmMoves = romHandler.getHMMoves();
             List<String> movesets = new ArrayList<String>();
             log.println("--TM Compatibility--");
-            for (Pokemon pkmn : compatMap.keySet()) {
+            for (Pokemon pkmn : romHandler.getPokemon()) {
+                if (!compat.hasRow(pkmn)) {
+                    continue;
+                }
                 StringBuilder sb = new StringBuilder();
                 sb.append(String.format("%03d %-10s : ", pkmn.number, pkmn.name));
-                boolean[] data = compatMap.get(pkmn);
                 boolean first = true;
-                for (int i = 1; i < data.length; i++) {
-                    if(data[i]) {
+                for (int i = 1; i <= compat.getColumnCount(); i++) {
+                    if(compat.get(pkmn.number, i)) {
                         if (!first) {
                             sb.append(", ");
                         }
-                        if(romHandler.getTMMoves().size() < i) {
-                            sb.append(String.format("HM%02d ", (i - romHandler.getTMMoves().size()))).append(moves.get(romHandler.getHMMoves().get(i - romHandler.getTMMoves().size() - 1)).name);
+                        if(tmMoves.size() < i) {
+                            sb.append(String.format("HM%02d ", (i - tmMoves.size()))).append(moves.get(hmMoves.get(i - tmMoves.size() - 1)).name);
                         } else {
-                            sb.append(String.format("TM%02d ", i)).append(moves.get(romHandler.getTMMoves().get(i - 1)).name);
+                            sb.append(String.format("TM%02d ", i)).append(moves.get(tmMoves.get(i - 1)).name);
                         }
                         first = false;
                     }
@@ -494,9 +575,13 @@ public class Randomizer {
                 log.println(moveset);
             }
             log.println();
+        }
+        if(workbook && settings.getTmsHmsCompatibilityMod() != Settings.TMsHMsCompatibilityMod.FULL &&
+                settings.getTmsHmsCompatibilityMod() != Settings.TMsHMsCompatibilityMod.UNCHANGED) {
             workbookHandler.logtoWorkbookTmHmCompatability(romHandler);
         }
 
+        beginPhase("moveTutors");
         // Move Tutors (new 1.0.3)
         if (romHandler.hasMoveTutors()) {
             if (!(settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY)
@@ -505,18 +590,26 @@ public class Randomizer {
                 double goodDamagingProb = settings.isTutorsForceGoodDamaging() ? settings
                         .getTutorsGoodDamagingPercent() / 100.0 : 0;
                 romHandler.randomizeMoveTutorMoves(noBrokenMoves, settings.isKeepFieldMoveTutors(), goodDamagingProb);
-                log.println("--Move Tutor Moves--");
                 List<Integer> newMtMoves = romHandler.getMoveTutorMoves();
+                if (logging) {
+                    log.println("--Move Tutor Moves--");
+                }
                 for (int i = 0; i < newMtMoves.size(); i++) {
-                    log.printf("%s => %s" + NEWLINE, moves.get(oldMtMoves.get(i)).name,
-                            moves.get(newMtMoves.get(i)).name);
+                    if (logging) {
+                        log.printf("%s => %s" + NEWLINE, moves.get(oldMtMoves.get(i)).name,
+                                moves.get(newMtMoves.get(i)).name);
+                    }
                     checkValue = addToCV(checkValue, newMtMoves.get(i));
                 }
-                log.println();
-                workbookHandler.logToWorkbookRandomizedMoveTutors(romHandler, oldMtMoves);
-            } else if (settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
+                if (logging) {
+                    log.println();
+                }
+                if (workbook) {
+                    workbookHandler.logToWorkbookRandomizedMoveTutors(romHandler, oldMtMoves);
+                }
+            } else if (logging && settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
                 log.println("Move Tutor Moves: Metronome Only." + NEWLINE);
-            } else {
+            } else if (logging) {
                 log.println("Move Tutor Moves: Unchanged." + NEWLINE);
             }
 
@@ -538,9 +631,10 @@ public class Randomizer {
                 romHandler.ensureMoveTutorCompatSanity();
             }
 
-            if(settings.getMoveTutorsCompatibilityMod() != Settings.MoveTutorsCompatibilityMod.FULL &&
+            if(logging && settings.getMoveTutorsCompatibilityMod() != Settings.MoveTutorsCompatibilityMod.FULL &&
                     settings.getMoveTutorsCompatibilityMod() != Settings.MoveTutorsCompatibilityMod.UNCHANGED) {
                 Map<Pokemon, boolean[]> compatMap = romHandler.getMoveTutorCompatibility();
+                List<Integer> mtMoves = romHandler.getMoveTutorMoves();
                 List<String> movesets = new ArrayList<>();
                 log.println("--Move Tutor Compatibility--");
                 for (Pokemon pkmn : compatMap.keySet()) {
@@ -553,7 +647,7 @@ public class Randomizer {
                             if (!first) {
                                 sb.append(", ");
                             }
-                            sb.append(moves.get(romHandler.getMoveTutorMoves().get(i - 1)).name);
+                            sb.append(moves.get(mtMoves.get(i - 1)).name);
                             first = false;
                         }
                     }
@@ -564,10 +658,14 @@ public class Randomizer {
                     log.println(moveset);
                 }
                 log.println();
+            }
+            if(workbook && settings.getMoveTutorsCompatibilityMod() != Settings.MoveTutorsCompatibilityMod.FULL &&
+                    settings.getMoveTutorsCompatibilityMod() != Settings.MoveTutorsCompatibilityMod.UNCHANGED) {
                 workbookHandler.logToWorkbookRandomizedMoveTutorCompat(romHandler);
             }
         }
 
+        beginPhase("trades");
         // In-game trades
         List<IngameTrade> oldTrades = romHandler.getIngameTrades();
         if (settings.getInGameTradesMod() == Settings.InGameTradesMod.RANDOMIZE_GIVEN) {
@@ -580,7 +678,7 @@ public class Randomizer {
                     settings.isRandomizeInGameTradesItems(), settings.getCustomNames());
         }
 
-        if (!(settings.getInGameTradesMod() == Settings.InGameTradesMod.UNCHANGED)) {
+        if (logging && !(settings.getInGameTradesMod() == Settings.InGameTradesMod.UNCHANGED)) {
             log.println("--In-Game Trades--");
             List<IngameTrade> newTrades = romHandler.getIngameTrades();
             int size = oldTrades.size();
@@ -592,9 +690,12 @@ public class Randomizer {
                         newT.nickname, newT.givenPokemon.name);
             }
             log.println();
+        }
+        if (workbook && !(settings.getInGameTradesMod() == Settings.InGameTradesMod.UNCHANGED)) {
             workbookHandler.logToWorkbookRandomizedTrades(romHandler, oldTrades);
         }
 
+        beginPhase("fieldItems");
         // Field Items
         List<Integer> oldItems = romHandler.getRegularFieldItems();
         List<Integer> oldTMs = romHandler.getCurrentFieldTMs();
@@ -604,7 +705,7 @@ public class Randomizer {
             romHandler.randomizeFieldItems(settings.isBanBadRandomFieldItems());
         }
 
-        if(settings.getFieldItemsMod() != Settings.FieldItemsMod.UNCHANGED) {
+        if(workbook && settings.getFieldItemsMod() != Settings.FieldItemsMod.UNCHANGED) {
             workbookHandler.logToWorkbookRandomizedItems(romHandler, oldItems, oldTMs);
         }
 
@@ -614,21 +715,15 @@ public class Randomizer {
         // Record check value?
         romHandler.writeCheckValueToROM(checkValue);
 
-        // Save
-        romHandler.saveRom(filename);
-
-        // Log tail
-        log.println("------------------------------------------------------------------");
-        log.println("Randomization of " + romHandler.getROMName() + " completed.");
-        log.println("Time elapsed: " + (System.currentTimeMillis() - startTime) + "ms");
-        log.println("RNG Calls: " + RandomSource.callsSinceSeed());
-        log.println("Seed: " + seed);
-        log.println("Config string: " + Settings.VERSION + "" + settings.toString());
-        log.println("------------------------------------------------------------------");
-
         return checkValue;
     }
 
+    private void beginPhase(String phase) {
+        if (monitor != null) {
+            monitor.beginPhase(phase);
+        }
+    }
+
     private void maybeLogBaseStatAndTypeChanges(final PrintStream log, final RomHandler romHandler) {
         List<Pokemon> allPokes = romHandler.getPokemon();
         String[] itemNames = romHandler.getItemNames();
@@ -731,78 +826,57 @@ public class Randomizer {
 
     private void maybeChangeAndLogStarters(final PrintStream log, final RomHandler romHandler) {
         if (romHandler.canChangeStarters()) {
+            int starterCount = 3;
+            if (romHandler.isYellow()) {
+                starterCount = 2;
+            }
             if (settings.getStartersMod() == Settings.StartersMod.CUSTOM) {
-                log.println("--Custom Starters--");
                 List<Pokemon> romPokemon = romHandler.getPokemon();
                 int[] customStarters = settings.getCustomStarters();
-                Pokemon pkmn1 = romPokemon.get(customStarters[0]);
-                log.println("Set starter 1 to " + pkmn1.name);
-                Pokemon pkmn2 = romPokemon.get(customStarters[1]);
-                log.println("Set starter 2 to " + pkmn2.name);
-                if (romHandler.isYellow()) {
-                    romHandler.setStarters(Arrays.asList(pkmn1, pkmn2));
-                } else {
-                    Pokemon pkmn3 = romPokemon.get(customStarters[2]);
-                    log.println("Set starter 3 to " + pkmn3.name);
-                    romHandler.setStarters(Arrays.asList(pkmn1, pkmn2, pkmn3));
+                List<Pokemon> starters = new ArrayList<Pokemon>();
+                for (int i = 0; i < starterCount; i++) {
+                    starters.add(romPokemon.get(customStarters[i]));
                 }
-                log.println();
+                romHandler.setStarters(starters);
+                logStarters(log, "--Custom Starters--", starters);
 
             } else if (settings.getStartersMod() == Settings.StartersMod.COMPLETELY_RANDOM) {
                 // Randomise
-                log.println("--Random Starters--");
-                int starterCount = 3;
-                if (romHandler.isYellow()) {
-                    starterCount = 2;
-                }
                 List<Pokemon> starters = new ArrayList<Pokemon>();
                 for (int i = 0; i < starterCount; i++) {
                     Pokemon pkmn = romHandler.randomPokemon();
                     while (starters.contains(pkmn)) {
                         pkmn = romHandler.randomPokemon();
                     }
-                    log.println("Set starter " + (i + 1) + " to " + pkmn.name);
                     starters.add(pkmn);
                 }
                 romHandler.setStarters(starters);
-                log.println();
+                logStarters(log, "--Random Starters--", starters);
                 
             } else if (settings.getStartersMod() == Settings.StartersMod.RANDOM_WITH_ONE_OR_TWO_EVOLUTIONS) {
                 // Randomise
-                log.println("--Random 1/2-Evolution Starters--");
-                int starterCount = 3;
-                if (romHandler.isYellow()) {
-                    starterCount = 2;
-                }
                 List<Pokemon> starters = new ArrayList<Pokemon>();
                 for (int i = 0; i < starterCount; i++) {
                     Pokemon pkmn = romHandler.random1or2EvosPokemon();
                     while (starters.contains(pkmn)) {
                         pkmn = romHandler.random1or2EvosPokemon();
                     }
-                    log.println("Set starter " + (i + 1) + " to " + pkmn.name);
                     starters.add(pkmn);
                 }
                 romHandler.setStarters(starters);
-                log.println();
+                logStarters(log, "--Random 1/2-Evolution Starters--", starters);
             } else if (settings.getStartersMod() == Settings.StartersMod.RANDOM_WITH_TWO_EVOLUTIONS) {
                 // Randomise
-                log.println("--Random 2-Evolution Starters--");
-                int starterCount = 3;
-                if (romHandler.isYellow()) {
-                    starterCount = 2;
-                }
                 List<Pokemon> starters = new ArrayList<Pokemon>();
                 for (int i = 0; i < starterCount; i++) {
                     Pokemon pkmn = romHandler.random2EvosPokemon();
                     while (starters.contains(pkmn)) {
                         pkmn = romHandler.random2EvosPokemon();
                     }
-                    log.println("Set starter " + (i + 1) + " to " + pkmn.name);
                     starters.add(pkmn);
                 }
                 romHandler.setStarters(starters);
-                log.println();
+                logStarters(log, "--Random 2-Evolution Starters--", starters);
             }
             if (settings.isRandomizeStartersHeldItems() && !(romHandler instanceof Gen1RomHandler)) {
                 romHandler.randomizeStarterHeldItems(settings.isBanBadRandomStarterHeldItems());
@@ -810,6 +884,17 @@ public class Randomizer {
         }
     }
 
+    private void logStarters(final PrintStream log, String header, List<Pokemon> starters) {
+        if (log == null) {
+            return;
+        }
+        log.println(header);
+        for (int i = 0; i < starters.size(); i++) {
+            log.println("Set starter " + (i + 1) + " to " + starters.get(i).name);
+        }
+        log.println();
+    }
+
     private void maybeLogMovesetChanges(PrintStream log, RomHandler romHandler, boolean forceFourLv1s) {
         // Show the new movesets if applicable
         List<Move> moves = romHandler.getMoves();
@@ -998,6 +1083,14 @@ public class Randomizer {
                 romHandler.randomizeStaticPokemon(false);
             }
             List<Pokemon> newStatics = romHandler.getStaticPokemon();
+            if (settings.getStaticPokemonMod() != Settings.StaticPokemonMod.UNCHANGED) {
+                for (int i = 0; i < oldStatics.size(); i++) {
+                    checkValue = addToCV(checkValue, newStatics.get(i).number);
+                }
+            }
+            if (log == null) {
+                return checkValue;
+            }
             if (settings.getStaticPokemonMod() == Settings.StaticPokemonMod.UNCHANGED) {
                 log.println("Static Pokemon: Unchanged." + NEWLINE);
             } else {
@@ -1006,7 +1099,6 @@ public class Randomizer {
                 for (int i = 0; i < oldStatics.size(); i++) {
                     Pokemon oldP = oldStatics.get(i);
                     Pokemon newP = newStatics.get(i);
-                    checkValue = addToCV(checkValue, newP.number);
                     log.print(oldP.name);
                     if (seenPokemon.containsKey(oldP)) {
                         int amount = seenPokemon.get(oldP);
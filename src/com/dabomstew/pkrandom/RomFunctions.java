@@ -28,63 +28,24 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
-import com.dabomstew.pkrandom.pokemon.Evolution;
 import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.romhandlers.RomHandler;
 
 public class RomFunctions {
 
     public static Set<Pokemon> getBasicOrNoCopyPokemon(RomHandler baseRom) {
-        List<Pokemon> allPokes = baseRom.getPokemon();
-        Set<Pokemon> dontCopyPokes = new TreeSet<Pokemon>();
-        for (Pokemon pkmn : allPokes) {
-            if (pkmn != null) {
-                if (pkmn.evolutionsTo.size() != 1) {
-                    dontCopyPokes.add(pkmn);
-                } else {
-                    Evolution onlyEvo = pkmn.evolutionsTo.get(0);
-                    if (!onlyEvo.carryStats) {
-                        dontCopyPokes.add(pkmn);
-                    }
-                }
-            }
-        }
-        return dontCopyPokes;
+        return baseRom.getEvolutionForest().getBasicOrNoCopyPokemon();
     }
 
     public static Set<Pokemon> getMiddleEvolutions(RomHandler baseRom) {
-        List<Pokemon> allPokes = baseRom.getPokemon();
-        Set<Pokemon> middleEvolutions = new TreeSet<Pokemon>();
-        for (Pokemon pkmn : allPokes) {
-            if (pkmn != null) {
-                if (pkmn.evolutionsTo.size() == 1 && pkmn.evolutionsFrom.size() > 0) {
-                    Evolution onlyEvo = pkmn.evolutionsTo.get(0);
-                    if (onlyEvo.carryStats) {
-                        middleEvolutions.add(pkmn);
-                    }
-                }
-            }
-        }
-        return middleEvolutions;
+        return baseRom.getEvolutionForest().getMiddleEvolutions();
     }
 
     public static Set<Pokemon> getFinalEvolutions(RomHandler baseRom) {
-        List<Pokemon> allPokes = baseRom.getPokemon();
-        Set<Pokemon> finalEvolutions = new TreeSet<Pokemon>();
-        for (Pokemon pkmn : allPokes) {
-            if (pkmn != null) {
-                if (pkmn.evolutionsTo.size() == 1 && pkmn.evolutionsFrom.size() == 0) {
-                    Evolution onlyEvo = pkmn.evolutionsTo.get(0);
-                    if (onlyEvo.carryStats) {
-                        finalEvolutions.add(pkmn);
-                    }
-                }
-            }
-        }
-        return finalEvolutions;
+        return baseRom.getEvolutionForest().getFinalEvolutions();
     }
 
     /**
@@ -140,6 +101,12 @@ public class RomFunctions {
         return curMoves;
     }
 
+    public static int[] getMovesAtLevel(Pokemon pkmn, MovesetTable movesets, int level) {
+        int[] curMoves = new int[4];
+        movesets.getMovesAtLevel(pkmn.number, level, curMoves, 0);
+        return curMoves;
+    }
+
     public static String camelCase(String original) {
         char[] string = original.toLowerCase().toCharArray();
         boolean docap = true;
@@ -0,0 +1,498 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  SeedAnalyzer.java - randomizes one ROM with a run of seeds in memory  --*/
+/*--                      and reports distributions over the results.       --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+import com.dabomstew.pkrandom.pokemon.Encounter;
+import com.dabomstew.pkrandom.pokemon.EncounterSet;
+import com.dabomstew.pkrandom.pokemon.Evolution;
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import com.dabomstew.pkrandom.pokemon.Trainer;
+import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
+import com.dabomstew.pkrandom.romhandlers.AbstractDSRomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen1RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen2RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen3RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen4RomHandler;
+import com.dabomstew.pkrandom.romhandlers.Gen5RomHandler;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+/**
+ * Runs the Randomizer over seeds firstSeed .. firstSeed + count - 1 for one
+ * ROM and one set of settings, on a pool of worker threads, and reports how
+ * the results are distributed: starter BSTs, legendaries in the first wild
+ * areas, the types trainers use, evolution chain lengths. Nothing is logged
+ * or saved; each seed gets a freshly loaded handler that is thrown away once
+ * its numbers are recorded.
+ *
+ * Each worker keeps its own aggregates and they are merged at the end, so the
+ * workers share nothing but the seed counter. Results don't depend on the
+ * thread count: every seed is randomized exactly as a normal run with that
+ * seed would be.
+ */
+public class SeedAnalyzer {
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    private static final RomHandler.Factory[] FACTORIES = new RomHandler.Factory[] { new Gen1RomHandler.Factory(),
+            new Gen2RomHandler.Factory(), new Gen3RomHandler.Factory(), new Gen4RomHandler.Factory(),
+            new Gen5RomHandler.Factory() };
+
+    private final RomHandler.Factory factory;
+    private final String romFilename;
+    private final Settings settings;
+    private final String romName;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int earlyAreas = 10;
+
+    /**
+     * Loads the ROM once to check it and to fit the settings to it (as
+     * loading them in the GUI would). The settings object is changed by that
+     * and must not be changed again while an analysis runs.
+     */
+    public SeedAnalyzer(String romFilename, Settings settings) {
+        this.romFilename = romFilename;
+        this.settings = settings;
+        RomHandler.Factory found = null;
+        for (RomHandler.Factory rhf : FACTORIES) {
+            if (rhf.isLoadable(romFilename)) {
+                found = rhf;
+                break;
+            }
+        }
+        if (found == null) {
+            throw new IllegalArgumentException("Unsupported ROM: " + romFilename);
+        }
+        this.factory = found;
+        RomHandler probe = load();
+        try {
+            settings.tweakForRom(probe);
+            this.romName = probe.getROMName();
+        } finally {
+            close(probe);
+        }
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // How many encounter sets, in the game's own order, count as "early"
+    public void setEarlyAreas(int earlyAreas) {
+        this.earlyAreas = earlyAreas;
+    }
+
+    /**
+     * Randomizes every seed in the range and returns the merged results.
+     * progress, if not null, gets a line every 100 seeds.
+     */
+    public Report analyze(final long firstSeed, final int count, final PrintStream progress) {
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        int workers = Math.min(threads, Math.max(1, count));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Report>> results = new ArrayList<Future<Report>>();
+        for (int i = 0; i < workers; i++) {
+            results.add(pool.submit(new Callable<Report>() {
+                @Override
+                public Report call() {
+                    Report partial = new Report();
+                    int index;
+                    while ((index = next.getAndIncrement()) < count) {
+                        runSeed(firstSeed + index, partial);
+                        int finished = done.incrementAndGet();
+                        if (progress != null && finished % 100 == 0) {
+                            progress.println(finished + "/" + count + " seeds");
+                        }
+                    }
+                    return partial;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        Report report = new Report();
+        try {
+            for (Future<Report> result : results) {
+                report.merge(result.get());
+            }
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            pool.shutdownNow();
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+        report.romName = romName;
+        report.configString = Settings.VERSION + "" + settings.toString();
+        report.firstSeed = firstSeed;
+        report.seedCount = count;
+        report.threads = workers;
+        report.elapsed = System.currentTimeMillis() - startTime;
+        return report;
+    }
+
+    private RomHandler load() {
+        RomHandler romHandler = factory.create(RandomSource.instance());
+        if (romHandler instanceof AbstractDSRomHandler) {
+            // several workers have this ROM open at once
+            ((AbstractDSRomHandler) romHandler).setUseTmpFolder(false);
+        }
+        if (!romHandler.loadRom(romFilename)) {
+            throw new RandomizerIOException(new IOException("Could not load " + romFilename));
+        }
+        return romHandler;
+    }
+
+    private static void close(RomHandler romHandler) {
+        if (romHandler instanceof AbstractDSRomHandler) {
+            try {
+                ((AbstractDSRomHandler) romHandler).closeInnerRom();
+            } catch (IOException ex) {
+                throw new RandomizerIOException(ex);
+            }
+        }
+    }
+
+    private void runSeed(long seed, Report report) {
+        RomHandler romHandler = load();
+        try {
+            try {
+                new Randomizer(settings, romHandler).randomizeInMemory(seed);
+            } catch (RandomizerIOException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                // a seed the settings can't be applied with is a result too
+                report.failures.add(ex.getClass().getSimpleName());
+                return;
+            }
+            report.seeds++;
+            recordStarters(romHandler, report);
+            recordEarlyLegendaries(romHandler, report);
+            recordTrainerTypes(romHandler, report);
+            recordEvolutionChains(romHandler, report);
+        } finally {
+            close(romHandler);
+        }
+    }
+
+    private void recordStarters(RomHandler romHandler, Report report) {
+        for (Pokemon starter : romHandler.getStarters()) {
+            report.starterBST.add(starter.bst());
+        }
+    }
+
+    private void recordEarlyLegendaries(RomHandler romHandler, Report report) {
+        List<EncounterSet> encounters = romHandler.getEncounters(settings.isUseTimeBasedEncounters());
+        int slots = 0;
+        for (int i = 0; i < Math.min(earlyAreas, encounters.size()); i++) {
+            for (Encounter enc : encounters.get(i).encounters) {
+                if (enc.pokemon.isLegendary()) {
+                    slots++;
+                    report.earlyLegendaries.add(enc.pokemon.name);
+                }
+            }
+        }
+        report.earlyLegendarySlots.add(slots);
+    }
+
+    private void recordTrainerTypes(RomHandler romHandler, Report report) {
+        for (Trainer tr : romHandler.getTrainers()) {
+            for (TrainerPokemon tp : tr.pokemon) {
+                if (tp.pokemon.primaryType != null) {
+                    report.trainerTypes.add(tp.pokemon.primaryType.toString());
+                }
+                if (tp.pokemon.secondaryType != null) {
+                    report.trainerTypes.add(tp.pokemon.secondaryType.toString());
+                }
+            }
+        }
+    }
+
+    private void recordEvolutionChains(RomHandler romHandler, Report report) {
+        List<Pokemon> pokes = romHandler.getPokemon();
+        Map<Pokemon, Integer> stages = new HashMap<Pokemon, Integer>();
+        for (Pokemon pk : pokes) {
+            if (pk != null && pk.evolutionsTo.isEmpty()) {
+                report.evolutionChainLength.add(stages(pk, stages, pokes.size()));
+            }
+        }
+    }
+
+    // Longest chain of stages starting at pk; limit stops a cycle
+    private static int stages(Pokemon pk, Map<Pokemon, Integer> known, int limit) {
+        Integer cached = known.get(pk);
+        if (cached != null) {
+            return cached;
+        }
+        int longest = 1;
+        if (limit > 0) {
+            for (Evolution evo : pk.evolutionsFrom) {
+                longest = Math.max(longest, 1 + stages(evo.to, known, limit - 1));
+            }
+        }
+        known.put(pk, longest);
+        return longest;
+    }
+
+    /** The merged results of one analysis. */
+    public static class Report {
+
+        private String romName, configString;
+        private long firstSeed, elapsed;
+        private int seedCount, threads;
+        private int seeds;
+
+        public final Histogram starterBST = new Histogram();
+        public final Histogram earlyLegendarySlots = new Histogram();
+        public final Tally earlyLegendaries = new Tally();
+        public final Tally trainerTypes = new Tally();
+        public final Histogram evolutionChainLength = new Histogram();
+        public final Tally failures = new Tally();
+
+        private void merge(Report other) {
+            seeds += other.seeds;
+            starterBST.merge(other.starterBST);
+            earlyLegendarySlots.merge(other.earlyLegendarySlots);
+            earlyLegendaries.merge(other.earlyLegendaries);
+            trainerTypes.merge(other.trainerTypes);
+            evolutionChainLength.merge(other.evolutionChainLength);
+            failures.merge(other.failures);
+        }
+
+        /** Seeds that randomized without an exception. */
+        public int getSeeds() {
+            return seeds;
+        }
+
+        public void write(PrintStream out) {
+            out.println("Seed analysis of " + romName);
+            out.printf("Seeds %d-%d: %d randomized, %d failed, %dms on %d threads" + NEWLINE, firstSeed, firstSeed
+                    + seedCount - 1, seeds, failures.total(), elapsed, threads);
+            out.println("Config string: " + configString);
+            out.println();
+            out.println("        |   COUNT|    MEAN| MIN| P10| P25| P50| P75| P90| MAX");
+            writeHistogram(out, "STARTBST", starterBST);
+            writeHistogram(out, "EARLYLEG", earlyLegendarySlots);
+            writeHistogram(out, "EVOCHAIN", evolutionChainLength);
+            out.println();
+            out.printf("Seeds with a legendary in an early area: %.2f%%" + NEWLINE, seeds == 0 ? 0.0
+                    : 100.0 * (seeds - earlyLegendarySlots.count(0)) / seeds);
+            out.println();
+            out.println("--Early Legendaries--");
+            writeTally(out, earlyLegendaries);
+            out.println("--Trainer Pokemon Types--");
+            writeTally(out, trainerTypes);
+            out.println("--Evolution Chain Lengths--");
+            for (int length : evolutionChainLength.values()) {
+                out.printf("%-12s|%10d|%6.2f%%" + NEWLINE, length + " stages", evolutionChainLength.count(length),
+                        100.0 * evolutionChainLength.count(length) / evolutionChainLength.count());
+            }
+            out.println();
+            if (failures.total() > 0) {
+                out.println("--Failed Seeds--");
+                writeTally(out, failures);
+            }
+        }
+
+        private static void writeHistogram(PrintStream out, String name, Histogram h) {
+            if (h.count() == 0) {
+                out.printf("%-8s|%8d|" + NEWLINE, name, 0);
+                return;
+            }
+            out.printf("%-8s|%8d|%8.2f|%4d|%4d|%4d|%4d|%4d|%4d|%4d" + NEWLINE, name, h.count(), h.mean(), h.min(),
+                    h.quantile(0.1), h.quantile(0.25), h.quantile(0.5), h.quantile(0.75), h.quantile(0.9), h.max());
+        }
+
+        private static void writeTally(PrintStream out, Tally tally) {
+            long total = tally.total();
+            for (Map.Entry<String, Long> entry : tally.byCount()) {
+                out.printf("%-12s|%10d|%6.2f%%" + NEWLINE, entry.getKey(), entry.getValue(), 100.0
+                        * entry.getValue() / total);
+            }
+            out.println();
+        }
+
+    }
+
+    /**
+     * Exact counts of small integer values. Quantiles come straight from the
+     * counts, so they are exact however many values were added, and two
+     * histograms merge by adding counts.
+     */
+    public static class Histogram {
+
+        private final TreeMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        private long count;
+        private long sum;
+
+        public void add(int value) {
+            Long old = counts.get(value);
+            counts.put(value, old == null ? 1 : old + 1);
+            count++;
+            sum += value;
+        }
+
+        public void merge(Histogram other) {
+            for (Map.Entry<Integer, Long> entry : other.counts.entrySet()) {
+                Long old = counts.get(entry.getKey());
+                counts.put(entry.getKey(), old == null ? entry.getValue() : old + entry.getValue());
+            }
+            count += other.count;
+            sum += other.sum;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long count(int value) {
+            Long c = counts.get(value);
+            return c == null ? 0 : c;
+        }
+
+        public Iterable<Integer> values() {
+            return counts.keySet();
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public int min() {
+            return counts.firstKey();
+        }
+
+        public int max() {
+            return counts.lastKey();
+        }
+
+        /** The smallest value with at least q of all values at or below it. */
+        public int quantile(double q) {
+            long target = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+                seen += entry.getValue();
+                if (seen >= target) {
+                    return entry.getKey();
+                }
+            }
+            return counts.lastKey();
+        }
+
+    }
+
+    /** Counts per name. */
+    public static class Tally {
+
+        private final Map<String, Long> counts = new HashMap<String, Long>();
+
+        public void add(String name) {
+            Long old = counts.get(name);
+            counts.put(name, old == null ? 1 : old + 1);
+        }
+
+        public void merge(Tally other) {
+            for (Map.Entry<String, Long> entry : other.counts.entrySet()) {
+                Long old = counts.get(entry.getKey());
+                counts.put(entry.getKey(), old == null ? entry.getValue() : old + entry.getValue());
+            }
+        }
+
+        public long get(String name) {
+            Long c = counts.get(name);
+            return c == null ? 0 : c;
+        }
+
+        public long total() {
+            long total = 0;
+            for (long c : counts.values()) {
+                total += c;
+            }
+            return total;
+        }
+
+        /** Entries from most to least common, ties by name. */
+        public List<Map.Entry<String, Long>> byCount() {
+            List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                    int byCount = e2.getValue().compareTo(e1.getValue());
+                    return byCount != 0 ? byCount : e1.getKey().compareTo(e2.getKey());
+                }
+            });
+            return entries;
+        }
+
+    }
+
+    // SeedAnalyzer <rom> <settings.rnqs> <first seed> <count> [threads]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: SeedAnalyzer <rom> <settings.rnqs> <first seed> <count> [threads]");
+            System.exit(1);
+        }
+        FileInputStream fis = new FileInputStream(new File(args[1]));
+        Settings settings;
+        try {
+            settings = Settings.read(fis);
+        } finally {
+            fis.close();
+        }
+        settings.setCustomNames(FileFunctions.getCustomNames());
+
+        SeedAnalyzer analyzer = new SeedAnalyzer(args[0], settings);
+        if (args.length > 4) {
+            analyzer.setThreads(Integer.parseInt(args[4]));
+        }
+        Report report = analyzer.analyze(Long.parseLong(args[2]), Integer.parseInt(args[3]), System.err);
+        report.write(System.out);
+    }
+
+}
@@ -0,0 +1,647 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  SpoilerExporter.java - writes the final state of a randomized ROM     --*/
+/*--                         as JSON or CBOR for external tools.            --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import com.dabomstew.pkrandom.pokemon.Encounter;
+import com.dabomstew.pkrandom.pokemon.EncounterSet;
+import com.dabomstew.pkrandom.pokemon.Evolution;
+import com.dabomstew.pkrandom.pokemon.IngameTrade;
+import com.dabomstew.pkrandom.pokemon.Move;
+import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import com.dabomstew.pkrandom.pokemon.Trainer;
+import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+/**
+ * Walks the in-memory model of a (randomized) ROM and streams it out as one
+ * JSON or CBOR document. Pokemon, moves and items are referred to by number
+ * everywhere except in the "pokemon", "moves" and "items" tables, so the
+ * output stays small and trivial to index.
+ *
+ * Schema (version 1), as JSON:
+ *
+ * <pre>
+ * { "schema": "upr-spoiler", "version": 1,
+ *   "rom": { "name", "code", "generation" }, "seed",
+ *   "pokemon": [ { "number", "name", "types": [..], "stats": { "hp", "atk", "def",
+ *                  "spatk", "spdef", "speed", "special" }, "abilities": [..],
+ *                  "items": { "guaranteed", "common", "rare", "darkGrass" },
+ *                  "evolutions": [ { "to", "type", "extra" } ] } ],
+ *   "moves": [ { "number", "name", "type", "power", "pp", "accuracy", "category" } ],
+ *   "items": [ names by index ],
+ *   "movesets": [ { "pokemon", "moves": [ { "level", "move" } ] } ],
+ *   "tmMoves": [..], "hmMoves": [..], "tmCompatibility": [ { "pokemon", "tms": [1-based TM/HM slots] } ],
+ *   "tutorMoves": [..], "tutorCompatibility": [ { "pokemon", "tutors": [1-based slots] } ],
+ *   "starters": [..], "statics": [..],
+ *   "trades": [ { "requested", "given", "nickname", "ot", "otId", "item" } ],
+ *   "encounters": [ { "name", "rate", "encounters": [ { "pokemon", "level", "maxLevel" } ] } ],
+ *   "trainers": [ { "index", "name", "tag", "class", "offset",
+ *                   "pokemon": [ { "pokemon", "level", "item", "moves": [..] } ] } ] }
+ * </pre>
+ *
+ * Ability and type values are strings. Fields that don't apply to a
+ * generation are written as 0 / empty rather than left out, so every seed has
+ * the same shape.
+ */
+public class SpoilerExporter {
+
+    public static final int SCHEMA_VERSION = 1;
+
+    public enum Format {
+        JSON, CBOR
+    }
+
+    private final RomHandler romHandler;
+    private final boolean useTimeOfDay;
+
+    public SpoilerExporter(RomHandler romHandler, boolean useTimeOfDay) {
+        this.romHandler = romHandler;
+        this.useTimeOfDay = useTimeOfDay;
+    }
+
+    public void export(OutputStream out, Format format, long seed) throws IOException {
+        StructuredWriter w = format == Format.JSON ? new JsonWriter(out) : new CborWriter(out);
+        w.beginObject();
+        w.name("schema").value("upr-spoiler");
+        w.name("version").value(SCHEMA_VERSION);
+        w.name("rom").beginObject();
+        w.name("name").value(romHandler.getROMName());
+        w.name("code").value(romHandler.getROMCode());
+        w.name("generation").value(romHandler.generationOfPokemon());
+        w.endObject();
+        w.name("seed").value(seed);
+
+        writePokemon(w);
+        writeMoves(w);
+        writeItems(w);
+        writeMovesets(w);
+        writeTMs(w);
+        writeTutors(w);
+        w.name("starters");
+        writePokemonList(w, romHandler.getStarters());
+        w.name("statics");
+        writePokemonList(w, romHandler.getStaticPokemon());
+        writeTrades(w);
+        writeEncounters(w);
+        writeTrainers(w);
+
+        w.endObject();
+        w.flush();
+    }
+
+    private void writePokemon(StructuredWriter w) throws IOException {
+        int abilities = romHandler.abilitiesPerPokemon();
+        w.name("pokemon").beginArray();
+        for (Pokemon pk : romHandler.getPokemon()) {
+            if (pk == null) {
+                continue;
+            }
+            w.beginObject();
+            w.name("number").value(pk.number);
+            w.name("name").value(pk.name);
+            w.name("types").beginArray();
+            if (pk.primaryType != null) {
+                w.value(pk.primaryType.toString());
+            }
+            if (pk.secondaryType != null) {
+                w.value(pk.secondaryType.toString());
+            }
+            w.endArray();
+            w.name("stats").beginObject();
+            w.name("hp").value(pk.hp);
+            w.name("atk").value(pk.attack);
+            w.name("def").value(pk.defense);
+            w.name("spatk").value(pk.spatk);
+            w.name("spdef").value(pk.spdef);
+            w.name("speed").value(pk.speed);
+            w.name("special").value(pk.special);
+            w.endObject();
+            w.name("abilities").beginArray();
+            if (abilities > 0) {
+                w.value(romHandler.abilityName(pk.ability1));
+                w.value(romHandler.abilityName(pk.ability2));
+                if (abilities > 2) {
+                    w.value(romHandler.abilityName(pk.ability3));
+                }
+            }
+            w.endArray();
+            w.name("items").beginObject();
+            w.name("guaranteed").value(pk.guaranteedHeldItem);
+            w.name("common").value(pk.commonHeldItem);
+            w.name("rare").value(pk.rareHeldItem);
+            w.name("darkGrass").value(pk.darkGrassHeldItem);
+            w.endObject();
+            w.name("evolutions").beginArray();
+            for (Evolution evo : pk.evolutionsFrom) {
+                w.beginObject();
+                w.name("to").value(evo.to.number);
+                w.name("type").value(evo.type.toString());
+                w.name("extra").value(evo.extraInfo);
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private void writeMoves(StructuredWriter w) throws IOException {
+        w.name("moves").beginArray();
+        for (Move mv : romHandler.getMoves()) {
+            if (mv == null) {
+                continue;
+            }
+            w.beginObject();
+            w.name("number").value(mv.number);
+            w.name("name").value(mv.name);
+            w.name("type").value(mv.type == null ? "???" : mv.type.toString());
+            w.name("power").value(mv.power);
+            w.name("pp").value(mv.pp);
+            w.name("accuracy").value((int) mv.hitratio);
+            w.name("category").value(mv.category == null ? "" : mv.category.toString());
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private void writeItems(StructuredWriter w) throws IOException {
+        w.name("items").beginArray();
+        for (String item : romHandler.getItemNames()) {
+            w.value(item == null ? "" : item);
+        }
+        w.endArray();
+    }
+
+    private void writeMovesets(StructuredWriter w) throws IOException {
+        Map<Pokemon, List<MoveLearnt>> movesets = romHandler.getMovesLearnt();
+        w.name("movesets").beginArray();
+        for (Pokemon pk : romHandler.getPokemon()) {
+            List<MoveLearnt> moves = pk == null ? null : movesets.get(pk);
+            if (moves == null) {
+                continue;
+            }
+            w.beginObject();
+            w.name("pokemon").value(pk.number);
+            w.name("moves").beginArray();
+            for (MoveLearnt ml : moves) {
+                w.beginObject();
+                w.name("level").value(ml.level);
+                w.name("move").value(ml.move);
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private void writeTMs(StructuredWriter w) throws IOException {
+        w.name("tmMoves");
+        writeIntList(w, romHandler.getTMMoves());
+        w.name("hmMoves");
+        writeIntList(w, romHandler.getHMMoves());
+        w.name("tmCompatibility");
+        writeCompatibility(w, romHandler.getTMHMCompatibility(), "tms");
+    }
+
+    private void writeTutors(StructuredWriter w) throws IOException {
+        if (romHandler.hasMoveTutors()) {
+            w.name("tutorMoves");
+            writeIntList(w, romHandler.getMoveTutorMoves());
+            w.name("tutorCompatibility");
+            writeCompatibility(w, romHandler.getMoveTutorCompatibility(), "tutors");
+        } else {
+            w.name("tutorMoves").beginArray().endArray();
+            w.name("tutorCompatibility").beginArray().endArray();
+        }
+    }
+
+    private void writeCompatibility(StructuredWriter w, Map<Pokemon, boolean[]> compat, String slotsName)
+            throws IOException {
+        w.beginArray();
+        for (Pokemon pk : romHandler.getPokemon()) {
+            boolean[] flags = pk == null ? null : compat.get(pk);
+            if (flags == null) {
+                continue;
+            }
+            w.beginObject();
+            w.name("pokemon").value(pk.number);
+            w.name(slotsName).beginArray();
+            for (int i = 1; i < flags.length; i++) {
+                if (flags[i]) {
+                    w.value(i);
+                }
+            }
+            w.endArray();
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private void writeTrades(StructuredWriter w) throws IOException {
+        w.name("trades").beginArray();
+        for (IngameTrade trade : romHandler.getIngameTrades()) {
+            w.beginObject();
+            w.name("requested").value(trade.requestedPokemon == null ? 0 : trade.requestedPokemon.number);
+            w.name("given").value(trade.givenPokemon.number);
+            w.name("nickname").value(trade.nickname == null ? "" : trade.nickname);
+            w.name("ot").value(trade.otName == null ? "" : trade.otName);
+            w.name("otId").value(trade.otId);
+            w.name("item").value(trade.item);
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private void writeEncounters(StructuredWriter w) throws IOException {
+        w.name("encounters").beginArray();
+        for (EncounterSet es : romHandler.getEncounters(useTimeOfDay)) {
+            w.beginObject();
+            w.name("name").value(es.displayName == null ? "" : es.displayName);
+            w.name("rate").value(es.rate);
+            w.name("encounters").beginArray();
+            for (Encounter enc : es.encounters) {
+                w.beginObject();
+                w.name("pokemon").value(enc.pokemon.number);
+                w.name("level").value(enc.level);
+                w.name("maxLevel").value(enc.maxLevel);
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private void writeTrainers(StructuredWriter w) throws IOException {
+        w.name("trainers").beginArray();
+        int index = 0;
+        for (Trainer tr : romHandler.getTrainers()) {
+            index++;
+            w.beginObject();
+            w.name("index").value(index);
+            w.name("name").value(tr.fullDisplayName != null ? tr.fullDisplayName : tr.name == null ? "" : tr.name);
+            w.name("tag").value(tr.tag == null ? "" : tr.tag);
+            w.name("class").value(tr.trainerclass);
+            w.name("offset").value(tr.offset);
+            w.name("pokemon").beginArray();
+            for (TrainerPokemon tpk : tr.pokemon) {
+                w.beginObject();
+                w.name("pokemon").value(tpk.pokemon.number);
+                w.name("level").value(tpk.level);
+                w.name("item").value(tpk.heldItem);
+                w.name("moves").beginArray();
+                w.value(tpk.move1).value(tpk.move2).value(tpk.move3).value(tpk.move4);
+                w.endArray();
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+        }
+        w.endArray();
+    }
+
+    private static void writeIntList(StructuredWriter w, List<Integer> values) throws IOException {
+        w.beginArray();
+        for (int value : values) {
+            w.value(value);
+        }
+        w.endArray();
+    }
+
+    private static void writePokemonList(StructuredWriter w, List<Pokemon> pokes) throws IOException {
+        w.beginArray();
+        for (Pokemon pk : pokes) {
+            w.value(pk.number);
+        }
+        w.endArray();
+    }
+
+    /*
+     * Minimal streaming writers. Both encode straight into a fixed byte
+     * buffer, so the only garbage produced is whatever the model getters
+     * allocate.
+     */
+
+    private static abstract class StructuredWriter {
+        private final OutputStream out;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+
+        StructuredWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        abstract StructuredWriter beginObject() throws IOException;
+
+        abstract StructuredWriter endObject() throws IOException;
+
+        abstract StructuredWriter beginArray() throws IOException;
+
+        abstract StructuredWriter endArray() throws IOException;
+
+        abstract StructuredWriter name(String name) throws IOException;
+
+        abstract StructuredWriter value(long value) throws IOException;
+
+        abstract StructuredWriter value(String value) throws IOException;
+
+        void flush() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+
+        void put(int b) throws IOException {
+            if (pos == buf.length) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        static int utf8Length(String s) {
+            int len = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    len++;
+                } else if (c < 0x800) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+                    len += 4;
+                    i++;
+                } else {
+                    len += 3;
+                }
+            }
+            return len;
+        }
+
+        // Writes s as UTF-8, optionally escaping quotes and control chars for JSON.
+        void putUtf8(String s, boolean escapeForJson) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                int c = s.charAt(i);
+                if (c < 0x80) {
+                    if (escapeForJson && (c == '"' || c == '\\' || c < 0x20)) {
+                        putJsonEscape(c);
+                    } else {
+                        put(c);
+                    }
+                } else if (c < 0x800) {
+                    put(0xC0 | (c >> 6));
+                    put(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length()) {
+                    int cp = Character.toCodePoint((char) c, s.charAt(++i));
+                    put(0xF0 | (cp >> 18));
+                    put(0x80 | ((cp >> 12) & 0x3F));
+                    put(0x80 | ((cp >> 6) & 0x3F));
+                    put(0x80 | (cp & 0x3F));
+                } else {
+                    put(0xE0 | (c >> 12));
+                    put(0x80 | ((c >> 6) & 0x3F));
+                    put(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void putJsonEscape(int c) throws IOException {
+            put('\\');
+            switch (c) {
+            case '"':
+            case '\\':
+                put(c);
+                break;
+            case '\n':
+                put('n');
+                break;
+            case '\r':
+                put('r');
+                break;
+            case '\t':
+                put('t');
+                break;
+            default:
+                put('u');
+                put('0');
+                put('0');
+                put(HEX_DIGITS[c >> 4]);
+                put(HEX_DIGITS[c & 0xF]);
+            }
+        }
+
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    }
+
+    private static class JsonWriter extends StructuredWriter {
+        // true while the current container hasn't had an element yet
+        private boolean[] firstInScope = new boolean[32];
+        private int depth;
+        private boolean afterName;
+
+        JsonWriter(OutputStream out) {
+            super(out);
+        }
+
+        private void beforeValue() throws IOException {
+            if (afterName) {
+                afterName = false;
+                return;
+            }
+            if (depth > 0) {
+                if (!firstInScope[depth]) {
+                    put(',');
+                }
+                firstInScope[depth] = false;
+            }
+        }
+
+        private StructuredWriter open(int bracket) throws IOException {
+            beforeValue();
+            put(bracket);
+            depth++;
+            if (depth == firstInScope.length) {
+                boolean[] bigger = new boolean[depth * 2];
+                System.arraycopy(firstInScope, 0, bigger, 0, depth);
+                firstInScope = bigger;
+            }
+            firstInScope[depth] = true;
+            return this;
+        }
+
+        private StructuredWriter close(int bracket) throws IOException {
+            depth--;
+            put(bracket);
+            return this;
+        }
+
+        @Override
+        StructuredWriter beginObject() throws IOException {
+            return open('{');
+        }
+
+        @Override
+        StructuredWriter endObject() throws IOException {
+            return close('}');
+        }
+
+        @Override
+        StructuredWriter beginArray() throws IOException {
+            return open('[');
+        }
+
+        @Override
+        StructuredWriter endArray() throws IOException {
+            return close(']');
+        }
+
+        @Override
+        StructuredWriter name(String name) throws IOException {
+            beforeValue();
+            put('"');
+            putUtf8(name, true);
+            put('"');
+            put(':');
+            afterName = true;
+            return this;
+        }
+
+        @Override
+        StructuredWriter value(long value) throws IOException {
+            beforeValue();
+            if (value == Long.MIN_VALUE) {
+                putUtf8(Long.toString(value), false);
+                return this;
+            }
+            if (value < 0) {
+                put('-');
+                value = -value;
+            }
+            long divisor = 1;
+            while (value / divisor >= 10) {
+                divisor *= 10;
+            }
+            while (divisor > 0) {
+                put('0' + (int) (value / divisor % 10));
+                divisor /= 10;
+            }
+            return this;
+        }
+
+        @Override
+        StructuredWriter value(String value) throws IOException {
+            beforeValue();
+            put('"');
+            putUtf8(value, true);
+            put('"');
+            return this;
+        }
+    }
+
+    // RFC 7049 CBOR. Containers use indefinite lengths so nothing has to be
+    // counted in advance.
+    private static class CborWriter extends StructuredWriter {
+
+        CborWriter(OutputStream out) {
+            super(out);
+        }
+
+        private void putHeader(int majorType, long length) throws IOException {
+            int mt = majorType << 5;
+            if (length < 24) {
+                put(mt | (int) length);
+            } else if (length < 0x100) {
+                put(mt | 24);
+                put((int) length);
+            } else if (length < 0x10000) {
+                put(mt | 25);
+                put((int) (length >> 8));
+                put((int) length);
+            } else if (length < 0x100000000L) {
+                put(mt | 26);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    put((int) (length >> shift));
+                }
+            } else {
+                put(mt | 27);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    put((int) (length >> shift));
+                }
+            }
+        }
+
+        @Override
+        StructuredWriter beginObject() throws IOException {
+            put(0xBF);
+            return this;
+        }
+
+        @Override
+        StructuredWriter endObject() throws IOException {
+            put(0xFF);
+            return this;
+        }
+
+        @Override
+        StructuredWriter beginArray() throws IOException {
+            put(0x9F);
+            return this;
+        }
+
+        @Override
+        StructuredWriter endArray() throws IOException {
+            put(0xFF);
+            return this;
+        }
+
+        @Override
+        StructuredWriter name(String name) throws IOException {
+            return value(name);
+        }
+
+        @Override
+        StructuredWriter value(long value) throws IOException {
+            if (value >= 0) {
+                putHeader(0, value);
+            } else {
+                putHeader(1, -1 - value);
+            }
+            return this;
+        }
+
+        @Override
+        StructuredWriter value(String value) throws IOException {
+            putHeader(3, utf8Length(value));
+            putUtf8(value, false);
+            return this;
+        }
+    }
+}
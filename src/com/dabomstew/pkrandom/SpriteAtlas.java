@@ -0,0 +1,119 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  SpriteAtlas.java - lays every Pokemon's front sprite out on one       --*/
+/*--                     image, for export as a PNG.                        --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+/**
+ * Decodes every Pokemon's front sprite as one batch (see
+ * RomHandler.getPokemonSprites) and arranges them in a grid, in Pokemon
+ * number order, with all cells the size of the largest sprite. Pokemon whose sprite can't be decoded get an empty cell so the
+ * grid position still follows the numbering.
+ */
+public class SpriteAtlas {
+
+    private final List<Pokemon> pokemon;
+    private final BufferedImage atlas;
+    private final int cellWidth, cellHeight;
+    private final int columns;
+
+    public SpriteAtlas(RomHandler romHandler, int columns, boolean shiny) {
+        this.pokemon = new ArrayList<Pokemon>();
+        for (Pokemon pk : romHandler.getPokemon()) {
+            if (pk != null) {
+                pokemon.add(pk);
+            }
+        }
+        this.columns = columns;
+
+        List<BufferedImage> sprites = romHandler.getPokemonSprites(pokemon, shiny);
+        int maxWidth = 1, maxHeight = 1;
+        for (BufferedImage sprite : sprites) {
+            if (sprite != null) {
+                maxWidth = Math.max(maxWidth, sprite.getWidth());
+                maxHeight = Math.max(maxHeight, sprite.getHeight());
+            }
+        }
+        this.cellWidth = maxWidth;
+        this.cellHeight = maxHeight;
+
+        int rows = Math.max(1, (sprites.size() + columns - 1) / columns);
+        this.atlas = new BufferedImage(columns * cellWidth, rows * cellHeight, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < sprites.size(); i++) {
+            BufferedImage sprite = sprites.get(i);
+            if (sprite == null) {
+                continue;
+            }
+            // centred in the bottom of its cell, like in battle
+            int x = (i % columns) * cellWidth + (cellWidth - sprite.getWidth()) / 2;
+            int y = (i / columns) * cellHeight + cellHeight - sprite.getHeight();
+            if (sprite.getType() == BufferedImage.TYPE_INT_ARGB) {
+                GFXFunctions.copyRegion(sprite, 0, 0, atlas, x, y, sprite.getWidth(), sprite.getHeight());
+            } else {
+                atlas.getGraphics().drawImage(sprite, x, y, null);
+            }
+        }
+    }
+
+    public BufferedImage getImage() {
+        return atlas;
+    }
+
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    public int getCellHeight() {
+        return cellHeight;
+    }
+
+    /** The Pokemon in each cell, row by row. */
+    public List<Pokemon> getPokemon() {
+        return pokemon;
+    }
+
+    /** Index of the cell pk is in, or -1. Cell i is at column i % columns. */
+    public int cellOf(Pokemon pk) {
+        return pokemon.indexOf(pk);
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public void writePNG(OutputStream out) throws IOException {
+        ImageIO.write(atlas, "png", out);
+    }
+
+}
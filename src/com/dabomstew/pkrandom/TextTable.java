@@ -0,0 +1,279 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  TextTable.java - a compiled character table for reading and writing   --*/
+/*--                   Game Boy / GBA text.                                 --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One or more .tbl files compiled into a byte -> token array for decoding
+ * and a character trie for encoding. Encoding takes the longest token that
+ * matches at each position in one pass over the text, without building any
+ * substrings. Characters no token starts with are skipped.
+ *
+ * Tables are immutable and cached by file list, so every handler instance
+ * for the same game shares one.
+ */
+public class TextTable {
+
+    private static final Map<String, TextTable> cache = new ConcurrentHashMap<String, TextTable>();
+
+    private final String[] tokens;
+    private final int maxMatchLength;
+    // \vXX escapes write this byte then XX; -1 if the game has none
+    private final int variableCode;
+
+    // Trie: node n has edges edgeChars[n][i] -> edgeTargets[n][i], sorted
+    // by char, and encodes to nodeValues[n] (-1 if no token ends there).
+    // Node 0 is the root.
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    private final int[] nodeValues;
+
+    /**
+     * Game Boy / Game Boy Color tables, read in order. A later file can
+     * redefine a byte; for bytes below 0x80 its old token then stops
+     * encoding to anything if it was encoding to that byte.
+     */
+    public static TextTable forGB(List<String> tableFiles) {
+        String key = "gb:" + tableFiles;
+        TextTable table = cache.get(key);
+        if (table == null) {
+            String[] tokens = new String[256];
+            Map<String, Integer> encodings = new HashMap<String, Integer>();
+            int longestToken = 0;
+            for (String tableFile : tableFiles) {
+                for (String[] entry : readTableFile(tableFile)) {
+                    int hexcode = Integer.parseInt(entry[0], 16);
+                    if (tokens[hexcode] != null) {
+                        String oldMatch = tokens[hexcode];
+                        tokens[hexcode] = null;
+                        Integer oldCode = encodings.get(oldMatch);
+                        // Bytes 0x80 and up keep their old token encodable;
+                        // existing seeds' names depend on it.
+                        if (oldCode != null && oldCode == hexcode && hexcode < 0x80) {
+                            encodings.remove(oldMatch);
+                        }
+                    }
+                    tokens[hexcode] = entry[1];
+                    longestToken = Math.max(longestToken, entry[1].length());
+                    encodings.put(entry[1], hexcode);
+                }
+            }
+            table = new TextTable(tokens, encodings, longestToken, -1);
+            cache.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * GBA tables: a single file, tokens matched up to 4 characters, and
+     * \vXX escapes for text variables.
+     */
+    public static TextTable forGBA(String tableFile, int variableCode) {
+        String key = "gba:" + tableFile + ":" + variableCode;
+        TextTable table = cache.get(key);
+        if (table == null) {
+            String[] tokens = new String[256];
+            Map<String, Integer> encodings = new HashMap<String, Integer>();
+            for (String[] entry : readTableFile(tableFile)) {
+                int hexcode = Integer.parseInt(entry[0], 16);
+                tokens[hexcode] = entry[1];
+                encodings.put(entry[1], hexcode);
+            }
+            table = new TextTable(tokens, encodings, 4, variableCode);
+            cache.put(key, table);
+        }
+        return table;
+    }
+
+    private static List<String[]> readTableFile(String name) {
+        List<String[]> entries = new ArrayList<String[]>();
+        try {
+            Scanner sc = new Scanner(FileFunctions.openConfig(name + ".tbl"), "UTF-8");
+            while (sc.hasNextLine()) {
+                String q = sc.nextLine();
+                if (!q.trim().isEmpty()) {
+                    String[] r = q.split("=", 2);
+                    if (r[1].endsWith("\r\n")) {
+                        r[1] = r[1].substring(0, r[1].length() - 2);
+                    }
+                    entries.add(r);
+                }
+            }
+            sc.close();
+        } catch (FileNotFoundException e) {
+        }
+        return entries;
+    }
+
+    private TextTable(String[] tokens, Map<String, Integer> encodings, int maxMatchLength, int variableCode) {
+        this.tokens = tokens;
+        this.maxMatchLength = maxMatchLength;
+        this.variableCode = variableCode;
+
+        // build with growable per-node lists, then freeze into arrays
+        List<StringBuilder> chars = new ArrayList<StringBuilder>();
+        List<List<Integer>> targets = new ArrayList<List<Integer>>();
+        List<Integer> values = new ArrayList<Integer>();
+        chars.add(new StringBuilder());
+        targets.add(new ArrayList<Integer>());
+        values.add(-1);
+        for (Map.Entry<String, Integer> encoding : encodings.entrySet()) {
+            String token = encoding.getKey();
+            if (token.isEmpty() || token.length() > maxMatchLength) {
+                // could never be matched
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < token.length(); i++) {
+                int edge = chars.get(node).indexOf(String.valueOf(token.charAt(i)));
+                if (edge < 0) {
+                    chars.get(node).append(token.charAt(i));
+                    targets.get(node).add(chars.size());
+                    node = chars.size();
+                    chars.add(new StringBuilder());
+                    targets.add(new ArrayList<Integer>());
+                    values.add(-1);
+                } else {
+                    node = targets.get(node).get(edge);
+                }
+            }
+            values.set(node, encoding.getValue());
+        }
+
+        int nodeCount = chars.size();
+        this.edgeChars = new char[nodeCount][];
+        this.edgeTargets = new int[nodeCount][];
+        this.nodeValues = new int[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            char[] nodeChars = chars.get(node).toString().toCharArray();
+            List<Integer> nodeTargets = targets.get(node);
+            // sort edges by char for binary search
+            Integer[] order = new Integer[nodeChars.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            final char[] unsorted = nodeChars;
+            Arrays.sort(order, (a, b) -> Character.compare(unsorted[a], unsorted[b]));
+            edgeChars[node] = new char[order.length];
+            edgeTargets[node] = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                edgeChars[node][i] = unsorted[order[i]];
+                edgeTargets[node][i] = nodeTargets.get(order[i]);
+            }
+            nodeValues[node] = values.get(node);
+        }
+    }
+
+    /** The token for one byte of text, or null if the table has none. */
+    public String getToken(int value) {
+        return tokens[value & 0xFF];
+    }
+
+    public byte[] encode(CharSequence text) {
+        // every output byte uses up at least one character, apart from
+        // \vXX which gives two bytes for four characters
+        byte[] out = new byte[text.length()];
+        int length = encode(text, out);
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+
+    /** Length of encode(text), without building it. */
+    public int encodedLength(CharSequence text) {
+        return encode(text, null);
+    }
+
+    private int encode(CharSequence text, byte[] out) {
+        int length = text.length();
+        int written = 0;
+        int pos = 0;
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == '\\' && pos + 1 < length && text.charAt(pos + 1) == 'x') {
+                int value = parseHexByte(text, pos + 2);
+                if (out != null) {
+                    out[written] = (byte) value;
+                }
+                written++;
+                pos += 4;
+            } else if (c == '\\' && variableCode >= 0 && pos + 1 < length && text.charAt(pos + 1) == 'v') {
+                int value = parseHexByte(text, pos + 2);
+                if (out != null) {
+                    out[written] = (byte) variableCode;
+                    out[written + 1] = (byte) value;
+                }
+                written += 2;
+                pos += 4;
+            } else {
+                // walk the trie as far as it goes, remembering the last
+                // (longest) token that ended on the way
+                int node = 0;
+                int matchValue = -1;
+                int matchLength = 0;
+                for (int i = pos; i < length && i - pos < maxMatchLength; i++) {
+                    int edge = Arrays.binarySearch(edgeChars[node], text.charAt(i));
+                    if (edge < 0) {
+                        break;
+                    }
+                    node = edgeTargets[node][edge];
+                    if (nodeValues[node] >= 0) {
+                        matchValue = nodeValues[node];
+                        matchLength = i - pos + 1;
+                    }
+                }
+                if (matchValue < 0) {
+                    pos++;
+                } else {
+                    if (out != null) {
+                        out[written] = (byte) matchValue;
+                    }
+                    written++;
+                    pos += matchLength;
+                }
+            }
+        }
+        return written;
+    }
+
+    private static int parseHexByte(CharSequence text, int pos) {
+        if (pos + 2 > text.length()) {
+            throw new NumberFormatException("Incomplete escape at the end of \"" + text + "\"");
+        }
+        int high = Character.digit(text.charAt(pos), 16);
+        int low = Character.digit(text.charAt(pos + 1), 16);
+        if (high < 0 || low < 0) {
+            throw new NumberFormatException("Bad hex escape in \"" + text + "\"");
+        }
+        return (high << 4) | low;
+    }
+
+}
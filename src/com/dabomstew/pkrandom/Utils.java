@@ -27,50 +27,55 @@ package com.dabomstew.pkrandom;
 /*----------------------------------------------------------------------------*/
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 
 import javax.xml.bind.DatatypeConverter;
 
 import com.dabomstew.pkrandom.exceptions.InvalidSupplementFilesException;
 import com.dabomstew.pkrandom.gui.RandomizerGUI;
+import com.dabomstew.pkrandom.romhandlers.RomHeader;
 
 public class Utils {
 
-    public static void validateRomFile(File fh) throws InvalidROMException {
-        // first, check for common filetypes that aren't ROMs
-        // read first 10 bytes of the file to do this
+    /**
+     * Reads the start of the file once, rejects common file types that
+     * aren't ROMs, and returns the header so that handler detection needs no
+     * further reads. A ZIP archive holding one ROM reads as that ROM.
+     */
+    public static RomHeader validateRomFile(File fh) throws InvalidROMException {
+        RomHeader header;
         try {
-            FileInputStream fis = new FileInputStream(fh);
-            byte[] sig = new byte[10];
-            int sigLength = fis.read(sig);
-            fis.close();
-            if (sigLength < 10) {
-                throw new InvalidROMException(InvalidROMException.Type.LENGTH, String.format(
-                        "%s appears to be a blank or nearly blank file.", fh.getName()));
-            }
-            if (sig[0] == 0x50 && sig[1] == 0x4b && sig[2] == 0x03 && sig[3] == 0x04) {
-                throw new InvalidROMException(InvalidROMException.Type.ZIP_FILE, String.format(
-                        "%s is a ZIP archive, not a ROM.", fh.getName()));
-            }
-            if (sig[0] == 0x52 && sig[1] == 0x61 && sig[2] == 0x72 && sig[3] == 0x21 && sig[4] == 0x1A
-                    && sig[5] == 0x07) {
-                throw new InvalidROMException(InvalidROMException.Type.RAR_FILE, String.format(
-                        "%s is a RAR archive, not a ROM.", fh.getName()));
-            }
-            if (sig[0] == 'P' && sig[1] == 'A' && sig[2] == 'T' && sig[3] == 'C' && sig[4] == 'H') {
-                throw new InvalidROMException(InvalidROMException.Type.IPS_FILE, String.format(
-                        "%s is a IPS patch, not a ROM.", fh.getName()));
-            }
+            header = RomHeader.read(fh);
+        } catch (ZipException ex) {
+            throw new InvalidROMException(InvalidROMException.Type.ZIP_FILE, String.format(
+                    "%s is a ZIP archive, but doesn't hold exactly one ROM.", fh.getName()));
         } catch (IOException ex) {
             throw new InvalidROMException(InvalidROMException.Type.UNREADABLE, String.format(
                     "Could not read %s from disk.", fh.getName()));
         }
+        if (header.length() < 10) {
+            throw new InvalidROMException(InvalidROMException.Type.LENGTH, String.format(
+                    "%s appears to be a blank or nearly blank file.", fh.getName()));
+        }
+        if (header.startsWith(0x50, 0x4b, 0x03, 0x04)) {
+            throw new InvalidROMException(InvalidROMException.Type.ZIP_FILE, String.format(
+                    "%s is a ZIP archive, not a ROM.", fh.getName()));
+        }
+        if (header.startsWith(0x52, 0x61, 0x72, 0x21, 0x1A, 0x07)) {
+            throw new InvalidROMException(InvalidROMException.Type.RAR_FILE, String.format(
+                    "%s is a RAR archive, not a ROM.", fh.getName()));
+        }
+        if (header.startsWith('P', 'A', 'T', 'C', 'H')) {
+            throw new InvalidROMException(InvalidROMException.Type.IPS_FILE, String.format(
+                    "%s is a IPS patch, not a ROM.", fh.getName()));
+        }
+        return header;
     }
 
     // RomHandlers implicitly rely on these - call this before creating settings
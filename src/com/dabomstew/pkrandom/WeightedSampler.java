@@ -0,0 +1,94 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  WeightedSampler.java - weighted random picks from a table built       --*/
+/*--                          once per pool.                                --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks items with probability proportional to their weight, in O(log n)
+ * per pick after an O(n) build. Build one when a phase starts and keep it
+ * for as long as the pool and weights stay the same; the sampler itself is
+ * immutable.
+ *
+ * Each pick is one nextInt(total weight), mapped to an item through the
+ * running totals of the weights. That is the same item, for the same draw,
+ * as walking the weights in order and stopping where the running total
+ * passes the draw, so replacing such a walk leaves seeds unchanged.
+ */
+public class WeightedSampler<T> {
+
+    private final List<T> items;
+    // ends[i] is the total weight of items 0..i
+    private final int[] ends;
+
+    /**
+     * @param items
+     *            the pool; items with a weight of 0 are never picked
+     * @param weights
+     *            non-negative weights, same order as items, not all 0
+     */
+    public WeightedSampler(List<T> items, int[] weights) {
+        int n = items.size();
+        if (n == 0 || weights.length != n) {
+            throw new IllegalArgumentException("Need one weight per item and at least one item");
+        }
+        this.items = new ArrayList<T>(items);
+        this.ends = new int[n];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("Negative weight");
+            }
+            total += weights[i];
+            ends[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("All weights are zero");
+        }
+    }
+
+    public T pick(Random random) {
+        int draw = random.nextInt(ends[ends.length - 1]);
+        // first item whose running total passes the draw
+        int found = Arrays.binarySearch(ends, draw + 1);
+        if (found < 0) {
+            found = -found - 1;
+        } else {
+            // zero weights repeat a total; take its first occurrence
+            while (found > 0 && ends[found - 1] == draw + 1) {
+                found--;
+            }
+        }
+        return items.get(found);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+}
@@ -7,9 +7,13 @@ import com.dabomstew.pkrandom.romhandlers.Gen4RomHandler;
 import com.dabomstew.pkrandom.romhandlers.RomHandler;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFColor;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -18,10 +22,30 @@ import java.util.Map;
 import java.util.TreeMap;
 
 public class WorkbookHandler {
+    // Rows kept in memory per sheet in streaming mode; older rows are flushed to disk.
+    private static final int STREAMING_ROW_WINDOW = 100;
+
     private final Workbook workbook;
+    private final boolean streaming;
+
+    // Shared between every section, so the workbook carries one style and one color scale
+    // instead of one per sheet.
+    private CellStyle centeredStyle;
+    private Color[] colorScale;
 
     public WorkbookHandler() {
-        workbook = new XSSFWorkbook();
+        this(false);
+    }
+
+    /**
+     * @param streaming
+     *            if true, back the spreadsheet with an SXSSF workbook that only
+     *            keeps a small window of rows per sheet in memory, so heap use
+     *            stays flat however large the sheets get.
+     */
+    public WorkbookHandler(boolean streaming) {
+        this.streaming = streaming;
+        workbook = streaming ? new SXSSFWorkbook(STREAMING_ROW_WINDOW) : new XSSFWorkbook();
         workbook.createSheet("Stats, Type, Ability, Item");
         workbook.createSheet("Evolutions");
         workbook.createSheet("Starters, Static, Trades");
@@ -31,12 +55,51 @@ public class WorkbookHandler {
         workbook.createSheet("Poke Move Tutor Compat");
         workbook.createSheet("Wild Pokemon");
         workbook.createSheet("Trainers");
+        if (streaming) {
+            for (Sheet sheet : workbook) {
+                // Column widths are fitted at the end of each section, after most rows are flushed.
+                ((SXSSFSheet) sheet).trackAllColumnsForAutoSizing();
+            }
+            // These sheets are shared by several sections which go back and fill in
+            // columns of rows that were written earlier, so they can't be windowed.
+            // They are only a few hundred rows each.
+            ((SXSSFSheet) workbook.getSheetAt(2)).setRandomAccessWindowSize(-1);
+            ((SXSSFSheet) workbook.getSheetAt(3)).setRandomAccessWindowSize(-1);
+        }
     }
 
     public Workbook getWorkbook() {
         return workbook;
     }
 
+    public void write(OutputStream out) throws IOException {
+        workbook.write(out);
+    }
+
+    // Removes the temporary sheet files a streaming workbook keeps on disk.
+    // Must be called once the workbook has been written or thrown away.
+    public void dispose() {
+        if (streaming) {
+            ((SXSSFWorkbook) workbook).dispose();
+        }
+    }
+
+    private CellStyle getCenteredStyle() {
+        if (centeredStyle == null) {
+            centeredStyle = workbook.createCellStyle();
+            centeredStyle.setAlignment(HorizontalAlignment.CENTER);
+        }
+        return centeredStyle;
+    }
+
+    private Color[] getColorScale() {
+        if (colorScale == null) {
+            colorScale = new Color[] { new XSSFColor(new java.awt.Color(248, 105, 107)),
+                    new XSSFColor(new java.awt.Color(255, 235, 132)), new XSSFColor(new java.awt.Color(99, 190, 123)) };
+        }
+        return colorScale;
+    }
+
     public void logToWorkbookBaseStatAndTypeChanges(RomHandler romHandler) {
         int rowCounter = 0;
         int cellCounter = 0;
@@ -57,8 +120,7 @@ public class WorkbookHandler {
             rowOne.createCell(cellCounter++).setCellValue("SPD");
             rowOne.createCell(cellCounter++).setCellValue("SPEC");
             rowOne.createCell(cellCounter++).setCellValue("BST");
-            CellStyle centerCells = workbook.createCellStyle();
-            centerCells.setAlignment(HorizontalAlignment.CENTER);
+            CellStyle centerCells = getCenteredStyle();
             for(int i = 0; i < cellCounter; i++) {
                 rowOne.getCell(i).setCellStyle(centerCells);
             }
@@ -95,8 +157,7 @@ public class WorkbookHandler {
 
             ConditionalFormattingRule formattingRule = sheetConditionalFormatting.createConditionalFormattingColorScaleRule();
             ColorScaleFormatting colorScaleFormatting = formattingRule.getColorScaleFormatting();
-            Color [] colors = {new XSSFColor(new java.awt.Color(248, 105, 107)), new XSSFColor(new java.awt.Color(255, 235, 132)), new XSSFColor(new java.awt.Color(99, 190, 123))};
-            colorScaleFormatting.setColors(colors);
+            colorScaleFormatting.setColors(getColorScale());
             colorScaleFormatting.getThresholds()[0].setRangeType(ConditionalFormattingThreshold.RangeType.MIN);
             colorScaleFormatting.getThresholds()[1].setRangeType(ConditionalFormattingThreshold.RangeType.PERCENTILE);
             colorScaleFormatting.getThresholds()[1].setValue(50d);
@@ -129,8 +190,7 @@ public class WorkbookHandler {
             rowOne.createCell(cellCounter++).setCellValue("ITEM 2");
             rowOne.createCell(cellCounter++).setCellValue("ITEM 3");
 
-            CellStyle centerCells = workbook.createCellStyle();
-            centerCells.setAlignment(HorizontalAlignment.CENTER);
+            CellStyle centerCells = getCenteredStyle();
             for(int i = 0; i < cellCounter; i++) {
                 rowOne.getCell(i).setCellStyle(centerCells);
             }
@@ -191,8 +251,7 @@ public class WorkbookHandler {
 
             ConditionalFormattingRule formattingRule = sheetConditionalFormatting.createConditionalFormattingColorScaleRule();
             ColorScaleFormatting colorScaleFormatting = formattingRule.getColorScaleFormatting();
-            Color [] colors = {new XSSFColor(new java.awt.Color(248, 105, 107)), new XSSFColor(new java.awt.Color(255, 235, 132)), new XSSFColor(new java.awt.Color(99, 190, 123))};
-            colorScaleFormatting.setColors(colors);
+            colorScaleFormatting.setColors(getColorScale());
             colorScaleFormatting.getThresholds()[0].setRangeType(ConditionalFormattingThreshold.RangeType.MIN);
             colorScaleFormatting.getThresholds()[1].setRangeType(ConditionalFormattingThreshold.RangeType.PERCENTILE);
             colorScaleFormatting.getThresholds()[1].setValue(50d);
@@ -308,8 +367,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++);
         rowOne.createCell(cellCounter++);
         starters.addMergedRegion(new CellRangeAddress(0, 0, 0, 2));
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         rowOne.getCell(0).setCellStyle(centerCells);
 
         int oldStarterIndex = 0;
@@ -343,8 +401,7 @@ public class WorkbookHandler {
         if(romHandler.hasPhysicalSpecialSplit()) {
             rowOne.createCell(cellCounter++).setCellValue("CATEGORY");
         }
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -381,8 +438,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("NUM");
         rowOne.createCell(cellCounter++).setCellValue("NAME");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -433,8 +489,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("PKMN 5");
         rowOne.createCell(cellCounter++).setCellValue("PKMN 6");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -490,8 +545,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("TO");
         rowOne.createCell(cellCounter++).setCellValue("NEW STATIC");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -536,8 +590,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("NUM");
         rowOne.createCell(cellCounter++).setCellValue("LOCATION");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -676,8 +729,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("TO");
         rowOne.createCell(cellCounter++).setCellValue("NEW TM");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -718,34 +770,37 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("NUM");
         rowOne.createCell(cellCounter++).setCellValue("NAME");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
 
-        Map<Pokemon, boolean[]> compatMap = romHandler.getTMHMCompatibility();
+        CompatibilityMatrix compat = romHandler.getTMHMCompatibilityMatrix();
+        List<Integer> tmMoves = romHandler.getTMMoves();
+        List<Integer> hmMoves = romHandler.getHMMoves();
 
         List<Move> moves = romHandler.getMoves();
-        for (Pokemon pkmn : compatMap.keySet()) {
+        for (Pokemon pkmn : romHandler.getPokemon()) {
+            if (!compat.hasRow(pkmn)) {
+                continue;
+            }
             int tempCellCounter = 0;
             Row tempRow = sheetTmHmCompat.createRow(rowCounter++);
             tempRow.createCell(tempCellCounter++).setCellValue(pkmn.number);
             tempRow.createCell(tempCellCounter++).setCellValue(pkmn.name);
 
-            boolean[] data = compatMap.get(pkmn);
-            for (int i = 1; i < data.length; i++) {
-                if(data[i]) {
-                    if(romHandler.getTMMoves().size() < i) {
+            for (int i = 1; i <= compat.getColumnCount(); i++) {
+                if(compat.get(pkmn.number, i)) {
+                    if(tmMoves.size() < i) {
                         tempRow.createCell(tempCellCounter++).setCellValue(
-                                String.format("HM%02d ", (i - romHandler.getTMMoves().size()))
+                                String.format("HM%02d ", (i - tmMoves.size()))
                                         + " "
-                                        + moves.get(romHandler.getHMMoves().get(i - romHandler.getTMMoves().size() - 1)).name
+                                        + moves.get(hmMoves.get(i - tmMoves.size() - 1)).name
                         );
                     } else {
                         tempRow.createCell(tempCellCounter++).setCellValue(String.format("TM%02d ", i)
                         + " "
-                        + moves.get(romHandler.getTMMoves().get(i - 1)).name
+                        + moves.get(tmMoves.get(i - 1)).name
                         );
                     }
                 }
@@ -790,8 +845,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("TO");
         rowOne.createCell(cellCounter++).setCellValue("NEW MOVE TUTOR");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -830,13 +884,13 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("NUM");
         rowOne.createCell(cellCounter++).setCellValue("NAME");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
 
         Map<Pokemon, boolean[]> compatMap = romHandler.getMoveTutorCompatibility();
+        List<Integer> mtMoves = romHandler.getMoveTutorMoves();
         List<Move> moves = romHandler.getMoves();
         for (Pokemon pkmn : compatMap.keySet()) {
             int tempCellCounter = 0;
@@ -847,7 +901,7 @@ public class WorkbookHandler {
             boolean[] data = compatMap.get(pkmn);
             for (int i = 1; i < data.length; i++) {
                 if(data[i]) {
-                    tempRow.createCell(tempCellCounter++).setCellValue(moves.get(romHandler.getMoveTutorMoves().get(i - 1)).name);
+                    tempRow.createCell(tempCellCounter++).setCellValue(moves.get(mtMoves.get(i - 1)).name);
                 }
                 if(tempCellCounter > cellCounter) {
                     cellCounter = tempCellCounter;
@@ -897,8 +951,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("NEW TRADE");
         sheetTrades.addMergedRegion(new CellRangeAddress(0, 0, col1, cellCounter-1));
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
@@ -967,8 +1020,7 @@ public class WorkbookHandler {
         rowOne.createCell(cellCounter++).setCellValue("TO");
         rowOne.createCell(cellCounter++).setCellValue("NEW ITEM");
 
-        CellStyle centerCells = workbook.createCellStyle();
-        centerCells.setAlignment(HorizontalAlignment.CENTER);
+        CellStyle centerCells = getCenteredStyle();
         for(int i = 0; i < cellCounter; i++) {
             rowOne.getCell(i).setCellStyle(centerCells);
         }
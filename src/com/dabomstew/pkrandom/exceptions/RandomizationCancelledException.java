@@ -0,0 +1,10 @@
+package com.dabomstew.pkrandom.exceptions;
+
+public class RandomizationCancelledException extends RuntimeException {
+    public RandomizationCancelledException() {
+        super("Cancelled by the user");
+    }
+
+    private static final long serialVersionUID = 3296108814216527371L;
+
+}
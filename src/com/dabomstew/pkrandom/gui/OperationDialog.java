@@ -8,8 +8,10 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.JobMonitor;
 
 /**
  * 
@@ -22,11 +24,15 @@ public class OperationDialog extends javax.swing.JDialog {
      */
     private static final long serialVersionUID = 5965463550336235236L;
 
+    private java.util.ResourceBundle bundle;
+    private JobMonitor monitor;
+
     /**
      * Creates new form OperationDialog
      */
     public OperationDialog(String text, Frame parent, boolean modal) {
         super(parent, modal);
+        bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/gui/Bundle"); // NOI18N
         initComponents();
         this.loadingLabel.setText(text);
         setLocationRelativeTo(parent);
@@ -34,11 +40,54 @@ public class OperationDialog extends javax.swing.JDialog {
 
     public OperationDialog(String text, Dialog parent, boolean modal) {
         super(parent, modal);
+        bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/gui/Bundle"); // NOI18N
         initComponents();
         this.loadingLabel.setText(text);
         setLocationRelativeTo(parent);
     }
 
+    /**
+     * Builds a monitor for a job shown by this dialog. Phase changes move the
+     * progress bar, and the Cancel button becomes available to cancel it.
+     */
+    public JobMonitor createJobMonitor() {
+        monitor = new JobMonitor(new JobMonitor.Listener() {
+            @Override
+            public void phaseStarted(final String phase, final int phaseIndex, final int phaseCount) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        showPhase(phase, phaseIndex, phaseCount);
+                    }
+                });
+            }
+        });
+        cancelButton.setVisible(true);
+        cancelButton.setEnabled(true);
+        pack();
+        return monitor;
+    }
+
+    private void showPhase(String phase, int phaseIndex, int phaseCount) {
+        if (monitor.isCancelled() || phaseCount <= 0) {
+            return;
+        }
+        String key = "OperationDialog.phase." + phase;
+        progressBar.setIndeterminate(false);
+        progressBar.setMaximum(phaseCount);
+        progressBar.setValue(phaseIndex);
+        progressBar.setString(bundle.containsKey(key) ? bundle.getString(key) : phase);
+    }
+
+    private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {
+        if (monitor != null) {
+            monitor.cancel();
+        }
+        cancelButton.setEnabled(false);
+        progressBar.setIndeterminate(true);
+        progressBar.setString(bundle.getString("OperationDialog.cancellingText"));
+    }
+
     /* @formatter:off */
     /**
      * This method is called from within the constructor to initialize the form.
@@ -51,6 +100,8 @@ public class OperationDialog extends javax.swing.JDialog {
 
         jPanel1 = new javax.swing.JPanel();
         loadingLabel = new javax.swing.JLabel();
+        progressBar = new javax.swing.JProgressBar();
+        cancelButton = new javax.swing.JButton();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DO_NOTHING_ON_CLOSE);
         setResizable(false);
@@ -63,20 +114,45 @@ public class OperationDialog extends javax.swing.JDialog {
         loadingLabel.setIcon(getLoadingIcon());
         loadingLabel.setText("Loading...");
 
+        progressBar.setIndeterminate(true);
+        progressBar.setString("");
+        progressBar.setStringPainted(true);
+
+        cancelButton.setText(bundle.getString("OperationDialog.cancelButton.text")); // NOI18N
+        cancelButton.setVisible(false);
+        cancelButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cancelButtonActionPerformed(evt);
+            }
+        });
+
         javax.swing.GroupLayout jPanel1Layout = new javax.swing.GroupLayout(
                 jPanel1);
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(jPanel1Layout.createParallelGroup(
                 javax.swing.GroupLayout.Alignment.LEADING).addGroup(
                 jPanel1Layout.createSequentialGroup().addContainerGap()
-                        .addComponent(loadingLabel)
-                        .addContainerGap(53, Short.MAX_VALUE)));
+                        .addGroup(jPanel1Layout.createParallelGroup(
+                                javax.swing.GroupLayout.Alignment.LEADING)
+                                .addComponent(loadingLabel)
+                                .addGroup(jPanel1Layout.createSequentialGroup()
+                                        .addComponent(progressBar,
+                                                javax.swing.GroupLayout.DEFAULT_SIZE,
+                                                240, Short.MAX_VALUE)
+                                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                        .addComponent(cancelButton)))
+                        .addContainerGap()));
         jPanel1Layout.setVerticalGroup(jPanel1Layout.createParallelGroup(
                 javax.swing.GroupLayout.Alignment.LEADING).addGroup(
                 jPanel1Layout
                         .createSequentialGroup()
                         .addContainerGap()
                         .addComponent(loadingLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addGroup(jPanel1Layout.createParallelGroup(
+                                javax.swing.GroupLayout.Alignment.CENTER)
+                                .addComponent(progressBar)
+                                .addComponent(cancelButton))
                         .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE,
                                 Short.MAX_VALUE)));
 
@@ -110,8 +186,10 @@ public class OperationDialog extends javax.swing.JDialog {
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JButton cancelButton;
     private javax.swing.JPanel jPanel1;
     private javax.swing.JLabel loadingLabel;
+    private javax.swing.JProgressBar progressBar;
 
     // End of variables declaration//GEN-END:variables
     /* @formatter:on */
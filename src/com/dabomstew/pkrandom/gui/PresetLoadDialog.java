@@ -47,6 +47,7 @@ import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.exceptions.InvalidSupplementFilesException;
 import com.dabomstew.pkrandom.romhandlers.RomHandler;
+import com.dabomstew.pkrandom.romhandlers.RomHeader;
 
 /**
  * 
@@ -301,8 +302,9 @@ public class PresetLoadDialog extends javax.swing.JDialog {
         int returnVal = romFileChooser.showOpenDialog(this);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
             final File fh = romFileChooser.getSelectedFile();
+            RomHeader header = RomHeader.tryRead(fh.getAbsolutePath());
             for (RomHandler.Factory rhf : parentGUI.checkHandlers) {
-                if (rhf.isLoadable(fh.getAbsolutePath())) {
+                if (header != null && rhf.isLoadable(header)) {
                     final RomHandler checkHandler = rhf.create(RandomSource.instance());
                     final JDialog opDialog = new OperationDialog(bundle.getString("RandomizerGUI.loadingText"), this,
                             true);
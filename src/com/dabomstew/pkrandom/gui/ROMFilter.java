@@ -45,12 +45,12 @@ public class ROMFilter extends FileFilter {
         }
         String extension = arg0.getName().substring(arg0.getName().lastIndexOf('.') + 1).toLowerCase();
         return extension.equals("gb") || extension.equals("sgb") || extension.equals("gbc") || extension.equals("gba")
-                || extension.equals("nds");
+                || extension.equals("nds") || extension.equals("zip");
     }
 
     @Override
     public String getDescription() {
-        return "Nintendo GB(C/A)/DS ROM File (*.gb,*.sgb,*.gbc,*.gba,*.nds)";
+        return "Nintendo GB(C/A)/DS ROM File (*.gb,*.sgb,*.gbc,*.gba,*.nds,*.zip)";
     }
 
 }
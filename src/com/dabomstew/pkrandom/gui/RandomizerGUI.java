@@ -39,6 +39,11 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.DefaultComboBoxModel;
@@ -63,6 +68,7 @@ import javax.xml.bind.DatatypeConverter;
 
 import com.dabomstew.pkrandom.*;
 import com.dabomstew.pkrandom.exceptions.InvalidSupplementFilesException;
+import com.dabomstew.pkrandom.exceptions.RandomizationCancelledException;
 import com.dabomstew.pkrandom.exceptions.RandomizationException;
 import com.dabomstew.pkrandom.pokemon.GenRestrictions;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
@@ -73,6 +79,7 @@ import com.dabomstew.pkrandom.romhandlers.Gen3RomHandler;
 import com.dabomstew.pkrandom.romhandlers.Gen4RomHandler;
 import com.dabomstew.pkrandom.romhandlers.Gen5RomHandler;
 import com.dabomstew.pkrandom.romhandlers.RomHandler;
+import com.dabomstew.pkrandom.romhandlers.RomHeader;
 
 /**
  * 
@@ -88,6 +95,18 @@ public class RandomizerGUI extends javax.swing.JFrame {
     protected RomHandler.Factory[] checkHandlers;
 
     private OperationDialog opDialog;
+    // Loads and randomizations run here, one at a time. The operation dialog
+    // is modal so a second job can't normally be queued; if one somehow is,
+    // the queue is bounded and it gets rejected rather than piling up.
+    private final ExecutorService jobExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Randomizer job");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
     private List<JCheckBox> tweakCheckboxes;
     private boolean presetMode;
     private GenRestrictions currentRestrictions;
@@ -979,8 +998,9 @@ public class RandomizerGUI extends javax.swing.JFrame {
         int returnVal = romOpenChooser.showOpenDialog(this);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
             final File fh = romOpenChooser.getSelectedFile();
+            RomHeader header;
             try {
-                Utils.validateRomFile(fh);
+                header = Utils.validateRomFile(fh);
             } catch (Utils.InvalidROMException e) {
                 switch (e.getType()) {
                 case LENGTH:
@@ -1004,16 +1024,20 @@ public class RandomizerGUI extends javax.swing.JFrame {
                             String.format(bundle.getString("RandomizerGUI.unreadableRom"), fh.getName()));
                     return;
                 }
+                return;
             }
 
             for (RomHandler.Factory rhf : checkHandlers) {
-                if (rhf.isLoadable(fh.getAbsolutePath())) {
+                if (rhf.isLoadable(header)) {
                     this.romHandler = rhf.create(RandomSource.instance());
                     opDialog = new OperationDialog(bundle.getString("RandomizerGUI.loadingText"), this, true);
-                    Thread t = new Thread() {
+                    final RomHandler handler = this.romHandler;
+                    handler.setJobMonitor(opDialog.createJobMonitor());
+                    jobExecutor.execute(new Runnable() {
                         @Override
                         public void run() {
                             boolean romLoaded = false;
+                            ImageIcon mascot = null;
                             SwingUtilities.invokeLater(new Runnable() {
                                 @Override
                                 public void run() {
@@ -1021,36 +1045,49 @@ public class RandomizerGUI extends javax.swing.JFrame {
                                 }
                             });
                             try {
-                                RandomizerGUI.this.romHandler.loadRom(fh.getAbsolutePath());
+                                handler.loadRom(fh.getAbsolutePath());
+                                // decode it here rather than on the event thread
+                                mascot = makeMascotIcon(handler);
                                 romLoaded = true;
+                            } catch (RandomizationCancelledException ex) {
+                                // nothing to report
                             } catch (Exception ex) {
                                 attemptToLogException(ex, "RandomizerGUI.loadFailed", "RandomizerGUI.loadFailedNoLog");
+                            } finally {
+                                handler.setJobMonitor(null);
                             }
                             final boolean loadSuccess = romLoaded;
+                            final ImageIcon mascotIcon = mascot;
                             SwingUtilities.invokeLater(new Runnable() {
                                 @Override
                                 public void run() {
                                     RandomizerGUI.this.opDialog.setVisible(false);
                                     RandomizerGUI.this.initialFormState();
                                     if (loadSuccess) {
-                                        RandomizerGUI.this.romLoaded();
+                                        RandomizerGUI.this.romLoaded(mascotIcon);
+                                    } else {
+                                        RandomizerGUI.this.romHandler = null;
                                     }
                                 }
                             });
                         }
-                    };
-                    t.start();
+                    });
 
                     return;
                 }
             }
-            JOptionPane.showMessageDialog(this,
-                    String.format(bundle.getString("RandomizerGUI.unsupportedRom"), fh.getName()));
+            String unsupported = header.isZipped() ? "RandomizerGUI.zippedRomUnsupported"
+                    : "RandomizerGUI.unsupportedRom";
+            JOptionPane.showMessageDialog(this, String.format(bundle.getString(unsupported), fh.getName()));
         }
 
     }
 
     private void romLoaded() {
+        romLoaded(makeMascotIcon(this.romHandler));
+    }
+
+    private void romLoaded(ImageIcon mascotIcon) {
         try {
             this.currentRestrictions = null;
             this.riRomNameLabel.setText(this.romHandler.getROMName());
@@ -1293,7 +1330,7 @@ public class RandomizerGUI extends javax.swing.JFrame {
                 miscTweaksPanel.setLayout(noTweaksLayout);
             }
 
-            this.gameMascotLabel.setIcon(makeMascotIcon());
+            this.gameMascotLabel.setIcon(mascotIcon);
 
             if (this.romHandler instanceof AbstractDSRomHandler) {
                 ((AbstractDSRomHandler) this.romHandler).closeInnerRom();
@@ -1305,7 +1342,7 @@ public class RandomizerGUI extends javax.swing.JFrame {
         }
     }
 
-    private ImageIcon makeMascotIcon() {
+    private ImageIcon makeMascotIcon(RomHandler romHandler) {
         try {
             BufferedImage handlerImg = romHandler.getMascotImage();
 
@@ -2083,12 +2120,19 @@ public class RandomizerGUI extends javax.swing.JFrame {
         final Settings settings = createSettingsFromState(customNames);
         final boolean raceMode = settings.isRaceMode();
         // Setup verbose log
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PrintStream log;
-        try {
-            log = new PrintStream(baos, false, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            log = new PrintStream(baos);
+        // Race mode never offers to save it, so don't build one at all.
+        // Otherwise it is streamed to a temporary file as it is produced, and
+        // renamed into place if the user decides to keep it.
+        final File tempLogFile = new File(filename + ".log.tmp");
+        PrintStream log = null;
+        if (!raceMode) {
+            try {
+                log = new PrintStream(new AsyncLogWriter(new FileOutputStream(tempLogFile),
+                        AsyncLogWriter.Format.TEXT), false, "UTF-8");
+            } catch (IOException e) {
+                // carry on without a log
+                log = null;
+            }
         }
 
         final PrintStream verboseLog = log;
@@ -2096,8 +2140,9 @@ public class RandomizerGUI extends javax.swing.JFrame {
         try {
             final AtomicInteger finishedCV = new AtomicInteger(0);
             opDialog = new OperationDialog(bundle.getString("RandomizerGUI.savingText"), this, true);
-            WorkbookHandler wbh = new WorkbookHandler();
-            Thread t = new Thread() {
+            final JobMonitor monitor = opDialog.createJobMonitor();
+            final WorkbookHandler wbh = raceMode ? null : new WorkbookHandler(true);
+            jobExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     SwingUtilities.invokeLater(new Runnable() {
@@ -2109,9 +2154,16 @@ public class RandomizerGUI extends javax.swing.JFrame {
                     boolean succeededSave = false;
                     try {
                         RandomizerGUI.this.romHandler.setLog(verboseLog);
-                        finishedCV.set(new Randomizer(settings, RandomizerGUI.this.romHandler).randomize(filename,
-                                verboseLog, wbh, seed));
+                        RandomizerGUI.this.romHandler.setJobMonitor(monitor);
+                        Randomizer randomizer = new Randomizer(settings, RandomizerGUI.this.romHandler);
+                        randomizer.setJobMonitor(monitor);
+                        finishedCV.set(randomizer.randomize(filename, verboseLog, wbh, seed));
                         succeededSave = true;
+                    } catch (RandomizationCancelledException ex) {
+                        // the ROM handler is thrown away below, half-randomized
+                        if (verboseLog != null) {
+                            verboseLog.close();
+                        }
                     } catch (RandomizationException ex) {
                         attemptToLogException(ex, "RandomizerGUI.saveFailedMessage",
                                 "RandomizerGUI.saveFailedMessageNoLog", true);
@@ -2124,15 +2176,20 @@ public class RandomizerGUI extends javax.swing.JFrame {
                             verboseLog.close();
                         }
                     }
+                    boolean closedLog = false;
+                    if (succeededSave && verboseLog != null) {
+                        // waits for the writer thread to catch up, so do it here
+                        // rather than on the EDT
+                        verboseLog.close();
+                        closedLog = !verboseLog.checkError();
+                    }
+                    final boolean logWritten = closedLog;
                     if (succeededSave) {
                         SwingUtilities.invokeLater(new Runnable() {
                             @Override
                             public void run() {
                                 RandomizerGUI.this.opDialog.setVisible(false);
                                 // Log?
-                                verboseLog.close();
-                                byte[] out = baos.toByteArray();
-
                                 if (raceMode) {
                                     JOptionPane.showMessageDialog(RandomizerGUI.this,
                                             String.format(bundle.getString("RandomizerGUI.raceModeCheckValuePopup"),
@@ -2145,25 +2202,38 @@ public class RandomizerGUI extends javax.swing.JFrame {
                                     if (response == JOptionPane.YES_OPTION) {
                                         try {
                                             try(OutputStream fileOut = new FileOutputStream(filename+".xlsx")) {
-                                                wbh.getWorkbook().write(fileOut);
+                                                wbh.write(fileOut);
                                             } catch (IOException e) {
                                                 e.printStackTrace();
                                             }
 
-                                            FileOutputStream fos = new FileOutputStream(filename + ".log");
-                                            fos.write(0xEF);
-                                            fos.write(0xBB);
-                                            fos.write(0xBF);
-                                            fos.write(out);
-                                            fos.close();
+                                            if (!logWritten) {
+                                                throw new IOException("Verbose log could not be written");
+                                            }
+                                            File logFile = new File(filename + ".log");
+                                            if ((logFile.exists() && !logFile.delete())
+                                                    || !tempLogFile.renameTo(logFile)) {
+                                                throw new IOException("Could not move verbose log into place");
+                                            }
                                         } catch (IOException e) {
+                                            tempLogFile.delete();
+                                            wbh.dispose();
                                             JOptionPane.showMessageDialog(RandomizerGUI.this,
                                                     bundle.getString("RandomizerGUI.logSaveFailed"));
                                             return;
                                         }
-                                        JOptionPane.showMessageDialog(RandomizerGUI.this,
-                                                String.format(bundle.getString("RandomizerGUI.logSaved"), filename));
+                                        // only exported when the log is kept,
+                                        // from the model the log was written from
+                                        boolean spoilerWritten = exportSpoiler(
+                                                new File(filename + ".spoiler.json"),
+                                                settings.isUseTimeBasedEncounters(), seed);
+                                        JOptionPane.showMessageDialog(RandomizerGUI.this, String.format(
+                                                bundle.getString(spoilerWritten ? "RandomizerGUI.logAndSpoilerSaved"
+                                                        : "RandomizerGUI.logSaved"), filename));
+                                    } else {
+                                        tempLogFile.delete();
                                     }
+                                    wbh.dispose();
                                 }
                                 if (presetMode) {
                                     JOptionPane.showMessageDialog(RandomizerGUI.this,
@@ -2193,19 +2263,34 @@ public class RandomizerGUI extends javax.swing.JFrame {
                             @Override
                             public void run() {
                                 RandomizerGUI.this.opDialog.setVisible(false);
+                                if (wbh != null) {
+                                    wbh.dispose();
+                                }
+                                tempLogFile.delete();
                                 RandomizerGUI.this.romHandler = null;
                                 initialFormState();
                             }
                         });
                     }
                 }
-            };
-            t.start();
+            });
         } catch (Exception ex) {
             attemptToLogException(ex, "RandomizerGUI.saveFailed", "RandomizerGUI.saveFailedNoLog");
             if (verboseLog != null) {
                 verboseLog.close();
             }
+            tempLogFile.delete();
+        }
+    }
+
+    private boolean exportSpoiler(File target, boolean useTimeOfDay, long seed) {
+        // the exporter buffers its own output
+        try (OutputStream out = new FileOutputStream(target)) {
+            new SpoilerExporter(this.romHandler, useTimeOfDay).export(out, SpoilerExporter.Format.JSON, seed);
+            return true;
+        } catch (Exception ex) {
+            target.delete();
+            return false;
         }
     }
 
@@ -2374,6 +2459,56 @@ public class RandomizerGUI extends javax.swing.JFrame {
         new CustomNamesEditorDialog(this);
     }// GEN-LAST:event_customNamesEditorMenuItemActionPerformed
 
+    // wide enough for a stream overlay, short enough to page through
+    private static final int SPRITE_ATLAS_COLUMNS = 16;
+
+    private void spriteAtlasMenuItemActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_spriteAtlasMenuItemActionPerformed
+        if (this.romHandler == null) {
+            JOptionPane.showMessageDialog(this, bundle.getString("RandomizerGUI.spriteAtlasNoRom"));
+            return;
+        }
+        JFileChooser atlasChooser = new JFileChooser();
+        atlasChooser.setSelectedFile(new File(this.romHandler.getROMCode() + "-sprites.png"));
+        if (atlasChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File chosen = atlasChooser.getSelectedFile();
+        final File fh = chosen.getName().toLowerCase().endsWith(".png") ? chosen
+                : new File(chosen.getAbsolutePath() + ".png");
+        final RomHandler handler = this.romHandler;
+        opDialog = new OperationDialog(bundle.getString("RandomizerGUI.spriteAtlasText"), this, true);
+        jobExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        opDialog.setVisible(true);
+                    }
+                });
+                boolean atlasSaved = false;
+                try (OutputStream out = new FileOutputStream(fh)) {
+                    new SpriteAtlas(handler, SPRITE_ATLAS_COLUMNS, false).writePNG(out);
+                    atlasSaved = true;
+                } catch (Exception ex) {
+                    attemptToLogException(ex, "RandomizerGUI.spriteAtlasFailed",
+                            "RandomizerGUI.spriteAtlasFailedNoLog");
+                }
+                final boolean saved = atlasSaved;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        RandomizerGUI.this.opDialog.setVisible(false);
+                        if (saved) {
+                            JOptionPane.showMessageDialog(RandomizerGUI.this, String.format(
+                                    bundle.getString("RandomizerGUI.spriteAtlasSaved"), fh.getAbsolutePath()));
+                        }
+                    }
+                });
+            }
+        });
+    }// GEN-LAST:event_spriteAtlasMenuItemActionPerformed
+
     private void loadQSButtonActionPerformed(java.awt.event.ActionEvent evt) {// GEN-FIRST:event_loadQSButtonActionPerformed
         if (this.romHandler == null) {
             return;
@@ -2787,6 +2922,7 @@ public class RandomizerGUI extends javax.swing.JFrame {
         manualUpdateMenuItem = new javax.swing.JMenuItem();
         toggleScrollPaneMenuItem = new javax.swing.JMenuItem();
         customNamesEditorMenuItem = new javax.swing.JMenuItem();
+        spriteAtlasMenuItem = new javax.swing.JMenuItem();
         pokeEvolutionsButtonGroup = new javax.swing.ButtonGroup();
         generalOptionsPanel = new javax.swing.JPanel();
         pokeLimitCB = new javax.swing.JCheckBox();
@@ -3009,6 +3145,14 @@ public class RandomizerGUI extends javax.swing.JFrame {
         });
         updateSettingsMenu.add(customNamesEditorMenuItem);
 
+        spriteAtlasMenuItem.setText(bundle.getString("RandomizerGUI.spriteAtlasMenuItem.text")); // NOI18N
+        spriteAtlasMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                spriteAtlasMenuItemActionPerformed(evt);
+            }
+        });
+        updateSettingsMenu.add(spriteAtlasMenuItem);
+
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle(bundle.getString("RandomizerGUI.title")); // NOI18N
 
@@ -5226,6 +5370,7 @@ public class RandomizerGUI extends javax.swing.JFrame {
     private javax.swing.JRadioButton spRandom2EvosRB;
     private javax.swing.JRadioButton spRandomRB;
     private javax.swing.JRadioButton spUnchangedRB;
+    private javax.swing.JMenuItem spriteAtlasMenuItem;
     private javax.swing.ButtonGroup starterPokemonButtonGroup;
     private javax.swing.JPanel starterPokemonPanel;
     private javax.swing.JPanel startersInnerPanel;
@@ -60,9 +60,27 @@ public class NDSRom {
     private static final int banner_align = 0x1FF, file_align = 0x1FF;
 
     public NDSRom(String filename) throws IOException {
+        this(filename, true);
+    }
+
+    // useTmpFolder false keeps every extracted file in memory, for ROMs that
+    // are opened more than once at a time (the tmp folder is per filename)
+    public NDSRom(String filename, boolean useTmpFolder) throws IOException {
         this.romFilename = filename;
         this.baseRom = new RandomAccessFile(filename, "r");
         this.romOpen = true;
+        if (useTmpFolder) {
+            createTmpFolder(filename);
+        } else {
+            writingEnabled = false;
+        }
+        readFileSystem();
+        arm9_open = false;
+        arm9_changed = false;
+        arm9_ramstored = null;
+    }
+
+    private void createTmpFolder(String filename) {
         // TMP folder?
         String rawFilename = new File(filename).getName();
         String dataFolder = "tmp_" + rawFilename.substring(0, rawFilename.lastIndexOf('.'));
@@ -77,10 +95,6 @@ public class NDSRom {
         } else {
             writingEnabled = false;
         }
-        readFileSystem();
-        arm9_open = false;
-        arm9_changed = false;
-        arm9_ramstored = null;
     }
 
     public void reopenROM() throws IOException {
@@ -0,0 +1,265 @@
+package com.dabomstew.pkrandom.pokemon;
+
+/*----------------------------------------------------------------------------*/
+/*--  CompatibilityMatrix.java - a packed species x TM/HM or move tutor     --*/
+/*--                             compatibility table.                       --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Species x move compatibility packed into long words, one row per Pokemon
+ * number. Rows run 1..speciesCount and columns 1..columnCount, numbered the
+ * same way as the old boolean[] flags (TMs first, then HMs). Row 0 and
+ * column 0 exist only to keep the numbering natural and are always clear.
+ *
+ * Bytes are packed the way the games store them, lowest bit first, so
+ * handlers can copy compat bytes straight in and out with getByte/setByte.
+ */
+public class CompatibilityMatrix {
+
+    private final int speciesCount;
+    private final int columnCount;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    public CompatibilityMatrix(int speciesCount, int columnCount) {
+        this.speciesCount = speciesCount;
+        this.columnCount = columnCount;
+        // bit 0 of each row is column 0
+        this.wordsPerRow = (columnCount >> 6) + 1;
+        this.words = new long[(speciesCount + 1) * wordsPerRow];
+    }
+
+    public CompatibilityMatrix(CompatibilityMatrix original) {
+        this.speciesCount = original.speciesCount;
+        this.columnCount = original.columnCount;
+        this.wordsPerRow = original.wordsPerRow;
+        this.words = original.words.clone();
+    }
+
+    public int getSpeciesCount() {
+        return speciesCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public boolean get(int species, int column) {
+        return (words[species * wordsPerRow + (column >> 6)] & (1L << column)) != 0;
+    }
+
+    public void set(int species, int column, boolean value) {
+        int index = species * wordsPerRow + (column >> 6);
+        if (value) {
+            words[index] |= 1L << column;
+        } else {
+            words[index] &= ~(1L << column);
+        }
+    }
+
+    /**
+     * Reads 8 columns starting at firstColumn as one byte, lowest bit first.
+     * Columns past the end read as 0.
+     */
+    public int getByte(int species, int firstColumn) {
+        int base = species * wordsPerRow;
+        int shift = firstColumn & 63;
+        long bits = words[base + (firstColumn >> 6)] >>> shift;
+        if (shift > 56 && (firstColumn >> 6) + 1 < wordsPerRow) {
+            bits |= words[base + (firstColumn >> 6) + 1] << (64 - shift);
+        }
+        int value = (int) (bits & 0xFF);
+        int remaining = columnCount - firstColumn + 1;
+        if (remaining < 8) {
+            value &= remaining <= 0 ? 0 : (1 << remaining) - 1;
+        }
+        return value;
+    }
+
+    /**
+     * Writes 8 columns starting at firstColumn from one byte, lowest bit
+     * first. Bits for columns past the end are dropped.
+     */
+    public void setByte(int species, int firstColumn, int value) {
+        for (int i = 0; i < 8 && firstColumn + i <= columnCount; i++) {
+            set(species, firstColumn + i, ((value >> i) & 0x01) != 0);
+        }
+    }
+
+    /** Sets columns fromColumn..toColumn (inclusive) for every species. */
+    public void fillColumns(int fromColumn, int toColumn) {
+        long[] mask = columnRangeMask(fromColumn, toColumn);
+        for (int species = 1; species <= speciesCount; species++) {
+            orRow(species, mask);
+        }
+    }
+
+    public void fillAll() {
+        fillColumns(1, columnCount);
+    }
+
+    /** A row-shaped mask with columns fromColumn..toColumn (inclusive) set. */
+    public long[] columnRangeMask(int fromColumn, int toColumn) {
+        long[] mask = new long[wordsPerRow];
+        for (int column = Math.max(fromColumn, 1); column <= Math.min(toColumn, columnCount); column++) {
+            mask[column >> 6] |= 1L << column;
+        }
+        return mask;
+    }
+
+    /** An empty row-shaped mask, for building up with setMaskBit. */
+    public long[] newRowMask() {
+        return new long[wordsPerRow];
+    }
+
+    public static void setMaskBit(long[] mask, int column) {
+        mask[column >> 6] |= 1L << column;
+    }
+
+    public long[] getRow(int species) {
+        long[] row = new long[wordsPerRow];
+        System.arraycopy(words, species * wordsPerRow, row, 0, wordsPerRow);
+        return row;
+    }
+
+    public void setRow(int species, long[] row) {
+        System.arraycopy(row, 0, words, species * wordsPerRow, wordsPerRow);
+        words[species * wordsPerRow] &= ~1L;
+    }
+
+    public void orRow(int species, long[] mask) {
+        int base = species * wordsPerRow;
+        for (int i = 0; i < wordsPerRow; i++) {
+            words[base + i] |= mask[i];
+        }
+        words[base] &= ~1L;
+    }
+
+    public void andRow(int species, long[] mask) {
+        int base = species * wordsPerRow;
+        for (int i = 0; i < wordsPerRow; i++) {
+            words[base + i] &= mask[i];
+        }
+    }
+
+    /** Number of columns set for this species. */
+    public int rowCount(int species) {
+        int base = species * wordsPerRow;
+        int count = 0;
+        for (int i = 0; i < wordsPerRow; i++) {
+            count += Long.bitCount(words[base + i]);
+        }
+        return count;
+    }
+
+    /** The species (bit n = Pokemon number n) that have this column set. */
+    public long[] getColumn(int column) {
+        int index = column >> 6;
+        long bit = 1L << column;
+        long[] species = new long[(speciesCount >> 6) + 1];
+        for (int i = 1; i <= speciesCount; i++) {
+            if ((words[i * wordsPerRow + index] & bit) != 0) {
+                species[i >> 6] |= 1L << i;
+            }
+        }
+        return species;
+    }
+
+    /** Number of species that have this column set. */
+    public int columnCount(int column) {
+        int index = column >> 6;
+        long bit = 1L << column;
+        int count = 0;
+        for (int species = 1; species <= speciesCount; species++) {
+            if ((words[species * wordsPerRow + index] & bit) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Total number of set cells. */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /** Unpacks one row to the old 1-based flags layout. */
+    public boolean[] getFlags(int species) {
+        boolean[] flags = new boolean[columnCount + 1];
+        for (int column = 1; column <= columnCount; column++) {
+            flags[column] = get(species, column);
+        }
+        return flags;
+    }
+
+    public void setFlags(int species, boolean[] flags) {
+        for (int column = 1; column <= columnCount; column++) {
+            set(species, column, column < flags.length && flags[column]);
+        }
+    }
+
+    /**
+     * Builds the Map form used by the RomHandler interface, with an entry for
+     * every Pokemon in pokes that has a row here.
+     */
+    public Map<Pokemon, boolean[]> toMap(List<Pokemon> pokes) {
+        Map<Pokemon, boolean[]> compat = new TreeMap<Pokemon, boolean[]>();
+        for (Pokemon pk : pokes) {
+            if (hasRow(pk)) {
+                compat.put(pk, getFlags(pk.number));
+            }
+        }
+        return compat;
+    }
+
+    public boolean hasRow(Pokemon pk) {
+        return pk != null && pk.number > 0 && pk.number <= speciesCount;
+    }
+
+    /** Overwrites the rows for every Pokemon in compatData. */
+    public void setRows(Map<Pokemon, boolean[]> compatData) {
+        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
+            setFlags(compatEntry.getKey().number, compatEntry.getValue());
+        }
+    }
+
+    public static CompatibilityMatrix fromMap(Map<Pokemon, boolean[]> compatData) {
+        int speciesCount = 0;
+        int columnCount = 0;
+        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
+            speciesCount = Math.max(speciesCount, compatEntry.getKey().number);
+            columnCount = Math.max(columnCount, compatEntry.getValue().length - 1);
+        }
+        CompatibilityMatrix matrix = new CompatibilityMatrix(speciesCount, columnCount);
+        matrix.setRows(compatData);
+        return matrix;
+    }
+
+}
@@ -29,6 +29,15 @@ public class Encounter {
     public int maxLevel;
     public Pokemon pokemon;
 
+    public Encounter() {
+    }
+
+    public Encounter(Encounter enc) {
+        this.level = enc.level;
+        this.maxLevel = enc.maxLevel;
+        this.pokemon = enc.pokemon;
+    }
+
     public String toString() {
         if (pokemon == null) {
             return "ERROR";
@@ -36,6 +36,19 @@ public class EncounterSet {
     public String displayName;
     public int offset;
 
+    public EncounterSet() {
+    }
+
+    public EncounterSet(EncounterSet es) {
+        this.rate = es.rate;
+        for (Encounter enc : es.encounters) {
+            this.encounters.add(new Encounter(enc));
+        }
+        this.bannedPokemon.addAll(es.bannedPokemon);
+        this.displayName = es.displayName;
+        this.offset = es.offset;
+    }
+
     public String toString() {
         return "Encounter [Rate = " + rate + ", Encounters = " + encounters + "]";
     }
@@ -0,0 +1,247 @@
+package com.dabomstew.pkrandom.pokemon;
+
+/*----------------------------------------------------------------------------*/
+/*--  EvolutionForest.java - the stat-carrying evolution chains of a game,  --*/
+/*--                         flattened into arrays for linear sweeps.       --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The "copy up evolutions" structure of a Pokemon list. A Pokemon whose only
+ * pre-evolution carries stats hangs off that pre-evolution; every other
+ * Pokemon (basic, split, or a no-copy evolution) is a root. Everything is
+ * indexed by position in the list the forest was built from.
+ *
+ * The forest is a snapshot: build a new one whenever evolutions are added,
+ * removed or rewired.
+ */
+public class EvolutionForest {
+
+    private final List<Pokemon> pokes;
+    private final Map<Pokemon, Integer> indexes;
+    private final int[] parents;
+    private final int[] depths;
+    private final boolean[] middle;
+    private final boolean[] finalEvo;
+    private final int[] roots;
+    private final int[] copyOrder;
+
+    public EvolutionForest(List<Pokemon> pokes) {
+        int count = pokes.size();
+        this.pokes = pokes;
+        this.indexes = new IdentityHashMap<Pokemon, Integer>();
+        for (int i = 0; i < count; i++) {
+            if (pokes.get(i) != null) {
+                indexes.put(pokes.get(i), i);
+            }
+        }
+
+        this.parents = new int[count];
+        this.depths = new int[count];
+        this.middle = new boolean[count];
+        this.finalEvo = new boolean[count];
+        List<Integer> rootList = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            Pokemon pk = pokes.get(i);
+            parents[i] = -1;
+            if (pk == null) {
+                continue;
+            }
+            if (pk.evolutionsTo.size() == 1 && pk.evolutionsTo.get(0).carryStats
+                    && indexes.containsKey(pk.evolutionsTo.get(0).from)) {
+                parents[i] = indexes.get(pk.evolutionsTo.get(0).from);
+                middle[i] = pk.evolutionsFrom.size() > 0;
+                finalEvo[i] = !middle[i];
+            } else {
+                rootList.add(i);
+            }
+        }
+        breakCycles(rootList);
+
+        // roots in Pokemon number order
+        Collections.sort(rootList, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return EvolutionForest.this.pokes.get(i1).compareTo(EvolutionForest.this.pokes.get(i2));
+            }
+        });
+        this.roots = toArray(rootList);
+
+        // Walk the list in order; for each Pokemon not placed yet, place its
+        // unplaced ancestors top-down, then it. Copy actions that draw random
+        // numbers depend on this order, so keep it stable.
+        boolean[] placed = new boolean[count];
+        for (int root : roots) {
+            placed[root] = true;
+        }
+        int[] chain = new int[count];
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            if (pokes.get(i) == null || placed[i]) {
+                continue;
+            }
+            int chainLength = 0;
+            for (int at = i; !placed[at]; at = parents[at]) {
+                chain[chainLength++] = at;
+            }
+            while (chainLength > 0) {
+                int at = chain[--chainLength];
+                depths[at] = depths[parents[at]] + 1;
+                placed[at] = true;
+                order.add(at);
+            }
+        }
+        this.copyOrder = toArray(order);
+    }
+
+    // A loop of single stat-carrying evolutions has no root to copy from;
+    // make its first member (in list order) a root so every walk ends.
+    private void breakCycles(List<Integer> rootList) {
+        int count = parents.length;
+        int[] state = new int[count]; // 0 = unseen, 1 = on current walk, 2 = reaches a root
+        for (int root : rootList) {
+            state[root] = 2;
+        }
+        for (int i = 0; i < count; i++) {
+            if (pokes.get(i) == null || state[i] != 0) {
+                continue;
+            }
+            int at = i;
+            while (state[at] == 0) {
+                state[at] = 1;
+                at = parents[at];
+            }
+            if (state[at] == 1) {
+                // came back round to this walk: a loop
+                parents[at] = -1;
+                middle[at] = false;
+                finalEvo[at] = false;
+                rootList.add(at);
+                state[at] = 2;
+            }
+            for (at = i; state[at] == 1; at = parents[at]) {
+                state[at] = 2;
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    public int size() {
+        return parents.length;
+    }
+
+    public Pokemon get(int index) {
+        return pokes.get(index);
+    }
+
+    /** Position of pk in the list, or -1 if it isn't in it. */
+    public int indexOf(Pokemon pk) {
+        Integer index = indexes.get(pk);
+        return index == null ? -1 : index;
+    }
+
+    /** Number of basic or no-copy Pokemon; root(i) runs in Pokemon number order. */
+    public int rootCount() {
+        return roots.length;
+    }
+
+    public int root(int i) {
+        return roots[i];
+    }
+
+    /**
+     * Number of Pokemon that copy from a pre-evolution. copied(i) lists each
+     * after the Pokemon it copies from, so one pass in that order always
+     * finds the parent done.
+     */
+    public int copyCount() {
+        return copyOrder.length;
+    }
+
+    public int copied(int i) {
+        return copyOrder[i];
+    }
+
+    /** Index of the pre-evolution stats are copied from, or -1 for roots. */
+    public int parent(int index) {
+        return parents[index];
+    }
+
+    /** Number of copy steps from the root; 0 for roots. */
+    public int depth(int index) {
+        return depths[index];
+    }
+
+    public boolean isRoot(int index) {
+        return pokes.get(index) != null && parents[index] < 0;
+    }
+
+    public boolean isMiddle(int index) {
+        return middle[index];
+    }
+
+    public boolean isFinal(int index) {
+        return finalEvo[index];
+    }
+
+    public Set<Pokemon> getBasicOrNoCopyPokemon() {
+        Set<Pokemon> result = new TreeSet<Pokemon>();
+        for (int root : roots) {
+            result.add(pokes.get(root));
+        }
+        return result;
+    }
+
+    public Set<Pokemon> getMiddleEvolutions() {
+        return collect(middle);
+    }
+
+    public Set<Pokemon> getFinalEvolutions() {
+        return collect(finalEvo);
+    }
+
+    private Set<Pokemon> collect(boolean[] flags) {
+        Set<Pokemon> result = new TreeSet<Pokemon>();
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i]) {
+                result.add(pokes.get(i));
+            }
+        }
+        return result;
+    }
+
+}
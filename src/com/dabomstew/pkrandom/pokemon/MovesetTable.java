@@ -0,0 +1,266 @@
+package com.dabomstew.pkrandom.pokemon;
+
+/*----------------------------------------------------------------------------*/
+/*--  MovesetTable.java - every Pokemon's level-up moveset packed into one  --*/
+/*--                      int array.                                        --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Level-up movesets for a whole game in columnar form: one int[] of
+ * (level << 16 | move) entries, with a start offset and size per Pokemon
+ * number. Handlers append entries while decoding, and the randomization
+ * passes read and rewrite them in place without creating MoveLearnt
+ * objects.
+ *
+ * A moveset that grows (insertMove) is moved to the end of the entry array;
+ * the old slots are simply abandoned; the table is only alive for one pass.
+ */
+public class MovesetTable {
+
+    private final int speciesCount;
+    private final int[] starts;
+    private final int[] sizes;
+    private final boolean[] present;
+    private int[] entries;
+    private int used;
+    private int appendingTo = -1;
+
+    public MovesetTable(int speciesCount) {
+        this(speciesCount, speciesCount * 16);
+    }
+
+    public MovesetTable(int speciesCount, int expectedEntries) {
+        this.speciesCount = speciesCount;
+        this.starts = new int[speciesCount + 1];
+        this.sizes = new int[speciesCount + 1];
+        this.present = new boolean[speciesCount + 1];
+        this.entries = new int[Math.max(expectedEntries, 16)];
+    }
+
+    public MovesetTable(MovesetTable original) {
+        this.speciesCount = original.speciesCount;
+        this.starts = original.starts.clone();
+        this.sizes = original.sizes.clone();
+        this.present = original.present.clone();
+        this.entries = Arrays.copyOf(original.entries, Math.max(original.used, 16));
+        this.used = original.used;
+    }
+
+    public int getSpeciesCount() {
+        return speciesCount;
+    }
+
+    public boolean hasMoveset(Pokemon pk) {
+        return pk != null && pk.number > 0 && pk.number <= speciesCount && present[pk.number];
+    }
+
+    public boolean hasMoveset(int species) {
+        return species > 0 && species <= speciesCount && present[species];
+    }
+
+    /**
+     * Starts a new, empty moveset for this species; addMove appends to it
+     * until the next startMoveset. Species can be started in any order.
+     */
+    public void startMoveset(int species) {
+        present[species] = true;
+        starts[species] = used;
+        sizes[species] = 0;
+        appendingTo = species;
+    }
+
+    public void addMove(int level, int move) {
+        ensureCapacity(used + 1);
+        entries[used++] = pack(level, move);
+        sizes[appendingTo]++;
+    }
+
+    public int size(int species) {
+        return sizes[species];
+    }
+
+    public int getMove(int species, int index) {
+        return entries[starts[species] + index] & 0xFFFF;
+    }
+
+    public int getLevel(int species, int index) {
+        return entries[starts[species] + index] >>> 16;
+    }
+
+    public void setMove(int species, int index, int move) {
+        int offset = starts[species] + index;
+        entries[offset] = (entries[offset] & 0xFFFF0000) | (move & 0xFFFF);
+    }
+
+    public void setLevel(int species, int index, int level) {
+        int offset = starts[species] + index;
+        entries[offset] = (level << 16) | (entries[offset] & 0xFFFF);
+    }
+
+    public void set(int species, int index, int level, int move) {
+        entries[starts[species] + index] = pack(level, move);
+    }
+
+    public void insertMove(int species, int index, int level, int move) {
+        int start = starts[species];
+        int size = sizes[species];
+        ensureCapacity(used + size + 1);
+        int newStart = used;
+        System.arraycopy(entries, start, entries, newStart, index);
+        entries[newStart + index] = pack(level, move);
+        System.arraycopy(entries, start + index, entries, newStart + index + 1, size - index);
+        starts[species] = newStart;
+        sizes[species] = size + 1;
+        used += size + 1;
+        appendingTo = -1;
+    }
+
+    /** Cuts the moveset down to its first newSize entries. */
+    public void truncate(int species, int newSize) {
+        if (newSize < sizes[species]) {
+            sizes[species] = newSize;
+        }
+    }
+
+    /** Removes every entry whose move is flagged in banned; returns how many went. */
+    public int removeMoves(int species, boolean[] banned) {
+        int start = starts[species];
+        int size = sizes[species];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int entry = entries[start + i];
+            int move = entry & 0xFFFF;
+            if (move >= banned.length || !banned[move]) {
+                entries[start + kept++] = entry;
+            }
+        }
+        sizes[species] = kept;
+        return size - kept;
+    }
+
+    public boolean contains(int species, int move) {
+        int start = starts[species];
+        int end = start + sizes[species];
+        for (int i = start; i < end; i++) {
+            if ((entries[i] & 0xFFFF) == move) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills curMoves (length 4) with the moves this species knows at the
+     * given level, the way the games work it out: the last four distinct
+     * moves learnt at or below that level. Unused slots get emptyValue.
+     */
+    public void getMovesAtLevel(int species, int level, int[] curMoves, int emptyValue) {
+        Arrays.fill(curMoves, emptyValue);
+        int moveCount = 0;
+        int start = starts[species];
+        int end = start + sizes[species];
+        for (int e = start; e < end; e++) {
+            if ((entries[e] >>> 16) > level) {
+                // we're done
+                break;
+            }
+            int move = entries[e] & 0xFFFF;
+
+            boolean alreadyKnownMove = false;
+            for (int i = 0; i < moveCount; i++) {
+                if (curMoves[i] == move) {
+                    alreadyKnownMove = true;
+                    break;
+                }
+            }
+
+            if (!alreadyKnownMove) {
+                if (moveCount == 4) {
+                    // shift moves up and add to last slot
+                    System.arraycopy(curMoves, 1, curMoves, 0, 3);
+                    curMoves[3] = move;
+                } else {
+                    curMoves[moveCount++] = move;
+                }
+            }
+        }
+    }
+
+    public List<MoveLearnt> getMovesLearnt(int species) {
+        List<MoveLearnt> moves = new ArrayList<MoveLearnt>(sizes[species]);
+        for (int i = 0; i < sizes[species]; i++) {
+            MoveLearnt ml = new MoveLearnt();
+            ml.level = getLevel(species, i);
+            ml.move = getMove(species, i);
+            moves.add(ml);
+        }
+        return moves;
+    }
+
+    /**
+     * Builds the Map form used by the RomHandler interface, with an entry for
+     * every Pokemon in pokes that has a moveset here.
+     */
+    public Map<Pokemon, List<MoveLearnt>> toMap(List<Pokemon> pokes) {
+        Map<Pokemon, List<MoveLearnt>> movesets = new TreeMap<Pokemon, List<MoveLearnt>>();
+        for (Pokemon pk : pokes) {
+            if (hasMoveset(pk)) {
+                movesets.put(pk, getMovesLearnt(pk.number));
+            }
+        }
+        return movesets;
+    }
+
+    public static MovesetTable fromMap(Map<Pokemon, List<MoveLearnt>> movesets) {
+        int speciesCount = 0;
+        int entryCount = 0;
+        for (Map.Entry<Pokemon, List<MoveLearnt>> movesetEntry : movesets.entrySet()) {
+            speciesCount = Math.max(speciesCount, movesetEntry.getKey().number);
+            entryCount += movesetEntry.getValue().size();
+        }
+        MovesetTable table = new MovesetTable(speciesCount, entryCount);
+        for (Map.Entry<Pokemon, List<MoveLearnt>> movesetEntry : movesets.entrySet()) {
+            table.startMoveset(movesetEntry.getKey().number);
+            for (MoveLearnt ml : movesetEntry.getValue()) {
+                table.addMove(ml.level, ml.move);
+            }
+        }
+        return table;
+    }
+
+    private static int pack(int level, int move) {
+        return (level << 16) | (move & 0xFFFF);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(needed, entries.length * 2));
+        }
+    }
+
+}
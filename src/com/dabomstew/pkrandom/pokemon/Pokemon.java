@@ -26,9 +26,7 @@ package com.dabomstew.pkrandom.pokemon;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 
 public class Pokemon implements Comparable<Pokemon> {
 
@@ -54,143 +52,13 @@ public class Pokemon implements Comparable<Pokemon> {
     public List<Evolution> evolutionsFrom = new ArrayList<Evolution>();
     public List<Evolution> evolutionsTo = new ArrayList<Evolution>();
 
-    public List<Integer> shuffledStatsOrder = null;
+    // stat order from the last shuffle, see StatTable; null = unshuffled
+    public int[] shuffledStatsOrder;
 
     // A flag to use for things like recursive stats copying.
     // Must not rely on the state of this flag being preserved between calls.
     public boolean temporaryFlag;
 
-    public Pokemon() {
-        shuffledStatsOrder = Arrays.asList(0, 1, 2, 3, 4, 5);
-    }
-
-    public void shuffleStats(Random random) {
-        Collections.shuffle(shuffledStatsOrder, random);
-        applyShuffledOrderToStats();
-    }
-    
-    public void copyShuffledStatsUpEvolution(Pokemon evolvesFrom) {
-        shuffledStatsOrder = evolvesFrom.shuffledStatsOrder;
-        applyShuffledOrderToStats();
-    }
-
-    private void applyShuffledOrderToStats() {
-        List<Integer> stats = Arrays.asList(hp, attack, defense, spatk, spdef, speed);
-
-        // Copy in new stats
-        hp = stats.get(shuffledStatsOrder.get(0));
-        attack = stats.get(shuffledStatsOrder.get(1));
-        defense = stats.get(shuffledStatsOrder.get(2));
-        spatk = stats.get(shuffledStatsOrder.get(3));
-        spdef = stats.get(shuffledStatsOrder.get(4));
-        speed = stats.get(shuffledStatsOrder.get(5));
-
-        // make special the average of spatk and spdef
-        special = (int) Math.ceil((spatk + spdef) / 2.0f);
-    }
-
-    public void randomizeStatsWithinBST(Random random) {
-        if (number == 292) {
-            // Shedinja is horribly broken unless we restrict him to 1HP.
-            int bst = bst() - 51;
-
-            // Make weightings
-            double atkW = random.nextDouble(), defW = random.nextDouble();
-            double spaW = random.nextDouble(), spdW = random.nextDouble(), speW = random.nextDouble();
-
-            double totW = atkW + defW + spaW + spdW + speW;
-
-            hp = 1;
-            attack = (int) Math.max(1, Math.round(atkW / totW * bst)) + 10;
-            defense = (int) Math.max(1, Math.round(defW / totW * bst)) + 10;
-            spatk = (int) Math.max(1, Math.round(spaW / totW * bst)) + 10;
-            spdef = (int) Math.max(1, Math.round(spdW / totW * bst)) + 10;
-            speed = (int) Math.max(1, Math.round(speW / totW * bst)) + 10;
-
-            // Fix up special too
-            special = (int) Math.ceil((spatk + spdef) / 2.0f);
-
-        } else {
-            // Minimum 20 HP, 10 everything else
-            int bst = bst() - 70;
-
-            // Make weightings
-            double hpW = random.nextDouble(), atkW = random.nextDouble(), defW = random.nextDouble();
-            double spaW = random.nextDouble(), spdW = random.nextDouble(), speW = random.nextDouble();
-
-            double totW = hpW + atkW + defW + spaW + spdW + speW;
-
-            hp = (int) Math.max(1, Math.round(hpW / totW * bst)) + 20;
-            attack = (int) Math.max(1, Math.round(atkW / totW * bst)) + 10;
-            defense = (int) Math.max(1, Math.round(defW / totW * bst)) + 10;
-            spatk = (int) Math.max(1, Math.round(spaW / totW * bst)) + 10;
-            spdef = (int) Math.max(1, Math.round(spdW / totW * bst)) + 10;
-            speed = (int) Math.max(1, Math.round(speW / totW * bst)) + 10;
-
-            // Fix up special too
-            special = (int) Math.ceil((spatk + spdef) / 2.0f);
-        }
-
-        // Check for something we can't store
-        if (hp > 255 || attack > 255 || defense > 255 || spatk > 255 || spdef > 255 || speed > 255) {
-            // re roll
-            randomizeStatsWithinBST(random);
-        }
-
-    }
-    
-    public void truelyRandomizeStats(Random random) {
-        /*if (number == 292) {
-            // Shedinja is horribly broken unless we restrict him to 1HP.
-            int bst = bst() - 51;
-
-            // Make weightings
-            double atkW = random.nextDouble(), defW = random.nextDouble();
-            double spaW = random.nextDouble(), spdW = random.nextDouble(), speW = random.nextDouble();
-
-            double totW = atkW + defW + spaW + spdW + speW;
-
-            hp = 1;
-            attack = (int) Math.max(1, Math.round(atkW / totW * bst)) + 10;
-            defense = (int) Math.max(1, Math.round(defW / totW * bst)) + 10;
-            spatk = (int) Math.max(1, Math.round(spaW / totW * bst)) + 10;
-            spdef = (int) Math.max(1, Math.round(spdW / totW * bst)) + 10;
-            speed = (int) Math.max(1, Math.round(speW / totW * bst)) + 10;
-
-            // Fix up special too
-            special = (int) Math.ceil((spatk + spdef) / 2.0f);
-
-        } else*/ {
-            //Range is 1-255
-            hp = (int) random.nextInt(255) + 1;
-            attack = (int) random.nextInt(255) + 1;
-            defense = (int) random.nextInt(255) + 1;
-            spatk = (int) random.nextInt(255) + 1;
-            spdef = (int) random.nextInt(255) + 1;
-            speed = (int) random.nextInt(255) + 1;
-
-            // Calculate special
-            special = (int) Math.ceil((spatk + spdef) / 2.0f);
-        }
-
-    }
-
-    public void copyRandomizedStatsUpEvolution(Pokemon evolvesFrom) {
-        double ourBST = bst();
-        double theirBST = evolvesFrom.bst();
-
-        double bstRatio = ourBST / theirBST;
-
-        hp = (int) Math.min(255, Math.max(1, Math.round(evolvesFrom.hp * bstRatio)));
-        attack = (int) Math.min(255, Math.max(1, Math.round(evolvesFrom.attack * bstRatio)));
-        defense = (int) Math.min(255, Math.max(1, Math.round(evolvesFrom.defense * bstRatio)));
-        speed = (int) Math.min(255, Math.max(1, Math.round(evolvesFrom.speed * bstRatio)));
-        spatk = (int) Math.min(255, Math.max(1, Math.round(evolvesFrom.spatk * bstRatio)));
-        spdef = (int) Math.min(255, Math.max(1, Math.round(evolvesFrom.spdef * bstRatio)));
-
-        special = (int) Math.ceil((spatk + spdef) / 2.0f);
-    }
-
     public int bst() {
         return hp + attack + defense + spatk + spdef + speed;
     }
@@ -0,0 +1,207 @@
+package com.dabomstew.pkrandom.pokemon;
+
+/*----------------------------------------------------------------------------*/
+/*--  StatTable.java - base stats for a whole Pokemon list in int columns,  --*/
+/*--                   for the stat randomization passes.                   --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * HP/Atk/Def/SpA/SpD/Spe for every entry of a Pokemon list, one int column
+ * per stat, indexed by list position (the same indexes EvolutionForest
+ * uses). A stat pass reads the list in, rolls in the columns and writes the
+ * results back with writeTo; the Pokemon objects aren't touched in between.
+ *
+ * Each stat-order row is the permutation last used to shuffle that Pokemon
+ * (new stat i = old stat order[i]); evolutions copy it to shuffle the same
+ * way as their pre-evolution.
+ */
+public class StatTable {
+
+    public static final int HP = 0, ATTACK = 1, DEFENSE = 2, SPATK = 3, SPDEF = 4, SPEED = 5;
+    public static final int STAT_COUNT = 6;
+
+    // Shedinja is horribly broken unless we restrict him to 1HP.
+    private static final int SHEDINJA = 292;
+
+    private final int size;
+    private final boolean[] present;
+    private final int[] numbers;
+    private final int[][] stats;
+    private final int[] orders;
+
+    public StatTable(List<Pokemon> pokes) {
+        this.size = pokes.size();
+        this.present = new boolean[size];
+        this.numbers = new int[size];
+        this.stats = new int[STAT_COUNT][size];
+        this.orders = new int[size * STAT_COUNT];
+        for (int i = 0; i < size; i++) {
+            Pokemon pk = pokes.get(i);
+            if (pk == null) {
+                continue;
+            }
+            present[i] = true;
+            numbers[i] = pk.number;
+            stats[HP][i] = pk.hp;
+            stats[ATTACK][i] = pk.attack;
+            stats[DEFENSE][i] = pk.defense;
+            stats[SPATK][i] = pk.spatk;
+            stats[SPDEF][i] = pk.spdef;
+            stats[SPEED][i] = pk.speed;
+            for (int s = 0; s < STAT_COUNT; s++) {
+                orders[i * STAT_COUNT + s] = pk.shuffledStatsOrder == null ? s : pk.shuffledStatsOrder[s];
+            }
+        }
+    }
+
+    /** Writes the stats (and special, from spatk and spdef) back. */
+    public void writeTo(List<Pokemon> pokes) {
+        for (int i = 0; i < size; i++) {
+            Pokemon pk = pokes.get(i);
+            if (pk == null) {
+                continue;
+            }
+            pk.hp = stats[HP][i];
+            pk.attack = stats[ATTACK][i];
+            pk.defense = stats[DEFENSE][i];
+            pk.spatk = stats[SPATK][i];
+            pk.spdef = stats[SPDEF][i];
+            pk.speed = stats[SPEED][i];
+            pk.special = special(i);
+            if (pk.shuffledStatsOrder == null) {
+                pk.shuffledStatsOrder = new int[STAT_COUNT];
+            }
+            System.arraycopy(orders, i * STAT_COUNT, pk.shuffledStatsOrder, 0, STAT_COUNT);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isPresent(int index) {
+        return present[index];
+    }
+
+    /** The average of spatk and spdef, rounded up. */
+    public int special(int index) {
+        return (stats[SPATK][index] + stats[SPDEF][index] + 1) / 2;
+    }
+
+    public int bst(int index) {
+        int total = 0;
+        for (int s = 0; s < STAT_COUNT; s++) {
+            total += stats[s][index];
+        }
+        return total;
+    }
+
+    /** Shuffles the stat order (Collections.shuffle style) and applies it. */
+    public void shuffle(int index, Random random) {
+        int base = index * STAT_COUNT;
+        for (int i = STAT_COUNT; i > 1; i--) {
+            int j = random.nextInt(i);
+            int swap = orders[base + i - 1];
+            orders[base + i - 1] = orders[base + j];
+            orders[base + j] = swap;
+        }
+        applyOrder(index);
+    }
+
+    /** Shuffles the way from was last shuffled. */
+    public void copyShuffle(int from, int to) {
+        System.arraycopy(orders, from * STAT_COUNT, orders, to * STAT_COUNT, STAT_COUNT);
+        applyOrder(to);
+    }
+
+    private void applyOrder(int index) {
+        int base = index * STAT_COUNT;
+        int[] old = new int[STAT_COUNT];
+        for (int s = 0; s < STAT_COUNT; s++) {
+            old[s] = stats[s][index];
+        }
+        for (int s = 0; s < STAT_COUNT; s++) {
+            stats[s][index] = old[orders[base + s]];
+        }
+    }
+
+    /**
+     * Redistributes the BST by random weights, keeping at least 20 HP and 10
+     * of everything else (Shedinja keeps 1 HP). A roll that leaves a stat
+     * above 255 is rolled again from the new total, until one fits.
+     * <p>
+     * The reroll is deliberate: it makes the same nextDouble() draws, in the
+     * same order, as the old recursive reroll in Pokemon. Sampling straight
+     * from the capped distribution would draw differently and change the
+     * stats, and every later pick, for an existing seed and check value.
+     */
+    public void randomizeWithinBST(int index, Random random) {
+        boolean shedinja = numbers[index] == SHEDINJA;
+        int firstStat = shedinja ? ATTACK : HP;
+        double[] weights = new double[STAT_COUNT];
+        do {
+            int bst = bst(index) - (shedinja ? 51 : 70);
+
+            // Make weightings
+            double totW = 0;
+            for (int s = firstStat; s < STAT_COUNT; s++) {
+                weights[s] = random.nextDouble();
+                totW += weights[s];
+            }
+
+            if (shedinja) {
+                stats[HP][index] = 1;
+            }
+            for (int s = firstStat; s < STAT_COUNT; s++) {
+                int minimum = s == HP ? 20 : 10;
+                stats[s][index] = (int) Math.max(1, Math.round(weights[s] / totW * bst)) + minimum;
+            }
+        } while (maxStat(index) > 255);
+    }
+
+    private int maxStat(int index) {
+        int max = 0;
+        for (int s = 0; s < STAT_COUNT; s++) {
+            max = Math.max(max, stats[s][index]);
+        }
+        return max;
+    }
+
+    /** Every stat uniform in 1-255. */
+    public void trulyRandomize(int index, Random random) {
+        for (int s = 0; s < STAT_COUNT; s++) {
+            stats[s][index] = random.nextInt(255) + 1;
+        }
+    }
+
+    /** Scales from's stats by the ratio of the two BSTs, clamped to 1-255. */
+    public void copyRandomized(int from, int to) {
+        double bstRatio = (double) bst(to) / bst(from);
+        for (int s = 0; s < STAT_COUNT; s++) {
+            stats[s][to] = (int) Math.min(255, Math.max(1, Math.round(stats[s][from] * bstRatio)));
+        }
+    }
+
+}
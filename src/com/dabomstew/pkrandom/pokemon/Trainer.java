@@ -36,6 +36,22 @@ public class Trainer implements Comparable<Trainer> {
     public int trainerclass;
     public String fullDisplayName;
 
+    public Trainer() {
+    }
+
+    public Trainer(Trainer tr) {
+        this.offset = tr.offset;
+        for (TrainerPokemon tpk : tr.pokemon) {
+            this.pokemon.add(new TrainerPokemon(tpk));
+        }
+        this.tag = tr.tag;
+        this.importantTrainer = tr.importantTrainer;
+        this.poketype = tr.poketype;
+        this.name = tr.name;
+        this.trainerclass = tr.trainerclass;
+        this.fullDisplayName = tr.fullDisplayName;
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder("[");
         if (fullDisplayName != null) {
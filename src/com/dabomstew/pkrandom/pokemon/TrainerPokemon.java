@@ -44,6 +44,22 @@ public class TrainerPokemon {
     
     public boolean resetMoves = false;
 
+    public TrainerPokemon() {
+    }
+
+    public TrainerPokemon(TrainerPokemon tpk) {
+        this.pokemon = tpk.pokemon;
+        this.level = tpk.level;
+        this.move1 = tpk.move1;
+        this.move2 = tpk.move2;
+        this.move3 = tpk.move3;
+        this.move4 = tpk.move4;
+        this.difficulty = tpk.difficulty;
+        this.heldItem = tpk.heldItem;
+        this.ability = tpk.ability;
+        this.resetMoves = tpk.resetMoves;
+    }
+
     public String toString() {
         return pokemon.name + " Lv" + level;
     }
@@ -39,6 +39,7 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     protected String dataFolder;
     private NDSRom baseRom;
     private String loadedFN;
+    private boolean useTmpFolder = true;
 
     public AbstractDSRomHandler(Random random, PrintStream logStream) {
         super(random, logStream);
@@ -46,6 +47,13 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
 
     protected abstract boolean detectNDSRom(String ndsCode);
 
+    // Call before loadRom. Off keeps the ROM's extracted files in memory
+    // instead of the shared per-filename tmp folder, so several handlers can
+    // have the same ROM loaded at once.
+    public void setUseTmpFolder(boolean useTmpFolder) {
+        this.useTmpFolder = useTmpFolder;
+    }
+
     @Override
     public boolean loadRom(String filename) {
         if (!this.detectNDSRom(getROMCodeFromFile(filename))) {
@@ -53,11 +61,12 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         }
         // Load inner rom
         try {
-            baseRom = new NDSRom(filename);
+            baseRom = new NDSRom(filename, useTmpFolder);
         } catch (IOException e) {
             throw new RandomizerIOException(e);
         }
         loadedFN = filename;
+        invalidateCachedModels();
         loadedROM(baseRom.getCode());
         return true;
     }
@@ -82,6 +91,8 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     @Override
     public boolean saveRom(String filename) {
         savingROM();
+        // last chance to back out before the output file is created
+        checkCancelled();
         try {
             baseRom.saveTo(filename);
         } catch (IOException e) {
@@ -107,10 +118,13 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     }
 
     public NARCArchive readNARC(String subpath) throws IOException {
+        checkCancelled();
         return new NARCArchive(readFile(subpath));
     }
 
     public void writeNARC(String subpath, NARCArchive narc) throws IOException {
+        // packing a NARC is the slow part of most DS setters and saves
+        checkCancelled();
         this.writeFile(subpath, narc.getBytes());
     }
 
@@ -1,73 +1,51 @@
 package com.dabomstew.pkrandom.romhandlers;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.Scanner;
 
-import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.TextTable;
 import com.dabomstew.pkrandom.constants.GBConstants;
 
 public abstract class AbstractGBCRomHandler extends AbstractGBRomHandler {
 
-    private String[] tb;
-    private Map<String, Byte> d;
-    private int longestTableToken;
+    private List<String> textTableFiles;
+    private TextTable textTable;
 
     public AbstractGBCRomHandler(Random random, PrintStream logStream) {
         super(random, logStream);
     }
 
     protected void clearTextTables() {
-        tb = new String[256];
-        if (d != null) {
-            d.clear();
-        } else {
-            d = new HashMap<String, Byte>();
-        }
-        longestTableToken = 0;
+        textTableFiles = new ArrayList<String>();
+        textTable = null;
     }
 
+    // Later tables override earlier ones. Compiled on first use; compiled
+    // tables are shared by every handler that reads the same files.
     protected void readTextTable(String name) {
-        try {
-            Scanner sc = new Scanner(FileFunctions.openConfig(name + ".tbl"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine();
-                if (!q.trim().isEmpty()) {
-                    String[] r = q.split("=", 2);
-                    if (r[1].endsWith("\r\n")) {
-                        r[1] = r[1].substring(0, r[1].length() - 2);
-                    }
-                    int hexcode = Integer.parseInt(r[0], 16);
-                    if (tb[hexcode] != null) {
-                        String oldMatch = tb[hexcode];
-                        tb[hexcode] = null;
-                        if (d.get(oldMatch) == hexcode) {
-                            d.remove(oldMatch);
-                        }
-                    }
-                    tb[hexcode] = r[1];
-                    longestTableToken = Math.max(longestTableToken, r[1].length());
-                    d.put(r[1], (byte) hexcode);
-                }
-            }
-            sc.close();
-        } catch (FileNotFoundException e) {
-        }
+        textTableFiles.add(name);
+        textTable = null;
+    }
 
+    private TextTable textTable() {
+        if (textTable == null) {
+            textTable = TextTable.forGB(textTableFiles);
+        }
+        return textTable;
     }
 
     protected String readString(int offset, int maxLength, boolean textEngineMode) {
+        TextTable table = textTable();
         StringBuilder string = new StringBuilder();
         for (int c = 0; c < maxLength; c++) {
             int currChar = rom[offset + c] & 0xFF;
-            if (tb[currChar] != null) {
-                string.append(tb[currChar]);
-                if (textEngineMode && (tb[currChar].equals("\\r") || tb[currChar].equals("\\e"))) {
+            String token = table.getToken(currChar);
+            if (token != null) {
+                string.append(token);
+                if (textEngineMode && (token.equals("\\r") || token.equals("\\e"))) {
                     break;
                 }
             } else {
@@ -96,25 +74,11 @@ public abstract class AbstractGBCRomHandler extends AbstractGBRomHandler {
     }
 
     protected byte[] translateString(String text) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while (text.length() != 0) {
-            int i = Math.max(0, longestTableToken - text.length());
-            if (text.charAt(0) == '\\' && text.charAt(1) == 'x') {
-                baos.write(Integer.parseInt(text.substring(2, 4), 16));
-                text = text.substring(4);
-            } else {
-                while (!(d.containsKey(text.substring(0, longestTableToken - i)) || (i == longestTableToken))) {
-                    i++;
-                }
-                if (i == longestTableToken) {
-                    text = text.substring(1);
-                } else {
-                    baos.write(d.get(text.substring(0, longestTableToken - i)) & 0xFF);
-                    text = text.substring(longestTableToken - i);
-                }
-            }
-        }
-        return baos.toByteArray();
+        return textTable().encode(text);
+    }
+
+    protected int translatedLength(String text) {
+        return textTable().encodedLength(text);
     }
 
     protected String readFixedLengthString(int offset, int length) {
@@ -165,6 +129,12 @@ public abstract class AbstractGBCRomHandler extends AbstractGBRomHandler {
         return readString(offset, Integer.MAX_VALUE, textEngineMode);
     }
 
+    // Hash key for the header fields that ROM entries are matched on.
+    // crcInHeader -1 (any checksum) gets a key of its own.
+    protected static long headerKey(int version, int nonJapanese, int crcInHeader) {
+        return ((long) version << 40) | ((long) nonJapanese << 20) | (crcInHeader & 0xFFFFFL);
+    }
+
     protected static boolean romSig(byte[] rom, String sig) {
         try {
             int sigOffset = GBConstants.romSigOffset;
@@ -31,13 +31,16 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Random;
 
+import com.dabomstew.pkrandom.ContentHash;
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.HashService;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 
 public abstract class AbstractGBRomHandler extends AbstractRomHandler {
 
     protected byte[] rom;
     private String loadedFN;
+    private File sourceFile;
 
     public AbstractGBRomHandler(Random random, PrintStream logStream) {
         super(random, logStream);
@@ -51,6 +54,8 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
         }
         this.rom = loaded;
         loadedFN = filename;
+        sourceFile = new File(filename).getAbsoluteFile();
+        invalidateCachedModels();
         loadedRom();
         return true;
     }
@@ -60,6 +65,14 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
         return loadedFN;
     }
 
+    /**
+     * The hash of the ROM as loaded, remembered per file so loading the same
+     * ROM again doesn't hash it again. Only valid before anything is changed.
+     */
+    protected ContentHash loadedFileHash() {
+        return HashService.hashLoaded(sourceFile, rom);
+    }
+
     @Override
     public boolean saveRom(String filename) {
         savingRom();
@@ -91,8 +104,13 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
 
     public abstract void savingRom();
 
+    // plain files and ZIP archives holding one ROM alike
     protected static byte[] loadFile(String filename) {
         try {
+            File fh = new File(filename);
+            if (ZippedRom.isZip(fh)) {
+                return ZippedRom.read(fh);
+            }
             return FileFunctions.readFileFullyIntoBuffer(filename);
         } catch (IOException ex) {
             throw new RandomizerIOException(ex);
@@ -105,6 +123,9 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
             if (!fh.exists() || !fh.isFile() || !fh.canRead()) {
                 return new byte[0];
             }
+            if (ZippedRom.isZip(fh)) {
+                return ZippedRom.read(fh, maxBytes);
+            }
             long fileSize = fh.length();
             if (fileSize > Integer.MAX_VALUE) {
                 return new byte[0];
@@ -27,29 +27,34 @@ package com.dabomstew.pkrandom.romhandlers;
 /*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
 /*----------------------------------------------------------------------------*/
 
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import com.dabomstew.pkrandom.CustomNamesSet;
+import com.dabomstew.pkrandom.IPSPatch;
+import com.dabomstew.pkrandom.JobMonitor;
 import com.dabomstew.pkrandom.MiscTweak;
 import com.dabomstew.pkrandom.RomFunctions;
 import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.WeightedSampler;
 import com.dabomstew.pkrandom.constants.Gen1Constants;
 import com.dabomstew.pkrandom.constants.Gen2Constants;
 import com.dabomstew.pkrandom.constants.Gen3Constants;
@@ -57,9 +62,12 @@ import com.dabomstew.pkrandom.constants.Gen4Constants;
 import com.dabomstew.pkrandom.constants.Gen5Constants;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.RandomizationException;
+import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
 import com.dabomstew.pkrandom.pokemon.Evolution;
+import com.dabomstew.pkrandom.pokemon.EvolutionForest;
 import com.dabomstew.pkrandom.pokemon.EvolutionType;
 import com.dabomstew.pkrandom.pokemon.ExpCurve;
 import com.dabomstew.pkrandom.pokemon.GenRestrictions;
@@ -68,7 +76,9 @@ import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
 import com.dabomstew.pkrandom.pokemon.MoveCategory;
 import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
+import com.dabomstew.pkrandom.pokemon.StatTable;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
 import com.dabomstew.pkrandom.pokemon.Type;
@@ -80,6 +90,9 @@ public abstract class AbstractRomHandler implements RomHandler {
     protected List<Pokemon> noLegendaryList, onlyLegendaryList;
     protected final Random random;
     protected PrintStream logStream;
+    // IPS patches per target while applyMiscTweaks runs, else null
+    private Map<byte[], IPSPatch.Plan> queuedPatches;
+    private JobMonitor jobMonitor;
 
     /* Constructor */
 
@@ -96,6 +109,385 @@ public abstract class AbstractRomHandler implements RomHandler {
         this.logStream = logStream;
     }
 
+    public void setJobMonitor(JobMonitor monitor) {
+        this.jobMonitor = monitor;
+    }
+
+    // Throws RandomizationCancelledException if the running job was
+    // cancelled. Cheap enough to call once per loop iteration.
+    protected void checkCancelled() {
+        if (jobMonitor != null) {
+            jobMonitor.checkpoint();
+        }
+    }
+
+    /*
+     * Cached read model. Decoding trainers, encounters etc. from the ROM (or
+     * from NARCs on DS) is expensive, and the randomizer and the logging
+     * code ask for the same data many times over. The first read is kept
+     * here and callers get a copy of it, so they can mutate their list
+     * freely. Setters still write straight through to the ROM and then drop
+     * the cached copy, so the next read sees exactly what was written.
+     */
+
+    private List<Trainer> cachedTrainers;
+    private List<EncounterSet> cachedEncounters, cachedTimeOfDayEncounters;
+    private List<Pokemon> cachedStaticPokemon;
+    private List<Integer> cachedTMMoves, cachedMoveTutorMoves;
+    private EvolutionForest evolutionForest;
+
+    protected abstract List<Trainer> readTrainers();
+
+    protected abstract void writeTrainers(List<Trainer> trainerData);
+
+    protected abstract List<EncounterSet> readEncounterSets(boolean useTimeOfDay);
+
+    protected abstract void writeEncounterSets(boolean useTimeOfDay, List<EncounterSet> encounters);
+
+    protected abstract List<Pokemon> readStaticPokemon();
+
+    protected abstract boolean writeStaticPokemon(List<Pokemon> staticPokemon);
+
+    protected abstract List<Integer> readTMMoves();
+
+    protected abstract void writeTMMoves(List<Integer> moveIndexes);
+
+    protected abstract List<Integer> readMoveTutorMoves();
+
+    protected abstract void writeMoveTutorMoves(List<Integer> moves);
+
+    @Override
+    public List<Trainer> getTrainers() {
+        if (cachedTrainers == null) {
+            cachedTrainers = readTrainers();
+        }
+        List<Trainer> trainers = new ArrayList<Trainer>(cachedTrainers.size());
+        for (Trainer tr : cachedTrainers) {
+            trainers.add(new Trainer(tr));
+        }
+        return trainers;
+    }
+
+    @Override
+    public void setTrainers(List<Trainer> trainerData) {
+        writeTrainers(trainerData);
+        cachedTrainers = null;
+    }
+
+    @Override
+    public List<EncounterSet> getEncounters(boolean useTimeOfDay) {
+        List<EncounterSet> cached = useTimeOfDay ? cachedTimeOfDayEncounters : cachedEncounters;
+        if (cached == null) {
+            cached = readEncounterSets(useTimeOfDay);
+            if (useTimeOfDay) {
+                cachedTimeOfDayEncounters = cached;
+            } else {
+                cachedEncounters = cached;
+            }
+        }
+        List<EncounterSet> encounters = new ArrayList<EncounterSet>(cached.size());
+        for (EncounterSet es : cached) {
+            encounters.add(new EncounterSet(es));
+        }
+        return encounters;
+    }
+
+    @Override
+    public void setEncounters(boolean useTimeOfDay, List<EncounterSet> encounters) {
+        writeEncounterSets(useTimeOfDay, encounters);
+        // both views are backed by the same ROM data
+        cachedEncounters = null;
+        cachedTimeOfDayEncounters = null;
+    }
+
+    @Override
+    public List<Pokemon> getStaticPokemon() {
+        if (cachedStaticPokemon == null) {
+            cachedStaticPokemon = readStaticPokemon();
+        }
+        return new ArrayList<Pokemon>(cachedStaticPokemon);
+    }
+
+    @Override
+    public boolean setStaticPokemon(List<Pokemon> staticPokemon) {
+        boolean result = writeStaticPokemon(staticPokemon);
+        cachedStaticPokemon = null;
+        return result;
+    }
+
+    @Override
+    public List<Integer> getTMMoves() {
+        if (cachedTMMoves == null) {
+            cachedTMMoves = readTMMoves();
+        }
+        return new ArrayList<Integer>(cachedTMMoves);
+    }
+
+    @Override
+    public void setTMMoves(List<Integer> moveIndexes) {
+        writeTMMoves(moveIndexes);
+        cachedTMMoves = null;
+    }
+
+    @Override
+    public List<Integer> getMoveTutorMoves() {
+        if (cachedMoveTutorMoves == null) {
+            cachedMoveTutorMoves = readMoveTutorMoves();
+        }
+        return new ArrayList<Integer>(cachedMoveTutorMoves);
+    }
+
+    @Override
+    public void setMoveTutorMoves(List<Integer> moves) {
+        writeMoveTutorMoves(moves);
+        cachedMoveTutorMoves = null;
+    }
+
+    /*
+     * Pokemon sprites. Handlers decode them, this caches them by species.
+     */
+
+    private final Map<Integer, BufferedImage> spriteCache = new ConcurrentHashMap<Integer, BufferedImage>();
+
+    /**
+     * Decodes the front sprite of pk straight from the ROM. variant picks
+     * between alternate sprites where a game has them (0 is the default).
+     * Returns null if this Pokemon's sprite can't be decoded. Must be safe
+     * to call from several threads at once.
+     */
+    protected abstract BufferedImage decodePokemonSprite(Pokemon pk, boolean shiny, int variant);
+
+    /**
+     * Decodes the default front sprites of pokes, in the same order, with
+     * null for any that can't be decoded. Each is decoded on its own, on
+     * several threads; handlers that can decode a batch more cheaply than
+     * that override this.
+     */
+    protected List<BufferedImage> decodePokemonSprites(List<Pokemon> pokes, boolean shiny) {
+        return pokes.parallelStream().map(pk -> decodePokemonSprite(pk, shiny, 0)).collect(Collectors.toList());
+    }
+
+    private static int spriteKey(Pokemon pk, boolean shiny) {
+        return pk.number * 2 + (shiny ? 1 : 0);
+    }
+
+    @Override
+    public BufferedImage getPokemonSprite(Pokemon pk, boolean shiny) {
+        int key = spriteKey(pk, shiny);
+        BufferedImage sprite = spriteCache.get(key);
+        if (sprite == null) {
+            sprite = decodePokemonSprite(pk, shiny, 0);
+            if (sprite != null) {
+                spriteCache.put(key, sprite);
+            }
+        }
+        return sprite;
+    }
+
+    @Override
+    public List<BufferedImage> getPokemonSprites(List<Pokemon> pokes, boolean shiny) {
+        List<BufferedImage> sprites = new ArrayList<BufferedImage>(pokes.size());
+        List<Pokemon> missing = new ArrayList<Pokemon>();
+        for (Pokemon pk : pokes) {
+            BufferedImage sprite = spriteCache.get(spriteKey(pk, shiny));
+            sprites.add(sprite);
+            if (sprite == null) {
+                missing.add(pk);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<BufferedImage> decoded = decodePokemonSprites(missing, shiny);
+            int next = 0;
+            for (int i = 0; i < sprites.size(); i++) {
+                if (sprites.get(i) == null) {
+                    BufferedImage sprite = decoded.get(next++);
+                    if (sprite != null) {
+                        spriteCache.put(spriteKey(pokes.get(i), shiny), sprite);
+                    }
+                    sprites.set(i, sprite);
+                }
+            }
+        }
+        return sprites;
+    }
+
+    /*
+     * Snapshots. The cached lists above are never modified once read, so a
+     * snapshot just keeps a reference to them; restoring writes copies back
+     * through the normal setters.
+     */
+
+    @Override
+    public RomSnapshot takeSnapshot() {
+        return takeSnapshot(EnumSet.allOf(RomSnapshot.Part.class));
+    }
+
+    @Override
+    public RomSnapshot takeSnapshot(Set<RomSnapshot.Part> parts) {
+        RomSnapshot snapshot = new RomSnapshot(this, parts);
+        if (parts.contains(RomSnapshot.Part.POKEMON)) {
+            snapshot.savePokemonData(this.getPokemon());
+        }
+        if (parts.contains(RomSnapshot.Part.EVOLUTIONS)) {
+            snapshot.saveEvolutions(this.getPokemon());
+        }
+        if (parts.contains(RomSnapshot.Part.MOVESETS)) {
+            snapshot.movesets = this.getMovesetTable();
+        }
+        if (parts.contains(RomSnapshot.Part.TRAINERS)) {
+            if (cachedTrainers == null) {
+                cachedTrainers = readTrainers();
+            }
+            snapshot.trainers = cachedTrainers;
+        }
+        if (parts.contains(RomSnapshot.Part.ENCOUNTERS)) {
+            // the time-of-day view holds everything; restoring it restores
+            // the plain view as well
+            if (cachedTimeOfDayEncounters == null) {
+                cachedTimeOfDayEncounters = readEncounterSets(true);
+            }
+            snapshot.encounters = cachedTimeOfDayEncounters;
+        }
+        if (parts.contains(RomSnapshot.Part.TMS)) {
+            if (cachedTMMoves == null) {
+                cachedTMMoves = readTMMoves();
+            }
+            snapshot.tmMoves = cachedTMMoves;
+            snapshot.tmhmCompatibility = this.getTMHMCompatibilityMatrix();
+        }
+        if (parts.contains(RomSnapshot.Part.ITEMS)) {
+            snapshot.regularFieldItems = this.getRegularFieldItems();
+            snapshot.fieldTMs = this.getCurrentFieldTMs();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void restoreSnapshot(RomSnapshot snapshot) {
+        restoreSnapshot(snapshot, snapshot.getParts());
+    }
+
+    @Override
+    public void restoreSnapshot(RomSnapshot snapshot, Set<RomSnapshot.Part> parts) {
+        if (snapshot.owner != this) {
+            throw new IllegalArgumentException("Snapshot was taken from a different ROM handler");
+        }
+        if (!snapshot.getParts().containsAll(parts)) {
+            throw new IllegalArgumentException("Snapshot does not contain " + parts);
+        }
+        // Pokemon data and evolutions first: some handlers' setters below
+        // read them (e.g. trainer movesets follow the current movesets)
+        if (parts.contains(RomSnapshot.Part.POKEMON)) {
+            snapshot.restorePokemonData();
+        }
+        if (parts.contains(RomSnapshot.Part.EVOLUTIONS)) {
+            evolutionsChanged();
+            snapshot.restoreEvolutions();
+        }
+        if (parts.contains(RomSnapshot.Part.MOVESETS)) {
+            this.setMovesetTable(new MovesetTable(snapshot.movesets));
+        }
+        if (parts.contains(RomSnapshot.Part.TMS)) {
+            this.setTMMoves(new ArrayList<Integer>(snapshot.tmMoves));
+            this.setTMHMCompatibilityMatrix(new CompatibilityMatrix(snapshot.tmhmCompatibility));
+        }
+        if (parts.contains(RomSnapshot.Part.TRAINERS)) {
+            List<Trainer> trainers = new ArrayList<Trainer>(snapshot.trainers.size());
+            for (Trainer tr : snapshot.trainers) {
+                trainers.add(new Trainer(tr));
+            }
+            this.setTrainers(trainers);
+        }
+        if (parts.contains(RomSnapshot.Part.ENCOUNTERS)) {
+            List<EncounterSet> encounters = new ArrayList<EncounterSet>(snapshot.encounters.size());
+            for (EncounterSet es : snapshot.encounters) {
+                encounters.add(new EncounterSet(es));
+            }
+            this.setEncounters(true, encounters);
+        }
+        if (parts.contains(RomSnapshot.Part.ITEMS)) {
+            this.setRegularFieldItems(new ArrayList<Integer>(snapshot.regularFieldItems));
+            this.setFieldTMs(new ArrayList<Integer>(snapshot.fieldTMs));
+        }
+    }
+
+    /*
+     * Movesets and TM/HM compatibility: handlers decode straight into a
+     * MovesetTable / CompatibilityMatrix; the Map views are built from them.
+     */
+
+    @Override
+    public Map<Pokemon, boolean[]> getTMHMCompatibility() {
+        return this.getTMHMCompatibilityMatrix().toMap(this.getPokemon());
+    }
+
+    @Override
+    public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData) {
+        // Pokemon missing from compatData keep their current compatibility
+        CompatibilityMatrix compat = this.getTMHMCompatibilityMatrix();
+        compat.setRows(compatData);
+        this.setTMHMCompatibilityMatrix(compat);
+    }
+
+    @Override
+    public Map<Pokemon, List<MoveLearnt>> getMovesLearnt() {
+        return this.getMovesetTable().toMap(this.getPokemon());
+    }
+
+    @Override
+    public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets) {
+        this.setMovesetTable(MovesetTable.fromMap(movesets));
+    }
+
+    @Override
+    public CompatibilityMatrix getMoveTutorCompatibilityMatrix() {
+        // tutor compat layouts differ too much per game to decode generically
+        return CompatibilityMatrix.fromMap(this.getMoveTutorCompatibility());
+    }
+
+    @Override
+    public void setMoveTutorCompatibilityMatrix(CompatibilityMatrix compat) {
+        Map<Pokemon, boolean[]> compatData = this.getMoveTutorCompatibility();
+        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
+            compatEntry.setValue(compat.getFlags(compatEntry.getKey().number));
+        }
+        this.setMoveTutorCompatibility(compatData);
+    }
+
+    /**
+     * Drops every cached model so the next read goes back to the ROM. Called
+     * when a ROM is (re)loaded, and by handlers whenever they change data
+     * behind one of the cached models (e.g. trainer names are stored inside
+     * the trainer data in some games).
+     */
+    protected void invalidateCachedModels() {
+        spriteCache.clear();
+        evolutionForest = null;
+        cachedTrainers = null;
+        cachedEncounters = null;
+        cachedTimeOfDayEncounters = null;
+        cachedStaticPokemon = null;
+        cachedTMMoves = null;
+        cachedMoveTutorMoves = null;
+    }
+
+    @Override
+    public EvolutionForest getEvolutionForest() {
+        if (evolutionForest == null) {
+            evolutionForest = new EvolutionForest(this.getPokemon());
+        }
+        return evolutionForest;
+    }
+
+    // Call before adding, removing or rewiring evolutions
+    protected void evolutionsChanged() {
+        evolutionForest = null;
+    }
+
+    protected void invalidateCachedTrainers() {
+        cachedTrainers = null;
+    }
+
     public void setPokemonPool(GenRestrictions restrictions) {
         restrictionsSet = true;
         mainPokemonList = this.allPokemonWithoutNull();
@@ -305,73 +697,71 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     @Override
     public void shufflePokemonStats(boolean evolutionSanity) {
+        List<Pokemon> allPokes = this.getPokemon();
+        StatTable stats = new StatTable(allPokes);
         if (evolutionSanity) {
-            copyUpEvolutionsHelper(new BasePokemonAction() {
-                public void applyTo(Pokemon pk) {
-                    pk.shuffleStats(AbstractRomHandler.this.random);
-                }
-            }, new EvolvedPokemonAction() {
-                public void applyTo(Pokemon evFrom, Pokemon evTo, boolean toMonIsFinalEvo) {
-                    evTo.copyShuffledStatsUpEvolution(evFrom);
-                }
-            });
+            EvolutionForest forest = this.getEvolutionForest();
+            for (int i = 0; i < forest.rootCount(); i++) {
+                stats.shuffle(forest.root(i), this.random);
+            }
+            for (int i = 0; i < forest.copyCount(); i++) {
+                int index = forest.copied(i);
+                stats.copyShuffle(forest.parent(index), index);
+            }
         } else {
-            List<Pokemon> allPokes = this.getPokemon();
-            for (Pokemon pk : allPokes) {
-                if (pk != null) {
-                    pk.shuffleStats(this.random);
+            for (int i = 0; i < stats.size(); i++) {
+                if (stats.isPresent(i)) {
+                    stats.shuffle(i, this.random);
                 }
             }
         }
+        stats.writeTo(allPokes);
     }
 
     @Override
     public void randomizePokemonStats(boolean evolutionSanity) {
-
+        List<Pokemon> allPokes = this.getPokemon();
+        StatTable stats = new StatTable(allPokes);
         if (evolutionSanity) {
-            copyUpEvolutionsHelper(new BasePokemonAction() {
-                public void applyTo(Pokemon pk) {
-                    pk.randomizeStatsWithinBST(AbstractRomHandler.this.random);
-                }
-            }, new EvolvedPokemonAction() {
-                public void applyTo(Pokemon evFrom, Pokemon evTo, boolean toMonIsFinalEvo) {
-                    evTo.copyRandomizedStatsUpEvolution(evFrom);
-                }
-            });
+            EvolutionForest forest = this.getEvolutionForest();
+            for (int i = 0; i < forest.rootCount(); i++) {
+                stats.randomizeWithinBST(forest.root(i), this.random);
+            }
+            for (int i = 0; i < forest.copyCount(); i++) {
+                int index = forest.copied(i);
+                stats.copyRandomized(forest.parent(index), index);
+            }
         } else {
-            List<Pokemon> allPokes = this.getPokemon();
-            for (Pokemon pk : allPokes) {
-                if (pk != null) {
-                    pk.randomizeStatsWithinBST(this.random);
+            for (int i = 0; i < stats.size(); i++) {
+                if (stats.isPresent(i)) {
+                    stats.randomizeWithinBST(i, this.random);
                 }
             }
         }
-
+        stats.writeTo(allPokes);
     }
-    
+
     @Override
     public void truerandomizePokemonStats(boolean evolutionSanity) {
-
+        List<Pokemon> allPokes = this.getPokemon();
+        StatTable stats = new StatTable(allPokes);
         if (evolutionSanity) {
-            copyUpEvolutionsHelper(new BasePokemonAction() {
-                public void applyTo(Pokemon pk) {
-                    pk.truelyRandomizeStats(AbstractRomHandler.this.random);
-                }
-            }, new EvolvedPokemonAction() {
-                public void applyTo(Pokemon evFrom, Pokemon evTo, boolean toMonIsFinalEvo) {
-                    evTo.copyRandomizedStatsUpEvolution(evFrom);
-                }
-            });
-
+            EvolutionForest forest = this.getEvolutionForest();
+            for (int i = 0; i < forest.rootCount(); i++) {
+                stats.trulyRandomize(forest.root(i), this.random);
+            }
+            for (int i = 0; i < forest.copyCount(); i++) {
+                int index = forest.copied(i);
+                stats.copyRandomized(forest.parent(index), index);
+            }
         } else {
-            List<Pokemon> allPokes = this.getPokemon();
-            for (Pokemon pk : allPokes) {
-                if (pk != null) {
-                    pk.truelyRandomizeStats(this.random);
+            for (int i = 0; i < stats.size(); i++) {
+                if (stats.isPresent(i)) {
+                    stats.trulyRandomize(i, this.random);
                 }
             }
         }
-
+        stats.writeTo(allPokes);
     }
 
     @Override
@@ -696,6 +1086,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         int newAbility = 0;
 
         while (true) {
+            checkCancelled();
             newAbility = this.random.nextInt(maxAbility) + 1;
 
             if (bannedAbilities.contains(newAbility)) {
@@ -739,6 +1130,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     mainPokemonList);
             allPokes.removeAll(banned);
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 //skip unused EncounterSets in DPPT
                 if( generationOfPokemon() == 4 ) {
                     if( area.displayName.contains("? Unknown ?")) {
@@ -799,6 +1191,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                         mainPokemonList);
                 allPokes.removeAll(banned);
                 for (EncounterSet area : scrambledEncounters) {
+                    checkCancelled();
                     if(!area.displayName.contains("Swarm/Radar/GBA")) {
                         continue;
                     }
@@ -850,6 +1243,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         } else if (typeThemed) {
             Map<Type, List<Pokemon>> cachedPokeLists = new TreeMap<Type, List<Pokemon>>();
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 //skip unused EncounterSets in DPPT
                 if( generationOfPokemon() == 4 )
                 {
@@ -861,6 +1255,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                 List<Pokemon> possiblePokemon = null;
                 int iterLoops = 0;
                 while (possiblePokemon == null && iterLoops < 10000) {
+                    checkCancelled();
                     Type areaTheme = randomType();
                     if (!cachedPokeLists.containsKey(areaTheme)) {
                         List<Pokemon> pType = pokemonOfType(areaTheme, noLegendaries);
@@ -894,7 +1289,9 @@ public abstract class AbstractRomHandler implements RomHandler {
             List<Pokemon> allowedPokes = noLegendaries ? new ArrayList<Pokemon>(noLegendaryList)
                     : new ArrayList<Pokemon>(mainPokemonList);
             allowedPokes.removeAll(banned);
+            int[] allowedBSTs = powerLevelBSTs(allowedPokes);
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 //skip unused EncounterSets in DPPT
                 if( generationOfPokemon() == 4 )
                 {
@@ -904,21 +1301,24 @@ public abstract class AbstractRomHandler implements RomHandler {
                     }
                 }
                 List<Pokemon> localAllowed = allowedPokes;
+                int[] localBSTs = allowedBSTs;
                 if (area.bannedPokemon.size() > 0) {
                     localAllowed = new ArrayList<Pokemon>(allowedPokes);
                     localAllowed.removeAll(area.bannedPokemon);
+                    localBSTs = powerLevelBSTs(localAllowed);
                 }
                 for (Encounter enc : area.encounters) {
                     if( wildLevelHighModifier != -1 )
                     {
                         enc = levelUpEncounter(enc, wildLevelHighModifier, wildLevelLowModifier); 
                     }
-                    enc.pokemon = pickWildPowerLvlReplacement(localAllowed, enc.pokemon, false, null);
+                    enc.pokemon = pickWildPowerLvlReplacement(localAllowed, localBSTs, enc.pokemon, false, null);
                 }
             }
         } else {
             // Entirely random
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 //skip unused EncounterSets in DPPT
                 if( generationOfPokemon() == 4 )
                 {
@@ -962,6 +1362,7 @@ public abstract class AbstractRomHandler implements RomHandler {
                     mainPokemonList);
             allPokes.removeAll(banned);
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 // Poke-set
                 Set<Pokemon> inArea = pokemonInArea(area);
                 // Build area map using catch em all
@@ -1016,11 +1417,13 @@ public abstract class AbstractRomHandler implements RomHandler {
         } else if (typeThemed) {
             Map<Type, List<Pokemon>> cachedPokeLists = new TreeMap<Type, List<Pokemon>>();
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 // Poke-set
                 Set<Pokemon> inArea = pokemonInArea(area);
                 List<Pokemon> possiblePokemon = null;
                 int iterLoops = 0;
                 while (possiblePokemon == null && iterLoops < 10000) {
+                    checkCancelled();
                     Type areaTheme = randomType();
                     if (!cachedPokeLists.containsKey(areaTheme)) {
                         List<Pokemon> pType = pokemonOfType(areaTheme, noLegendaries);
@@ -1063,19 +1466,23 @@ public abstract class AbstractRomHandler implements RomHandler {
             List<Pokemon> allowedPokes = noLegendaries ? new ArrayList<Pokemon>(noLegendaryList)
                     : new ArrayList<Pokemon>(mainPokemonList);
             allowedPokes.removeAll(banned);
+            int[] allowedBSTs = powerLevelBSTs(allowedPokes);
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 // Poke-set
                 Set<Pokemon> inArea = pokemonInArea(area);
                 // Build area map using randoms
                 Map<Pokemon, Pokemon> areaMap = new TreeMap<Pokemon, Pokemon>();
                 List<Pokemon> usedPks = new ArrayList<Pokemon>();
                 List<Pokemon> localAllowed = allowedPokes;
+                int[] localBSTs = allowedBSTs;
                 if (area.bannedPokemon.size() > 0) {
                     localAllowed = new ArrayList<Pokemon>(allowedPokes);
                     localAllowed.removeAll(area.bannedPokemon);
+                    localBSTs = powerLevelBSTs(localAllowed);
                 }
                 for (Pokemon areaPk : inArea) {
-                    Pokemon picked = pickWildPowerLvlReplacement(localAllowed, areaPk, false, usedPks);
+                    Pokemon picked = pickWildPowerLvlReplacement(localAllowed, localBSTs, areaPk, false, usedPks);
                     areaMap.put(areaPk, picked);
                     usedPks.add(picked);
                 }
@@ -1092,6 +1499,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         } else {
             // Entirely random
             for (EncounterSet area : scrambledEncounters) {
+                checkCancelled();
                 // Poke-set
                 Set<Pokemon> inArea = pokemonInArea(area);
                 // Build area map using randoms
@@ -1136,6 +1544,7 @@ public abstract class AbstractRomHandler implements RomHandler {
             remainingLeft.remove(bannedPK);
             remainingRight.remove(bannedPK);
         }
+        int[] remainingRightBSTs = usePowerLevels ? powerLevelBSTs(remainingRight) : null;
         while (remainingLeft.isEmpty() == false) {
             if (usePowerLevels) {
                 int pickedLeft = this.random.nextInt(remainingLeft.size());
@@ -1146,9 +1555,10 @@ public abstract class AbstractRomHandler implements RomHandler {
                     pickedRightP = remainingRight.get(0);
                 } else {
                     // pick on power level with the current one blocked
-                    pickedRightP = pickWildPowerLvlReplacement(remainingRight, pickedLeftP, true, null);
+                    pickedRightP = pickWildPowerLvlReplacement(remainingRight, remainingRightBSTs, pickedLeftP, true,
+                            null);
                 }
-                remainingRight.remove(pickedRightP);
+                removeFromPool(remainingRight, remainingRightBSTs, pickedRightP);
                 translateMap.put(pickedLeftP, pickedRightP);
             } else {
                 int pickedLeft = this.random.nextInt(remainingLeft.size());
@@ -1199,7 +1609,8 @@ public abstract class AbstractRomHandler implements RomHandler {
                         throw new RandomizationException("ERROR: Couldn't replace a wild Pokemon!");
                     }
                     if (usePowerLevels) {
-                        enc.pokemon = pickWildPowerLvlReplacement(tempPickable, enc.pokemon, false, null);
+                        enc.pokemon = pickWildPowerLvlReplacement(tempPickable, powerLevelBSTs(tempPickable), enc.pokemon,
+                                false, null);
                     } else {
                         int picked = this.random.nextInt(tempPickable.size());
                         enc.pokemon = tempPickable.get(picked);
@@ -1244,6 +1655,8 @@ public abstract class AbstractRomHandler implements RomHandler {
         cachedReplacementLists = new TreeMap<Type, List<Pokemon>>();
         cachedAllList = noLegendaries ? new ArrayList<Pokemon>(noLegendaryList) : new ArrayList<Pokemon>(
                 mainPokemonList);
+        cachedReplacementBSTs = new TreeMap<Type, int[]>();
+        cachedAllBSTs = null;
 
         for(Trainer t : currentTrainers) {
             if (t.tag != null && t.tag.equals("DONT_RANDOMIZE")) {
@@ -1255,6 +1668,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         // Fully random is easy enough - randomize then worry about rival
         // carrying starter at the end
         for (Trainer t : scrambledTrainers) {
+            checkCancelled();
             if (t.tag != null &&(t.tag.equals("IRIVAL"))) {
                 continue; // skip
             }
@@ -1290,8 +1704,9 @@ public abstract class AbstractRomHandler implements RomHandler {
         cachedReplacementLists = new TreeMap<Type, List<Pokemon>>();
         cachedAllList = noLegendaries ? new ArrayList<Pokemon>(noLegendaryList) : new ArrayList<Pokemon>(
                 mainPokemonList);
-        typeWeightings = new TreeMap<Type, Integer>();
-        totalTypeWeighting = 0;
+        cachedReplacementBSTs = new TreeMap<Type, int[]>();
+        cachedAllBSTs = null;
+        typeSampler = null;
 
         // Construct groupings for types
         // Anything starting with GYM or ELITE or CHAMPION is a group
@@ -1381,6 +1796,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         System.out.println(Arrays.toString(scrambledTrainers.toArray()));
         // Give a type to each unassigned trainer
         for (Trainer t : scrambledTrainers) {
+            checkCancelled();
             if (t.tag != null && t.tag.equals("IRIVAL")) {
                 continue; // skip
             }
@@ -1949,6 +2365,9 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     @Override
     public void printMoveUpdates() {
+        if (logStream == null) {
+            return;
+        }
         log("--Move Updates--");
         List<Move> moves = this.getMoves();
         for (int moveID : moveUpdates.keySet()) {
@@ -1990,18 +2409,18 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     @Override
     public void removeBrokenMoves() {
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
-        final Set<Integer> allBanned = new HashSet<Integer>(this.getGameBreakingMoves());
-        for (List<MoveLearnt> movesLearnt : movesets.values()) {
-            movesLearnt.removeIf(new Predicate<MoveLearnt>() {
-                @Override
-                public boolean test(MoveLearnt move) {
-                    return allBanned.contains(move.move);
-                }
-            });
+        MovesetTable movesets = this.getMovesetTable();
+        boolean[] allBanned = new boolean[this.getMoves().size()];
+        for (int move : this.getGameBreakingMoves()) {
+            allBanned[move] = true;
+        }
+        for (int species = 1; species <= movesets.getSpeciesCount(); species++) {
+            if (movesets.hasMoveset(species)) {
+                movesets.removeMoves(species, allBanned);
+            }
         }
         // Done, save
-        this.setMovesLearnt(movesets);
+        this.setMovesetTable(movesets);
     }
 
 
@@ -2009,7 +2428,7 @@ public abstract class AbstractRomHandler implements RomHandler {
     public void randomizeMovesLearnt(int typeThemed, boolean noBroken, boolean forceFourStartingMoves,
             double goodDamagingProbability) {
         // Get current sets
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+        MovesetTable movesets = this.getMovesetTable();
         List<Integer> hms = this.getHMMoves();
         List<Move> allMoves = this.getMoves();
 
@@ -2049,32 +2468,34 @@ public abstract class AbstractRomHandler implements RomHandler {
             }
         }
 
-        for (Pokemon pkmn : movesets.keySet()) {
-            Set<Integer> learnt = new TreeSet<Integer>();
-            List<MoveLearnt> moves = movesets.get(pkmn);
+        // learntBy[move] == species marks the moves this species already got,
+        // so nothing has to be cleared between Pokemon
+        int[] learntBy = new int[allMoves.size()];
+
+        for (Pokemon pkmn : this.getPokemon()) {
+            if (!movesets.hasMoveset(pkmn)) {
+                continue;
+            }
+            int species = pkmn.number;
 
             // 4 starting moves?
             if (forceFourStartingMoves) {
                 int lv1count = 0;
-                for (MoveLearnt ml : moves) {
-                    if (ml.level == 1) {
+                for (int i = 0; i < movesets.size(species); i++) {
+                    if (movesets.getLevel(species, i) == 1) {
                         lv1count++;
                     }
                 }
-                if (lv1count < 4) {
-                    for (int i = 0; i < 4 - lv1count; i++) {
-                        MoveLearnt fakeLv1 = new MoveLearnt();
-                        fakeLv1.level = 1;
-                        fakeLv1.move = 0;
-                        moves.add(0, fakeLv1);
-                    }
+                for (int i = 0; i < 4 - lv1count; i++) {
+                    movesets.insertMove(species, 0, 1, 0);
                 }
             }
+            int moveCount = movesets.size(species);
 
             // Find last lv1 move
             // lv1index ends up as the index of the first non-lv1 move
             int lv1index = 0;
-            while (lv1index < moves.size() && moves.get(lv1index).level == 1) {
+            while (lv1index < moveCount && movesets.getLevel(species, lv1index) == 1) {
                 lv1index++;
             }
 
@@ -2084,7 +2505,7 @@ public abstract class AbstractRomHandler implements RomHandler {
             }
 
             // Replace moves as needed
-            for (int i = 0; i < moves.size(); i++) {
+            for (int i = 0; i < moveCount; i++) {
                 // should this move be forced damaging?
                 boolean attemptDamaging = i == lv1index ? true : random.nextDouble() < goodDamagingProbability;
 
@@ -2205,55 +2626,58 @@ public abstract class AbstractRomHandler implements RomHandler {
                 if (attemptDamaging) {
                     if (typeOfMove != null) {
                         if (validTypeDamagingMoves.containsKey(typeOfMove)
-                                && checkForUnusedMove(validTypeDamagingMoves.get(typeOfMove), learnt)) {
+                                && checkForUnusedMove(validTypeDamagingMoves.get(typeOfMove), learntBy, species)) {
                             pickList = validTypeDamagingMoves.get(typeOfMove);
-                        } else if (checkForUnusedMove(validDamagingMoves, learnt)) {
+                        } else if (checkForUnusedMove(validDamagingMoves, learntBy, species)) {
                             pickList = validDamagingMoves;
                         }
-                    } else if (checkForUnusedMove(validDamagingMoves, learnt)) {
+                    } else if (checkForUnusedMove(validDamagingMoves, learntBy, species)) {
                         pickList = validDamagingMoves;
                     }
                 } else if (typeOfMove != null) {
                     if (validTypeMoves.containsKey(typeOfMove)
-                            && checkForUnusedMove(validTypeMoves.get(typeOfMove), learnt)) {
+                            && checkForUnusedMove(validTypeMoves.get(typeOfMove), learntBy, species)) {
                         pickList = validTypeMoves.get(typeOfMove);
                     }
                 }
 
                 // now pick a move until we get a valid one
                 Move mv = pickList.get(random.nextInt(pickList.size()));
-                while (learnt.contains(mv.number)) {
+                while (learntBy[mv.number] == species) {
                     mv = pickList.get(random.nextInt(pickList.size()));
                 }
 
                 // write it
-                moves.get(i).move = mv.number;
+                movesets.setMove(species, i, mv.number);
                 if (i == lv1index) {
                     // just in case, set this to lv1
-                    moves.get(i).level = 1;
+                    movesets.setLevel(species, i, 1);
                 }
-                learnt.add(mv.number);
+                learntBy[mv.number] = species;
 
             }
         }
         // Done, save
-        this.setMovesLearnt(movesets);
+        this.setMovesetTable(movesets);
 
     }
     
     @Override
     public void forceFourStartingMovesOnly() {
         // Get current sets
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+        MovesetTable movesets = this.getMovesetTable();
+
+        for (Pokemon pkmn : this.getPokemon()) {
+            if (!movesets.hasMoveset(pkmn)) {
+                continue;
+            }
+            int species = pkmn.number;
+            int moveCount = movesets.size(species);
 
-        for (Pokemon pkmn : movesets.keySet()) {
-            List<MoveLearnt> moves = movesets.get(pkmn);
-            
-            
             // count how many starting moves a pokemon has.
             int lv1count = 0;
-            for (MoveLearnt ml : moves) {
-                if (ml.level == 1) {
+            for (int i = 0; i < moveCount; i++) {
+                if (movesets.getLevel(species, i) == 1) {
                     lv1count++;
                 }
             }
@@ -2279,100 +2703,106 @@ public abstract class AbstractRomHandler implements RomHandler {
             */
             for( int i = 0; i < 4-lv1count; i++ )
             {
-                for( int j = moves.size()-1; j > 0; j--)
+                for( int j = moveCount-1; j > 0; j--)
                 {
-                   if( moves.get(j-1).level == 1 && j < 4 )
+                   if( movesets.getLevel(species, j-1) == 1 && j < 4 )
                    {
                        break;
                    }
-                   moves.get(j).level = moves.get(j-1).level;
+                   movesets.setLevel(species, j, movesets.getLevel(species, j-1));
                 }
             }
 
             // Replace moves as needed
-            for (int i = 0; i < moves.size(); i++) 
+            for (int i = 0; i < moveCount && i < 4; i++) //first four moves
             {
-                if( i < 4 ) //first four moves
-                {
-                    moves.get(i).level = 1;
-                }
+                movesets.setLevel(species, i, 1);
             }
-            if(moves.size() < 4)
+            if(moveCount < 4)
             {
                 System.out.println("Pokemon " + pkmn.name + " doesn't have four moves.");
             }
         }
         // Done, save
-        this.setMovesLearnt(movesets);
+        this.setMovesetTable(movesets);
 
     }
 
     @Override
     public void orderDamagingMovesByDamage() {
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+        MovesetTable movesets = this.getMovesetTable();
         List<Move> allMoves = this.getMoves();
-        for (Pokemon pkmn : movesets.keySet()) {
-            List<MoveLearnt> moves = movesets.get(pkmn);
+        // scratch space reused for every Pokemon
+        int[] damagingMoveIndices = new int[16];
+        Move[] damagingMoves = new Move[16];
+        for (Pokemon pkmn : this.getPokemon()) {
+            if (!movesets.hasMoveset(pkmn)) {
+                continue;
+            }
+            int species = pkmn.number;
+            int moveCount = movesets.size(species);
+            if (moveCount > damagingMoves.length) {
+                damagingMoveIndices = new int[moveCount];
+                damagingMoves = new Move[moveCount];
+            }
 
             // Build up a list of damaging moves and their positions
-            List<Integer> damagingMoveIndices = new ArrayList<Integer>();
-            List<Move> damagingMoves = new ArrayList<Move>();
-            for (int i = 0; i < moves.size(); i++) {
-                Move mv = allMoves.get(moves.get(i).move);
+            int damagingCount = 0;
+            for (int i = 0; i < moveCount; i++) {
+                Move mv = allMoves.get(movesets.getMove(species, i));
                 if (mv.power > 1) {
                     // considered a damaging move for this purpose
-                    damagingMoveIndices.add(i);
-                    damagingMoves.add(mv);
+                    damagingMoveIndices[damagingCount] = i;
+                    damagingMoves[damagingCount++] = mv;
                 }
             }
 
             // Ties should be sorted randomly, so shuffle the list first.
-            Collections.shuffle(damagingMoves, random);
-
-            // Sort the damaging moves by power
-            Collections.sort(damagingMoves, new Comparator<Move>() {
+            // (same draws as Collections.shuffle, so seeds are unchanged)
+            for (int i = damagingCount; i > 1; i--) {
+                int j = random.nextInt(i);
+                Move tmp = damagingMoves[i - 1];
+                damagingMoves[i - 1] = damagingMoves[j];
+                damagingMoves[j] = tmp;
+            }
 
-                @Override
-                public int compare(Move m1, Move m2) {
-                    if (m1.power * m1.hitCount < m2.power * m2.hitCount) {
-                        return -1;
-                    } else if (m1.power * m1.hitCount > m2.power * m2.hitCount) {
-                        return 1;
-                    } else {
-                        // stay with the random order
-                        return 0;
-                    }
+            // Sort the damaging moves by power; insertion sort is stable,
+            // so ties stay in the random order
+            for (int i = 1; i < damagingCount; i++) {
+                Move mv = damagingMoves[i];
+                double power = mv.power * mv.hitCount;
+                int j = i - 1;
+                while (j >= 0 && damagingMoves[j].power * damagingMoves[j].hitCount > power) {
+                    damagingMoves[j + 1] = damagingMoves[j];
+                    j--;
                 }
-            });
+                damagingMoves[j + 1] = mv;
+            }
 
             // Reassign damaging moves in the ordered positions
-            for (int i = 0; i < damagingMoves.size(); i++) {
-                moves.get(damagingMoveIndices.get(i)).move = damagingMoves.get(i).number;
+            for (int i = 0; i < damagingCount; i++) {
+                movesets.setMove(species, damagingMoveIndices[i], damagingMoves[i].number);
             }
         }
 
         // Done, save
-        this.setMovesLearnt(movesets);
+        this.setMovesetTable(movesets);
     }
 
     @Override
     public void metronomeOnlyMode() {
 
         // movesets
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
-
-        MoveLearnt metronomeML = new MoveLearnt();
-        metronomeML.level = 1;
-        metronomeML.move = GlobalConstants.METRONOME_MOVE;
+        MovesetTable movesets = this.getMovesetTable();
 
-        for (List<MoveLearnt> ms : movesets.values()) {
-            if (ms != null && ms.size() > 0) {
-                ms.clear();
-                ms.add(metronomeML);
+        for (int species = 1; species <= movesets.getSpeciesCount(); species++) {
+            if (movesets.hasMoveset(species) && movesets.size(species) > 0) {
+                movesets.truncate(species, 1);
+                movesets.set(species, 0, 1, GlobalConstants.METRONOME_MOVE);
             }
         }
 
-        this.setMovesLearnt(movesets);
+        this.setMovesetTable(movesets);
 
         // trainers
         // run this to remove all custom non-Metronome moves
@@ -2646,16 +3076,25 @@ public abstract class AbstractRomHandler implements RomHandler {
         // Get current compatibility
         // new: increase HM chances if required early on
         List<Integer> requiredEarlyOn = this.getEarlyRequiredHMMoves();
-        Map<Pokemon, boolean[]> compat = this.getTMHMCompatibility();
+        CompatibilityMatrix compat = this.getTMHMCompatibilityMatrix();
         List<Integer> tmHMs = new ArrayList<Integer>(this.getTMMoves());
         tmHMs.addAll(this.getHMMoves());
         List<Move> moveData = this.getMoves();
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compat.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
-            for (int i = 1; i <= tmHMs.size(); i++) {
-                int move = tmHMs.get(i - 1);
-                Move mv = moveData.get(move);
+        int slotCount = tmHMs.size();
+        Move[] slotMoves = new Move[slotCount + 1];
+        boolean[] slotRequiredEarly = new boolean[slotCount + 1];
+        for (int i = 1; i <= slotCount; i++) {
+            int move = tmHMs.get(i - 1);
+            slotMoves[i] = moveData.get(move);
+            slotRequiredEarly[i] = requiredEarlyOn.contains(move);
+        }
+        for (Pokemon pkmn : this.getPokemon()) {
+            if (!compat.hasRow(pkmn)) {
+                continue;
+            }
+            int species = pkmn.number;
+            for (int i = 1; i <= slotCount; i++) {
+                Move mv = slotMoves[i];
                 double probability = 0.5;
                 if (preferSameType == Settings.TMsHMsCompatibilityMod.RANDOM_PREFER_TYPE) {
                     if (pkmn.primaryType.equals(mv.type)
@@ -2676,31 +3115,26 @@ public abstract class AbstractRomHandler implements RomHandler {
                         probability = 0.25;
                     }
                 }
-                if (requiredEarlyOn.contains(move)) {
+                if (slotRequiredEarly[i]) {
                     probability = Math.min(1.0, probability * 1.8);
                 }
                 if( pkmn.number == 151 || pkmn.number == 493) {
                     // Mew and Arceus can learn all TMs/Hms
                     probability = 1;
                 }
-                flags[i] = (this.random.nextDouble() < probability);
+                compat.set(species, i, this.random.nextDouble() < probability);
             }
         }
 
         // Set the new compatibility
-        this.setTMHMCompatibility(compat);
+        this.setTMHMCompatibilityMatrix(compat);
     }
 
     @Override
     public void fullTMHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = this.getTMHMCompatibility();
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compat.entrySet()) {
-            boolean[] flags = compatEntry.getValue();
-            for (int i = 1; i < flags.length; i++) {
-                flags[i] = true;
-            }
-        }
-        this.setTMHMCompatibility(compat);
+        CompatibilityMatrix compat = this.getTMHMCompatibilityMatrix();
+        compat.fillAll();
+        this.setTMHMCompatibilityMatrix(compat);
     }
 
     @Override
@@ -2708,34 +3142,45 @@ public abstract class AbstractRomHandler implements RomHandler {
         // if a pokemon learns a move in its moveset
         // and there is a TM of that move, make sure
         // that TM can be learned.
-        Map<Pokemon, boolean[]> compat = this.getTMHMCompatibility();
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
-        List<Integer> tmMoves = this.getTMMoves();
-        for (Pokemon pkmn : compat.keySet()) {
-            List<MoveLearnt> moveset = movesets.get(pkmn);
-            boolean[] pkmnCompat = compat.get(pkmn);
-            for (MoveLearnt ml : moveset) {
-                if (tmMoves.contains(ml.move)) {
-                    int tmIndex = tmMoves.indexOf(ml.move);
-                    pkmnCompat[tmIndex + 1] = true;
+        CompatibilityMatrix compat = this.getTMHMCompatibilityMatrix();
+        ensureCompatSanity(compat, this.getTMMoves());
+        this.setTMHMCompatibilityMatrix(compat);
+    }
+
+    // Sets the column of every move a Pokemon learns by level, if one of
+    // slotMoves (1-based column i holds slotMoves[i - 1]) teaches it.
+    private void ensureCompatSanity(CompatibilityMatrix compat, List<Integer> slotMoves) {
+        MovesetTable movesets = this.getMovesetTable();
+        int[] columnOfMove = new int[this.getMoves().size()];
+        // walk backwards so the first slot teaching a move wins, as indexOf did
+        for (int i = slotMoves.size() - 1; i >= 0; i--) {
+            int move = slotMoves.get(i);
+            if (move >= 0 && move < columnOfMove.length) {
+                columnOfMove[move] = i + 1;
+            }
+        }
+        for (Pokemon pkmn : this.getPokemon()) {
+            if (!compat.hasRow(pkmn) || !movesets.hasMoveset(pkmn)) {
+                continue;
+            }
+            long[] learnt = compat.newRowMask();
+            for (int i = 0; i < movesets.size(pkmn.number); i++) {
+                int move = movesets.getMove(pkmn.number, i);
+                if (move < columnOfMove.length && columnOfMove[move] != 0) {
+                    CompatibilityMatrix.setMaskBit(learnt, columnOfMove[move]);
                 }
             }
+            compat.orRow(pkmn.number, learnt);
         }
-        this.setTMHMCompatibility(compat);
     }
 
     @Override
     public void fullHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = this.getTMHMCompatibility();
-        int tmCount = this.getTMCount();
-        for (boolean[] flags : compat.values()) {
-            for (int i = tmCount + 1; i < flags.length; i++) {
-                flags[i] = true;
-            }
-        }
+        CompatibilityMatrix compat = this.getTMHMCompatibilityMatrix();
+        compat.fillColumns(this.getTMCount() + 1, compat.getColumnCount());
 
         // Set the new compatibility
-        this.setTMHMCompatibility(compat);
+        this.setTMHMCompatibilityMatrix(compat);
     }
 
     @Override
@@ -2891,15 +3336,21 @@ public abstract class AbstractRomHandler implements RomHandler {
             return;
         }
         // Get current compatibility
-        Map<Pokemon, boolean[]> compat = this.getMoveTutorCompatibility();
+        CompatibilityMatrix compat = this.getMoveTutorCompatibilityMatrix();
         List<Integer> mts = this.getMoveTutorMoves();
         List<Move> moveData = this.getMoves();
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compat.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
-            for (int i = 1; i <= mts.size(); i++) {
-                int move = mts.get(i - 1);
-                Move mv = moveData.get(move);
+        int slotCount = mts.size();
+        Move[] slotMoves = new Move[slotCount + 1];
+        for (int i = 1; i <= slotCount; i++) {
+            slotMoves[i] = moveData.get(mts.get(i - 1));
+        }
+        for (Pokemon pkmn : this.getPokemon()) {
+            if (!compat.hasRow(pkmn)) {
+                continue;
+            }
+            int species = pkmn.number;
+            for (int i = 1; i <= slotCount; i++) {
+                Move mv = slotMoves[i];
                 double probability = 0.5;
                 if (preferSameType == Settings.MoveTutorsCompatibilityMod.RANDOM_PREFER_TYPE) {
                     if (pkmn.primaryType.equals(mv.type)
@@ -2924,12 +3375,12 @@ public abstract class AbstractRomHandler implements RomHandler {
                     // Mew and Arceus can learn all move tutor moves.
                     probability = 1;
                 }
-                flags[i] = (this.random.nextDouble() < probability);
+                compat.set(species, i, this.random.nextDouble() < probability);
             }
         }
 
         // Set the new compatibility
-        this.setMoveTutorCompatibility(compat);
+        this.setMoveTutorCompatibilityMatrix(compat);
 
     }
 
@@ -2938,14 +3389,9 @@ public abstract class AbstractRomHandler implements RomHandler {
         if (!this.hasMoveTutors()) {
             return;
         }
-        Map<Pokemon, boolean[]> compat = this.getMoveTutorCompatibility();
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compat.entrySet()) {
-            boolean[] flags = compatEntry.getValue();
-            for (int i = 1; i < flags.length; i++) {
-                flags[i] = true;
-            }
-        }
-        this.setMoveTutorCompatibility(compat);
+        CompatibilityMatrix compat = this.getMoveTutorCompatibilityMatrix();
+        compat.fillAll();
+        this.setMoveTutorCompatibilityMatrix(compat);
     }
 
     @Override
@@ -2956,24 +3402,12 @@ public abstract class AbstractRomHandler implements RomHandler {
         // if a pokemon learns a move in its moveset
         // and there is a tutor of that move, make sure
         // that tutor can be learned.
-        Map<Pokemon, boolean[]> compat = this.getMoveTutorCompatibility();
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
-        List<Integer> mtMoves = this.getMoveTutorMoves();
-        for (Pokemon pkmn : compat.keySet()) {
-            List<MoveLearnt> moveset = movesets.get(pkmn);
-            boolean[] pkmnCompat = compat.get(pkmn);
-            for (MoveLearnt ml : moveset) {
-                if (mtMoves.contains(ml.move)) {
-                    int mtIndex = mtMoves.indexOf(ml.move);
-                    pkmnCompat[mtIndex + 1] = true;
-                }
-            }
-        }
-        this.setMoveTutorCompatibility(compat);
+        CompatibilityMatrix compat = this.getMoveTutorCompatibilityMatrix();
+        ensureCompatSanity(compat, this.getMoveTutorMoves());
+        this.setMoveTutorCompatibilityMatrix(compat);
 
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void randomizeTrainerNames(CustomNamesSet customNames) {
         if (!this.canChangeTrainerText()) {
@@ -2981,38 +3415,8 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
 
         // index 0 = singles, 1 = doubles
-        List<String>[] allTrainerNames = new List[] { new ArrayList<String>(), new ArrayList<String>() };
-        Map<Integer, List<String>> trainerNamesByLength[] = new Map[] { new TreeMap<Integer, List<String>>(),
-                new TreeMap<Integer, List<String>>() };
-
-        // Read name lists
-        for (String trainername : customNames.getTrainerNames()) {
-            int len = this.internalStringLength(trainername);
-            if (len <= 10) {
-                allTrainerNames[0].add(trainername);
-                if (trainerNamesByLength[0].containsKey(len)) {
-                    trainerNamesByLength[0].get(len).add(trainername);
-                } else {
-                    List<String> namesOfThisLength = new ArrayList<String>();
-                    namesOfThisLength.add(trainername);
-                    trainerNamesByLength[0].put(len, namesOfThisLength);
-                }
-            }
-        }
-
-        for (String trainername : customNames.getDoublesTrainerNames()) {
-            int len = this.internalStringLength(trainername);
-            if (len <= 10) {
-                allTrainerNames[1].add(trainername);
-                if (trainerNamesByLength[1].containsKey(len)) {
-                    trainerNamesByLength[1].get(len).add(trainername);
-                } else {
-                    List<String> namesOfThisLength = new ArrayList<String>();
-                    namesOfThisLength.add(trainername);
-                    trainerNamesByLength[1].put(len, namesOfThisLength);
-                }
-            }
-        }
+        NamePool[] pools = new NamePool[] { new NamePool(customNames.getTrainerNames(), this, 10),
+                new NamePool(customNames.getDoublesTrainerNames(), this, 10) };
 
         // Get the current trainer names data
         List<String> currentTrainerNames = this.getTrainerNames();
@@ -3022,81 +3426,117 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
         TrainerNameMode mode = this.trainerNameMode();
         int maxLength = this.maxTrainerNameLength();
-        int totalMaxLength = this.maxSumOfTrainerNameLengths();
-
-        boolean success = false;
-        int tries = 0;
-
-        // Init the translation map and new list
-        Map<String, String> translation = new HashMap<String, String>();
-        List<String> newTrainerNames = new ArrayList<String>();
+        long totalMaxLength = this.maxSumOfTrainerNameLengths();
         List<Integer> tcNameLengths = this.getTCNameLengthsByTrainer();
 
-        // loop until we successfully pick names that fit
-        // should always succeed first attempt except for gen2.
-        while (!success && tries < 10000) {
-            success = true;
-            translation.clear();
-            newTrainerNames.clear();
-            int totalLength = 0;
-
-            // Start choosing
-            int tnIndex = -1;
-            for (String trainerName : currentTrainerNames) {
-                tnIndex++;
-                if (translation.containsKey(trainerName) && trainerName.equalsIgnoreCase("GRUNT") == false
-                        && trainerName.equalsIgnoreCase("EXECUTIVE") == false) {
-                    // use an already picked translation
-                    newTrainerNames.add(translation.get(trainerName));
-                    totalLength += this.internalStringLength(translation.get(trainerName));
+        // One slot per distinct name, except that every GRUNT and EXECUTIVE
+        // gets its own. A slot's limit is the tightest of all its uses.
+        int numTrainers = currentTrainerNames.size();
+        int[] slotOfTrainer = new int[numTrainers];
+        String[] slotOldNames = new String[numTrainers];
+        int[] slotLimits = new int[numTrainers];
+        int[] slotUses = new int[numTrainers];
+        int slotCount = 0;
+        Map<String, Integer> slotsByName = new HashMap<String, Integer>();
+        for (int i = 0; i < numTrainers; i++) {
+            String trainerName = currentTrainerNames.get(i);
+            Integer slot = slotsByName.get(trainerName);
+            if (slot == null) {
+                slot = slotCount++;
+                slotOldNames[slot] = trainerName;
+                slotLimits[slot] = maxLength;
+                if (!trainerName.equalsIgnoreCase("GRUNT") && !trainerName.equalsIgnoreCase("EXECUTIVE")) {
+                    slotsByName.put(trainerName, slot);
+                }
+            }
+            slotOfTrainer[i] = slot;
+            slotUses[slot]++;
+            if (mode == TrainerNameMode.MAX_LENGTH_WITH_CLASS && i < tcNameLengths.size()) {
+                slotLimits[slot] = Math.min(slotLimits[slot], maxLength - tcNameLengths.get(i));
+            }
+        }
+
+        // Each slot can take any name in [from, to) of its pool's sorted
+        // order; pick one freely. A pick of -1 keeps the old name.
+        NamePool[] slotPools = new NamePool[slotCount];
+        int[] slotFrom = new int[slotCount];
+        int[] slotTo = new int[slotCount];
+        int[] slotPicks = new int[slotCount];
+        int[] slotLengths = new int[slotCount];
+        long totalLength = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            String trainerName = slotOldNames[slot];
+            NamePool pool = pools[trainerName.contains("&") ? 1 : 0];
+            int intStrLen = this.internalStringLength(trainerName);
+            slotPools[slot] = pool;
+            if (intStrLen > 1) {
+                if (mode == TrainerNameMode.SAME_LENGTH) {
+                    slotFrom[slot] = pool.countUpTo(intStrLen - 1);
+                    slotTo[slot] = pool.countUpTo(intStrLen);
                 } else {
-                    int idx = trainerName.contains("&") ? 1 : 0;
-                    List<String> pickFrom = allTrainerNames[idx];
-                    int intStrLen = this.internalStringLength(trainerName);
-                    if (mode == TrainerNameMode.SAME_LENGTH) {
-                        pickFrom = trainerNamesByLength[idx].get(intStrLen);
-                    }
-                    String changeTo = trainerName;
-                    int ctl = intStrLen;
-                    if (pickFrom != null && pickFrom.size() > 0 && intStrLen > 1) {
-                        int innerTries = 0;
-                        changeTo = pickFrom.get(this.random.nextInt(pickFrom.size()));
-                        ctl = this.internalStringLength(changeTo);
-                        while ((mode == TrainerNameMode.MAX_LENGTH && ctl > maxLength)
-                                || (mode == TrainerNameMode.MAX_LENGTH_WITH_CLASS && ctl + tcNameLengths.get(tnIndex) > maxLength)) {
-                            innerTries++;
-                            if (innerTries == 100) {
-                                changeTo = trainerName;
-                                ctl = intStrLen;
-                                break;
-                            }
-                            changeTo = pickFrom.get(this.random.nextInt(pickFrom.size()));
-                            ctl = this.internalStringLength(changeTo);
-                        }
+                    slotTo[slot] = pool.countUpTo(slotLimits[slot]);
+                }
+            }
+            if (slotFrom[slot] < slotTo[slot]) {
+                slotPicks[slot] = pool.pick(this.random, slotFrom[slot], slotTo[slot]);
+                slotLengths[slot] = pool.lengthOfSorted(slotPicks[slot]);
+            } else {
+                slotPicks[slot] = -1;
+                slotLengths[slot] = intStrLen;
+            }
+            totalLength += (long) slotLengths[slot] * slotUses[slot];
+        }
+
+        if (totalLength > totalMaxLength) {
+            // Over the total budget (gen2): shorten the slots that can save
+            // the most first, each only as far as is still needed.
+            List<Integer> slotsBySavings = new ArrayList<Integer>();
+            final long[] savings = new long[slotCount];
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (slotPicks[slot] >= 0) {
+                    int shortest = slotPools[slot].lengthOfSorted(slotFrom[slot]);
+                    savings[slot] = (long) (slotLengths[slot] - shortest) * slotUses[slot];
+                    if (savings[slot] > 0) {
+                        slotsBySavings.add(slot);
                     }
-                    translation.put(trainerName, changeTo);
-                    newTrainerNames.add(changeTo);
-                    totalLength += ctl;
                 }
-
-                if (totalLength > totalMaxLength) {
-                    success = false;
-                    tries++;
+            }
+            Collections.sort(slotsBySavings, (s1, s2) -> Long.compare(savings[s2], savings[s1]));
+            for (int slot : slotsBySavings) {
+                if (totalLength <= totalMaxLength) {
                     break;
                 }
+                checkCancelled();
+                NamePool pool = slotPools[slot];
+                long excess = totalLength - totalMaxLength;
+                long wanted = slotLengths[slot] - (excess + slotUses[slot] - 1) / slotUses[slot];
+                int shortest = pool.lengthOfSorted(slotFrom[slot]);
+                int to = pool.countUpTo((int) Math.max(wanted, shortest));
+                int pick = pool.pick(this.random, slotFrom[slot], to);
+                totalLength -= (long) (slotLengths[slot] - pool.lengthOfSorted(pick)) * slotUses[slot];
+                slotPicks[slot] = pick;
+                slotLengths[slot] = pool.lengthOfSorted(pick);
             }
         }
 
-        if (!success) {
-            throw new RandomizationException("Could not randomize trainer names in a reasonable amount of attempts."
+        if (totalLength > totalMaxLength) {
+            throw new RandomizationException("Could not fit the custom trainer names into the space available."
                     + "\nPlease add some shorter names to your custom trainer names.");
         }
 
         // Done choosing, save
+        List<String> newTrainerNames = new ArrayList<String>(numTrainers);
+        for (int i = 0; i < numTrainers; i++) {
+            int slot = slotOfTrainer[i];
+            if (slotPicks[slot] < 0) {
+                newTrainerNames.add(slotOldNames[slot]);
+            } else {
+                newTrainerNames.add(slotPools[slot].getSorted(slotPicks[slot]));
+            }
+        }
         this.setTrainerNames(newTrainerNames);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void randomizeTrainerClassNames(CustomNamesSet customNames) {
         if (!this.canChangeTrainerText()) {
@@ -3104,34 +3544,9 @@ public abstract class AbstractRomHandler implements RomHandler {
         }
 
         // index 0 = singles, index 1 = doubles
-        List<String> allTrainerClasses[] = new List[] { new ArrayList<String>(), new ArrayList<String>() };
-        Map<Integer, List<String>> trainerClassesByLength[] = new Map[] { new HashMap<Integer, List<String>>(),
-                new HashMap<Integer, List<String>>() };
-
-        // Read names data
-        for (String trainerClassName : customNames.getTrainerClasses()) {
-            allTrainerClasses[0].add(trainerClassName);
-            int len = this.internalStringLength(trainerClassName);
-            if (trainerClassesByLength[0].containsKey(len)) {
-                trainerClassesByLength[0].get(len).add(trainerClassName);
-            } else {
-                List<String> namesOfThisLength = new ArrayList<String>();
-                namesOfThisLength.add(trainerClassName);
-                trainerClassesByLength[0].put(len, namesOfThisLength);
-            }
-        }
-
-        for (String trainerClassName : customNames.getDoublesTrainerClasses()) {
-            allTrainerClasses[1].add(trainerClassName);
-            int len = this.internalStringLength(trainerClassName);
-            if (trainerClassesByLength[1].containsKey(len)) {
-                trainerClassesByLength[1].get(len).add(trainerClassName);
-            } else {
-                List<String> namesOfThisLength = new ArrayList<String>();
-                namesOfThisLength.add(trainerClassName);
-                trainerClassesByLength[1].put(len, namesOfThisLength);
-            }
-        }
+        NamePool[] pools = new NamePool[] {
+                new NamePool(customNames.getTrainerClasses(), this, Integer.MAX_VALUE),
+                new NamePool(customNames.getDoublesTrainerClasses(), this, Integer.MAX_VALUE) };
 
         // Get the current trainer names data
         List<String> currentClassNames = this.getTrainerClassNames();
@@ -3143,7 +3558,7 @@ public abstract class AbstractRomHandler implements RomHandler {
         List<String> newClassNames = new ArrayList<String>();
 
         int numTrainerClasses = currentClassNames.size();
-        List<Integer> doublesClasses = this.getDoublesTrainerClasses();
+        Set<Integer> doublesClasses = new HashSet<Integer>(this.getDoublesTrainerClasses());
 
         // Start choosing
         for (int i = 0; i < numTrainerClasses; i++) {
@@ -3152,18 +3567,17 @@ public abstract class AbstractRomHandler implements RomHandler {
                 // use an already picked translation
                 newClassNames.add(translation.get(trainerClassName));
             } else {
-                int idx = doublesClasses.contains(i) ? 1 : 0;
-                List<String> pickFrom = allTrainerClasses[idx];
-                int intStrLen = this.internalStringLength(trainerClassName);
+                NamePool pool = pools[doublesClasses.contains(i) ? 1 : 0];
+                int from = 0;
+                int to = pool.countUpTo(maxLength);
                 if (mustBeSameLength) {
-                    pickFrom = trainerClassesByLength[idx].get(intStrLen);
+                    int intStrLen = this.internalStringLength(trainerClassName);
+                    from = pool.countUpTo(intStrLen - 1);
+                    to = Math.min(to, pool.countUpTo(intStrLen));
                 }
                 String changeTo = trainerClassName;
-                if (pickFrom != null && pickFrom.size() > 0) {
-                    changeTo = pickFrom.get(this.random.nextInt(pickFrom.size()));
-                    while (changeTo.length() > maxLength) {
-                        changeTo = pickFrom.get(this.random.nextInt(pickFrom.size()));
-                    }
+                if (from < to) {
+                    changeTo = pool.getSorted(pool.pick(this.random, from, to));
                 }
                 translation.put(trainerClassName, changeTo);
                 newClassNames.add(changeTo);
@@ -3500,6 +3914,7 @@ public abstract class AbstractRomHandler implements RomHandler {
     public void randomizeEvolutions(boolean similarStrength, boolean sameType, boolean limitToThreeStages,
             boolean forceChange) {
         checkPokemonRestrictions();
+        evolutionsChanged();
         List<Pokemon> pokemonPool = new ArrayList<Pokemon>(mainPokemonList);
         int stageLimit = limitToThreeStages ? 3 : 10;
 
@@ -3737,12 +4152,15 @@ public abstract class AbstractRomHandler implements RomHandler {
         int currentBST = current.bstForPowerLevels();
         int minTarget = currentBST - currentBST / 10;
         int maxTarget = currentBST + currentBST / 10;
+        int[] poolBST = powerLevelBSTs(pokemonPool);
         List<Pokemon> canPick = new ArrayList<Pokemon>();
+        boolean[] picked = new boolean[poolBST.length];
         int expandRounds = 0;
         while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 3)) {
-            for (Pokemon pk : pokemonPool) {
-                if (pk.bstForPowerLevels() >= minTarget && pk.bstForPowerLevels() <= maxTarget && !canPick.contains(pk)) {
-                    canPick.add(pk);
+            for (int i = 0; i < poolBST.length; i++) {
+                if (!picked[i] && poolBST[i] >= minTarget && poolBST[i] <= maxTarget) {
+                    picked[i] = true;
+                    canPick.add(pokemonPool.get(i));
                 }
             }
             minTarget -= currentBST / 20;
@@ -3846,52 +4264,21 @@ public abstract class AbstractRomHandler implements RomHandler {
      *            single evolutions.
      */
     private void copyUpEvolutionsHelper(BasePokemonAction bpAction, EvolvedPokemonAction epAction) {
-        List<Pokemon> allPokes = this.getPokemon();
-        for (Pokemon pk : allPokes) {
-            if (pk != null) {
-                pk.temporaryFlag = false;
-            }
-        }
-
-        // Get evolution data.
-        Set<Pokemon> dontCopyPokes = RomFunctions.getBasicOrNoCopyPokemon(this);
-        Set<Pokemon> middleEvos = RomFunctions.getMiddleEvolutions(this);
-
-        for (Pokemon pk : dontCopyPokes) {
-            bpAction.applyTo(pk);
-            pk.temporaryFlag = true;
+        EvolutionForest forest = this.getEvolutionForest();
+        for (int i = 0; i < forest.rootCount(); i++) {
+            bpAction.applyTo(forest.get(forest.root(i)));
         }
-
-        // go "up" evolutions looking for pre-evos to do first
-        for (Pokemon pk : allPokes) {
-            if (pk != null && !pk.temporaryFlag) {
-                // Non-randomized pokes at this point must have
-                // a linear chain of single evolutions down to
-                // a randomized poke.
-                Stack<Evolution> currentStack = new Stack<Evolution>();
-                Evolution ev = pk.evolutionsTo.get(0);
-                while (!ev.from.temporaryFlag) {
-                    currentStack.push(ev);
-                    ev = ev.from.evolutionsTo.get(0);
-                }
-
-                // Now "ev" is set to an evolution from a Pokemon that has had
-                // the base action done on it to one that hasn't.
-                // Do the evolution action for everything left on the stack.
-                epAction.applyTo(ev.from, ev.to, !middleEvos.contains(ev.to));
-                ev.to.temporaryFlag = true;
-                while (!currentStack.isEmpty()) {
-                    ev = currentStack.pop();
-                    epAction.applyTo(ev.from, ev.to, !middleEvos.contains(ev.to));
-                    ev.to.temporaryFlag = true;
-                }
-            }
+        // Non-root pokes have a linear chain of single evolutions down to a
+        // root, and the copy order always has the pre-evo done first.
+        for (int i = 0; i < forest.copyCount(); i++) {
+            int index = forest.copied(i);
+            epAction.applyTo(forest.get(forest.parent(index)), forest.get(index), !forest.isMiddle(index));
         }
     }
 
-    private boolean checkForUnusedMove(List<Move> potentialList, Set<Integer> alreadyUsed) {
+    private boolean checkForUnusedMove(List<Move> potentialList, int[] learntBy, int species) {
         for (Move mv : potentialList) {
-            if (!alreadyUsed.contains(mv.number)) {
+            if (learntBy[mv.number] != species) {
                 return true;
             }
         }
@@ -3924,35 +4311,28 @@ public abstract class AbstractRomHandler implements RomHandler {
         return inArea;
     }
 
-    private Map<Type, Integer> typeWeightings;
-    private int totalTypeWeighting;
+    // built once per type theming pass, the pool doesn't change within one
+    private WeightedSampler<Type> typeSampler;
 
     private Type pickType(boolean weightByFrequency, boolean noLegendaries) {
-        if (totalTypeWeighting == 0) {
+        if (!weightByFrequency) {
+            return randomType();
+        }
+        if (typeSampler == null) {
             // Determine weightings
+            List<Type> types = new ArrayList<Type>();
             for (Type t : Type.values()) {
                 if (typeInGame(t)) {
-                    int pkWithTyping = pokemonOfType(t, noLegendaries).size();
-                    typeWeightings.put(t, pkWithTyping);
-                    totalTypeWeighting += pkWithTyping;
+                    types.add(t);
                 }
             }
-        }
-
-        if (weightByFrequency) {
-            int typePick = this.random.nextInt(totalTypeWeighting);
-            int typePos = 0;
-            for (Type t : typeWeightings.keySet()) {
-                int weight = typeWeightings.get(t);
-                if (typePos + weight > typePick) {
-                    return t;
-                }
-                typePos += weight;
+            int[] weights = new int[types.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = pokemonOfType(types.get(i), noLegendaries).size();
             }
-            return null;
-        } else {
-            return randomType();
+            typeSampler = new WeightedSampler<Type>(types, weights);
         }
+        return typeSampler.pick(this.random);
     }
 
     private void rivalCarriesStarterUpdate(List<Trainer> currentTrainers, String prefix, int pokemonOffset) {
@@ -4227,6 +4607,9 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     private Map<Type, List<Pokemon>> cachedReplacementLists;
     private List<Pokemon> cachedAllList;
+    // power-level BSTs of the cached lists above, filled in on first use
+    private Map<Type, int[]> cachedReplacementBSTs;
+    private int[] cachedAllBSTs;
 
     private Pokemon pickReplacement(Pokemon current, boolean usePowerLevels, Type type, boolean noLegendaries,
             boolean wonderGuardAllowed) {
@@ -4244,12 +4627,25 @@ public abstract class AbstractRomHandler implements RomHandler {
             int currentBST = current.bstForPowerLevels();
             int minTarget = currentBST - currentBST / 10;
             int maxTarget = currentBST + currentBST / 10;
+            int[] poolBST;
+            if (type == null) {
+                if (cachedAllBSTs == null) {
+                    cachedAllBSTs = powerLevelBSTs(pickFrom);
+                }
+                poolBST = cachedAllBSTs;
+            } else {
+                if (!cachedReplacementBSTs.containsKey(type)) {
+                    cachedReplacementBSTs.put(type, powerLevelBSTs(pickFrom));
+                }
+                poolBST = cachedReplacementBSTs.get(type);
+            }
             List<Pokemon> canPick = new ArrayList<Pokemon>();
             int expandRounds = 0;
             while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 2)) {
-                for (Pokemon pk : pickFrom) {
-                    if (pk.bstForPowerLevels() >= minTarget
-                            && pk.bstForPowerLevels() <= maxTarget
+                for (int i = 0; i < poolBST.length; i++) {
+                    Pokemon pk = pickFrom.get(i);
+                    if (poolBST[i] >= minTarget
+                            && poolBST[i] <= maxTarget
                             && (wonderGuardAllowed || (pk.ability1 != GlobalConstants.WONDER_GUARD_INDEX
                                     && pk.ability2 != GlobalConstants.WONDER_GUARD_INDEX && pk.ability3 != GlobalConstants.WONDER_GUARD_INDEX))) {
                         canPick.add(pk);
@@ -4303,20 +4699,25 @@ public abstract class AbstractRomHandler implements RomHandler {
         return pokemon;
     }
 
-    private Pokemon pickWildPowerLvlReplacement(List<Pokemon> pokemonPool, Pokemon current, boolean banSamePokemon,
-            List<Pokemon> usedUp) {
+    // poolBST holds powerLevelBSTs(pokemonPool), built once by the caller for
+    // all the picks made from that pool
+    private Pokemon pickWildPowerLvlReplacement(List<Pokemon> pokemonPool, int[] poolBST, Pokemon current,
+            boolean banSamePokemon, List<Pokemon> usedUp) {
         // start with within 10% and add 5% either direction till we find
         // something
         int currentBST = current.bstForPowerLevels();
         int minTarget = currentBST - currentBST / 10;
         int maxTarget = currentBST + currentBST / 10;
+        int poolSize = pokemonPool.size();
         List<Pokemon> canPick = new ArrayList<Pokemon>();
+        boolean[] picked = new boolean[poolSize];
         int expandRounds = 0;
         while (canPick.isEmpty() || (canPick.size() < 3 && expandRounds < 3)) {
-            for (Pokemon pk : pokemonPool) {
-                if (pk.bstForPowerLevels() >= minTarget && pk.bstForPowerLevels() <= maxTarget
-                        && (!banSamePokemon || pk != current) && (usedUp == null || !usedUp.contains(pk))
-                        && !canPick.contains(pk)) {
+            for (int i = 0; i < poolSize; i++) {
+                Pokemon pk = pokemonPool.get(i);
+                if (!picked[i] && poolBST[i] >= minTarget && poolBST[i] <= maxTarget
+                        && (!banSamePokemon || pk != current) && (usedUp == null || !usedUp.contains(pk))) {
+                    picked[i] = true;
                     canPick.add(pk);
                 }
             }
@@ -4327,6 +4728,28 @@ public abstract class AbstractRomHandler implements RomHandler {
         return canPick.get(this.random.nextInt(canPick.size()));
     }
 
+    // one pass over the pool instead of recomputing each BST every round
+    private static int[] powerLevelBSTs(List<Pokemon> pool) {
+        int[] bsts = new int[pool.size()];
+        for (int i = 0; i < bsts.length; i++) {
+            bsts[i] = pool.get(i).bstForPowerLevels();
+        }
+        return bsts;
+    }
+
+    // removes pk from a pool and keeps its BST array lined up with it; only
+    // the first pool.size() entries of poolBST stay meaningful
+    private static void removeFromPool(List<Pokemon> pool, int[] poolBST, Pokemon pk) {
+        int index = pool.indexOf(pk);
+        if (index < 0) {
+            return;
+        }
+        pool.remove(index);
+        if (poolBST != null) {
+            System.arraycopy(poolBST, index + 1, poolBST, index, pool.size() - index);
+        }
+    }
+
     /* Helper methods used by subclasses and/or this class */
 
     protected void checkPokemonRestrictions() {
@@ -4535,4 +4958,67 @@ public abstract class AbstractRomHandler implements RomHandler {
     public void applyMiscTweak(MiscTweak tweak) {
         // default: do nothing
     }
+
+    @Override
+    public void applyMiscTweaks(List<MiscTweak> tweaks) {
+        queuedPatches = new IdentityHashMap<byte[], IPSPatch.Plan>();
+        Map<byte[], IPSPatch.Plan> plans;
+        try {
+            for (MiscTweak tweak : tweaks) {
+                applyMiscTweak(tweak);
+            }
+        } finally {
+            plans = queuedPatches;
+            queuedPatches = null;
+        }
+        if (plans.isEmpty()) {
+            return;
+        }
+        log("--Code Tweak Patches--");
+        try {
+            for (Map.Entry<byte[], IPSPatch.Plan> plan : plans.entrySet()) {
+                List<int[]> touched = plan.getValue().apply(plan.getKey());
+                logPatchedRanges(plan.getValue().getPatches(), touched);
+            }
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        logBlankLine();
+    }
+
+    private void logPatchedRanges(List<IPSPatch> patches, List<int[]> touched) {
+        if (logStream == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (IPSPatch patch : patches) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(patch.getName());
+        }
+        sb.append(" wrote");
+        for (int i = 0; i < touched.size(); i++) {
+            int[] range = touched.get(i);
+            sb.append(i == 0 ? " " : ", ").append(String.format("0x%X-0x%X", range[0], range[1] - 1));
+        }
+        logStream.println(sb.toString());
+    }
+
+    /**
+     * Applies a bundled IPS patch to target (the ROM image, ARM9 or an
+     * overlay). Within applyMiscTweaks the patch is only checked against
+     * the others queued for the same target, and they're all written
+     * together once every tweak has run.
+     */
+    protected void applyIPSPatch(byte[] target, String patchName) throws IOException {
+        IPSPatch patch = IPSPatch.get(patchName);
+        if (queuedPatches == null) {
+            patch.applyTo(target);
+            return;
+        }
+        IPSPatch.Plan plan = queuedPatches.get(target);
+        if (plan == null) {
+            plan = new IPSPatch.Plan();
+            queuedPatches.put(target, plan);
+        }
+        plan.add(patch);
+    }
 }
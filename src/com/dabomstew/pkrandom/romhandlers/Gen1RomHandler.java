@@ -25,7 +25,6 @@ package com.dabomstew.pkrandom.romhandlers;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -48,6 +47,7 @@ import com.dabomstew.pkrandom.constants.Gen1Constants;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.RandomizationException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
 import com.dabomstew.pkrandom.pokemon.Evolution;
@@ -56,7 +56,7 @@ import com.dabomstew.pkrandom.pokemon.ExpCurve;
 import com.dabomstew.pkrandom.pokemon.IngameTrade;
 import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
-import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
@@ -72,17 +72,12 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
             return new Gen1RomHandler(random, logStream);
         }
 
-        public boolean isLoadable(String filename) {
-            long fileLength = new File(filename).length();
-            if (fileLength > 8 * 1024 * 1024) {
-                return false;
-            }
-            byte[] loaded = loadFilePartial(filename, 0x1000);
-            if (loaded.length == 0) {
-                // nope
+        @Override
+        public boolean isLoadable(RomHeader header) {
+            if (header.getFileLength() > GBConstants.maxRomSize || !header.covers(0, GBConstants.crcOffset + 2)) {
                 return false;
             }
-            return detectRomInner(loaded, (int) fileLength);
+            return detectRomInner(header.getBytes(), (int) header.getFileLength());
         }
     }
 
@@ -148,9 +143,11 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     private static List<RomEntry> roms;
+    private static Map<Long, List<RomEntry>> romsByHeader;
 
     static {
         loadROMInfo();
+        indexROMInfo();
     }
 
     private static class GameCornerPokemon {
@@ -392,24 +389,38 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         }
     }
 
+    private static void indexROMInfo() {
+        romsByHeader = new HashMap<Long, List<RomEntry>>();
+        for (RomEntry re : roms) {
+            long key = headerKey(re.version, re.nonJapanese, re.crcInHeader);
+            if (!romsByHeader.containsKey(key)) {
+                romsByHeader.put(key, new ArrayList<RomEntry>());
+            }
+            romsByHeader.get(key).add(re);
+        }
+    }
+
     private static RomEntry checkRomEntry(byte[] rom) {
         int version = rom[GBConstants.versionOffset] & 0xFF;
         int nonjap = rom[GBConstants.jpFlagOffset] & 0xFF;
         // Check for specific CRC first
         int crcInHeader = ((rom[GBConstants.crcOffset] & 0xFF) << 8) | (rom[GBConstants.crcOffset + 1] & 0xFF);
-        for (RomEntry re : roms) {
-            if (romSig(rom, re.romName) && re.version == version && re.nonJapanese == nonjap
-                    && re.crcInHeader == crcInHeader) {
-                return re;
-            }
+        RomEntry match = matchRomEntry(romsByHeader.get(headerKey(version, nonjap, crcInHeader)), rom);
+        if (match != null) {
+            return match;
         }
         // Now check for non-specific-CRC entries
-        for (RomEntry re : roms) {
-            if (romSig(rom, re.romName) && re.version == version && re.nonJapanese == nonjap && re.crcInHeader == -1) {
-                return re;
+        return matchRomEntry(romsByHeader.get(headerKey(version, nonjap, -1)), rom);
+    }
+
+    private static RomEntry matchRomEntry(List<RomEntry> candidates, byte[] rom) {
+        if (candidates != null) {
+            for (RomEntry re : candidates) {
+                if (romSig(rom, re.romName)) {
+                    return re;
+                }
             }
         }
-        // Not found
         return null;
     }
 
@@ -742,7 +753,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<EncounterSet> getEncounters(boolean useTimeOfDay) {
+    protected List<EncounterSet> readEncounterSets(boolean useTimeOfDay) {
         List<EncounterSet> encounters = new ArrayList<EncounterSet>();
 
         Pokemon ghostMarowak = pokes[Gen1Constants.marowakIndex];
@@ -873,7 +884,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public void setEncounters(boolean useTimeOfDay, List<EncounterSet> encounters) {
+    protected void writeEncounterSets(boolean useTimeOfDay, List<EncounterSet> encounters) {
         Iterator<EncounterSet> encsetit = encounters.iterator();
 
         // grass & water
@@ -961,7 +972,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         return pokemonList;
     }
 
-    public List<Trainer> getTrainers() {
+    protected List<Trainer> readTrainers() {
         int traineroffset = romEntry.getValue("TrainerDataTableOffset");
         int traineramount = Gen1Constants.trainerClassCount;
         int[] trainerclasslimits = romEntry.arrayEntries.get("TrainerDataClassCounts");
@@ -1021,7 +1032,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         return allTrainers;
     }
 
-    public void setTrainers(List<Trainer> trainerData) {
+    protected void writeTrainers(List<Trainer> trainerData) {
         int traineroffset = romEntry.getValue("TrainerDataTableOffset");
         int traineramount = Gen1Constants.trainerClassCount;
         int[] trainerclasslimits = romEntry.arrayEntries.get("TrainerDataClassCounts");
@@ -1121,8 +1132,8 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public Map<Pokemon, List<MoveLearnt>> getMovesLearnt() {
-        Map<Pokemon, List<MoveLearnt>> movesets = new TreeMap<Pokemon, List<MoveLearnt>>();
+    public MovesetTable getMovesetTable() {
+        MovesetTable movesets = new MovesetTable(pokedexCount);
         int pointersOffset = romEntry.getValue("PokemonMovesetsTableOffset");
         int pokeStatsOffset = romEntry.getValue("PokemonStatsOffset");
         int pkmnCount = romEntry.getValue("InternalPokemonCount");
@@ -1138,13 +1149,10 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
                 } else {
                     statsOffset = (pokeRBYToNumTable[i] - 1) * 0x1C + pokeStatsOffset;
                 }
-                List<MoveLearnt> ourMoves = new ArrayList<MoveLearnt>();
+                movesets.startMoveset(pkmn.number);
                 for (int delta = Gen1Constants.bsLevel1MovesOffset; delta < Gen1Constants.bsLevel1MovesOffset + 4; delta++) {
                     if (rom[statsOffset + delta] != 0x00) {
-                        MoveLearnt learnt = new MoveLearnt();
-                        learnt.level = 1;
-                        learnt.move = moveRomToNumTable[rom[statsOffset + delta] & 0xFF];
-                        ourMoves.add(learnt);
+                        movesets.addMove(1, moveRomToNumTable[rom[statsOffset + delta] & 0xFF]);
                     }
                 }
                 // Skip over evolution data
@@ -1159,26 +1167,22 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
                 }
                 realPointer++;
                 while (rom[realPointer] != 0) {
-                    MoveLearnt learnt = new MoveLearnt();
-                    learnt.level = rom[realPointer] & 0xFF;
-                    learnt.move = moveRomToNumTable[rom[realPointer + 1] & 0xFF];
-                    ourMoves.add(learnt);
+                    movesets.addMove(rom[realPointer] & 0xFF, moveRomToNumTable[rom[realPointer + 1] & 0xFF]);
                     realPointer += 2;
                 }
-                movesets.put(pkmn, ourMoves);
             }
         }
         return movesets;
     }
 
     @Override
-    public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets) {
+    public void setMovesetTable(MovesetTable movesets) {
         // new method for moves learnt
         writeEvosAndMovesLearnt(false, movesets);
     }
 
     @Override
-    public List<Pokemon> getStaticPokemon() {
+    protected List<Pokemon> readStaticPokemon() {
         List<Pokemon> statics = new ArrayList<Pokemon>();
         if (romEntry.getValue("StaticPokemonSupport") > 0) {
             for (int offset : romEntry.staticPokemonSingle) {
@@ -1194,7 +1198,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public boolean setStaticPokemon(List<Pokemon> staticPokemon) {
+    protected boolean writeStaticPokemon(List<Pokemon> staticPokemon) {
         if (romEntry.getValue("StaticPokemonSupport") == 0) {
             return false;
         }
@@ -1234,7 +1238,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<Integer> getTMMoves() {
+    protected List<Integer> readTMMoves() {
         List<Integer> tms = new ArrayList<Integer>();
         int offset = romEntry.getValue("TMMovesOffset");
         for (int i = 1; i <= Gen1Constants.tmCount; i++) {
@@ -1254,7 +1258,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public void setTMMoves(List<Integer> moveIndexes) {
+    protected void writeTMMoves(List<Integer> moveIndexes) {
         int offset = romEntry.getValue("TMMovesOffset");
         for (int i = 1; i <= Gen1Constants.tmCount; i++) {
             rom[offset + (i - 1)] = (byte) moveNumToRomTable[moveIndexes.get(i - 1)];
@@ -1291,33 +1295,28 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public Map<Pokemon, boolean[]> getTMHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = new TreeMap<Pokemon, boolean[]>();
+    public CompatibilityMatrix getTMHMCompatibilityMatrix() {
+        CompatibilityMatrix compat = new CompatibilityMatrix(pokedexCount, Gen1Constants.tmCount
+                + Gen1Constants.hmCount);
         int pokeStatsOffset = romEntry.getValue("PokemonStatsOffset");
         for (int i = 1; i <= pokedexCount; i++) {
             int baseStatsOffset = (romEntry.isYellow || i != Gen1Constants.mewIndex) ? (pokeStatsOffset + (i - 1)
                     * Gen1Constants.baseStatsEntrySize) : romEntry.getValue("MewStatsOffset");
-            Pokemon pkmn = pokes[i];
-            boolean[] flags = new boolean[Gen1Constants.tmCount + Gen1Constants.hmCount + 1];
             for (int j = 0; j < 7; j++) {
-                readByteIntoFlags(flags, j * 8 + 1, baseStatsOffset + Gen1Constants.bsTMHMCompatOffset + j);
+                compat.setByte(i, j * 8 + 1, rom[baseStatsOffset + Gen1Constants.bsTMHMCompatOffset + j]);
             }
-            compat.put(pkmn, flags);
         }
         return compat;
     }
 
     @Override
-    public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData) {
+    public void setTMHMCompatibilityMatrix(CompatibilityMatrix compat) {
         int pokeStatsOffset = romEntry.getValue("PokemonStatsOffset");
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
-            int baseStatsOffset = (romEntry.isYellow || pkmn.number != Gen1Constants.mewIndex) ? (pokeStatsOffset + (pkmn.number - 1)
-                    * Gen1Constants.baseStatsEntrySize)
-                    : romEntry.getValue("MewStatsOffset");
+        for (int i = 1; i <= pokedexCount; i++) {
+            int baseStatsOffset = (romEntry.isYellow || i != Gen1Constants.mewIndex) ? (pokeStatsOffset + (i - 1)
+                    * Gen1Constants.baseStatsEntrySize) : romEntry.getValue("MewStatsOffset");
             for (int j = 0; j < 7; j++) {
-                rom[baseStatsOffset + Gen1Constants.bsTMHMCompatOffset + j] = getByteFromFlags(flags, j * 8 + 1);
+                rom[baseStatsOffset + Gen1Constants.bsTMHMCompatOffset + j] = (byte) compat.getByte(i, j * 8 + 1);
             }
         }
     }
@@ -1328,12 +1327,12 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<Integer> getMoveTutorMoves() {
+    protected List<Integer> readMoveTutorMoves() {
         return new ArrayList<Integer>();
     }
 
     @Override
-    public void setMoveTutorMoves(List<Integer> moves) {
+    protected void writeMoveTutorMoves(List<Integer> moves) {
         // Do nothing
     }
 
@@ -1462,6 +1461,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public void setTrainerNames(List<String> trainerNames) {
+        invalidateCachedTrainers();
         if (romEntry.getValue("CanChangeTrainerText") > 0) {
             int[] offsets = romEntry.arrayEntries.get("TrainerClassNamesOffsets");
             Iterator<String> trainerNamesI = trainerNames.iterator();
@@ -1518,6 +1518,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public void setTrainerClassNames(List<String> trainerClassNames) {
+        invalidateCachedTrainers();
         if (romEntry.getValue("CanChangeTrainerText") > 0) {
             int[] offsets = romEntry.arrayEntries.get("TrainerClassNamesOffsets");
             Iterator<String> tcNamesIter = trainerClassNames.iterator();
@@ -1570,7 +1571,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public int internalStringLength(String string) {
-        return translateString(string).length;
+        return translatedLength(string);
     }
 
     @Override
@@ -1668,7 +1669,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         }
 
         try {
-            FileFunctions.applyPatch(rom, patchName);
+            applyIPSPatch(rom, patchName);
             return true;
         } catch (IOException e) {
             throw new RandomizerIOException(e);
@@ -2113,7 +2114,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         return true;
     }
 
-    private void writeEvosAndMovesLearnt(boolean writeEvos, Map<Pokemon, List<MoveLearnt>> movesets) {
+    private void writeEvosAndMovesLearnt(boolean writeEvos, MovesetTable movesets) {
         // we assume a few things here:
         // 1) evos & moves learnt are stored directly after their pointer table
         // 2) PokemonMovesetsExtraSpaceOffset is in the same bank, and
@@ -2213,7 +2214,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
                         dataStream.write(rom[movesOffset++] & 0xFF);
                     }
                 } else {
-                    List<MoveLearnt> ourMoves = movesets.get(pkmn);
+                    int moveCount = movesets.size(pokeNum);
                     int statsOffset = 0;
                     if (pokeNum == Gen1Constants.mewIndex && !romEntry.isYellow) {
                         // Mewww
@@ -2222,9 +2223,9 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
                         statsOffset = (pokeNum - 1) * Gen1Constants.baseStatsEntrySize + pokeStatsOffset;
                     }
                     int movenum = 0;
-                    while (movenum < 4 && ourMoves.size() > movenum && ourMoves.get(movenum).level == 1) {
-                        rom[statsOffset + Gen1Constants.bsLevel1MovesOffset + movenum] = (byte) moveNumToRomTable[ourMoves
-                                .get(movenum).move];
+                    while (movenum < 4 && moveCount > movenum && movesets.getLevel(pokeNum, movenum) == 1) {
+                        rom[statsOffset + Gen1Constants.bsLevel1MovesOffset + movenum] = (byte) moveNumToRomTable[movesets
+                                .getMove(pokeNum, movenum)];
                         movenum++;
                     }
                     // Write out the rest of zeroes
@@ -2232,9 +2233,9 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
                         rom[statsOffset + Gen1Constants.bsLevel1MovesOffset + mn] = 0;
                     }
                     // Add the non level 1 moves to the data stream
-                    while (movenum < ourMoves.size()) {
-                        dataStream.write(ourMoves.get(movenum).level);
-                        dataStream.write(moveNumToRomTable[ourMoves.get(movenum).move]);
+                    while (movenum < moveCount) {
+                        dataStream.write(movesets.getLevel(pokeNum, movenum));
+                        dataStream.write(moveNumToRomTable[movesets.getMove(pokeNum, movenum)]);
                         movenum++;
                     }
                 }
@@ -2311,7 +2312,12 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public BufferedImage getMascotImage() {
-        Pokemon mascot = randomPokemon();
+        return getPokemonSprite(randomPokemon(), false);
+    }
+
+    @Override
+    protected BufferedImage decodePokemonSprite(Pokemon mascot, boolean shiny, int variant) {
+        // no shiny palettes or alternate sprites in gen 1
         int idx = pokeNumToRBYTable[mascot.number];
         int fsBank;
         // define (by index number) the bank that a pokemon's image is in
@@ -25,7 +25,6 @@ package com.dabomstew.pkrandom.romhandlers;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -49,6 +48,7 @@ import com.dabomstew.pkrandom.constants.GBConstants;
 import com.dabomstew.pkrandom.constants.Gen2Constants;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
 import com.dabomstew.pkrandom.pokemon.Evolution;
@@ -57,7 +57,7 @@ import com.dabomstew.pkrandom.pokemon.ExpCurve;
 import com.dabomstew.pkrandom.pokemon.IngameTrade;
 import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
-import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
@@ -72,17 +72,12 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
             return new Gen2RomHandler(random, logStream);
         }
 
-        public boolean isLoadable(String filename) {
-            long fileLength = new File(filename).length();
-            if (fileLength > 8 * 1024 * 1024) {
-                return false;
-            }
-            byte[] loaded = loadFilePartial(filename, 0x1000);
-            if (loaded.length == 0) {
-                // nope
+        @Override
+        public boolean isLoadable(RomHeader header) {
+            if (header.getFileLength() > GBConstants.maxRomSize || !header.covers(0, GBConstants.crcOffset + 2)) {
                 return false;
             }
-            return detectRomInner(loaded, (int) fileLength);
+            return detectRomInner(header.getBytes(), (int) header.getFileLength());
         }
     }
 
@@ -122,9 +117,11 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     private static List<RomEntry> roms;
+    private static Map<Long, List<RomEntry>> romsByHeader;
 
     static {
         loadROMInfo();
+        indexROMInfo();
     }
 
     private static void loadROMInfo() {
@@ -319,24 +316,38 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         nonBadItems = Gen2Constants.nonBadItems.copy();
     }
 
+    private static void indexROMInfo() {
+        romsByHeader = new HashMap<Long, List<RomEntry>>();
+        for (RomEntry re : roms) {
+            long key = headerKey(re.version, re.nonJapanese, re.crcInHeader);
+            if (!romsByHeader.containsKey(key)) {
+                romsByHeader.put(key, new ArrayList<RomEntry>());
+            }
+            romsByHeader.get(key).add(re);
+        }
+    }
+
     private static RomEntry checkRomEntry(byte[] rom) {
         int version = rom[GBConstants.versionOffset] & 0xFF;
         int nonjap = rom[GBConstants.jpFlagOffset] & 0xFF;
         // Check for specific CRC first
         int crcInHeader = ((rom[GBConstants.crcOffset] & 0xFF) << 8) | (rom[GBConstants.crcOffset + 1] & 0xFF);
-        for (RomEntry re : roms) {
-            if (romCode(rom, re.romCode) && re.version == version && re.nonJapanese == nonjap
-                    && re.crcInHeader == crcInHeader) {
-                return re;
-            }
+        RomEntry match = matchRomEntry(romsByHeader.get(headerKey(version, nonjap, crcInHeader)), rom);
+        if (match != null) {
+            return match;
         }
         // Now check for non-specific-CRC entries
-        for (RomEntry re : roms) {
-            if (romCode(rom, re.romCode) && re.version == version && re.nonJapanese == nonjap && re.crcInHeader == -1) {
-                return re;
+        return matchRomEntry(romsByHeader.get(headerKey(version, nonjap, -1)), rom);
+    }
+
+    private static RomEntry matchRomEntry(List<RomEntry> candidates, byte[] rom) {
+        if (candidates != null) {
+            for (RomEntry re : candidates) {
+                if (romCode(rom, re.romCode)) {
+                    return re;
+                }
             }
         }
-        // Not found
         return null;
     }
 
@@ -553,7 +564,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<EncounterSet> getEncounters(boolean useTimeOfDay) {
+    protected List<EncounterSet> readEncounterSets(boolean useTimeOfDay) {
         int offset = romEntry.getValue("WildPokemonOffset");
         List<EncounterSet> areas = new ArrayList<EncounterSet>();
         offset = readLandEncounters(offset, areas, useTimeOfDay); // Johto
@@ -751,7 +762,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public void setEncounters(boolean useTimeOfDay, List<EncounterSet> encounters) {
+    protected void writeEncounterSets(boolean useTimeOfDay, List<EncounterSet> encounters) {
         if (!havePatchedFleeing) {
             patchFleeing();
         }
@@ -876,7 +887,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<Trainer> getTrainers() {
+    protected List<Trainer> readTrainers() {
         int traineroffset = romEntry.getValue("TrainerDataTableOffset");
         int traineramount = romEntry.getValue("TrainerClassAmount");
         int[] trainerclasslimits = romEntry.arrayEntries.get("TrainerDataClassCounts");
@@ -938,7 +949,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public void setTrainers(List<Trainer> trainerData) {
+    protected void writeTrainers(List<Trainer> trainerData) {
         int traineroffset = romEntry.getValue("TrainerDataTableOffset");
         int traineramount = romEntry.getValue("TrainerClassAmount");
         int[] trainerclasslimits = romEntry.arrayEntries.get("TrainerDataClassCounts");
@@ -951,7 +962,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
 
         // Get current movesets in case we need to reset them for certain
         // trainer mons.
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+        MovesetTable movesets = this.getMovesetTable();
 
         Iterator<Trainer> allTrainers = trainerData.iterator();
         for (int i = 0; i < traineramount; i++) {
@@ -1006,8 +1017,8 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public Map<Pokemon, List<MoveLearnt>> getMovesLearnt() {
-        Map<Pokemon, List<MoveLearnt>> movesets = new TreeMap<Pokemon, List<MoveLearnt>>();
+    public MovesetTable getMovesetTable() {
+        MovesetTable movesets = new MovesetTable(Gen2Constants.pokemonCount);
         int pointersOffset = romEntry.getValue("PokemonMovesetsTableOffset");
         for (int i = 1; i <= Gen2Constants.pokemonCount; i++) {
             int pointer = readWord(pointersOffset + (i - 1) * 2);
@@ -1021,22 +1032,18 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
                     realPointer += 3;
                 }
             }
-            List<MoveLearnt> ourMoves = new ArrayList<MoveLearnt>();
+            movesets.startMoveset(i);
             realPointer++;
             while (rom[realPointer] != 0) {
-                MoveLearnt learnt = new MoveLearnt();
-                learnt.level = rom[realPointer] & 0xFF;
-                learnt.move = rom[realPointer + 1] & 0xFF;
-                ourMoves.add(learnt);
+                movesets.addMove(rom[realPointer] & 0xFF, rom[realPointer + 1] & 0xFF);
                 realPointer += 2;
             }
-            movesets.put(pkmn, ourMoves);
         }
         return movesets;
     }
 
     @Override
-    public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets) {
+    public void setMovesetTable(MovesetTable movesets) {
         writeEvosAndMovesLearnt(false, movesets);
     }
 
@@ -1083,7 +1090,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<Pokemon> getStaticPokemon() {
+    protected List<Pokemon> readStaticPokemon() {
         List<Pokemon> statics = new ArrayList<Pokemon>();
         if (romEntry.getValue("StaticPokemonSupport") > 0) {
             for (StaticPokemon sp : romEntry.staticPokemon) {
@@ -1101,7 +1108,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public boolean setStaticPokemon(List<Pokemon> staticPokemon) {
+    protected boolean writeStaticPokemon(List<Pokemon> staticPokemon) {
         if (romEntry.getValue("StaticPokemonSupport") == 0) {
             return false;
         }
@@ -1153,7 +1160,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<Integer> getTMMoves() {
+    protected List<Integer> readTMMoves() {
         List<Integer> tms = new ArrayList<Integer>();
         int offset = romEntry.getValue("TMMovesOffset");
         for (int i = 1; i <= Gen2Constants.tmCount; i++) {
@@ -1173,7 +1180,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public void setTMMoves(List<Integer> moveIndexes) {
+    protected void writeTMMoves(List<Integer> moveIndexes) {
         int offset = romEntry.getValue("TMMovesOffset");
         for (int i = 1; i <= Gen2Constants.tmCount; i++) {
             rom[offset + (i - 1)] = moveIndexes.get(i - 1).byteValue();
@@ -1199,34 +1206,29 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public Map<Pokemon, boolean[]> getTMHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = new TreeMap<Pokemon, boolean[]>();
+    public CompatibilityMatrix getTMHMCompatibilityMatrix() {
+        CompatibilityMatrix compat = new CompatibilityMatrix(Gen2Constants.pokemonCount, Gen2Constants.tmCount
+                + Gen2Constants.hmCount);
         for (int i = 1; i <= Gen2Constants.pokemonCount; i++) {
             int baseStatsOffset = romEntry.getValue("PokemonStatsOffset") + (i - 1) * Gen2Constants.baseStatsEntrySize;
-            Pokemon pkmn = pokes[i];
-            boolean[] flags = new boolean[Gen2Constants.tmCount + Gen2Constants.hmCount + 1];
             for (int j = 0; j < 8; j++) {
-                readByteIntoFlags(flags, j * 8 + 1, baseStatsOffset + Gen2Constants.bsTMHMCompatOffset + j);
+                compat.setByte(i, j * 8 + 1, rom[baseStatsOffset + Gen2Constants.bsTMHMCompatOffset + j]);
             }
-            compat.put(pkmn, flags);
         }
         return compat;
     }
 
     @Override
-    public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData) {
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
-            int baseStatsOffset = romEntry.getValue("PokemonStatsOffset") + (pkmn.number - 1)
-                    * Gen2Constants.baseStatsEntrySize;
+    public void setTMHMCompatibilityMatrix(CompatibilityMatrix compat) {
+        for (int i = 1; i <= Gen2Constants.pokemonCount; i++) {
+            int baseStatsOffset = romEntry.getValue("PokemonStatsOffset") + (i - 1) * Gen2Constants.baseStatsEntrySize;
             for (int j = 0; j < 8; j++) {
                 if (!romEntry.isCrystal || j != 7) {
-                    rom[baseStatsOffset + Gen2Constants.bsTMHMCompatOffset + j] = getByteFromFlags(flags, j * 8 + 1);
+                    rom[baseStatsOffset + Gen2Constants.bsTMHMCompatOffset + j] = (byte) compat.getByte(i, j * 8 + 1);
                 } else {
                     // Move tutor data
                     // bits 1,2,3 of byte 7
-                    int changedByte = getByteFromFlags(flags, j * 8 + 1) & 0xFF;
+                    int changedByte = compat.getByte(i, j * 8 + 1);
                     int currentByte = rom[baseStatsOffset + Gen2Constants.bsTMHMCompatOffset + j];
                     changedByte |= ((currentByte >> 1) & 0x01) << 1;
                     changedByte |= ((currentByte >> 2) & 0x01) << 2;
@@ -1243,7 +1245,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public List<Integer> getMoveTutorMoves() {
+    protected List<Integer> readMoveTutorMoves() {
         if (romEntry.isCrystal) {
             List<Integer> mtMoves = new ArrayList<Integer>();
             for (int offset : romEntry.arrayEntries.get("MoveTutorMoves")) {
@@ -1255,7 +1257,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     }
 
     @Override
-    public void setMoveTutorMoves(List<Integer> moves) {
+    protected void writeMoveTutorMoves(List<Integer> moves) {
         if (!romEntry.isCrystal) {
             return;
         }
@@ -1490,6 +1492,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public void setTrainerNames(List<String> trainerNames) {
+        invalidateCachedTrainers();
         if (romEntry.getValue("CanChangeTrainerText") != 0) {
             int traineroffset = romEntry.getValue("TrainerDataTableOffset");
             int traineramount = romEntry.getValue("TrainerClassAmount");
@@ -1608,6 +1611,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public void setTrainerClassNames(List<String> trainerClassNames) {
+        invalidateCachedTrainers();
         if (romEntry.getValue("CanChangeTrainerText") != 0) {
             int amount = romEntry.getValue("TrainerClassAmount");
             int offset = romEntry.getValue("TrainerClassNamesOffset");
@@ -1653,7 +1657,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public int internalStringLength(String string) {
-        return translateString(string).length;
+        return translatedLength(string);
     }
 
     @Override
@@ -1712,7 +1716,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         }
 
         try {
-            FileFunctions.applyPatch(rom, patchName);
+            applyIPSPatch(rom, patchName);
         } catch (IOException e) {
             throw new RandomizerIOException(e);
         }
@@ -2076,6 +2080,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
 
     @Override
     public void removeEvosForPokemonPool() {
+        evolutionsChanged();
         List<Pokemon> pokemonIncluded = this.mainPokemonList;
         Set<Evolution> keepEvos = new HashSet<Evolution>();
         for (Pokemon pk : pokes) {
@@ -2093,7 +2098,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         }
     }
 
-    private void writeEvosAndMovesLearnt(boolean writeEvos, Map<Pokemon, List<MoveLearnt>> movesets) {
+    private void writeEvosAndMovesLearnt(boolean writeEvos, MovesetTable movesets) {
         // this assumes that the evo/attack pointers & data
         // are at the end of the bank
         // which, in every clean G/S/C rom supported, they are
@@ -2183,10 +2188,9 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
                     dataBlock[offsetInData++] = rom[movesOffset++];
                 }
             } else {
-                List<MoveLearnt> moves = movesets.get(pokes[i]);
-                for (MoveLearnt ml : moves) {
-                    dataBlock[offsetInData++] = (byte) ml.level;
-                    dataBlock[offsetInData++] = (byte) ml.move;
+                for (int m = 0; m < movesets.size(i); m++) {
+                    dataBlock[offsetInData++] = (byte) movesets.getLevel(i, m);
+                    dataBlock[offsetInData++] = (byte) movesets.getMove(i, m);
                 }
             }
             // terminator
@@ -2230,6 +2234,15 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
             // Unown is banned as handling it would add a ton of extra effort.
             mascot = randomPokemon();
         }
+        return getPokemonSprite(mascot, random.nextInt(10) == 0);
+    }
+
+    @Override
+    protected BufferedImage decodePokemonSprite(Pokemon mascot, boolean shiny, int variant) {
+        if (mascot.number == Gen2Constants.unownIndex) {
+            // Unown's pics are stored per letter elsewhere
+            return null;
+        }
 
         // Each Pokemon has a front and back pic with a bank and a pointer
         // (3*2=6)
@@ -2264,7 +2277,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         // Black and white are left alone at the start and end of the palette.
         int[] palette = new int[] { 0xFFFFFFFF, 0xFFAAAAAA, 0xFF666666, 0xFF000000 };
         int paletteOffset = romEntry.getValue("PokemonPalettes") + mascot.number * 8;
-        if (random.nextInt(10) == 0) {
+        if (shiny) {
             // Use shiny instead
             paletteOffset += 4;
         }
@@ -24,7 +24,6 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
@@ -40,16 +39,17 @@ import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.zip.CRC32;
 
 import com.dabomstew.pkrandom.FileFunctions;
 import com.dabomstew.pkrandom.GFXFunctions;
 import com.dabomstew.pkrandom.MiscTweak;
 import com.dabomstew.pkrandom.RomFunctions;
+import com.dabomstew.pkrandom.TextTable;
 import com.dabomstew.pkrandom.constants.Gen3Constants;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.RandomizationException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
 import com.dabomstew.pkrandom.pokemon.Evolution;
@@ -58,7 +58,7 @@ import com.dabomstew.pkrandom.pokemon.ExpCurve;
 import com.dabomstew.pkrandom.pokemon.IngameTrade;
 import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
-import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
@@ -73,17 +73,21 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
             return new Gen3RomHandler(random, logStream);
         }
 
-        public boolean isLoadable(String filename) {
-            long fileLength = new File(filename).length();
-            if (fileLength > 32 * 1024 * 1024) {
+        @Override
+        public boolean isLoadable(RomHeader header) {
+            if (!isGBASize(header.getFileLength()) || !header.covers(0, Gen3Constants.headerChecksumOffset + 1)) {
+                return false;
+            }
+            if (!hasSupportedHeader(Arrays.copyOf(header.getBytes(), header.length()))) {
                 return false;
             }
-            byte[] loaded = loadFilePartial(filename, 0x100000);
+            // only a supported game is worth reading the first 1MB for
+            byte[] loaded = loadFilePartial(header.getFilename(), 0x100000);
             if (loaded.length == 0) {
                 // nope
                 return false;
             }
-            return detectRomInner(loaded, (int) fileLength);
+            return detectRomInner(loaded, (int) header.getFileLength());
         }
     }
 
@@ -143,9 +147,21 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     private static List<RomEntry> roms;
+    private static Map<String, RomEntry> romsByHeader;
 
     static {
         loadROMInfo();
+        indexROMInfo();
+    }
+
+    private static void indexROMInfo() {
+        romsByHeader = new HashMap<String, RomEntry>();
+        for (RomEntry re : roms) {
+            String key = re.romCode + ":" + re.version;
+            if (!romsByHeader.containsKey(key)) {
+                romsByHeader.put(key, re);
+            }
+        }
     }
 
     private static void loadROMInfo() {
@@ -297,23 +313,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     private void loadTextTable(String filename) {
-        try {
-            Scanner sc = new Scanner(FileFunctions.openConfig(filename + ".tbl"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine();
-                if (!q.trim().isEmpty()) {
-                    String[] r = q.split("=", 2);
-                    if (r[1].endsWith("\r\n")) {
-                        r[1] = r[1].substring(0, r[1].length() - 2);
-                    }
-                    tb[Integer.parseInt(r[0], 16)] = r[1];
-                    d.put(r[1], (byte) Integer.parseInt(r[0], 16));
-                }
-            }
-            sc.close();
-        } catch (FileNotFoundException e) {
-        }
-
+        textTable = TextTable.forGBA(filename, Gen3Constants.textVariable);
     }
 
     // This ROM's data
@@ -324,8 +324,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     private boolean jamboMovesetHack;
     private RomEntry romEntry;
     private boolean havePatchedObedience;
-    public String[] tb;
-    public Map<String, Byte> d;
+    private TextTable textTable;
     private String[] abilityNames;
     private String[] itemNames;
     private boolean mapLoadingDone;
@@ -342,18 +341,17 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
         return detectRomInner(rom, rom.length);
     }
 
+    private static boolean isGBASize(long romSize) {
+        return romSize == Gen3Constants.size8M || romSize == Gen3Constants.size16M
+                || romSize == Gen3Constants.size32M;
+    }
+
     private static boolean detectRomInner(byte[] rom, int romSize) {
-        if (romSize != Gen3Constants.size8M && romSize != Gen3Constants.size16M && romSize != Gen3Constants.size32M) {
+        if (!isGBASize(romSize)) {
             return false; // size check
         }
-        // Special case for Emerald unofficial translation
-        if (romName(rom, Gen3Constants.unofficialEmeraldROMName)) {
-            // give it a rom code so it can be detected
-            rom[Gen3Constants.romCodeOffset] = 'B';
-            rom[Gen3Constants.romCodeOffset + 1] = 'P';
-            rom[Gen3Constants.romCodeOffset + 2] = 'E';
-            rom[Gen3Constants.romCodeOffset + 3] = 'T';
-            rom[Gen3Constants.headerChecksumOffset] = 0x66;
+        if (!hasSupportedHeader(rom)) {
+            return false; // GBA rom we don't support yet
         }
 
         // Wild Pokemon header
@@ -370,12 +368,25 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
                 return false;
             }
         }
-        for (RomEntry re : roms) {
-            if (romCode(rom, re.romCode) && (rom[Gen3Constants.romVersionOffset] & 0xFF) == re.version) {
-                return true; // match
-            }
+        return true; // match
+    }
+
+    private static boolean hasSupportedHeader(byte[] rom) {
+        // Special case for Emerald unofficial translation
+        if (romName(rom, Gen3Constants.unofficialEmeraldROMName)) {
+            // give it a rom code so it can be detected
+            rom[Gen3Constants.romCodeOffset] = 'B';
+            rom[Gen3Constants.romCodeOffset + 1] = 'P';
+            rom[Gen3Constants.romCodeOffset + 2] = 'E';
+            rom[Gen3Constants.romCodeOffset + 3] = 'T';
+            rom[Gen3Constants.headerChecksumOffset] = 0x66;
+        }
+        try {
+            String romCode = new String(rom, Gen3Constants.romCodeOffset, 4, "US-ASCII");
+            return romsByHeader.containsKey(romCode + ":" + (rom[Gen3Constants.romVersionOffset] & 0xFF));
+        } catch (UnsupportedEncodingException ex) {
+            return false;
         }
-        return false; // GBA rom we don't support yet
     }
 
     @Override
@@ -400,8 +411,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
             }
         }
 
-        tb = new String[256];
-        d = new HashMap<String, Byte>();
+        textTable = null;
         isRomHack = false;
         jamboMovesetHack = false;
 
@@ -689,10 +699,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
         if (rom.length != Gen3Constants.size16M) {
             return true;
         }
-        CRC32 checksum = new CRC32();
-        checksum.update(rom);
-        long csum = checksum.getValue();
-        return csum != 3716707868L;
+        return loadedFileHash().getCRC32Value() != 3716707868L;
     }
 
     @Override
@@ -947,8 +954,9 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
         StringBuilder string = new StringBuilder();
         for (int c = 0; c < maxLength; c++) {
             int currChar = rom[offset + c] & 0xFF;
-            if (tb[currChar] != null) {
-                string.append(tb[currChar]);
+            String token = textTable.getToken(currChar);
+            if (token != null) {
+                string.append(token);
             } else {
                 if (currChar == Gen3Constants.textTerminator) {
                     break;
@@ -965,33 +973,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     private byte[] translateString(String text) {
-        List<Byte> data = new ArrayList<Byte>();
-        while (text.length() != 0) {
-            int i = Math.max(0, 4 - text.length());
-            if (text.charAt(0) == '\\' && text.charAt(1) == 'x') {
-                data.add((byte) Integer.parseInt(text.substring(2, 4), 16));
-                text = text.substring(4);
-            } else if (text.charAt(0) == '\\' && text.charAt(1) == 'v') {
-                data.add((byte) Gen3Constants.textVariable);
-                data.add((byte) Integer.parseInt(text.substring(2, 4), 16));
-                text = text.substring(4);
-            } else {
-                while (!(d.containsKey(text.substring(0, 4 - i)) || (i == 4))) {
-                    i++;
-                }
-                if (i == 4) {
-                    text = text.substring(1);
-                } else {
-                    data.add(d.get(text.substring(0, 4 - i)));
-                    text = text.substring(4 - i);
-                }
-            }
-        }
-        byte[] ret = new byte[data.size()];
-        for (int i = 0; i < ret.length; i++) {
-            ret[i] = data.get(i);
-        }
-        return ret;
+        return textTable.encode(text);
     }
 
     private String readFixedLengthString(int offset, int length) {
@@ -1222,7 +1204,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public List<EncounterSet> getEncounters(boolean useTimeOfDay) {
+    protected List<EncounterSet> readEncounterSets(boolean useTimeOfDay) {
         if (!mapLoadingDone) {
             preprocessMaps();
             mapLoadingDone = true;
@@ -1317,7 +1299,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public void setEncounters(boolean useTimeOfDay, List<EncounterSet> encounters) {
+    protected void writeEncounterSets(boolean useTimeOfDay, List<EncounterSet> encounters) {
         // Support Deoxys/Mew catches in E/FR/LG
         attemptObedienceEvolutionPatches();
 
@@ -1370,7 +1352,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public List<Trainer> getTrainers() {
+    protected List<Trainer> readTrainers() {
         int baseOffset = romEntry.getValue("TrainerData");
         int amount = romEntry.getValue("TrainerCount");
         int entryLen = romEntry.getValue("TrainerEntrySize");
@@ -1454,7 +1436,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public void setTrainers(List<Trainer> trainerData) {
+    protected void writeTrainers(List<Trainer> trainerData) {
         int baseOffset = romEntry.getValue("TrainerData");
         int amount = romEntry.getValue("TrainerCount");
         int entryLen = romEntry.getValue("TrainerEntrySize");
@@ -1463,7 +1445,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
         // Get current movesets in case we need to reset them for certain
         // trainer mons.
-        Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+        MovesetTable movesets = this.getMovesetTable();
 
         for (int i = 1; i < amount; i++) {
             int trOffset = baseOffset + i * entryLen;
@@ -1559,21 +1541,19 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public Map<Pokemon, List<MoveLearnt>> getMovesLearnt() {
-        Map<Pokemon, List<MoveLearnt>> movesets = new TreeMap<Pokemon, List<MoveLearnt>>();
+    public MovesetTable getMovesetTable() {
+        // rows are by Pokemon number, which can pass numRealPokemon in hacks
+        MovesetTable movesets = new MovesetTable(pokes.length - 1);
         int baseOffset = romEntry.getValue("PokemonMovesets");
         for (int i = 1; i <= numRealPokemon; i++) {
             Pokemon pkmn = pokemonList.get(i);
             int offsToPtr = baseOffset + (pokedexToInternal[pkmn.number]) * 4;
             int moveDataLoc = readPointer(offsToPtr);
-            List<MoveLearnt> moves = new ArrayList<MoveLearnt>();
+            movesets.startMoveset(pkmn.number);
             if (jamboMovesetHack) {
                 while ((rom[moveDataLoc] & 0xFF) != 0x00 || (rom[moveDataLoc + 1] & 0xFF) != 0x00
                         || (rom[moveDataLoc + 2] & 0xFF) != 0xFF) {
-                    MoveLearnt ml = new MoveLearnt();
-                    ml.level = rom[moveDataLoc + 2] & 0xFF;
-                    ml.move = readWord(moveDataLoc);
-                    moves.add(ml);
+                    movesets.addMove(rom[moveDataLoc + 2] & 0xFF, readWord(moveDataLoc));
                     moveDataLoc += 3;
                 }
             } else {
@@ -1583,28 +1563,23 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
                     if ((rom[moveDataLoc + 1] & 0x01) == 0x01) {
                         move += 0x100;
                     }
-                    MoveLearnt ml = new MoveLearnt();
-                    ml.level = level;
-                    ml.move = move;
-                    moves.add(ml);
+                    movesets.addMove(level, move);
                     moveDataLoc += 2;
                 }
             }
-            movesets.put(pkmn, moves);
         }
         return movesets;
     }
 
     @Override
-    public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets) {
+    public void setMovesetTable(MovesetTable movesets) {
         int baseOffset = romEntry.getValue("PokemonMovesets");
         int fso = romEntry.getValue("FreeSpace");
         for (int i = 1; i <= numRealPokemon; i++) {
             Pokemon pkmn = pokemonList.get(i);
             int offsToPtr = baseOffset + (pokedexToInternal[pkmn.number]) * 4;
             int moveDataLoc = readPointer(offsToPtr);
-            List<MoveLearnt> moves = movesets.get(pkmn);
-            int newMoveCount = moves.size();
+            int newMoveCount = movesets.size(pkmn.number);
             int mloc = moveDataLoc;
             int entrySize;
             if (jamboMovesetHack) {
@@ -1633,8 +1608,8 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
             // Write new moveset now that space is ensured.
             for (int mv = 0; mv < newMoveCount; mv++) {
-                MoveLearnt ml = moves.get(mv);
-                moveDataLoc += writeMLToOffset(moveDataLoc, ml);
+                moveDataLoc += writeMLToOffset(moveDataLoc, movesets.getLevel(pkmn.number, mv),
+                        movesets.getMove(pkmn.number, mv));
             }
 
             // If move count changed, new terminator is required
@@ -1661,15 +1636,15 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     }
 
-    private int writeMLToOffset(int offset, MoveLearnt ml) {
+    private int writeMLToOffset(int offset, int level, int move) {
         if (jamboMovesetHack) {
-            writeWord(offset, ml.move);
-            rom[offset + 2] = (byte) ml.level;
+            writeWord(offset, move);
+            rom[offset + 2] = (byte) level;
             return 3;
         } else {
-            rom[offset] = (byte) (ml.move & 0xFF);
-            int levelPart = (ml.level << 1) & 0xFE;
-            if (ml.move > 255) {
+            rom[offset] = (byte) (move & 0xFF);
+            int levelPart = (level << 1) & 0xFE;
+            if (move > 255) {
                 levelPart++;
             }
             rom[offset + 1] = (byte) levelPart;
@@ -1697,7 +1672,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public List<Pokemon> getStaticPokemon() {
+    protected List<Pokemon> readStaticPokemon() {
         List<Pokemon> statics = new ArrayList<Pokemon>();
         List<StaticPokemon> staticsHere = romEntry.staticPokemon;
         for (StaticPokemon staticPK : staticsHere) {
@@ -1707,7 +1682,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public boolean setStaticPokemon(List<Pokemon> staticPokemon) {
+    protected boolean writeStaticPokemon(List<Pokemon> staticPokemon) {
         // Support Deoxys/Mew gifts/catches in E/FR/LG
         attemptObedienceEvolutionPatches();
 
@@ -1723,7 +1698,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public List<Integer> getTMMoves() {
+    protected List<Integer> readTMMoves() {
         List<Integer> tms = new ArrayList<Integer>();
         int offset = romEntry.getValue("TmMoves");
         for (int i = 1; i <= Gen3Constants.tmCount; i++) {
@@ -1738,7 +1713,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public void setTMMoves(List<Integer> moveIndexes) {
+    protected void writeTMMoves(List<Integer> moveIndexes) {
         if (!mapLoadingDone) {
             preprocessMaps();
             mapLoadingDone = true;
@@ -1857,30 +1832,29 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public Map<Pokemon, boolean[]> getTMHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = new TreeMap<Pokemon, boolean[]>();
+    public CompatibilityMatrix getTMHMCompatibilityMatrix() {
+        // rows are by Pokemon number, which can pass numRealPokemon in hacks
+        CompatibilityMatrix compat = new CompatibilityMatrix(pokes.length - 1, Gen3Constants.tmCount
+                + Gen3Constants.hmCount);
         int offset = romEntry.getValue("PokemonTMHMCompat");
         for (int i = 1; i <= numRealPokemon; i++) {
             Pokemon pkmn = pokemonList.get(i);
             int compatOffset = offset + (pokedexToInternal[pkmn.number]) * 8;
-            boolean[] flags = new boolean[Gen3Constants.tmCount + Gen3Constants.hmCount + 1];
             for (int j = 0; j < 8; j++) {
-                readByteIntoFlags(flags, j * 8 + 1, compatOffset + j);
+                compat.setByte(pkmn.number, j * 8 + 1, rom[compatOffset + j]);
             }
-            compat.put(pkmn, flags);
         }
         return compat;
     }
 
     @Override
-    public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData) {
+    public void setTMHMCompatibilityMatrix(CompatibilityMatrix compat) {
         int offset = romEntry.getValue("PokemonTMHMCompat");
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
+        for (int i = 1; i <= numRealPokemon; i++) {
+            Pokemon pkmn = pokemonList.get(i);
             int compatOffset = offset + (pokedexToInternal[pkmn.number]) * 8;
             for (int j = 0; j < 8; j++) {
-                rom[compatOffset + j] = getByteFromFlags(flags, j * 8 + 1);
+                rom[compatOffset + j] = (byte) compat.getByte(pkmn.number, j * 8 + 1);
             }
         }
     }
@@ -1891,7 +1865,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public List<Integer> getMoveTutorMoves() {
+    protected List<Integer> readMoveTutorMoves() {
         if (!hasMoveTutors()) {
             return new ArrayList<Integer>();
         }
@@ -1905,7 +1879,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     }
 
     @Override
-    public void setMoveTutorMoves(List<Integer> moves) {
+    protected void writeMoveTutorMoves(List<Integer> moves) {
         if (!hasMoveTutors()) {
             return;
         }
@@ -2392,6 +2366,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     @Override
     public void setTrainerNames(List<String> trainerNames) {
+        invalidateCachedTrainers();
         int baseOffset = romEntry.getValue("TrainerData");
         int amount = romEntry.getValue("TrainerCount");
         int entryLen = romEntry.getValue("TrainerEntrySize");
@@ -2434,6 +2409,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     @Override
     public void setTrainerClassNames(List<String> trainerClassNames) {
+        invalidateCachedTrainers();
         int baseOffset = romEntry.getValue("TrainerClassNames");
         int amount = romEntry.getValue("TrainerClassCount");
         int length = romEntry.getValue("TrainerClassNameLength");
@@ -2499,7 +2475,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     @Override
     public int internalStringLength(String string) {
-        return translateString(string).length;
+        return textTable.encodedLength(string);
     }
 
     @Override
@@ -2650,6 +2626,16 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
         int mbpsOffset = romEntry.getValue("MapHeaders");
         int mapLabels = romEntry.getValue("MapLabels");
         Map<Integer, String> mapLabelsM = new HashMap<Integer, String>();
+        // TM/tutor text entries by bank << 8 | map, so each map looks up its
+        // own instead of checking them all
+        Map<Integer, List<TMOrMTTextEntry>> textsByMap = new HashMap<Integer, List<TMOrMTTextEntry>>();
+        for (TMOrMTTextEntry tte : romEntry.tmmtTexts) {
+            int key = tte.mapBank << 8 | tte.mapNumber;
+            if (!textsByMap.containsKey(key)) {
+                textsByMap.put(key, new ArrayList<TMOrMTTextEntry>());
+            }
+            textsByMap.get(key).add(tte);
+        }
         for (int bank = 0; bank < bankCount; bank++) {
             int bankOffset = readPointer(mbpsOffset + bank * 4);
             mapNames[bank] = new String[bankMapCounts[bank]];
@@ -2695,8 +2681,9 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
                             }
                         }
                         // TM Text?
-                        for (TMOrMTTextEntry tte : romEntry.tmmtTexts) {
-                            if (tte.mapBank == bank && tte.mapNumber == map) {
+                        List<TMOrMTTextEntry> textsHere = textsByMap.get(bank << 8 | map);
+                        if (textsHere != null) {
+                            for (TMOrMTTextEntry tte : textsHere) {
                                 // process this one
                                 int scriptOffset = readPointer(peopleOffset + (tte.personNum - 1) * 24 + 16);
                                 if (scriptOffset >= 0) {
@@ -2935,6 +2922,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     @Override
     public void removeEvosForPokemonPool() {
+        evolutionsChanged();
         List<Pokemon> pokemonIncluded = this.mainPokemonList;
         Set<Evolution> keepEvos = new HashSet<Evolution>();
         for (Pokemon pk : pokes) {
@@ -3104,7 +3092,12 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     @Override
     public BufferedImage getMascotImage() {
-        Pokemon mascotPk = randomPokemon();
+        return getPokemonSprite(randomPokemon(), false);
+    }
+
+    @Override
+    protected BufferedImage decodePokemonSprite(Pokemon mascotPk, boolean shiny, int variant) {
+        // only the normal palette is located for gen 3
         int mascotPokemon = pokedexToInternal[mascotPk.number];
         int frontSprites = romEntry.getValue("FrontSprites");
         int palettes = romEntry.getValue("PokemonPalettes");
@@ -27,6 +27,7 @@ import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -50,6 +51,7 @@ import com.dabomstew.pkrandom.constants.Gen4Constants;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import com.dabomstew.pkrandom.newnds.NARCArchive;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
 import com.dabomstew.pkrandom.pokemon.Evolution;
@@ -59,6 +61,7 @@ import com.dabomstew.pkrandom.pokemon.IngameTrade;
 import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
 import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
@@ -72,8 +75,14 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
             return new Gen4RomHandler(random, logStream);
         }
 
-        public boolean isLoadable(String filename) {
-            return detectNDSRomInner(getROMCodeFromFile(filename));
+        @Override
+        public boolean isLoadable(RomHeader header) {
+            // NDSRom reads the image in place, so it has to be a plain file
+            if (header.isZipped()) {
+                return false;
+            }
+            String ndsCode = header.getNDSCode();
+            return ndsCode != null && detectNDSRomInner(ndsCode);
         }
     }
 
@@ -112,10 +121,20 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     private static List<RomEntry> roms;
+    private static Map<String, RomEntry> romsByCode;
 
     static {
         loadROMInfo();
+        indexROMInfo();
+    }
 
+    private static void indexROMInfo() {
+        romsByCode = new HashMap<String, RomEntry>();
+        for (RomEntry re : roms) {
+            if (!romsByCode.containsKey(re.romCode)) {
+                romsByCode.put(re.romCode, re);
+            }
+        }
     }
 
     private static void loadROMInfo() {
@@ -255,6 +274,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     private NARCArchive msgNarc;
     private NARCArchive scriptNarc;
     private NARCArchive eventNarc;
+    private int[] itemBallItemOffsets;
     private byte[] arm9;
     private List<String> abilityNames;
     private List<String> itemNames;
@@ -274,17 +294,16 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     private static RomEntry entryFor(String ndsCode) {
-        for (RomEntry re : roms) {
-            if (ndsCode.equals(re.romCode)) {
-                return re;
-            }
+        if (ndsCode == null) {
+            return null;
         }
-        return null;
+        return romsByCode.get(ndsCode);
     }
 
     @Override
     protected void loadedROM(String romCode) {
         this.romEntry = entryFor(romCode);
+        pokemonGraphicsNARC = new SoftReference<NARCArchive>(null);
         try {
             arm9 = readARM9();
         } catch (IOException e) {
@@ -300,6 +319,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
         } catch (IOException e) {
             throw new RandomizerIOException(e);
         }
+        itemBallItemOffsets = null;
         try {
             eventNarc = readNARC(romEntry.getString("Events"));
         } catch (IOException e) {
@@ -769,7 +789,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<EncounterSet> getEncounters(boolean useTimeOfDay) {
+    protected List<EncounterSet> readEncounterSets(boolean useTimeOfDay) {
         if (!loadedWildMapNames) {
             loadWildMapNames();
         }
@@ -1025,7 +1045,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setEncounters(boolean useTimeOfDay, List<EncounterSet> encounters) {
+    protected void writeEncounterSets(boolean useTimeOfDay, List<EncounterSet> encounters) {
         try {
             if (romEntry.romType == Gen4Constants.Type_HGSS) {
                 setEncountersHGSS(useTimeOfDay, encounters);
@@ -1275,7 +1295,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Trainer> getTrainers() {
+    protected List<Trainer> readTrainers() {
         List<Trainer> allTrainers = new ArrayList<Trainer>();
         try {
             NARCArchive trainers = this.readNARC(romEntry.getString("TrainerData"));
@@ -1343,7 +1363,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setTrainers(List<Trainer> trainerData) {
+    protected void writeTrainers(List<Trainer> trainerData) {
         Iterator<Trainer> allTrainers = trainerData.iterator();
         try {
             NARCArchive trainers = this.readNARC(romEntry.getString("TrainerData"));
@@ -1351,7 +1371,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
             // Get current movesets in case we need to reset them for certain
             // trainer mons.
-            Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+            MovesetTable movesets = this.getMovesetTable();
 
             // empty entry
             trpokes.files.add(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
@@ -1417,28 +1437,23 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public Map<Pokemon, List<MoveLearnt>> getMovesLearnt() {
-        Map<Pokemon, List<MoveLearnt>> movesets = new TreeMap<Pokemon, List<MoveLearnt>>();
+    public MovesetTable getMovesetTable() {
+        MovesetTable movesets = new MovesetTable(Gen4Constants.pokemonCount);
         try {
             NARCArchive movesLearnt = this.readNARC(romEntry.getString("PokemonMovesets"));
             for (int i = 1; i <= Gen4Constants.pokemonCount; i++) {
-                Pokemon pkmn = pokes[i];
                 byte[] rom = movesLearnt.files.get(i);
                 int moveDataLoc = 0;
-                List<MoveLearnt> learnt = new ArrayList<MoveLearnt>();
+                movesets.startMoveset(i);
                 while ((rom[moveDataLoc] & 0xFF) != 0xFF || (rom[moveDataLoc + 1] & 0xFF) != 0xFF) {
                     int move = (rom[moveDataLoc] & 0xFF);
                     int level = (rom[moveDataLoc + 1] & 0xFE) >> 1;
                     if ((rom[moveDataLoc + 1] & 0x01) == 0x01) {
                         move += 256;
                     }
-                    MoveLearnt ml = new MoveLearnt();
-                    ml.level = level;
-                    ml.move = move;
-                    learnt.add(ml);
+                    movesets.addMove(level, move);
                     moveDataLoc += 2;
                 }
-                movesets.put(pkmn, learnt);
             }
         } catch (IOException e) {
             throw new RandomizerIOException(e);
@@ -1447,7 +1462,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets) {
+    public void setMovesetTable(MovesetTable movesets) {
         int[] extraLearnSets = new int[] { 7, 13, 13 };
         // Build up a new NARC
         NARCArchive movesLearnt = new NARCArchive();
@@ -1455,19 +1470,18 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
         byte[] blankSet = new byte[] { (byte) 0xFF, (byte) 0xFF, 0, 0 };
         movesLearnt.files.add(blankSet);
         for (int i = 1; i <= Gen4Constants.pokemonCount; i++) {
-            Pokemon pkmn = pokes[i];
-            List<MoveLearnt> learnt = movesets.get(pkmn);
-            int sizeNeeded = learnt.size() * 2 + 2;
+            int moveCount = movesets.size(i);
+            int sizeNeeded = moveCount * 2 + 2;
             if ((sizeNeeded % 4) != 0) {
                 sizeNeeded += 2;
             }
             byte[] moveset = new byte[sizeNeeded];
             int j = 0;
-            for (; j < learnt.size(); j++) {
-                MoveLearnt ml = learnt.get(j);
-                moveset[j * 2] = (byte) (ml.move & 0xFF);
-                int levelPart = (ml.level << 1) & 0xFE;
-                if (ml.move > 255) {
+            for (; j < moveCount; j++) {
+                int move = movesets.getMove(i, j);
+                moveset[j * 2] = (byte) (move & 0xFF);
+                int levelPart = (movesets.getLevel(i, j) << 1) & 0xFE;
+                if (move > 255) {
                     levelPart++;
                 }
                 moveset[j * 2 + 1] = (byte) levelPart;
@@ -1506,7 +1520,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Pokemon> getStaticPokemon() {
+    protected List<Pokemon> readStaticPokemon() {
         List<Pokemon> sp = new ArrayList<Pokemon>();
         if (!romEntry.staticPokemonSupport) {
             return sp;
@@ -1545,7 +1559,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public boolean setStaticPokemon(List<Pokemon> staticPokemon) {
+    protected boolean writeStaticPokemon(List<Pokemon> staticPokemon) {
         if (!romEntry.staticPokemonSupport) {
             return false;
         }
@@ -1617,7 +1631,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Integer> getTMMoves() {
+    protected List<Integer> readTMMoves() {
         String tmDataPrefix;
         if (romEntry.romType == Gen4Constants.Type_DP || romEntry.romType == Gen4Constants.Type_Plat) {
             tmDataPrefix = Gen4Constants.dpptTMDataPrefix;
@@ -1660,7 +1674,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setTMMoves(List<Integer> moveIndexes) {
+    protected void writeTMMoves(List<Integer> moveIndexes) {
         String tmDataPrefix;
         if (romEntry.romType == Gen4Constants.Type_DP || romEntry.romType == Gen4Constants.Type_Plat) {
             tmDataPrefix = Gen4Constants.dpptTMDataPrefix;
@@ -1717,28 +1731,24 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public Map<Pokemon, boolean[]> getTMHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = new TreeMap<Pokemon, boolean[]>();
+    public CompatibilityMatrix getTMHMCompatibilityMatrix() {
+        CompatibilityMatrix compat = new CompatibilityMatrix(Gen4Constants.pokemonCount, Gen4Constants.tmCount
+                + Gen4Constants.hmCount);
         for (int i = 1; i <= Gen4Constants.pokemonCount; i++) {
             byte[] data = pokeNarc.files.get(i);
-            Pokemon pkmn = pokes[i];
-            boolean[] flags = new boolean[Gen4Constants.tmCount + Gen4Constants.hmCount + 1];
             for (int j = 0; j < 13; j++) {
-                readByteIntoFlags(data, flags, j * 8 + 1, Gen4Constants.bsTMHMCompatOffset + j);
+                compat.setByte(i, j * 8 + 1, data[Gen4Constants.bsTMHMCompatOffset + j]);
             }
-            compat.put(pkmn, flags);
         }
         return compat;
     }
 
     @Override
-    public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData) {
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
-            byte[] data = pokeNarc.files.get(pkmn.number);
+    public void setTMHMCompatibilityMatrix(CompatibilityMatrix compat) {
+        for (int i = 1; i <= Gen4Constants.pokemonCount; i++) {
+            byte[] data = pokeNarc.files.get(i);
             for (int j = 0; j < 13; j++) {
-                data[Gen4Constants.bsTMHMCompatOffset + j] = getByteFromFlags(flags, j * 8 + 1);
+                data[Gen4Constants.bsTMHMCompatOffset + j] = (byte) compat.getByte(i, j * 8 + 1);
             }
         }
     }
@@ -1749,7 +1759,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Integer> getMoveTutorMoves() {
+    protected List<Integer> readMoveTutorMoves() {
         if (!hasMoveTutors()) {
             return new ArrayList<Integer>();
         }
@@ -1769,7 +1779,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setMoveTutorMoves(List<Integer> moves) {
+    protected void writeMoveTutorMoves(List<Integer> moves) {
         if (!hasMoveTutors()) {
             return;
         }
@@ -2103,6 +2113,8 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
                 }
             }
         }
+        // the extra entries give some Pokemon a second pre-evolution edge
+        evolutionsChanged();
         logBlankLine();
 
     }
@@ -2131,6 +2143,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     @Override
     public void setTrainerNames(List<String> trainerNames) {
+        invalidateCachedTrainers();
         List<String> oldTNames = getStrings(romEntry.getInt("TrainerNamesTextOffset"));
         List<String> newTNames = new ArrayList<String>(trainerNames);
         for (int i = 0; i < newTNames.size(); i++) {
@@ -2163,6 +2176,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     @Override
     public void setTrainerClassNames(List<String> trainerClassNames) {
+        invalidateCachedTrainers();
         setStrings(romEntry.getInt("TrainerClassesTextOffset"), trainerClassNames);
     }
 
@@ -2232,11 +2246,15 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
         return abilityNames.get(number);
     }
 
-    private List<Integer> getFieldItems() {
-        List<Integer> fieldItems = new ArrayList<Integer>();
-        // normal items
+    // Offsets of the item words of the item ball scripts, in script order.
+    // Only the item words are ever rewritten, so one walk per load does.
+    private int[] itemBallItemOffsets() {
+        if (itemBallItemOffsets != null) {
+            return itemBallItemOffsets;
+        }
         int scriptFile = romEntry.getInt("ItemBallsScriptOffset");
         byte[] itemScripts = scriptNarc.files.get(scriptFile);
+        List<Integer> found = new ArrayList<Integer>();
         int offset = 0;
         int skipTableOffset = 0;
         int[] skipTable = romEntry.arrayEntries.get("ItemBallsSkip");
@@ -2257,10 +2275,22 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
             int command = readWord(itemScripts, offsetInFile);
             int variable = readWord(itemScripts, offsetInFile + 2);
             if (command == setVar && variable == Gen4Constants.itemScriptVariable) {
-                int item = readWord(itemScripts, offsetInFile + 4);
-                fieldItems.add(item);
+                found.add(offsetInFile + 4);
             }
+        }
+        itemBallItemOffsets = new int[found.size()];
+        for (int i = 0; i < itemBallItemOffsets.length; i++) {
+            itemBallItemOffsets[i] = found.get(i);
+        }
+        return itemBallItemOffsets;
+    }
 
+    private List<Integer> getFieldItems() {
+        List<Integer> fieldItems = new ArrayList<Integer>();
+        // normal items
+        byte[] itemScripts = scriptNarc.files.get(romEntry.getInt("ItemBallsScriptOffset"));
+        for (int itemOffset : itemBallItemOffsets()) {
+            fieldItems.add(readWord(itemScripts, itemOffset));
         }
 
         // hidden items
@@ -2278,31 +2308,9 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
         Iterator<Integer> iterItems = fieldItems.iterator();
 
         // normal items
-        int scriptFile = romEntry.getInt("ItemBallsScriptOffset");
-        byte[] itemScripts = scriptNarc.files.get(scriptFile);
-        int offset = 0;
-        int skipTableOffset = 0;
-        int[] skipTable = romEntry.arrayEntries.get("ItemBallsSkip");
-        int setVar = romEntry.romType == Gen4Constants.Type_HGSS ? Gen4Constants.hgssSetVarScript
-                : Gen4Constants.dpptSetVarScript;
-        while (true) {
-            int part1 = readWord(itemScripts, offset);
-            if (part1 == Gen4Constants.scriptListTerminator) {
-                // done
-                break;
-            }
-            int offsetInFile = readRelativePointer(itemScripts, offset);
-            offset += 4;
-            if (skipTableOffset < skipTable.length && (skipTable[skipTableOffset] == (offset / 4) - 1)) {
-                skipTableOffset++;
-                continue;
-            }
-            int command = readWord(itemScripts, offsetInFile);
-            int variable = readWord(itemScripts, offsetInFile + 2);
-            if (command == setVar && variable == Gen4Constants.itemScriptVariable) {
-                int item = iterItems.next();
-                writeWord(itemScripts, offsetInFile + 4, item);
-            }
+        byte[] itemScripts = scriptNarc.files.get(romEntry.getInt("ItemBallsScriptOffset"));
+        for (int itemOffset : itemBallItemOffsets()) {
+            writeWord(itemScripts, itemOffset, iterItems.next());
         }
 
         // hidden items
@@ -2522,6 +2530,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     @Override
     public void removeEvosForPokemonPool() {
+        evolutionsChanged();
         // slightly more complicated than gen2/3
         // we have to update a "baby table" too
         List<Pokemon> pokemonIncluded = this.mainPokemonList;
@@ -2642,7 +2651,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
         }
 
         try {
-            FileFunctions.applyPatch(data, patchName);
+            applyIPSPatch(data, patchName);
             return true;
         } catch (IOException e) {
             throw new RandomizerIOException(e);
@@ -2666,13 +2675,33 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     @Override
     public BufferedImage getMascotImage() {
+        Pokemon pk = randomPokemon();
+        int variant = random.nextInt(2);
+        boolean shiny = random.nextInt(10) == 0;
+        return variant == 0 ? getPokemonSprite(pk, shiny) : decodePokemonSprite(pk, shiny, variant);
+    }
+
+    // Read on first use and kept while memory allows; sprites for a whole
+    // atlas are decoded from it on several threads.
+    private SoftReference<NARCArchive> pokemonGraphicsNARC = new SoftReference<NARCArchive>(null);
+
+    private synchronized NARCArchive getPokemonGraphicsNARC() throws IOException {
+        NARCArchive narc = pokemonGraphicsNARC.get();
+        if (narc == null) {
+            narc = this.readNARC(romEntry.getString("PokemonGraphics"));
+            pokemonGraphicsNARC = new SoftReference<NARCArchive>(narc);
+        }
+        return narc;
+    }
+
+    @Override
+    protected BufferedImage decodePokemonSprite(Pokemon pk, boolean shiny, int variant) {
         try {
-            Pokemon pk = randomPokemon();
-            NARCArchive pokespritesNARC = this.readNARC(romEntry.getString("PokemonGraphics"));
-            int spriteIndex = pk.number * 6 + 2 + random.nextInt(2);
+            NARCArchive pokespritesNARC = getPokemonGraphicsNARC();
+            // the two front sprites (female and male) are files 2 and 3
+            int spriteIndex = pk.number * 6 + 2 + variant;
             int palIndex = pk.number * 6 + 4;
-            if (random.nextInt(10) == 0) {
-                // shiny
+            if (shiny) {
                 palIndex++;
             }
 
@@ -2713,10 +2742,11 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
             // Deliberately chop off the right half of the image while still
             // correctly indexing the array.
             BufferedImage bim = new BufferedImage(80, 80, BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = GFXFunctions.getPixels(bim);
             for (int y = 0; y < 80; y++) {
                 for (int x = 0; x < 80; x++) {
                     int value = ((spriteData[y * 40 + x / 4]) >> (x % 4) * 4) & 0x0F;
-                    bim.setRGB(x, y, palette[value]);
+                    pixels[y * 80 + x] = palette[value];
                 }
             }
             return bim;
@@ -0,0 +1,197 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  Gen5AreaData.java - keeps the BW2 Pokedex area data in step with the  --*/
+/*--                      wild encounter files, one species at a time.      --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.dabomstew.pkrandom.constants.Gen5Constants;
+
+/**
+ * The PokemonAreaData entries of a BW2 ROM, worked out from its wild
+ * encounter files. Each encounter file is parsed into the area bits it sets,
+ * per season, and remembered along with the bytes it came from, plus which
+ * files each species appears in. On update only the files whose bytes
+ * changed are parsed again, and only the species they had or now have get
+ * their entries rebuilt.
+ *
+ * An entry is 1, then per season an "unobtainable" byte followed by one
+ * byte per map area holding a bit per encounter type.
+ */
+class Gen5AreaData {
+
+    private static final int SEASONS = 4;
+    private static final int SEASON_LENGTH = Gen5Constants.bw2EncounterAreaCount + 1;
+    // files parsed in one go before the seasons are split across threads
+    private static final int PARALLEL_FILES = 64;
+
+    // per encounter file: its map area, or -1 if it isn't shown
+    private final int[] areaIndexes;
+    // per file and season: species << 12 | bit << 9 | position in entry
+    private int[][] contributions;
+    private byte[][] parsedFiles;
+    private BitSet[] filesBySpecies;
+
+    Gen5AreaData(int[] areaIndexes) {
+        this.areaIndexes = areaIndexes;
+    }
+
+    /**
+     * Brings areaFiles (one entry per species, species 1 first) in line with
+     * encounterFiles. Entries that come out the same as before are left as
+     * they are. Returns whether any entry was replaced.
+     */
+    boolean update(List<byte[]> encounterFiles, List<byte[]> areaFiles) {
+        int fileCount = encounterFiles.size();
+        boolean[] dirty = new boolean[Gen5Constants.pokemonCount + 1];
+        int[] toParse;
+        if (contributions == null || parsedFiles.length != fileCount) {
+            contributions = new int[fileCount * SEASONS][];
+            parsedFiles = new byte[fileCount][];
+            filesBySpecies = new BitSet[Gen5Constants.pokemonCount + 1];
+            for (int sp = 0; sp < filesBySpecies.length; sp++) {
+                filesBySpecies[sp] = new BitSet(fileCount);
+            }
+            Arrays.fill(dirty, true);
+            toParse = IntStream.range(0, fileCount).toArray();
+        } else {
+            toParse = IntStream.range(0, fileCount)
+                    .filter(f -> !Arrays.equals(parsedFiles[f], encounterFiles.get(f))).toArray();
+            for (int f : toParse) {
+                forget(f, dirty);
+            }
+        }
+
+        // the seasons are independent, and so are their slots
+        IntStream seasons = IntStream.range(0, SEASONS);
+        if (toParse.length >= PARALLEL_FILES) {
+            seasons = seasons.parallel();
+        }
+        seasons.forEach(s -> {
+            for (int f : toParse) {
+                contributions[f * SEASONS + s] = parse(encounterFiles.get(f), f, s);
+            }
+        });
+        for (int f : toParse) {
+            parsedFiles[f] = encounterFiles.get(f).clone();
+            for (int s = 0; s < SEASONS; s++) {
+                for (int c : contributions[f * SEASONS + s]) {
+                    filesBySpecies[c >>> 12].set(f);
+                    dirty[c >>> 12] = true;
+                }
+            }
+        }
+
+        return rebuild(dirty, areaFiles);
+    }
+
+    // Drops file f from the index, marking its species dirty
+    private void forget(int f, boolean[] dirty) {
+        for (int s = 0; s < SEASONS; s++) {
+            for (int c : contributions[f * SEASONS + s]) {
+                filesBySpecies[c >>> 12].clear(f);
+                dirty[c >>> 12] = true;
+            }
+        }
+    }
+
+    private boolean rebuild(boolean[] dirty, List<byte[]> areaFiles) {
+        byte[][] entries = new byte[dirty.length][];
+        BitSet files = new BitSet();
+        for (int sp = 1; sp < dirty.length; sp++) {
+            if (dirty[sp]) {
+                entries[sp] = new byte[Gen5Constants.bw2AreaDataEntryLength];
+                entries[sp][0] = 1;
+                files.or(filesBySpecies[sp]);
+            }
+        }
+        for (int f = files.nextSetBit(0); f >= 0; f = files.nextSetBit(f + 1)) {
+            for (int s = 0; s < SEASONS; s++) {
+                for (int c : contributions[f * SEASONS + s]) {
+                    byte[] entry = entries[c >>> 12];
+                    if (entry != null) {
+                        entry[c & 0x1FF] |= 1 << ((c >>> 9) & 7);
+                    }
+                }
+            }
+        }
+
+        boolean changed = false;
+        for (int sp = 1; sp < dirty.length; sp++) {
+            byte[] entry = entries[sp];
+            if (entry == null) {
+                continue;
+            }
+            for (int s = 0; s < SEASONS; s++) {
+                boolean unobtainable = true;
+                for (int e = 0; e < Gen5Constants.bw2EncounterAreaCount; e++) {
+                    if (entry[s * SEASON_LENGTH + e + 2] != 0) {
+                        unobtainable = false;
+                        break;
+                    }
+                }
+                if (unobtainable) {
+                    entry[s * SEASON_LENGTH + 1] = 1;
+                }
+            }
+            if (!Arrays.equals(entry, areaFiles.get(sp - 1))) {
+                areaFiles.set(sp - 1, entry);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private int[] parse(byte[] entry, int fileNumber, int season) {
+        int areaIndex = areaIndexes[fileNumber];
+        if (areaIndex == -1) {
+            return new int[0];
+        }
+        // single-season files cover all four
+        int startOffset = entry.length > Gen5Constants.perSeasonEncounterDataLength ? season
+                * Gen5Constants.perSeasonEncounterDataLength : 0;
+        int position = season * SEASON_LENGTH + 2 + areaIndex;
+        int[] amounts = Gen5Constants.encountersOfEachType;
+
+        int[] found = new int[Gen5Constants.perSeasonEncounterDataLength / 4];
+        int count = 0;
+        int offset = 8;
+        for (int i = 0; i < amounts.length; i++) {
+            int rate = entry[startOffset + i] & 0xFF;
+            if (rate != 0) {
+                for (int e = 0; e < amounts[i]; e++) {
+                    int species = (entry[startOffset + offset + e * 4] & 0xFF)
+                            + ((entry[startOffset + offset + 1 + e * 4] & 0x03) << 8);
+                    found[count++] = species << 12 | i << 9 | position;
+                }
+            }
+            offset += amounts[i] * 4;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+}
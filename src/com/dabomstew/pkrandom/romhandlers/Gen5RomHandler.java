@@ -23,11 +23,11 @@ package com.dabomstew.pkrandom.romhandlers;
 /*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
 /*----------------------------------------------------------------------------*/
 
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -39,6 +39,8 @@ import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import pptxt.PPTxtHandler;
 
@@ -50,6 +52,7 @@ import com.dabomstew.pkrandom.constants.Gen5Constants;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import com.dabomstew.pkrandom.newnds.NARCArchive;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
 import com.dabomstew.pkrandom.pokemon.Evolution;
@@ -59,6 +62,7 @@ import com.dabomstew.pkrandom.pokemon.IngameTrade;
 import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
 import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.TrainerPokemon;
@@ -73,8 +77,14 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
             return new Gen5RomHandler(random, logStream);
         }
 
-        public boolean isLoadable(String filename) {
-            return detectNDSRomInner(getROMCodeFromFile(filename));
+        @Override
+        public boolean isLoadable(RomHeader header) {
+            // NDSRom reads the image in place, so it has to be a plain file
+            if (header.isZipped()) {
+                return false;
+            }
+            String ndsCode = header.getNDSCode();
+            return ndsCode != null && detectNDSRomInner(ndsCode);
         }
     }
 
@@ -119,9 +129,20 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     private static List<RomEntry> roms;
+    private static Map<String, RomEntry> romsByCode;
 
     static {
         loadROMInfo();
+        indexROMInfo();
+    }
+
+    private static void indexROMInfo() {
+        romsByCode = new HashMap<String, RomEntry>();
+        for (RomEntry re : roms) {
+            if (!romsByCode.containsKey(re.romCode)) {
+                romsByCode.put(re.romCode, re);
+            }
+        }
     }
 
     private static void loadROMInfo() {
@@ -269,6 +290,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     private List<String> abilityNames;
     private List<String> itemNames;
     private boolean loadedWildMapNames;
+    private Gen5AreaData areaData;
     private Map<Integer, String> wildMapNames;
     private ItemList allowedItems, nonBadItems;
 
@@ -287,18 +309,13 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
         if (ndsCode == null) {
             return null;
         }
-
-        for (RomEntry re : roms) {
-            if (ndsCode.equals(re.romCode)) {
-                return re;
-            }
-        }
-        return null;
+        return romsByCode.get(ndsCode);
     }
 
     @Override
     protected void loadedROM(String romCode) {
         this.romEntry = entryFor(romCode);
+        pokemonGraphicsNARC = new SoftReference<NARCArchive>(null);
         try {
             arm9 = readARM9();
         } catch (IOException e) {
@@ -323,6 +340,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
         abilityNames = getStrings(false, romEntry.getInt("AbilityNamesTextOffset"));
         itemNames = getStrings(false, romEntry.getInt("ItemNamesTextOffset"));
         loadedWildMapNames = false;
+        areaData = null;
 
         allowedItems = Gen5Constants.allowedItems.copy();
         nonBadItems = Gen5Constants.nonBadItems.copy();
@@ -598,9 +616,14 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
             // Starter sprites
             NARCArchive starterNARC = this.readNARC(romEntry.getString("StarterGraphics"));
             NARCArchive pokespritesNARC = this.readNARC(romEntry.getString("PokemonGraphics"));
-            replaceStarterFiles(starterNARC, pokespritesNARC, 0, newStarters.get(0).number);
-            replaceStarterFiles(starterNARC, pokespritesNARC, 1, newStarters.get(1).number);
-            replaceStarterFiles(starterNARC, pokespritesNARC, 2, newStarters.get(2).number);
+            List<byte[]> starterPics = new ArrayList<byte[]>();
+            for (int i = 0; i < 3; i++) {
+                starterPics.add(pokespritesNARC.files.get(newStarters.get(i).number * 20));
+            }
+            starterPics = DSDecmp.DecompressAll(starterPics);
+            for (int i = 0; i < 3; i++) {
+                replaceStarterFiles(starterNARC, pokespritesNARC, i, newStarters.get(i).number, starterPics.get(i));
+            }
             writeNARC(romEntry.getString("StarterGraphics"), starterNARC);
         } catch (IOException ex) {
             throw new RandomizerIOException(ex);
@@ -659,12 +682,8 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     private void replaceStarterFiles(NARCArchive starterNARC, NARCArchive pokespritesNARC, int starterIndex,
-            int pokeNumber) throws IOException, InterruptedException {
+            int pokeNumber, byte[] uncompressedPic) throws IOException, InterruptedException {
         starterNARC.files.set(starterIndex * 2, pokespritesNARC.files.get(pokeNumber * 20 + 18));
-        // Get the picture...
-        byte[] compressedPic = pokespritesNARC.files.get(pokeNumber * 20);
-        // Decompress it with JavaDSDecmp
-        byte[] uncompressedPic = DSDecmp.Decompress(compressedPic);
         starterNARC.files.set(12 + starterIndex, uncompressedPic);
     }
 
@@ -674,7 +693,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<EncounterSet> getEncounters(boolean useTimeOfDay) {
+    protected List<EncounterSet> readEncounterSets(boolean useTimeOfDay) {
         if (!loadedWildMapNames) {
             loadWildMapNames();
         }
@@ -737,7 +756,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setEncounters(boolean useTimeOfDay, List<EncounterSet> encountersList) {
+    protected void writeEncounterSets(boolean useTimeOfDay, List<EncounterSet> encountersList) {
         try {
             NARCArchive encounterNARC = readNARC(romEntry.getString("WildPokemon"));
             Iterator<EncounterSet> encounters = encountersList.iterator();
@@ -806,44 +825,12 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
                 // Area Data
                 NARCArchive areaNARC = this.readNARC(romEntry.getString("PokemonAreaData"));
-                List<byte[]> newFiles = new ArrayList<byte[]>();
-                for (int i = 0; i < Gen5Constants.pokemonCount; i++) {
-                    byte[] nf = new byte[Gen5Constants.bw2AreaDataEntryLength];
-                    nf[0] = 1;
-                    newFiles.add(nf);
-                }
-                // Get data now
-                for (int i = 0; i < encounterNARC.files.size(); i++) {
-                    byte[] encEntry = encounterNARC.files.get(i);
-                    if (encEntry.length > Gen5Constants.perSeasonEncounterDataLength) {
-                        for (int s = 0; s < 4; s++) {
-                            parseAreaData(encEntry, s * Gen5Constants.perSeasonEncounterDataLength, newFiles, s, i);
-                        }
-                    } else {
-                        for (int s = 0; s < 4; s++) {
-                            parseAreaData(encEntry, 0, newFiles, s, i);
-                        }
-                    }
+                if (areaData == null) {
+                    areaData = new Gen5AreaData(bw2AreaIndexes(encounterNARC.files.size()));
                 }
-                // Now update unobtainables & save
-                for (int i = 0; i < Gen5Constants.pokemonCount; i++) {
-                    byte[] file = newFiles.get(i);
-                    for (int s = 0; s < 4; s++) {
-                        boolean unobtainable = true;
-                        for (int e = 0; e < Gen5Constants.bw2EncounterAreaCount; e++) {
-                            if (file[s * (Gen5Constants.bw2EncounterAreaCount + 1) + e + 2] != 0) {
-                                unobtainable = false;
-                                break;
-                            }
-                        }
-                        if (unobtainable) {
-                            file[s * (Gen5Constants.bw2EncounterAreaCount + 1) + 1] = 1;
-                        }
-                    }
-                    areaNARC.files.set(i, file);
+                if (areaData.update(encounterNARC.files, areaNARC.files)) {
+                    this.writeNARC(romEntry.getString("PokemonAreaData"), areaNARC);
                 }
-                // Save
-                this.writeNARC(romEntry.getString("PokemonAreaData"), areaNARC);
             }
         } catch (IOException e) {
             throw new RandomizerIOException(e);
@@ -851,65 +838,59 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     }
 
-    private void parseAreaData(byte[] entry, int startOffset, List<byte[]> areaData, int season, int fileNumber) {
-        int[] amounts = Gen5Constants.encountersOfEachType;
-
-        int offset = 8;
-        for (int i = 0; i < 7; i++) {
-            int rate = entry[startOffset + i] & 0xFF;
-            if (rate != 0) {
-                for (int e = 0; e < amounts[i]; e++) {
-                    Pokemon pkmn = pokes[((entry[startOffset + offset + e * 4] & 0xFF) + ((entry[startOffset + offset
-                            + 1 + e * 4] & 0x03) << 8))];
-                    byte[] pokeFile = areaData.get(pkmn.number - 1);
-                    int areaIndex = Gen5Constants.wildFileToAreaMap[fileNumber];
-                    // Route 4?
-                    if (areaIndex == Gen5Constants.bw2Route4AreaIndex) {
-                        if ((fileNumber == Gen5Constants.b2Route4EncounterFile && romEntry.romCode.charAt(2) == 'D')
-                                || (fileNumber == Gen5Constants.w2Route4EncounterFile && romEntry.romCode.charAt(2) == 'E')) {
-                            areaIndex = -1; // wrong version
-                        }
+    // The map area each wild encounter file shows up in on the Pokedex, or -1
+    // for files that aren't shown or belong to the other version.
+    private int[] bw2AreaIndexes(int fileCount) {
+        int[] areaIndexes = new int[fileCount];
+        for (int fileNumber = 0; fileNumber < fileCount; fileNumber++) {
+            if (fileNumber >= Gen5Constants.wildFileToAreaMap.length) {
+                areaIndexes[fileNumber] = -1;
+                continue;
+            }
+            int areaIndex = Gen5Constants.wildFileToAreaMap[fileNumber];
+            // Route 4?
+            if (areaIndex == Gen5Constants.bw2Route4AreaIndex) {
+                if ((fileNumber == Gen5Constants.b2Route4EncounterFile && romEntry.romCode.charAt(2) == 'D')
+                        || (fileNumber == Gen5Constants.w2Route4EncounterFile && romEntry.romCode.charAt(2) == 'E')) {
+                    areaIndex = -1; // wrong version
+                }
+            }
+            // Victory Road?
+            if (areaIndex == Gen5Constants.bw2VictoryRoadAreaIndex) {
+                if (romEntry.romCode.charAt(2) == 'D') {
+                    // White 2
+                    if (fileNumber == Gen5Constants.b2VRExclusiveRoom1
+                            || fileNumber == Gen5Constants.b2VRExclusiveRoom2) {
+                        areaIndex = -1; // wrong version
                     }
-                    // Victory Road?
-                    if (areaIndex == Gen5Constants.bw2VictoryRoadAreaIndex) {
-                        if (romEntry.romCode.charAt(2) == 'D') {
-                            // White 2
-                            if (fileNumber == Gen5Constants.b2VRExclusiveRoom1
-                                    || fileNumber == Gen5Constants.b2VRExclusiveRoom2) {
-                                areaIndex = -1; // wrong version
-                            }
-                        } else {
-                            // Black 2
-                            if (fileNumber == Gen5Constants.w2VRExclusiveRoom1
-                                    || fileNumber == Gen5Constants.w2VRExclusiveRoom2) {
-                                areaIndex = -1; // wrong version
-                            }
-                        }
+                } else {
+                    // Black 2
+                    if (fileNumber == Gen5Constants.w2VRExclusiveRoom1
+                            || fileNumber == Gen5Constants.w2VRExclusiveRoom2) {
+                        areaIndex = -1; // wrong version
                     }
-                    // Reversal Mountain?
-                    if (areaIndex == Gen5Constants.bw2ReversalMountainAreaIndex) {
-                        if (romEntry.romCode.charAt(2) == 'D') {
-                            // White 2
-                            if (fileNumber >= Gen5Constants.b2ReversalMountainStart
-                                    && fileNumber <= Gen5Constants.b2ReversalMountainEnd) {
-                                areaIndex = -1; // wrong version
-                            }
-                        } else {
-                            // Black 2
-                            if (fileNumber >= Gen5Constants.w2ReversalMountainStart
-                                    && fileNumber <= Gen5Constants.w2ReversalMountainEnd) {
-                                areaIndex = -1; // wrong version
-                            }
-                        }
+                }
+            }
+            // Reversal Mountain?
+            if (areaIndex == Gen5Constants.bw2ReversalMountainAreaIndex) {
+                if (romEntry.romCode.charAt(2) == 'D') {
+                    // White 2
+                    if (fileNumber >= Gen5Constants.b2ReversalMountainStart
+                            && fileNumber <= Gen5Constants.b2ReversalMountainEnd) {
+                        areaIndex = -1; // wrong version
                     }
-                    // Skip stuff that isn't on the map or is wrong version
-                    if (areaIndex != -1) {
-                        pokeFile[season * (Gen5Constants.bw2EncounterAreaCount + 1) + 2 + areaIndex] |= (1 << i);
+                } else {
+                    // Black 2
+                    if (fileNumber >= Gen5Constants.w2ReversalMountainStart
+                            && fileNumber <= Gen5Constants.w2ReversalMountainEnd) {
+                        areaIndex = -1; // wrong version
                     }
                 }
             }
-            offset += amounts[i] * 4;
+            // Skip stuff that isn't on the map or is wrong version
+            areaIndexes[fileNumber] = areaIndex;
         }
+        return areaIndexes;
     }
 
     @SuppressWarnings("unused")
@@ -986,7 +967,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Trainer> getTrainers() {
+    protected List<Trainer> readTrainers() {
         List<Trainer> allTrainers = new ArrayList<Trainer>();
         try {
             NARCArchive trainers = this.readNARC(romEntry.getString("TrainerData"));
@@ -1082,14 +1063,14 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setTrainers(List<Trainer> trainerData) {
+    protected void writeTrainers(List<Trainer> trainerData) {
         Iterator<Trainer> allTrainers = trainerData.iterator();
         try {
             NARCArchive trainers = this.readNARC(romEntry.getString("TrainerData"));
             NARCArchive trpokes = new NARCArchive();
             // Get current movesets in case we need to reset them for certain
             // trainer mons.
-            Map<Pokemon, List<MoveLearnt>> movesets = this.getMovesLearnt();
+            MovesetTable movesets = this.getMovesetTable();
             // empty entry
             trpokes.files.add(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
             int trainernum = trainers.files.size();
@@ -1176,25 +1157,18 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public Map<Pokemon, List<MoveLearnt>> getMovesLearnt() {
-        Map<Pokemon, List<MoveLearnt>> movesets = new TreeMap<Pokemon, List<MoveLearnt>>();
+    public MovesetTable getMovesetTable() {
+        MovesetTable movesets = new MovesetTable(Gen5Constants.pokemonCount);
         try {
             NARCArchive movesLearnt = this.readNARC(romEntry.getString("PokemonMovesets"));
             for (int i = 1; i <= Gen5Constants.pokemonCount; i++) {
-                Pokemon pkmn = pokes[i];
                 byte[] movedata = movesLearnt.files.get(i);
                 int moveDataLoc = 0;
-                List<MoveLearnt> learnt = new ArrayList<MoveLearnt>();
+                movesets.startMoveset(i);
                 while (readWord(movedata, moveDataLoc) != 0xFFFF || readWord(movedata, moveDataLoc + 2) != 0xFFFF) {
-                    int move = readWord(movedata, moveDataLoc);
-                    int level = readWord(movedata, moveDataLoc + 2);
-                    MoveLearnt ml = new MoveLearnt();
-                    ml.level = level;
-                    ml.move = move;
-                    learnt.add(ml);
+                    movesets.addMove(readWord(movedata, moveDataLoc + 2), readWord(movedata, moveDataLoc));
                     moveDataLoc += 4;
                 }
-                movesets.put(pkmn, learnt);
             }
         } catch (IOException e) {
             throw new RandomizerIOException(e);
@@ -1203,19 +1177,17 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets) {
+    public void setMovesetTable(MovesetTable movesets) {
         try {
             NARCArchive movesLearnt = readNARC(romEntry.getString("PokemonMovesets"));
             for (int i = 1; i <= Gen5Constants.pokemonCount; i++) {
-                Pokemon pkmn = pokes[i];
-                List<MoveLearnt> learnt = movesets.get(pkmn);
-                int sizeNeeded = learnt.size() * 4 + 4;
+                int moveCount = movesets.size(i);
+                int sizeNeeded = moveCount * 4 + 4;
                 byte[] moveset = new byte[sizeNeeded];
                 int j = 0;
-                for (; j < learnt.size(); j++) {
-                    MoveLearnt ml = learnt.get(j);
-                    writeWord(moveset, j * 4, ml.move);
-                    writeWord(moveset, j * 4 + 2, ml.level);
+                for (; j < moveCount; j++) {
+                    writeWord(moveset, j * 4, movesets.getMove(i, j));
+                    writeWord(moveset, j * 4 + 2, movesets.getLevel(i, j));
                 }
                 writeWord(moveset, j * 4, 0xFFFF);
                 writeWord(moveset, j * 4 + 2, 0xFFFF);
@@ -1252,7 +1224,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Pokemon> getStaticPokemon() {
+    protected List<Pokemon> readStaticPokemon() {
         List<Pokemon> sp = new ArrayList<Pokemon>();
         if (!romEntry.staticPokemonSupport) {
             return sp;
@@ -1265,7 +1237,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public boolean setStaticPokemon(List<Pokemon> staticPokemon) {
+    protected boolean writeStaticPokemon(List<Pokemon> staticPokemon) {
         if (!romEntry.staticPokemonSupport) {
             return false;
         }
@@ -1354,7 +1326,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
         }
 
         try {
-            FileFunctions.applyPatch(data, patchName);
+            applyIPSPatch(data, patchName);
             return true;
         } catch (IOException e) {
             throw new RandomizerIOException(e);
@@ -1362,7 +1334,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Integer> getTMMoves() {
+    protected List<Integer> readTMMoves() {
         String tmDataPrefix = Gen5Constants.tmDataPrefix;
         int offset = find(arm9, tmDataPrefix);
         if (offset > 0) {
@@ -1402,7 +1374,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setTMMoves(List<Integer> moveIndexes) {
+    protected void writeTMMoves(List<Integer> moveIndexes) {
         String tmDataPrefix = Gen5Constants.tmDataPrefix;
         int offset = find(arm9, tmDataPrefix);
         if (offset > 0) {
@@ -1483,28 +1455,24 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public Map<Pokemon, boolean[]> getTMHMCompatibility() {
-        Map<Pokemon, boolean[]> compat = new TreeMap<Pokemon, boolean[]>();
+    public CompatibilityMatrix getTMHMCompatibilityMatrix() {
+        CompatibilityMatrix compat = new CompatibilityMatrix(Gen5Constants.pokemonCount, Gen5Constants.tmCount
+                + Gen5Constants.hmCount);
         for (int i = 1; i <= Gen5Constants.pokemonCount; i++) {
             byte[] data = pokeNarc.files.get(i);
-            Pokemon pkmn = pokes[i];
-            boolean[] flags = new boolean[Gen5Constants.tmCount + Gen5Constants.hmCount + 1];
             for (int j = 0; j < 13; j++) {
-                readByteIntoFlags(data, flags, j * 8 + 1, Gen5Constants.bsTMHMCompatOffset + j);
+                compat.setByte(i, j * 8 + 1, data[Gen5Constants.bsTMHMCompatOffset + j]);
             }
-            compat.put(pkmn, flags);
         }
         return compat;
     }
 
     @Override
-    public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData) {
-        for (Map.Entry<Pokemon, boolean[]> compatEntry : compatData.entrySet()) {
-            Pokemon pkmn = compatEntry.getKey();
-            boolean[] flags = compatEntry.getValue();
-            byte[] data = pokeNarc.files.get(pkmn.number);
+    public void setTMHMCompatibilityMatrix(CompatibilityMatrix compat) {
+        for (int i = 1; i <= Gen5Constants.pokemonCount; i++) {
+            byte[] data = pokeNarc.files.get(i);
             for (int j = 0; j < 13; j++) {
-                data[Gen5Constants.bsTMHMCompatOffset + j] = getByteFromFlags(flags, j * 8 + 1);
+                data[Gen5Constants.bsTMHMCompatOffset + j] = (byte) compat.getByte(i, j * 8 + 1);
             }
         }
     }
@@ -1515,7 +1483,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public List<Integer> getMoveTutorMoves() {
+    protected List<Integer> readMoveTutorMoves() {
         if (!hasMoveTutors()) {
             return new ArrayList<Integer>();
         }
@@ -1535,7 +1503,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     }
 
     @Override
-    public void setMoveTutorMoves(List<Integer> moves) {
+    protected void writeMoveTutorMoves(List<Integer> moves) {
         if (!hasMoveTutors()) {
             return;
         }
@@ -1812,6 +1780,8 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
                 }
             }
         }
+        // the extra entries give some Pokemon a second pre-evolution edge
+        evolutionsChanged();
         logBlankLine();
     }
 
@@ -1841,6 +1811,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     @Override
     public void setTrainerNames(List<String> trainerNames) {
+        invalidateCachedTrainers();
         List<String> tnames = getStrings(false, romEntry.getInt("TrainerNamesTextOffset"));
         // Grab the mugshot names off the back of the list of trainer names
         // we got back
@@ -1882,6 +1853,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     @Override
     public void setTrainerClassNames(List<String> trainerClassNames) {
+        invalidateCachedTrainers();
         setStrings(false, romEntry.getInt("TrainerClassesTextOffset"), trainerClassNames);
     }
 
@@ -2259,6 +2231,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     @Override
     public void removeEvosForPokemonPool() {
+        evolutionsChanged();
         // slightly more complicated than gen2/3
         // we have to update a "baby table" too
         List<Pokemon> pokemonIncluded = this.mainPokemonList;
@@ -2320,46 +2293,106 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     @Override
     public BufferedImage getMascotImage() {
+        return getPokemonSprite(randomPokemon(), false);
+    }
+
+    // Read on first use and kept while memory allows; sprites for a whole
+    // atlas are decoded from it on several threads.
+    private SoftReference<NARCArchive> pokemonGraphicsNARC = new SoftReference<NARCArchive>(null);
+
+    private synchronized NARCArchive getPokemonGraphicsNARC() throws IOException {
+        NARCArchive narc = pokemonGraphicsNARC.get();
+        if (narc == null) {
+            narc = this.readNARC(romEntry.getString("PokemonGraphics"));
+            pokemonGraphicsNARC = new SoftReference<NARCArchive>(narc);
+        }
+        return narc;
+    }
+
+    // 48-byte header, then a 64x144 strip at 4bpp
+    private static final int SPRITE_DATA_LENGTH = 48 + 64 * 144 / 2;
+
+    // sprites are decoded into these rather than a new array each time
+    private static final ThreadLocal<byte[]> spriteBuffer = ThreadLocal.withInitial(() -> new byte[SPRITE_DATA_LENGTH]);
+
+    // Where each block of the 64x144 decoded strip goes on the 96x96 sprite:
+    // { toX, toY, fromX, fromY, width, height }
+    private static final int[][] spriteUnscrambleBlocks = { { 0, 0, 0, 0, 64, 64 }, { 64, 0, 0, 64, 32, 8 },
+            { 64, 8, 32, 64, 32, 8 }, { 64, 16, 0, 72, 32, 8 }, { 64, 24, 32, 72, 32, 8 }, { 64, 32, 0, 80, 32, 8 },
+            { 64, 40, 32, 80, 32, 8 }, { 64, 48, 0, 88, 32, 8 }, { 64, 56, 32, 88, 32, 8 }, { 0, 64, 0, 96, 64, 32 },
+            { 64, 64, 0, 128, 32, 8 }, { 64, 72, 32, 128, 32, 8 }, { 64, 80, 0, 136, 32, 8 },
+            { 64, 88, 32, 136, 32, 8 } };
+
+    @Override
+    protected BufferedImage decodePokemonSprite(Pokemon pk, boolean shiny, int variant) {
+        // only the normal palette and the default sprite are used for gen 5
         try {
-            Pokemon pk = randomPokemon();
-            NARCArchive pokespritesNARC = this.readNARC(romEntry.getString("PokemonGraphics"));
+            NARCArchive pokespritesNARC = getPokemonGraphicsNARC();
 
-            // First prepare the palette, it's the easy bit
-            byte[] rawPalette = pokespritesNARC.files.get(pk.number * 20 + 18);
-            int[] palette = new int[16];
-            for (int i = 1; i < 16; i++) {
-                palette[i] = GFXFunctions.conv16BitColorToARGB(readWord(rawPalette, 40 + i * 2));
+            // Get the picture and uncompress it into this thread's buffer
+            byte[] compressedPic = pokespritesNARC.files.get(pk.number * 20);
+            int length = DSDecmp.getDecompressedLength(compressedPic, 0);
+            if (length < SPRITE_DATA_LENGTH) {
+                return null;
+            }
+            byte[] uncompressedPic = spriteBuffer.get();
+            if (uncompressedPic.length < length) {
+                uncompressedPic = new byte[length];
+                spriteBuffer.set(uncompressedPic);
             }
+            DSDecmp.Decompress(compressedPic, 0, uncompressedPic, 0);
 
-            // Get the picture and uncompress it.
-            byte[] compressedPic = pokespritesNARC.files.get(pk.number * 20);
-            byte[] uncompressedPic = DSDecmp.Decompress(compressedPic);
-
-            // Output to 64x144 tiled image to prepare for unscrambling
-            BufferedImage bim = GFXFunctions.drawTiledImage(uncompressedPic, palette, 48, 64, 144, 4);
-
-            // Unscramble the above onto a 96x96 canvas
-            BufferedImage finalImage = new BufferedImage(96, 96, BufferedImage.TYPE_INT_ARGB);
-            Graphics g = finalImage.getGraphics();
-            g.drawImage(bim, 0, 0, 64, 64, 0, 0, 64, 64, null);
-            g.drawImage(bim, 64, 0, 96, 8, 0, 64, 32, 72, null);
-            g.drawImage(bim, 64, 8, 96, 16, 32, 64, 64, 72, null);
-            g.drawImage(bim, 64, 16, 96, 24, 0, 72, 32, 80, null);
-            g.drawImage(bim, 64, 24, 96, 32, 32, 72, 64, 80, null);
-            g.drawImage(bim, 64, 32, 96, 40, 0, 80, 32, 88, null);
-            g.drawImage(bim, 64, 40, 96, 48, 32, 80, 64, 88, null);
-            g.drawImage(bim, 64, 48, 96, 56, 0, 88, 32, 96, null);
-            g.drawImage(bim, 64, 56, 96, 64, 32, 88, 64, 96, null);
-            g.drawImage(bim, 0, 64, 64, 96, 0, 96, 64, 128, null);
-            g.drawImage(bim, 64, 64, 96, 72, 0, 128, 32, 136, null);
-            g.drawImage(bim, 64, 72, 96, 80, 32, 128, 64, 136, null);
-            g.drawImage(bim, 64, 80, 96, 88, 0, 136, 32, 144, null);
-            g.drawImage(bim, 64, 88, 96, 96, 32, 136, 64, 144, null);
-
-            // Phew, all done.
-            return finalImage;
+            return drawPokemonSprite(pokespritesNARC.files.get(pk.number * 20 + 18), uncompressedPic);
         } catch (IOException e) {
             throw new RandomizerIOException(e);
         }
     }
+
+    @Override
+    protected List<BufferedImage> decodePokemonSprites(final List<Pokemon> pokes, boolean shiny) {
+        // only the normal palette and the default sprite are used for gen 5
+        try {
+            final NARCArchive pokespritesNARC = getPokemonGraphicsNARC();
+
+            // Uncompress all the pictures as one batch, in parallel
+            List<byte[]> compressedPics = new ArrayList<byte[]>(pokes.size());
+            for (Pokemon pk : pokes) {
+                compressedPics.add(pokespritesNARC.files.get(pk.number * 20));
+            }
+            final List<byte[]> uncompressedPics = DSDecmp.DecompressAll(compressedPics);
+
+            return IntStream.range(0, pokes.size()).parallel()
+                    .mapToObj(i -> drawPokemonSprite(pokespritesNARC.files.get(pokes.get(i).number * 20 + 18),
+                            uncompressedPics.get(i)))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+    }
+
+    // The 96x96 sprite from a raw palette and an uncompressed picture, or
+    // null if the picture is missing or too short.
+    private BufferedImage drawPokemonSprite(byte[] rawPalette, byte[] uncompressedPic) {
+        if (uncompressedPic == null || uncompressedPic.length < SPRITE_DATA_LENGTH) {
+            return null;
+        }
+
+        // First prepare the palette, it's the easy bit
+        int[] palette = new int[16];
+        for (int i = 1; i < 16; i++) {
+            palette[i] = GFXFunctions.conv16BitColorToARGB(readWord(rawPalette, 40 + i * 2));
+        }
+
+        // Output to 64x144 tiled image to prepare for unscrambling
+        BufferedImage bim = GFXFunctions.drawTiledImage(uncompressedPic, palette, 48, 64, 144, 4);
+
+        // Unscramble the above onto a 96x96 canvas
+        BufferedImage finalImage = new BufferedImage(96, 96, BufferedImage.TYPE_INT_ARGB);
+        for (int[] block : spriteUnscrambleBlocks) {
+            GFXFunctions.copyRegion(bim, block[2], block[3], finalImage, block[0], block[1], block[4], block[5]);
+        }
+
+        // Phew, all done.
+        return finalImage;
+    }
 }
@@ -0,0 +1,120 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  NamePool.java - custom names with their encoded lengths, sorted so    --*/
+/*--                  length-limited picks need no rejection loop.          --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A list of custom names, each measured once with the handler's
+ * internalStringLength. The names are kept in their original order and in
+ * a copy stably sorted by length, so "names up to n long" and "names exactly
+ * n long" are both contiguous ranges of the sorted copy.
+ *
+ * A pick from a range that covers the whole pool draws from the original
+ * order, so the same seed gives the same name as a plain
+ * list.get(random.nextInt(size)) would.
+ */
+class NamePool {
+
+    private final List<String> names;
+    private final String[] sortedNames;
+    private final int[] sortedLengths;
+    private final int[] sortedSlots;
+
+    NamePool(List<String> names, RomHandler romHandler, int maxLength) {
+        this.names = new ArrayList<String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        int longest = 0;
+        for (String name : names) {
+            int len = romHandler.internalStringLength(name);
+            if (len <= maxLength) {
+                this.names.add(name);
+                lengths.add(len);
+                longest = Math.max(longest, len);
+            }
+        }
+
+        // counting sort: stable, and lengths are small
+        int size = this.names.size();
+        int[] starts = new int[longest + 2];
+        for (int len : lengths) {
+            starts[len + 1]++;
+        }
+        for (int len = 1; len < starts.length; len++) {
+            starts[len] += starts[len - 1];
+        }
+        this.sortedNames = new String[size];
+        this.sortedLengths = new int[size];
+        this.sortedSlots = new int[size];
+        for (int i = 0; i < size; i++) {
+            int slot = starts[lengths.get(i)]++;
+            sortedSlots[i] = slot;
+            sortedNames[slot] = this.names.get(i);
+            sortedLengths[slot] = lengths.get(i);
+        }
+    }
+
+    int size() {
+        return sortedNames.length;
+    }
+
+    boolean isEmpty() {
+        return sortedNames.length == 0;
+    }
+
+    String getSorted(int index) {
+        return sortedNames[index];
+    }
+
+    int lengthOfSorted(int index) {
+        return sortedLengths[index];
+    }
+
+    /** Number of names at most maxLength long; they are sorted 0 to this. */
+    int countUpTo(int maxLength) {
+        int low = 0;
+        int high = sortedLengths.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedLengths[mid] <= maxLength) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Sorted index of a random name in [from, to); to must be above from. */
+    int pick(Random random, int from, int to) {
+        if (from == 0 && to == sortedNames.length) {
+            return sortedSlots[random.nextInt(to)];
+        }
+        return from + random.nextInt(to - from);
+    }
+
+}
@@ -29,17 +29,22 @@ import java.io.PrintStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import com.dabomstew.pkrandom.CustomNamesSet;
+import com.dabomstew.pkrandom.JobMonitor;
 import com.dabomstew.pkrandom.MiscTweak;
 import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
 import com.dabomstew.pkrandom.pokemon.Encounter;
 import com.dabomstew.pkrandom.pokemon.EncounterSet;
+import com.dabomstew.pkrandom.pokemon.EvolutionForest;
 import com.dabomstew.pkrandom.pokemon.GenRestrictions;
 import com.dabomstew.pkrandom.pokemon.IngameTrade;
 import com.dabomstew.pkrandom.pokemon.ItemList;
 import com.dabomstew.pkrandom.pokemon.Move;
 import com.dabomstew.pkrandom.pokemon.MoveLearnt;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
 import com.dabomstew.pkrandom.pokemon.Pokemon;
 import com.dabomstew.pkrandom.pokemon.Trainer;
 import com.dabomstew.pkrandom.pokemon.Type;
@@ -53,7 +58,14 @@ public interface RomHandler {
 
         public abstract RomHandler create(Random random, PrintStream log);
 
-        public abstract boolean isLoadable(String filename);
+        // works only from the header, so checking one file against every
+        // factory costs a single read
+        public abstract boolean isLoadable(RomHeader header);
+
+        public boolean isLoadable(String filename) {
+            RomHeader header = RomHeader.tryRead(filename);
+            return header != null && isLoadable(header);
+        }
     }
 
     // Basic load/save to filenames
@@ -68,10 +80,30 @@ public interface RomHandler {
 
     public void setLog(PrintStream logStream);
 
+    // Optional; long loops and DS file writes check it so a job can be
+    // cancelled part way through. null = not cancellable.
+    public void setJobMonitor(JobMonitor monitor);
+
+    // Snapshots: save some or all of the randomizable data and put it back
+    // later, e.g. to reroll one phase without reloading the ROM.
+
+    public RomSnapshot takeSnapshot();
+
+    public RomSnapshot takeSnapshot(Set<RomSnapshot.Part> parts);
+
+    public void restoreSnapshot(RomSnapshot snapshot);
+
+    // restores only the given parts, which must all be in the snapshot
+    public void restoreSnapshot(RomSnapshot snapshot, Set<RomSnapshot.Part> parts);
+
     // Get a List of Pokemon objects in this game.
     // 0 = null 1-whatever = the Pokemon.
     public List<Pokemon> getPokemon();
 
+    // The "copy up evolutions" chains of getPokemon(), built on first use and
+    // rebuilt after evolutions change.
+    public EvolutionForest getEvolutionForest();
+
     // Setup Gen Restrictions.
     public void setPokemonPool(GenRestrictions restrictions);
 
@@ -223,6 +255,12 @@ public interface RomHandler {
 
     public void setMovesLearnt(Map<Pokemon, List<MoveLearnt>> movesets);
 
+    // same data packed by Pokemon number
+
+    public MovesetTable getMovesetTable();
+
+    public void setMovesetTable(MovesetTable movesets);
+
     public List<Integer> getMovesBannedFromLevelup();
     
     public void removeBrokenMoves();
@@ -278,6 +316,12 @@ public interface RomHandler {
 
     public void setTMHMCompatibility(Map<Pokemon, boolean[]> compatData);
 
+    // same data packed by Pokemon number, same column numbering as above
+
+    public CompatibilityMatrix getTMHMCompatibilityMatrix();
+
+    public void setTMHMCompatibilityMatrix(CompatibilityMatrix compat);
+
     public void randomizeTMHMCompatibility(Settings.TMsHMsCompatibilityMod preferSameType);
 
     public void fullTMHMCompatibility();
@@ -304,6 +348,10 @@ public interface RomHandler {
 
     public void setMoveTutorCompatibility(Map<Pokemon, boolean[]> compatData);
 
+    public CompatibilityMatrix getMoveTutorCompatibilityMatrix();
+
+    public void setMoveTutorCompatibilityMatrix(CompatibilityMatrix compat);
+
     public void randomizeMoveTutorCompatibility(Settings.MoveTutorsCompatibilityMod preferSameType);
 
     public void fullMoveTutorCompatibility();
@@ -449,6 +497,15 @@ public interface RomHandler {
 
     public BufferedImage getMascotImage();
 
+    // Front sprite for one Pokemon, or null if it can't be decoded here.
+    // Cached per species and shared between callers, so don't draw on it.
+    // Safe to call from several threads at once.
+    public BufferedImage getPokemonSprite(Pokemon pk, boolean shiny);
+
+    // The same for many Pokemon at once, in the same order; cheaper than
+    // one at a time where the sprites are compressed.
+    public List<BufferedImage> getPokemonSprites(List<Pokemon> pokes, boolean shiny);
+
     public boolean isROMHack();
 
     public int generationOfPokemon();
@@ -461,4 +518,8 @@ public interface RomHandler {
 
     public void applyMiscTweak(MiscTweak tweak);
 
+    // applies them in the order given; IPS patches among them are written
+    // together at the end, logging the byte ranges they wrote
+    public void applyMiscTweaks(List<MiscTweak> tweaks);
+
 }
@@ -0,0 +1,162 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  RomHeader.java - the start of a ROM file, read once so that every     --*/
+/*--                   handler can check it without reopening the file.     --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * The first HEADER_SIZE bytes of a file plus its length. That covers the
+ * GB/GBC cartridge header (0x100-0x14F), the GBA header (0x00-0xBF) and the
+ * NDS header (0x000-0x1FF), so detection for every generation works from
+ * this one read. Shorter files give a shorter header. For a zipped ROM the
+ * filename is the archive's, the rest is the ROM's.
+ */
+public class RomHeader {
+
+    public static final int HEADER_SIZE = 0x1000;
+
+    private final String filename;
+    private final long fileLength;
+    private final byte[] data;
+    private final boolean zipped;
+
+    public RomHeader(String filename, long fileLength, byte[] data) {
+        this(filename, fileLength, data, false);
+    }
+
+    public RomHeader(String filename, long fileLength, byte[] data, boolean zipped) {
+        this.filename = filename;
+        this.fileLength = fileLength;
+        this.data = data;
+        this.zipped = zipped;
+    }
+
+    /**
+     * The header of the ROM in fh, or of the one ROM inside it if fh is a
+     * ZIP archive (see ZippedRom).
+     */
+    public static RomHeader read(File fh) throws IOException {
+        if (ZippedRom.isZip(fh)) {
+            return ZippedRom.readHeader(fh);
+        }
+        long fileLength = fh.length();
+        FileInputStream fis = new FileInputStream(fh);
+        try {
+            byte[] buf = new byte[(int) Math.min(fileLength, HEADER_SIZE)];
+            int read = 0;
+            while (read < buf.length) {
+                int count = fis.read(buf, read, buf.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new RomHeader(fh.getAbsolutePath(), fileLength, read == buf.length ? buf : Arrays.copyOf(
+                    buf, read));
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Like read, but for the detection paths that treat an unreadable file
+     * as "not a ROM": returns null instead of throwing.
+     */
+    public static RomHeader tryRead(String filename) {
+        File fh = new File(filename);
+        if (!fh.exists() || !fh.isFile() || !fh.canRead()) {
+            return null;
+        }
+        try {
+            return read(fh);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /** Whether the ROM is inside a ZIP archive named by getFilename. */
+    public boolean isZipped() {
+        return zipped;
+    }
+
+    public int length() {
+        return data.length;
+    }
+
+    /** The bytes themselves, not a copy; callers must not change them. */
+    public byte[] getBytes() {
+        return data;
+    }
+
+    public boolean covers(int offset, int length) {
+        return offset >= 0 && offset + length <= data.length;
+    }
+
+    public int readByte(int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    /** ASCII text at offset, or null if the header is too short. */
+    public String readASCII(int offset, int length) {
+        if (!covers(offset, length)) {
+            return null;
+        }
+        try {
+            return new String(data, offset, length, "US-ASCII");
+        } catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
+
+    public boolean startsWith(int... signature) {
+        if (data.length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((data[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // NDS: game code at 0x0C
+    public String getNDSCode() {
+        return readASCII(0x0C, 4);
+    }
+
+}
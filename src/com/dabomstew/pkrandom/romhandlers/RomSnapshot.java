@@ -0,0 +1,197 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  RomSnapshot.java - a saved copy of the randomizable game data that a  --*/
+/*--                     RomHandler can be rolled back to.                  --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.dabomstew.pkrandom.pokemon.CompatibilityMatrix;
+import com.dabomstew.pkrandom.pokemon.EncounterSet;
+import com.dabomstew.pkrandom.pokemon.Evolution;
+import com.dabomstew.pkrandom.pokemon.MovesetTable;
+import com.dabomstew.pkrandom.pokemon.Pokemon;
+import com.dabomstew.pkrandom.pokemon.Trainer;
+
+/**
+ * The state of some parts of a loaded game, taken by
+ * RomHandler.takeSnapshot and put back by RomHandler.restoreSnapshot. Lets
+ * one phase be rolled back and rerolled (say with RandomSource seeded to a
+ * new sub-seed) without reloading the ROM and redoing everything else.
+ *
+ * Trainers, encounters and TM moves share the handler's cached read model,
+ * which is never modified once read, so snapshotting them costs nothing
+ * beyond the first read. Pokemon data and evolutions live in the mutable
+ * Pokemon objects and are copied. Snapshots are only valid for the handler
+ * that took them.
+ */
+public class RomSnapshot {
+
+    public enum Part {
+        // base stats, types, abilities, held items, catch rates etc.
+        POKEMON,
+        EVOLUTIONS,
+        MOVESETS,
+        TRAINERS,
+        ENCOUNTERS,
+        // TM moves and TM/HM compatibility
+        TMS,
+        // field items and field TMs
+        ITEMS
+    }
+
+    final RomHandler owner;
+    final Set<Part> parts;
+
+    // live Pokemon -> copy of its data fields (POKEMON)
+    Map<Pokemon, Pokemon> pokemonData;
+    // live Pokemon -> copies of its evolutions (EVOLUTIONS); the copies
+    // still point at the live Pokemon
+    Map<Pokemon, List<Evolution>> evolutionsFrom, evolutionsTo;
+    MovesetTable movesets;
+    List<Trainer> trainers;
+    List<EncounterSet> encounters;
+    List<Integer> tmMoves;
+    CompatibilityMatrix tmhmCompatibility;
+    List<Integer> regularFieldItems, fieldTMs;
+
+    RomSnapshot(RomHandler owner, Set<Part> parts) {
+        this.owner = owner;
+        this.parts = Collections.unmodifiableSet(EnumSet.copyOf(parts));
+    }
+
+    public Set<Part> getParts() {
+        return parts;
+    }
+
+    public boolean contains(Part part) {
+        return parts.contains(part);
+    }
+
+    /**
+     * The evolutions out of each Pokemon when the snapshot was taken. The
+     * Evolution objects are fresh copies, so callers may keep them.
+     */
+    public Map<Pokemon, List<Evolution>> getEvolutionsFrom() {
+        Map<Pokemon, List<Evolution>> copy = new HashMap<Pokemon, List<Evolution>>();
+        if (evolutionsFrom != null) {
+            for (Map.Entry<Pokemon, List<Evolution>> evoEntry : evolutionsFrom.entrySet()) {
+                List<Evolution> evos = new ArrayList<Evolution>(evoEntry.getValue().size());
+                for (Evolution evo : evoEntry.getValue()) {
+                    evos.add(new Evolution(evo));
+                }
+                copy.put(evoEntry.getKey(), evos);
+            }
+        }
+        return copy;
+    }
+
+    void saveEvolutions(List<Pokemon> pokes) {
+        // copy each Evolution once, so one shared between a from list and
+        // a to list stays shared after a restore
+        Map<Evolution, Evolution> copies = new IdentityHashMap<Evolution, Evolution>();
+        evolutionsFrom = new IdentityHashMap<Pokemon, List<Evolution>>();
+        evolutionsTo = new IdentityHashMap<Pokemon, List<Evolution>>();
+        for (Pokemon pk : pokes) {
+            if (pk != null) {
+                evolutionsFrom.put(pk, copyEvolutions(pk.evolutionsFrom, copies));
+                evolutionsTo.put(pk, copyEvolutions(pk.evolutionsTo, copies));
+            }
+        }
+    }
+
+    void restoreEvolutions() {
+        // restored twice from one snapshot must not share objects either
+        Map<Evolution, Evolution> copies = new IdentityHashMap<Evolution, Evolution>();
+        for (Map.Entry<Pokemon, List<Evolution>> evoEntry : evolutionsFrom.entrySet()) {
+            Pokemon pk = evoEntry.getKey();
+            pk.evolutionsFrom.clear();
+            pk.evolutionsFrom.addAll(copyEvolutions(evoEntry.getValue(), copies));
+            pk.evolutionsTo.clear();
+            pk.evolutionsTo.addAll(copyEvolutions(evolutionsTo.get(pk), copies));
+        }
+    }
+
+    void savePokemonData(List<Pokemon> pokes) {
+        pokemonData = new IdentityHashMap<Pokemon, Pokemon>();
+        for (Pokemon pk : pokes) {
+            if (pk != null) {
+                Pokemon copy = new Pokemon();
+                copyData(pk, copy);
+                pokemonData.put(pk, copy);
+            }
+        }
+    }
+
+    void restorePokemonData() {
+        for (Map.Entry<Pokemon, Pokemon> dataEntry : pokemonData.entrySet()) {
+            copyData(dataEntry.getValue(), dataEntry.getKey());
+        }
+    }
+
+    private static List<Evolution> copyEvolutions(List<Evolution> evos, Map<Evolution, Evolution> copies) {
+        List<Evolution> copied = new ArrayList<Evolution>(evos.size());
+        for (Evolution evo : evos) {
+            Evolution copy = copies.get(evo);
+            if (copy == null) {
+                copy = new Evolution(evo);
+                copies.put(evo, copy);
+            }
+            copied.add(copy);
+        }
+        return copied;
+    }
+
+    // Everything the randomizer can change on a Pokemon except evolutions.
+    private static void copyData(Pokemon from, Pokemon to) {
+        to.primaryType = from.primaryType;
+        to.secondaryType = from.secondaryType;
+        to.hp = from.hp;
+        to.attack = from.attack;
+        to.defense = from.defense;
+        to.spatk = from.spatk;
+        to.spdef = from.spdef;
+        to.speed = from.speed;
+        to.special = from.special;
+        to.ability1 = from.ability1;
+        to.ability2 = from.ability2;
+        to.ability3 = from.ability3;
+        to.catchRate = from.catchRate;
+        to.expYield = from.expYield;
+        to.guaranteedHeldItem = from.guaranteedHeldItem;
+        to.commonHeldItem = from.commonHeldItem;
+        to.rareHeldItem = from.rareHeldItem;
+        to.darkGrassHeldItem = from.darkGrassHeldItem;
+        to.genderRatio = from.genderRatio;
+        to.growthCurve = from.growthCurve;
+        to.shuffledStatsOrder = from.shuffledStatsOrder == null ? null : from.shuffledStatsOrder.clone();
+    }
+
+}
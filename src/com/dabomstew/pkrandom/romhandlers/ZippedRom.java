@@ -0,0 +1,137 @@
+package com.dabomstew.pkrandom.romhandlers;
+
+/*----------------------------------------------------------------------------*/
+/*--  ZippedRom.java - reads a ROM straight out of a ZIP archive holding it. --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import com.dabomstew.pkrandom.FileFunctions;
+
+/**
+ * A ZIP archive holding exactly one file, the ROM. The entry is inflated
+ * straight into the array it's read into, with no temporary file, and its
+ * CRC32 is checked against the archive's as it goes. Archives holding
+ * anything else give a ZipException.
+ */
+public class ZippedRom {
+
+    private static final int[] SIGNATURE = { 0x50, 0x4b, 0x03, 0x04 };
+
+    public static boolean isZip(File fh) {
+        if (!fh.isFile() || fh.length() < SIGNATURE.length) {
+            return false;
+        }
+        try {
+            FileInputStream fis = new FileInputStream(fh);
+            try {
+                for (int b : SIGNATURE) {
+                    if (fis.read() != b) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                fis.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /** The header of the ROM inside; its length is the ROM's. */
+    public static RomHeader readHeader(File fh) throws IOException {
+        ZipFile zip = new ZipFile(fh);
+        try {
+            ZipEntry entry = romEntry(zip);
+            byte[] data = read(zip, entry, RomHeader.HEADER_SIZE);
+            return new RomHeader(fh.getAbsolutePath(), entry.getSize(), data, true);
+        } finally {
+            zip.close();
+        }
+    }
+
+    /** The whole ROM inside, checked against the archive's CRC32. */
+    public static byte[] read(File fh) throws IOException {
+        return read(fh, Integer.MAX_VALUE);
+    }
+
+    /** Up to maxBytes from the start of the ROM inside. */
+    public static byte[] read(File fh, int maxBytes) throws IOException {
+        ZipFile zip = new ZipFile(fh);
+        try {
+            return read(zip, romEntry(zip), maxBytes);
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static ZipEntry romEntry(ZipFile zip) throws ZipException {
+        ZipEntry rom = null;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (rom != null) {
+                throw new ZipException(zip.getName() + " holds more than one file.");
+            }
+            rom = entry;
+        }
+        if (rom == null) {
+            throw new ZipException(zip.getName() + " is empty.");
+        }
+        if (rom.getSize() < 0 || rom.getSize() > Integer.MAX_VALUE) {
+            throw new ZipException(rom.getName() + " is too long to read in as a byte-array.");
+        }
+        return rom;
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry, int maxBytes) throws IOException {
+        int size = (int) entry.getSize();
+        int length = Math.min(size, maxBytes);
+        byte[] data = new byte[length];
+        CheckedInputStream in = new CheckedInputStream(zip.getInputStream(entry), new CRC32());
+        try {
+            FileFunctions.readFully(in, data, 0, length);
+            // only a whole entry can be checked
+            if (length == size) {
+                if (in.read() != -1 || in.getChecksum().getValue() != entry.getCrc()) {
+                    throw new ZipException(entry.getName() + " in " + zip.getName() + " is corrupt.");
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+}
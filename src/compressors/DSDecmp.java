@@ -1,5 +1,9 @@
 package compressors;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
 import com.dabomstew.pkrandom.FileFunctions;
 
 //MODIFIED DSDECMP-JAVA SOURCE FOR RANDOMIZER'S NEEDS
@@ -27,93 +31,119 @@ import com.dabomstew.pkrandom.FileFunctions;
 
 public class DSDecmp {
 
+    // below this many members, threads cost more than they save
+    private static final int PARALLEL_MEMBERS = 16;
+
     public static byte[] Decompress(byte[] data) {
         return Decompress(data, 0);
     }
 
     public static byte[] Decompress(byte[] data, int offset) {
-        switch (data[offset] & 0xFF) {
-        case 0x10:
-            return decompress10LZ(data, offset);
-        case 0x11:
-            return decompress11LZ(data, offset);
-        default:
+        int length = getDecompressedLength(data, offset);
+        if (length < 0) {
             return null;
         }
+        byte[] outData = new byte[length];
+        Decompress(data, offset, outData, 0);
+        return outData;
+    }
+
+    /**
+     * Decompresses the data at offset into out, starting at outOffset, so
+     * callers can reuse one buffer. Returns the decompressed length, or -1
+     * (leaving out alone) if the data isn't LZ10/LZ11.
+     */
+    public static int Decompress(byte[] data, int offset, byte[] out, int outOffset) {
+        int length = getDecompressedLength(data, offset);
+        if (length < 0) {
+            return -1;
+        }
+        if (outOffset + length > out.length) {
+            throw new IllegalArgumentException("Output buffer too small: need " + length + " bytes");
+        }
+        int start = offset + (readLength(data, offset) == 0 ? 8 : 4);
+        if ((data[offset] & 0xFF) == 0x10) {
+            decompress10LZ(data, start, out, outOffset, outOffset + length);
+        } else {
+            decompress11LZ(data, start, out, outOffset, outOffset + length);
+        }
+        return length;
     }
 
-    private static byte[] decompress10LZ(byte[] data, int offset) {
-        offset++;
-        int length = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
-        offset += 3;
+    /** The size the LZ10/LZ11 data at offset decompresses to, or -1. */
+    public static int getDecompressedLength(byte[] data, int offset) {
+        int type = data[offset] & 0xFF;
+        if (type != 0x10 && type != 0x11) {
+            return -1;
+        }
+        int length = readLength(data, offset);
         if (length == 0) {
-            length = FileFunctions.readFullInt(data, offset);
-            offset += 4;
+            length = FileFunctions.readFullInt(data, offset + 4);
         }
+        return length;
+    }
 
-        byte[] outData = new byte[length];
-        int curr_size = 0;
-        int flags;
-        boolean flag;
-        int disp, n, b, cdest;
-        while (curr_size < outData.length) {
-            flags = data[offset++] & 0xFF;
+    /**
+     * Decompresses each of files (e.g. NARC members), in parallel on the
+     * common fork-join pool when there are enough. Members that are empty or
+     * not LZ10/LZ11 come back as null.
+     */
+    public static List<byte[]> DecompressAll(List<byte[]> files) {
+        byte[][] out = new byte[files.size()][];
+        IntStream members = IntStream.range(0, out.length);
+        if (out.length >= PARALLEL_MEMBERS) {
+            members = members.parallel();
+        }
+        members.forEach(i -> {
+            byte[] file = files.get(i);
+            out[i] = file.length == 0 ? null : Decompress(file);
+        });
+        return Arrays.asList(out);
+    }
+
+    private static int readLength(byte[] data, int offset) {
+        return (data[offset + 1] & 0xFF) | ((data[offset + 2] & 0xFF) << 8) | ((data[offset + 3] & 0xFF) << 16);
+    }
+
+    // out[pos, end) is filled; out before pos is only read by back-references
+    // that stay within what this call has written
+
+    private static void decompress10LZ(byte[] data, int offset, byte[] out, int pos, int end) {
+        int start = pos;
+        while (pos < end) {
+            int flags = data[offset++] & 0xFF;
             for (int i = 0; i < 8; i++) {
-                flag = (flags & (0x80 >> i)) > 0;
-                if (flag) {
-                    disp = 0;
-                    b = data[offset++] & 0xFF;
-                    n = b >> 4;
-                    disp = (b & 0x0F) << 8;
-                    disp |= data[offset++] & 0xFF;
-                    n += 3;
-                    cdest = curr_size;
-                    if (disp > curr_size)
+                if ((flags & (0x80 >> i)) != 0) {
+                    int b = data[offset++] & 0xFF;
+                    int n = (b >> 4) + 3;
+                    int disp = (((b & 0x0F) << 8) | (data[offset++] & 0xFF)) + 1;
+                    if (disp > pos - start)
                         throw new ArrayIndexOutOfBoundsException("Cannot go back more than already written");
-                    for (int j = 0; j < n; j++)
-                        outData[curr_size++] = outData[cdest - disp - 1 + j];
-
-                    if (curr_size > outData.length)
-                        break;
+                    if (n > end - pos)
+                        throw new ArrayIndexOutOfBoundsException("Cannot copy past the end of the output");
+                    copyBack(out, pos, disp, n);
+                    pos += n;
                 } else {
-                    b = data[offset++] & 0xFF;
-                    try {
-                        outData[curr_size++] = (byte) b;
-                    } catch (ArrayIndexOutOfBoundsException ex) {
-                        if (b == 0)
-                            break;
+                    byte b = data[offset++];
+                    if (pos == end) {
+                        // padding after the last byte
+                        return;
                     }
-
-                    if (curr_size > outData.length)
-                        break;
+                    out[pos++] = b;
                 }
             }
         }
-        return outData;
     }
 
-    private static byte[] decompress11LZ(byte[] data, int offset) {
-        offset++;
-        int length = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
-        offset += 3;
-        if (length == 0) {
-            length = FileFunctions.readFullInt(data, offset);
-            offset += 4;
-        }
-
-        byte[] outData = new byte[length];
-
-        int curr_size = 0;
-        int flags;
-        boolean flag;
-        int b1, bt, b2, b3, len, disp, cdest;
+    private static void decompress11LZ(byte[] data, int offset, byte[] out, int pos, int end) {
+        int start = pos;
+        int b1, bt, b2, b3, len, disp;
 
-        while (curr_size < outData.length) {
-            flags = data[offset++] & 0xFF;
+        while (pos < end) {
+            int flags = data[offset++] & 0xFF;
 
-            for (int i = 0; i < 8 && curr_size < outData.length; i++) {
-                flag = (flags & (0x80 >> i)) > 0;
-                if (flag) {
+            for (int i = 0; i < 8 && pos < end; i++) {
+                if ((flags & (0x80 >> i)) != 0) {
                     b1 = data[offset++] & 0xFF;
 
                     switch (b1 >> 4) {
@@ -166,26 +196,34 @@ public class DSDecmp {
                         break;
                     }
 
-                    if (disp > curr_size)
+                    if (disp + 1 > pos - start)
                         throw new ArrayIndexOutOfBoundsException("Cannot go back more than already written");
 
-                    cdest = curr_size;
-
-                    for (int j = 0; j < len && curr_size < outData.length; j++)
-                        outData[curr_size++] = outData[cdest - disp - 1 + j];
-
-                    if (curr_size > outData.length)
-                        break;
+                    // a copy running past the end is cut short
+                    len = Math.min(len, end - pos);
+                    copyBack(out, pos, disp + 1, len);
+                    pos += len;
                 } else {
-                    outData[curr_size++] = data[offset++];
-
-                    if (curr_size > outData.length)
-                        break;
+                    out[pos++] = data[offset++];
                 }
             }
 
         }
-        return outData;
+    }
+
+    /**
+     * Copies n bytes from distance back, byte-at-a-time semantics. Where the
+     * source and target overlap the output repeats with period distance, so
+     * it's copied in blocks that double each time, none overlapping.
+     */
+    private static void copyBack(byte[] out, int pos, int distance, int n) {
+        int src = pos - distance;
+        while (n > 0) {
+            int block = Math.min(pos - src, n);
+            System.arraycopy(out, src, out, pos, block);
+            pos += block;
+            n -= block;
+        }
     }
 
 }
@@ -114,6 +114,8 @@ public class PPTxtHandler {
         return uncomp;
     }
 
+    // carried from readTexts into saveEntry, so both lock the class for
+    // handlers running on different threads
     private static List<Integer> lastKeys;
     private static List<Integer> lastUnknowns;
 
@@ -126,7 +128,7 @@ public class PPTxtHandler {
      * @return The list of strings
      */
 
-    public static List<String> readTexts(byte[] ds) {
+    public static synchronized List<String> readTexts(byte[] ds) {
         int pos = 0;
         int i = 0;
         lastKeys = new ArrayList<Integer>();
@@ -247,7 +249,7 @@ public class PPTxtHandler {
      *            The new data.
      * @return The file to write back to the NARC.
      */
-    public static byte[] saveEntry(byte[] originalData, List<String> text) {
+    public static synchronized byte[] saveEntry(byte[] originalData, List<String> text) {
 
         // Parse strings against the reverse table
         for (int sn = 0; sn < text.size(); sn++) {
@@ -0,0 +1,244 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  AsyncLogWriterTest.java - checks both log formats, parsing every      --*/
+/*--                            line of JSON_LINES output back.             --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer" by Dabomstew                   --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2012.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a log through AsyncLogWriter in both formats and checks what comes
+ * out. Every JSON_LINES line is parsed back as a JSON object, and its line
+ * number, section and text are compared with what was logged.
+ *
+ * Needs no test framework; it throws AssertionError on the first failure:
+ * <pre>
+ * java -cp bin:test-bin com.dabomstew.pkrandom.AsyncLogWriterTest
+ * </pre>
+ */
+public class AsyncLogWriterTest {
+
+    public static void main(String[] args) throws IOException {
+        List<String> lines = sampleLog();
+        testText(lines);
+        testJsonLines(lines);
+        System.out.println("AsyncLogWriterTest: all passed");
+    }
+
+    // enough lines to fill the writer's queue several times over, with the
+    // characters JSON has to escape and a last line with no newline
+    private static List<String> sampleLog() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("Randomizer Version: test");
+        lines.add("--Wild Pokemon--");
+        for (int i = 0; i < 3000; i++) {
+            lines.add("Set #" + i + " - Route " + (i % 30) + " => PIDGEY Lv" + (i % 100));
+        }
+        lines.add("--Trainers Pokemon--");
+        lines.add("Quote \" and backslash \\ and tab \t here");
+        lines.add("Control \u0001 and accented é and astral 😀");
+        lines.add("");
+        lines.add("-- not a section");
+        lines.add("--Move Data--");
+        lines.add("last line, no newline");
+        return lines;
+    }
+
+    private static byte[] writeLog(List<String> lines, AsyncLogWriter.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream log = new PrintStream(new AsyncLogWriter(out, format), false, "UTF-8");
+        for (int i = 0; i < lines.size(); i++) {
+            if (i < lines.size() - 1) {
+                log.println(lines.get(i));
+            } else {
+                log.print(lines.get(i));
+            }
+        }
+        log.close();
+        check(!log.checkError(), "log reported an error");
+        return out.toByteArray();
+    }
+
+    private static void testText(List<String> lines) throws IOException {
+        byte[] written = writeLog(lines, AsyncLogWriter.Format.TEXT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+        PrintStream ps = new PrintStream(expected, false, "UTF-8");
+        for (int i = 0; i < lines.size(); i++) {
+            if (i < lines.size() - 1) {
+                ps.println(lines.get(i));
+            } else {
+                ps.print(lines.get(i));
+            }
+        }
+        ps.flush();
+        check(Arrays.equals(expected.toByteArray(), written), "TEXT output differs from the plain log");
+    }
+
+    private static void testJsonLines(List<String> lines) throws IOException {
+        String written = new String(writeLog(lines, AsyncLogWriter.Format.JSON_LINES), StandardCharsets.UTF_8);
+        check(written.endsWith("\n"), "JSON_LINES output doesn't end with a newline");
+        String[] jsonLines = written.substring(0, written.length() - 1).split("\n", -1);
+        check(jsonLines.length == lines.size(),
+                "expected " + lines.size() + " JSON lines, got " + jsonLines.length);
+
+        String section = "";
+        for (int i = 0; i < jsonLines.length; i++) {
+            Map<String, Object> object = new JsonObjectParser(jsonLines[i]).parse();
+            String text = lines.get(i);
+            if (text.length() > 4 && text.startsWith("--") && text.endsWith("--")) {
+                section = text.substring(2, text.length() - 2);
+            }
+            check(object.keySet().equals(new HashSet<String>(Arrays.asList("line", "section", "text"))),
+                    "line " + (i + 1) + " has keys " + object.keySet());
+            check(Long.valueOf(i + 1).equals(object.get("line")), "line " + (i + 1) + " numbered "
+                    + object.get("line"));
+            check(section.equals(object.get("section")), "line " + (i + 1) + " in section " + object.get("section")
+                    + ", expected " + section);
+            check(text.equals(object.get("text")), "line " + (i + 1) + " text " + object.get("text")
+                    + ", expected " + text);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Just enough JSON to read one flat object of string and integer
+     * values, strictly: anything else, or trailing text, is an error.
+     */
+    private static class JsonObjectParser {
+
+        private final String json;
+        private int pos;
+
+        JsonObjectParser(String json) {
+            this.json = json;
+        }
+
+        Map<String, Object> parse() {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            expect('{');
+            if (peek() != '}') {
+                do {
+                    String key = readString();
+                    expect(':');
+                    check(!object.containsKey(key), "duplicate key " + key + " in " + json);
+                    object.put(key, peek() == '"' ? readString() : readInteger());
+                } while (accept(','));
+            }
+            expect('}');
+            check(pos == json.length(), "trailing text in " + json);
+            return object;
+        }
+
+        private char peek() {
+            check(pos < json.length(), "unexpected end of " + json);
+            return json.charAt(pos);
+        }
+
+        private boolean accept(char c) {
+            if (pos < json.length() && json.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            check(accept(c), "expected '" + c + "' at " + pos + " in " + json);
+        }
+
+        private Long readInteger() {
+            int start = pos;
+            accept('-');
+            while (pos < json.length() && Character.isDigit(json.charAt(pos))) {
+                pos++;
+            }
+            check(pos > start, "expected a value at " + start + " in " + json);
+            return Long.valueOf(json.substring(start, pos));
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = peek();
+                pos++;
+                if (c == '"') {
+                    return sb.toString();
+                }
+                check(c >= 0x20, "unescaped control character in " + json);
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char escape = peek();
+                pos++;
+                switch (escape) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(escape);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    check(pos + 4 <= json.length(), "short \\u escape in " + json);
+                    sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    throw new AssertionError("bad escape \\" + escape + " in " + json);
+                }
+            }
+        }
+
+    }
+
+}